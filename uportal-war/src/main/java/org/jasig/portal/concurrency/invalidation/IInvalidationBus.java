@@ -0,0 +1,42 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.concurrency.invalidation;
+
+/**
+ * Broadcasts typed cache invalidations to the other servers in the cluster. Callers remove their own locally cached
+ * copy, the bus makes sure every other server does the same so cached data can live longer without being served
+ * stale.
+ * 
+ * @version $Revision$
+ */
+public interface IInvalidationBus {
+    /**
+     * Publish an invalidation to the other servers in the cluster. If called within a transaction the message is
+     * only published once the transaction commits.
+     * 
+     * @param type The type of cached data that changed
+     * @param key Identifies the changed data, see {@link InvalidationType} for the format of each type
+     */
+    void publish(InvalidationType type, String key);
+    
+    /**
+     * Register a listener for invalidations of the specified type published by other servers
+     */
+    void registerListener(InvalidationType type, IInvalidationListener listener);
+}
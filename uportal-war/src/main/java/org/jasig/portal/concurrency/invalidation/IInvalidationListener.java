@@ -0,0 +1,32 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.concurrency.invalidation;
+
+/**
+ * Drops locally cached data when another server publishes an invalidation for it.
+ * 
+ * @version $Revision$
+ */
+public interface IInvalidationListener {
+    /**
+     * Called for each received message of a type the listener is registered for. Invalidations are idempotent,
+     * the same message may be delivered more than once.
+     */
+    void invalidate(InvalidationMessage message);
+}
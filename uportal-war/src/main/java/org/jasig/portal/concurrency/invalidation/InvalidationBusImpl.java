@@ -0,0 +1,189 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.concurrency.invalidation;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jasig.portal.IPortalInfoProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Queues published invalidations and hands them to the {@link IInvalidationTransport} in batches when
+ * {@link #flush()} is called by the portal task scheduler. Each flush also dispatches the messages received from
+ * the other servers to the registered listeners.
+ * <p>
+ * Disabled by default, single server deployments have nothing to invalidate.
+ * 
+ * @version $Revision$
+ */
+@Service("invalidationBus")
+public class InvalidationBusImpl implements IInvalidationBus {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final Map<InvalidationType, List<IInvalidationListener>> listeners = new EnumMap<InvalidationType, List<IInvalidationListener>>(InvalidationType.class);
+    private final Queue<InvalidationMessage> pendingMessages = new ConcurrentLinkedQueue<InvalidationMessage>();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong receivedCount = new AtomicLong();
+    
+    private IInvalidationTransport invalidationTransport;
+    private IPortalInfoProvider portalInfoProvider;
+    private boolean enabled = false;
+    
+    public InvalidationBusImpl() {
+        for (final InvalidationType type : InvalidationType.values()) {
+            this.listeners.put(type, new CopyOnWriteArrayList<IInvalidationListener>());
+        }
+    }
+    
+    @Autowired
+    public void setInvalidationTransport(IInvalidationTransport invalidationTransport) {
+        this.invalidationTransport = invalidationTransport;
+    }
+
+    @Autowired
+    public void setPortalInfoProvider(IPortalInfoProvider portalInfoProvider) {
+        this.portalInfoProvider = portalInfoProvider;
+    }
+
+    /**
+     * If invalidations are published to and received from the other servers in the cluster, defaults to false.
+     */
+    @Value("${org.jasig.portal.concurrency.invalidation.enabled:false}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * @return Number of messages handed to the transport
+     */
+    public long getPublishedCount() {
+        return this.publishedCount.get();
+    }
+
+    /**
+     * @return Number of messages received from other servers
+     */
+    public long getReceivedCount() {
+        return this.receivedCount.get();
+    }
+
+    /**
+     * @return Number of messages waiting for the next {@link #flush()}
+     */
+    public int getPendingCount() {
+        return this.pendingMessages.size();
+    }
+
+    @Override
+    public void publish(InvalidationType type, String key) {
+        if (!this.enabled) {
+            return;
+        }
+        
+        final InvalidationMessage message = new InvalidationMessage(type, key, this.portalInfoProvider.getServerName());
+        
+        //Other servers must not reload the data before the change is visible to them
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    pendingMessages.offer(message);
+                }
+            });
+        }
+        else {
+            this.pendingMessages.offer(message);
+        }
+    }
+
+    @Override
+    public void registerListener(InvalidationType type, IInvalidationListener listener) {
+        this.listeners.get(type).add(listener);
+    }
+    
+    /**
+     * Sends the pending messages and dispatches the messages received from other servers
+     */
+    public void flush() {
+        if (!this.enabled) {
+            return;
+        }
+        
+        //Collapse repeated invalidations of the same data
+        final Set<InvalidationMessage> messages = new LinkedHashSet<InvalidationMessage>();
+        for (InvalidationMessage message = this.pendingMessages.poll(); message != null; message = this.pendingMessages.poll()) {
+            messages.add(message);
+        }
+        
+        if (!messages.isEmpty()) {
+            final List<InvalidationMessage> messageList = new ArrayList<InvalidationMessage>(messages);
+            try {
+                this.invalidationTransport.send(messageList);
+                this.publishedCount.addAndGet(messageList.size());
+                this.logger.debug("Sent {} invalidation messages", messageList.size());
+            }
+            catch (RuntimeException e) {
+                this.logger.warn("Failed to send " + messageList.size() + " invalidation messages, they will be sent with the next flush", e);
+                this.pendingMessages.addAll(messageList);
+            }
+        }
+        
+        final List<InvalidationMessage> received;
+        try {
+            received = this.invalidationTransport.receive();
+        }
+        catch (RuntimeException e) {
+            this.logger.warn("Failed to receive invalidation messages", e);
+            return;
+        }
+        
+        for (final InvalidationMessage message : received) {
+            this.receivedCount.incrementAndGet();
+            this.logger.debug("Received {}", message);
+            
+            for (final IInvalidationListener listener : this.listeners.get(message.getType())) {
+                try {
+                    listener.invalidate(message);
+                }
+                catch (RuntimeException e) {
+                    this.logger.warn(listener + " failed to handle " + message, e);
+                }
+            }
+        }
+    }
+}
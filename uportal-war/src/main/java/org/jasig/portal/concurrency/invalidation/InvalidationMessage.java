@@ -0,0 +1,86 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.concurrency.invalidation;
+
+import java.io.Serializable;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Tells the other servers in the cluster to drop their cached copy of some data.
+ * 
+ * @version $Revision$
+ */
+public final class InvalidationMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final InvalidationType type;
+    private final String key;
+    private final String serverName;
+    
+    public InvalidationMessage(InvalidationType type, String key, String serverName) {
+        Validate.notNull(type, "type");
+        Validate.notNull(key, "key");
+        
+        this.type = type;
+        this.key = key;
+        this.serverName = serverName;
+    }
+
+    public InvalidationType getType() {
+        return this.type;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return Name of the server that published the message, may be null if not known
+     */
+    public String getServerName() {
+        return this.serverName;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + this.key.hashCode();
+        result = prime * result + this.type.hashCode();
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        InvalidationMessage other = (InvalidationMessage) obj;
+        return this.type == other.type && this.key.equals(other.key);
+    }
+
+    @Override
+    public String toString() {
+        return "InvalidationMessage [type=" + this.type + ", key=" + this.key + ", serverName=" + this.serverName + "]";
+    }
+}
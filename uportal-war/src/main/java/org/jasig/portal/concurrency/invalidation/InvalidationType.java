@@ -0,0 +1,40 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.concurrency.invalidation;
+
+/**
+ * The kinds of cached data that can be invalidated across the cluster, determines how the key of an
+ * {@link InvalidationMessage} is interpreted.
+ * 
+ * @version $Revision$
+ */
+public enum InvalidationType {
+    /**
+     * A stored user layout changed, the key is the profile id and user name separated by a colon
+     */
+    LAYOUT,
+    /**
+     * The permissions of a principal changed, the key is the principal string
+     */
+    PERMISSION,
+    /**
+     * The members or containing groups of a group member changed, the key is the key of the cached group member
+     */
+    GROUP_MEMBERSHIP;
+}
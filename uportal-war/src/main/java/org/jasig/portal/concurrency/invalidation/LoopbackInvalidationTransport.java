@@ -0,0 +1,48 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.concurrency.invalidation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Transport that receives every message it sends, as if each was published by another server. Useful for testing
+ * listeners and for exercising the bus without a cluster.
+ * 
+ * @version $Revision$
+ */
+public class LoopbackInvalidationTransport implements IInvalidationTransport {
+    private final Queue<InvalidationMessage> messages = new ConcurrentLinkedQueue<InvalidationMessage>();
+
+    @Override
+    public void send(List<InvalidationMessage> messages) {
+        this.messages.addAll(messages);
+    }
+
+    @Override
+    public List<InvalidationMessage> receive() {
+        final List<InvalidationMessage> received = new ArrayList<InvalidationMessage>();
+        for (InvalidationMessage message = this.messages.poll(); message != null; message = this.messages.poll()) {
+            received.add(message);
+        }
+        return received;
+    }
+}
@@ -184,6 +184,18 @@ class ClusterMutex implements Serializable {
         this.lastUpdate = new Date();
     }
 
+    /**
+     * Record that the specified server published the invalidation named by this mutex, mutexes used this way are
+     * never locked. See {@link JpaClusterInvalidationTransport}
+     */
+    void publish(String serverId) {
+        if (this.locked) {
+            throw new IllegalStateException("Cannot publish with a locked mutex: " + this);
+        }
+        this.serverId = serverId;
+        this.lastUpdate = new Date();
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#hashCode()
      */
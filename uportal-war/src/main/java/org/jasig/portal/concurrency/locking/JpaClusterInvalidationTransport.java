@@ -0,0 +1,318 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.concurrency.locking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Root;
+
+import org.jasig.portal.IPortalInfoProvider;
+import org.jasig.portal.concurrency.invalidation.IInvalidationTransport;
+import org.jasig.portal.concurrency.invalidation.InvalidationMessage;
+import org.jasig.portal.concurrency.invalidation.InvalidationType;
+import org.jasig.portal.jpa.BaseJpaDao;
+import org.joda.time.Duration;
+import org.joda.time.ReadableDuration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.support.DataAccessUtils;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.base.Function;
+
+/**
+ * DB polling invalidation transport that reuses the {@link ClusterMutex} table. Each distinct invalidation is a
+ * mutex named after its type and key that is never locked, publishing records the sending server and the current
+ * time as the last update of the mutex. Receiving polls for mutexes updated since the previous poll, minus the
+ * maximum clock skew, by servers other than this one.
+ * <p>
+ * Invalidation mutexes that have not been published for {@link #setMessageRetention(ReadableDuration)} are
+ * deleted.
+ * 
+ * @version $Revision$
+ */
+@Repository
+public class JpaClusterInvalidationTransport extends BaseJpaDao implements IInvalidationTransport {
+    static final String MUTEX_NAME_PREFIX = "INVALIDATION:";
+    private static final int MAX_MUTEX_NAME_LENGTH = 200;
+    private static final int MAX_SEND_ATTEMPTS = 3;
+    
+    private ParameterExpression<String> nameParameter;
+    private ParameterExpression<String> namePatternParameter;
+    private ParameterExpression<Date> lastUpdateParameter;
+    private CriteriaQuery<ClusterMutex> clusterMutexByNameQuery;
+    private CriteriaQuery<ClusterMutex> publishedSinceQuery;
+    private EntityManager entityManager;
+    private IPortalInfoProvider portalInfoProvider;
+    private TransactionTemplate newTransactionTemplate;
+    private ReadableDuration maxClockSkew = Duration.standardSeconds(5);
+    private ReadableDuration messageRetention = Duration.standardMinutes(10);
+    
+    //Receive state, guarded by this
+    private long lastReceiveTime = -1;
+    private long lastPurgeTime = 0;
+    private final Map<String, Long> receivedMessages = new HashMap<String, Long>();
+
+    /**
+     * Messages are received again if they were published less than this long before the previous poll, covers
+     * both the clock skew between servers and transactions that committed just after the previous poll.
+     * Defaults to 5 seconds.
+     */
+    @Value("${org.jasig.portal.concurrency.locking.ClusterInvalidationTransport.maxClockSkew:PT5S}")
+    public void setMaxClockSkew(ReadableDuration maxClockSkew) {
+        this.maxClockSkew = maxClockSkew;
+    }
+
+    /**
+     * How long invalidations are kept after they were last published, must be longer than the maximum time between
+     * polls. Defaults to 10 minutes.
+     */
+    @Value("${org.jasig.portal.concurrency.locking.ClusterInvalidationTransport.messageRetention:PT10M}")
+    public void setMessageRetention(ReadableDuration messageRetention) {
+        this.messageRetention = messageRetention;
+    }
+
+    @Autowired
+    public void setPortalInfoProvider(IPortalInfoProvider portalInfoProvider) {
+        this.portalInfoProvider = portalInfoProvider;
+    }
+    
+    @Autowired
+    public void setPlatformTransactionManager(@Qualifier("PortalDb") PlatformTransactionManager platformTransactionManager) {
+        this.newTransactionTemplate = new TransactionTemplate(platformTransactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.newTransactionTemplate.afterPropertiesSet();
+    }
+
+    @PersistenceContext(unitName = "uPortalPersistence")
+    public final void setEntityManager(EntityManager entityManager) {
+        this.entityManager = entityManager;
+    }
+    
+    @Override
+    protected EntityManager getEntityManager() {
+        return this.entityManager;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        this.nameParameter = this.createParameterExpression(String.class, "name");
+        this.namePatternParameter = this.createParameterExpression(String.class, "namePattern");
+        this.lastUpdateParameter = this.createParameterExpression(Date.class, "lastUpdate");
+        
+        this.clusterMutexByNameQuery = this.createCriteriaQuery(new Function<CriteriaBuilder, CriteriaQuery<ClusterMutex>>() {
+            @Override
+            public CriteriaQuery<ClusterMutex> apply(CriteriaBuilder cb) {
+                final CriteriaQuery<ClusterMutex> criteriaQuery = cb.createQuery(ClusterMutex.class);
+                final Root<ClusterMutex> definitionRoot = criteriaQuery.from(ClusterMutex.class);
+                criteriaQuery.select(definitionRoot);
+                criteriaQuery.where(
+                        cb.equal(definitionRoot.get(ClusterMutex_.name), nameParameter)
+                );
+                return criteriaQuery;
+            }
+        });
+        
+        this.publishedSinceQuery = this.createCriteriaQuery(new Function<CriteriaBuilder, CriteriaQuery<ClusterMutex>>() {
+            @Override
+            public CriteriaQuery<ClusterMutex> apply(CriteriaBuilder cb) {
+                final CriteriaQuery<ClusterMutex> criteriaQuery = cb.createQuery(ClusterMutex.class);
+                final Root<ClusterMutex> definitionRoot = criteriaQuery.from(ClusterMutex.class);
+                criteriaQuery.select(definitionRoot);
+                criteriaQuery.where(
+                        cb.and(
+                            cb.like(definitionRoot.get(ClusterMutex_.name), namePatternParameter),
+                            cb.greaterThanOrEqualTo(definitionRoot.get(ClusterMutex_.lastUpdate), lastUpdateParameter)
+                        )
+                );
+                return criteriaQuery;
+            }
+        });
+    }
+
+    @Override
+    public void send(List<InvalidationMessage> messages) {
+        final String serverName = this.portalInfoProvider.getServerName();
+        
+        for (final InvalidationMessage message : messages) {
+            final String mutexName = getMutexName(message);
+            if (mutexName.length() > MAX_MUTEX_NAME_LENGTH) {
+                logger.warn("Key is too long to send, other servers will not be notified of: " + message);
+                continue;
+            }
+            
+            //Each message gets its own TX so a concurrent publish of one message doesn't fail the rest
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    this.publish(mutexName, serverName);
+                    break;
+                }
+                catch (RuntimeException e) {
+                    if (attempt >= MAX_SEND_ATTEMPTS) {
+                        throw e;
+                    }
+                    logger.debug("Failed to publish " + mutexName + ", likely due to a concurrent publish by another server. Trying again.", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<InvalidationMessage> receive() {
+        final long now = System.currentTimeMillis();
+        
+        //The caches of a newly started server are empty, nothing published before now is of interest
+        if (this.lastReceiveTime < 0) {
+            this.lastReceiveTime = now;
+            return Collections.emptyList();
+        }
+        
+        final Date since = new Date(this.lastReceiveTime - this.maxClockSkew.getMillis());
+        final List<ClusterMutex> published = this.newTransactionTemplate.execute(new TransactionCallback<List<ClusterMutex>>() {
+            @Override
+            public List<ClusterMutex> doInTransaction(TransactionStatus status) {
+                final TypedQuery<ClusterMutex> query = createQuery(publishedSinceQuery);
+                query.setParameter(namePatternParameter, MUTEX_NAME_PREFIX + "%");
+                query.setParameter(lastUpdateParameter, since, TemporalType.TIMESTAMP);
+                return query.getResultList();
+            }
+        });
+        
+        final String serverName = this.portalInfoProvider.getServerName();
+        final List<InvalidationMessage> messages = new ArrayList<InvalidationMessage>();
+        for (final ClusterMutex clusterMutex : published) {
+            if (serverName.equals(clusterMutex.getServerId())) {
+                continue;
+            }
+            
+            //Polls overlap, skip messages already received by the previous poll
+            final Long previousUpdate = this.receivedMessages.put(clusterMutex.getName(), clusterMutex.getLastUpdate());
+            if (previousUpdate != null && previousUpdate.longValue() == clusterMutex.getLastUpdate()) {
+                continue;
+            }
+            
+            final InvalidationMessage message = parseMutexName(clusterMutex.getName(), clusterMutex.getServerId());
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        
+        //Forget messages that can't be returned by the next poll
+        for (final Iterator<Long> lastUpdateItr = this.receivedMessages.values().iterator(); lastUpdateItr.hasNext(); ) {
+            if (lastUpdateItr.next() < since.getTime()) {
+                lastUpdateItr.remove();
+            }
+        }
+        
+        this.lastReceiveTime = now;
+        
+        if (now - this.lastPurgeTime > this.messageRetention.getMillis()) {
+            this.purge(now - this.messageRetention.getMillis());
+            this.lastPurgeTime = now;
+        }
+        
+        return messages;
+    }
+
+    /**
+     * Creates or updates the named mutex to record a publish by the specified server
+     */
+    protected void publish(final String mutexName, final String serverName) {
+        this.newTransactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                final TypedQuery<ClusterMutex> query = createQuery(clusterMutexByNameQuery);
+                query.setParameter(nameParameter, mutexName);
+                ClusterMutex clusterMutex = DataAccessUtils.singleResult(query.getResultList());
+                if (clusterMutex == null) {
+                    clusterMutex = new ClusterMutex(mutexName);
+                }
+                
+                clusterMutex.publish(serverName);
+                entityManager.persist(clusterMutex);
+                entityManager.flush();
+                logger.trace("Published {}", clusterMutex);
+            }
+        });
+    }
+
+    /**
+     * Deletes invalidation mutexes last published before the specified time
+     */
+    protected void purge(final long before) {
+        try {
+            final int purged = this.newTransactionTemplate.execute(new TransactionCallback<Integer>() {
+                @Override
+                public Integer doInTransaction(TransactionStatus status) {
+                    return entityManager.createQuery(
+                            "DELETE FROM ClusterMutex m WHERE m.name LIKE :namePattern AND m.lastUpdate < :before AND m.locked = false")
+                        .setParameter("namePattern", MUTEX_NAME_PREFIX + "%")
+                        .setParameter("before", new Date(before), TemporalType.TIMESTAMP)
+                        .executeUpdate();
+                }
+            });
+            logger.debug("Purged {} invalidation mutexes", purged);
+        }
+        catch (RuntimeException e) {
+            logger.warn("Failed to purge old invalidation mutexes, will try again later", e);
+        }
+    }
+    
+    static String getMutexName(InvalidationMessage message) {
+        return MUTEX_NAME_PREFIX + message.getType().name() + ":" + message.getKey();
+    }
+    
+    static InvalidationMessage parseMutexName(String mutexName, String serverName) {
+        final int typeEnd = mutexName.indexOf(':', MUTEX_NAME_PREFIX.length());
+        if (!mutexName.startsWith(MUTEX_NAME_PREFIX) || typeEnd < 0) {
+            return null;
+        }
+        
+        final InvalidationType type;
+        try {
+            type = InvalidationType.valueOf(mutexName.substring(MUTEX_NAME_PREFIX.length(), typeEnd));
+        }
+        catch (IllegalArgumentException e) {
+            //Published by a server with a newer type
+            return null;
+        }
+        
+        return new InvalidationMessage(type, mutexName.substring(typeEnd + 1), serverName);
+    }
+}
@@ -47,6 +47,11 @@ public interface IEventAggregatorStatus {
      */
     ProcessingType getProcessingType();
     
+    /**
+     * @return Name of the aggregation partition this status tracks, null for the status of unpartitioned processing
+     */
+    String getPartitionName();
+    
     /**
      * @return Server name that last ran the processing
      */
@@ -19,12 +19,19 @@
 
 package org.jasig.portal.events.aggr;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -89,7 +96,11 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
     private Set<IPortalEventAggregator<PortalEvent>> portalEventAggregators;
     private TransactionOperations aggrEventsTransactionOperations;
     
+    private Executor aggregationExecutor;
+    
     private int eventAggregationBatchSize = 5000;
+    private int aggregationThreads = 1;
+    private ReadablePeriod aggregationPartitionWindow = Period.hours(1);
     private ReadablePeriod aggregationDelay = Period.seconds(30);
     private ReadablePeriod purgeDelay = Period.days(1);
     private ReadablePeriod dimensionBuffer = Period.days(30);
@@ -139,7 +150,7 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
     }
 
     @Autowired
-    public void setPortalEventDao(IPortalEventDao portalEventDao) {
+    public void setPortalEventDao(@Qualifier("portalEventDao") IPortalEventDao portalEventDao) {
         this.portalEventDao = portalEventDao;
     }
 
@@ -163,6 +174,29 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         this.eventAggregationBatchSize = eventAggregationBatchSize;
     }
 
+    /**
+     * Number of threads used to aggregate events. When set to 1 all aggregators are run together against a single
+     * pass over the raw events. When greater than 1 each aggregator becomes its own partition, with its own cluster
+     * lock and {@link IEventAggregatorStatus}, and the partitions are processed in parallel.
+     */
+    @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.aggregationThreads:1}")
+    public void setAggregationThreads(int aggregationThreads) {
+        this.aggregationThreads = aggregationThreads;
+    }
+
+    /**
+     * Maximum span of raw events a partition aggregates in a single transaction.
+     */
+    @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.aggregationPartitionWindow:PT1H}")
+    public void setAggregationPartitionWindow(ReadablePeriod aggregationPartitionWindow) {
+        this.aggregationPartitionWindow = aggregationPartitionWindow;
+    }
+
+    @Autowired
+    public void setAggregationExecutor(@Qualifier("uPortalTaskExecutor") Executor aggregationExecutor) {
+        this.aggregationExecutor = aggregationExecutor;
+    }
+
     @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.dimensionBuffer:P30D}")
     public void setDimensionBuffer(ReadablePeriod dimensionBuffer) {
         if (new Period(dimensionBuffer).toStandardDays().getDays() < 1) {
@@ -193,22 +227,46 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
 
     @Override
     public boolean aggregateRawEvents() {
+        if (this.aggregationThreads <= 1) {
+            return this.doInAggregationLock(AGGREGATION_LOCK_NAME, new Function<String, Boolean>() {
+                @Override
+                public Boolean apply(String input) {
+                    return doAggregateRawEvents();
+                }
+            });
+        }
+        
+        //Partitioned aggregation, event sessions are created first and then each aggregator catches up independently
+        final boolean sessionsExecuted = this.doInAggregationLock(AGGREGATION_LOCK_NAME, new Function<String, Boolean>() {
+            @Override
+            public Boolean apply(String input) {
+                return doAggregateEventSessions();
+            }
+        });
+        
+        final boolean partitionsExecuted = this.aggregatePartitions();
+        
+        return sessionsExecuted || partitionsExecuted;
+    }
+    
+    /**
+     * Runs the function in a new aggrEvents transaction while holding the named cluster lock, repeating
+     * for as long as the function returns false.
+     * 
+     * @return true if the lock was acquired and the function executed
+     */
+    private boolean doInAggregationLock(final String lockName, final Function<String, Boolean> function) {
         TryLockFunctionResult<Boolean> result = null;
         do {
             if (result != null) {
-                logger.debug("doAggregateRawEvents signaled that not all events were aggregated in a single transaction, running again.");
+                logger.debug("{} signaled that not all events were aggregated in a single transaction, running again.", lockName);
             }
             
             result = aggrEventsTransactionOperations.execute(new TransactionCallback<TryLockFunctionResult<Boolean>>() {
                 @Override
                 public TryLockFunctionResult<Boolean> doInTransaction(TransactionStatus status) {
                     try {
-                        return clusterLockService.doInTryLock(AGGREGATION_LOCK_NAME, new Function<String, Boolean>() {
-                            @Override
-                            public Boolean apply(String input) {
-                                return doAggregateRawEvents();
-                            }
-                        });
+                        return clusterLockService.doInTryLock(lockName, function);
                     }
                     catch (InterruptedException e) {
                         logger.warn("Interrupted while aggregating", e);
@@ -218,12 +276,86 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
                 }
             });
             
-            //Loop if doAggregateRawEvents returns false, this means that there is more to aggregate 
+            //Loop if the function returns false, this means that there is more to aggregate 
         } while (result != null && result.isExecuted() && !result.getResult());
         
         return result != null && result.isExecuted();
     }
     
+    /**
+     * Splits the aggregators into aggregationThreads groups, runs all but the first group on the
+     * aggregation executor and the first group on the calling thread. Each aggregator is its own
+     * partition with its own cluster lock so other portal servers can work on the remaining partitions.
+     * 
+     * @return true if at least one partition was aggregated
+     */
+    private boolean aggregatePartitions() {
+        final List<IPortalEventAggregator<PortalEvent>> aggregators = new ArrayList<IPortalEventAggregator<PortalEvent>>(this.portalEventAggregators);
+        Collections.sort(aggregators, new Comparator<IPortalEventAggregator<PortalEvent>>() {
+            @Override
+            public int compare(IPortalEventAggregator<PortalEvent> o1, IPortalEventAggregator<PortalEvent> o2) {
+                return getPartitionName(o1).compareTo(getPartitionName(o2));
+            }
+        });
+        
+        final int groupCount = Math.min(this.aggregationThreads, aggregators.size());
+        final List<FutureTask<Boolean>> groups = new ArrayList<FutureTask<Boolean>>(groupCount);
+        for (int groupIndex = 0; groupIndex < groupCount; groupIndex++) {
+            final List<IPortalEventAggregator<PortalEvent>> group = new ArrayList<IPortalEventAggregator<PortalEvent>>();
+            for (int aggregatorIndex = groupIndex; aggregatorIndex < aggregators.size(); aggregatorIndex += groupCount) {
+                group.add(aggregators.get(aggregatorIndex));
+            }
+            
+            groups.add(new FutureTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    boolean executed = false;
+                    for (final IPortalEventAggregator<PortalEvent> aggregator : group) {
+                        final String lockName = AGGREGATION_LOCK_NAME + "." + getPartitionName(aggregator);
+                        executed = doInAggregationLock(lockName, new PartitionAggregationFunction(aggregator)) || executed;
+                    }
+                    return executed;
+                }
+            }));
+        }
+        
+        //Hand all but the first group to the executor, falling back to the calling thread if it is unavailable
+        for (final FutureTask<Boolean> group : groups.subList(Math.min(1, groups.size()), groups.size())) {
+            if (this.aggregationExecutor == null) {
+                group.run();
+                continue;
+            }
+            
+            try {
+                this.aggregationExecutor.execute(group);
+            }
+            catch (RejectedExecutionException e) {
+                logger.debug("Aggregation executor rejected partition group, running it on the calling thread", e);
+                group.run();
+            }
+        }
+        if (!groups.isEmpty()) {
+            groups.get(0).run();
+        }
+        
+        boolean executed = false;
+        for (final FutureTask<Boolean> group : groups) {
+            try {
+                executed = group.get() || executed;
+            }
+            catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for aggregation partitions", e);
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (ExecutionException e) {
+                logger.error("Failed to aggregate partition group", e.getCause());
+            }
+        }
+        
+        return executed;
+    }
+    
     @Override
     @Transactional(value="aggrEventsTransactionManager")
     public boolean purgeRawEvents() {
@@ -404,13 +536,7 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
      * @return true if all events for the time period were aggregated, false if not
      */
     boolean doAggregateRawEvents() {
-        if (!this.checkedDimensions.get() && this.checkedDimensions.compareAndSet(false, true)) {
-            //First time aggregation has happened, run populateDimensions to ensure enough dimension data exists
-            final boolean populatedDimensions = this.populateDimensions();
-            if (!populatedDimensions) {
-                this.logger.warn("First time doAggregateRawEvents has run and populateDimensions returned false, assuming current dimension data is available");
-            }
-        }
+        this.checkDimensions();
 
         final IEventAggregatorStatus eventAggregatorStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, true);
         
@@ -428,19 +554,168 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         
         logger.debug("Starting aggregation of events between {} (inc) and {} (exc)", lastAggregated, newestEventTime);
         final MutableInt events = new MutableInt();
+        final MutableInt scannedEvents = new MutableInt();
         
         //Do aggregation, capturing the start and end dates
         eventAggregatorStatus.setLastStart(DateTime.now());
         final long start = System.nanoTime();
-        portalEventDao.aggregatePortalEvents(lastAggregated, newestEventTime, this.eventAggregationBatchSize, new AggregateEventsHandler(events, eventAggregatorStatus));
+        final AggregateEventsHandler aggregateEventsHandler = new AggregateEventsHandler(events, eventAggregatorStatus, this.portalEventAggregators, true, 
+                eventAggregationManagementDao.getDefaultAggregatedGroupConfig(), eventAggregationManagementDao.getDefaultAggregatedIntervalConfig());
+        portalEventDao.aggregatePortalEvents(lastAggregated, newestEventTime, this.eventAggregationBatchSize, new AggregatedEventTypeFilter(scannedEvents), 
+                aggregateEventsHandler, aggregateEventsHandler.new FilteredEventsHandler());
         eventAggregatorStatus.setLastEnd(new DateTime());
         
-        logger.debug("Aggregated {} events between {} and {} in {}ms", new Object[] { events, lastAggregated, newestEventTime, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+        logger.debug("Aggregated {} of {} events between {} and {} in {}ms", new Object[] { events, scannedEvents, lastAggregated, newestEventTime, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
 
         //Store the results of the aggregation
         eventAggregationManagementDao.updateEventAggregatorStatus(eventAggregatorStatus);
         
-        return this.eventAggregationBatchSize <= 0 || events.intValue() < this.eventAggregationBatchSize;
+        //The batch size limits every event read, including the ones no aggregator supports
+        return this.eventAggregationBatchSize <= 0 || scannedEvents.intValue() < this.eventAggregationBatchSize;
+    }
+
+    /**
+     * Creates the event sessions for all new {@link LoginEvent}s and marks the raw events as aggregated. Used
+     * when aggregation is partitioned, the unpartitioned {@link IEventAggregatorStatus} tracks the point up to which
+     * event sessions exist and the partitions never aggregate past it.
+     * 
+     * @return true if all events for the time period were processed, false if not
+     */
+    boolean doAggregateEventSessions() {
+        this.checkDimensions();
+
+        final IEventAggregatorStatus eventAggregatorStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, true);
+        
+        //Update status with current server name
+        final String serverName = this.portalInfoProvider.getServerName();
+        eventAggregatorStatus.setServerName(serverName);
+        
+        //Shared rows are only created here, while holding the aggregation lock, the partitions just read them
+        eventAggregationManagementDao.getDefaultAggregatedGroupConfig();
+        eventAggregationManagementDao.getDefaultAggregatedIntervalConfig();
+        
+        //New partitions start where the event sessions were last created
+        for (final IPortalEventAggregator<PortalEvent> portalEventAggregator : this.portalEventAggregators) {
+            final String partitionName = getPartitionName(portalEventAggregator);
+            if (eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, partitionName, false) == null) {
+                final IEventAggregatorStatus partitionStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, partitionName, true);
+                partitionStatus.setLastEventDate(eventAggregatorStatus.getLastEventDate());
+                eventAggregationManagementDao.updateEventAggregatorStatus(partitionStatus);
+            }
+        }
+        
+        //Calculate date range for aggregation
+        DateTime lastAggregated = eventAggregatorStatus.getLastEventDate();
+        if (lastAggregated == null) {
+            lastAggregated = new DateTime(0);
+        }
+        
+        final DateTime newestEventTime = DateTime.now().minus(this.aggregationDelay).secondOfMinute().roundFloorCopy();
+        
+        logger.debug("Starting event session creation for events between {} (inc) and {} (exc)", lastAggregated, newestEventTime);
+        final MutableInt events = new MutableInt();
+        
+        eventAggregatorStatus.setLastStart(DateTime.now());
+        final long start = System.nanoTime();
+        portalEventDao.aggregatePortalEvents(lastAggregated, newestEventTime, this.eventAggregationBatchSize, 
+                new Predicate<Class<? extends PortalEvent>>() {
+                    @Override
+                    public boolean apply(Class<? extends PortalEvent> type) {
+                        //Called once for every raw event, used to tell if the batch was complete
+                        events.increment();
+                        return LoginEvent.class.isAssignableFrom(type);
+                    }
+                },
+                new FunctionWithoutResult<PortalEvent>() {
+                    @Override
+                    protected void applyWithoutResult(PortalEvent event) {
+                        eventSessionDao.createEventSession((LoginEvent)event);
+                        eventAggregatorStatus.setLastEventDate(event.getTimestampAsDate());
+                    }
+                },
+                null);
+        eventAggregatorStatus.setLastEnd(new DateTime());
+        
+        logger.debug("Created event sessions for {} events between {} and {} in {}ms", new Object[] { events, lastAggregated, newestEventTime, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+        
+        final boolean complete = this.eventAggregationBatchSize <= 0 || events.intValue() < this.eventAggregationBatchSize;
+        if (complete) {
+            //Every event before newestEventTime has been seen, partitions can aggregate up to it
+            eventAggregatorStatus.setLastEventDate(newestEventTime);
+        }
+        
+        eventAggregationManagementDao.updateEventAggregatorStatus(eventAggregatorStatus);
+        
+        return complete;
+    }
+    
+    /**
+     * Aggregates the next window of raw events for a single aggregator partition
+     * 
+     * @return true if the partition has caught up with the created event sessions, false if not
+     */
+    boolean doAggregatePartition(PartitionAggregationFunction partition) {
+        final IPortalEventAggregator<PortalEvent> portalEventAggregator = partition.portalEventAggregator;
+        final String partitionName = getPartitionName(portalEventAggregator);
+        
+        final IEventAggregatorStatus eventAggregatorStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, partitionName, false);
+        final IEventAggregatorStatus eventSessionStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, false);
+        if (eventAggregatorStatus == null || eventSessionStatus == null || eventSessionStatus.getLastEventDate() == null) {
+            logger.debug("Event sessions have not been created for partition {} yet, skipping aggregation", partitionName);
+            return true;
+        }
+        
+        //The default configs are created along with the event sessions, partitions never create shared rows
+        final AggregatedGroupConfig defaultAggregatedGroupConfig = eventAggregationManagementDao.getAggregatedGroupConfig(IPortalEventAggregator.class);
+        final AggregatedIntervalConfig defaultAggregatedIntervalConfig = eventAggregationManagementDao.getAggregatedIntervalConfig(IPortalEventAggregator.class);
+        if (defaultAggregatedGroupConfig == null || defaultAggregatedIntervalConfig == null) {
+            logger.debug("Default aggregation configuration has not been created for partition {} yet, skipping aggregation", partitionName);
+            return true;
+        }
+        
+        //Update status with current server name
+        final String serverName = this.portalInfoProvider.getServerName();
+        eventAggregatorStatus.setServerName(serverName);
+        
+        //Calculate date range for aggregation, never past the point event sessions have been created for
+        final DateTime endTime = eventSessionStatus.getLastEventDate();
+        DateTime startTime = partition.nextStart;
+        if (startTime == null) {
+            final DateTime lastEventDate = eventAggregatorStatus.getLastEventDate();
+            if (lastEventDate != null) {
+                startTime = lastEventDate.plusMillis(1);
+            }
+            else {
+                startTime = this.portalEventDao.getOldestPortalEventTimestamp();
+            }
+        }
+        if (startTime == null || !startTime.isBefore(endTime)) {
+            return true;
+        }
+        
+        DateTime windowEnd = startTime.plus(this.aggregationPartitionWindow);
+        if (windowEnd.isAfter(endTime)) {
+            windowEnd = endTime;
+        }
+        
+        logger.debug("Starting aggregation of partition {} for events between {} (inc) and {} (exc)", new Object[] { partitionName, startTime, windowEnd });
+        final MutableInt events = new MutableInt();
+        
+        //Do aggregation, capturing the start and end dates
+        eventAggregatorStatus.setLastStart(DateTime.now());
+        final long start = System.nanoTime();
+        final Set<IPortalEventAggregator<PortalEvent>> aggregators = Collections.singleton(portalEventAggregator);
+        portalEventDao.getPortalEvents(startTime, windowEnd, new AggregateEventsHandler(events, eventAggregatorStatus, aggregators, false, 
+                defaultAggregatedGroupConfig, defaultAggregatedIntervalConfig));
+        eventAggregatorStatus.setLastEnd(new DateTime());
+        
+        logger.debug("Aggregated {} events for partition {} between {} and {} in {}ms", new Object[] { events, partitionName, startTime, windowEnd, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+        
+        //Store the results of the aggregation
+        eventAggregationManagementDao.updateEventAggregatorStatus(eventAggregatorStatus);
+        
+        partition.nextStart = windowEnd;
+        return !windowEnd.isBefore(endTime);
     }
 
     void doPurgeRawEvents() {
@@ -452,8 +727,8 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         eventPurgerStatus.setLastStart(new DateTime());
         
         //Determine date of most recently aggregated data
-        final IEventAggregatorStatus eventAggregatorStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, false);
-        if (eventAggregatorStatus == null || eventAggregatorStatus.getLastEventDate() == null) {
+        final DateTime lastAggregated = this.getLastAggregatedEventDate();
+        if (lastAggregated == null) {
             //Nothing has been aggregated, skip purging
             
             eventPurgerStatus.setLastEnd(new DateTime());
@@ -463,7 +738,6 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         }
         
         //Calculate purge end date from most recent aggregation minus the purge delay
-        final DateTime lastAggregated = eventAggregatorStatus.getLastEventDate();
         final DateTime purgeEnd = lastAggregated.minus(this.purgeDelay);
         
         //Purge events
@@ -478,9 +752,104 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         eventAggregationManagementDao.updateEventAggregatorStatus(eventPurgerStatus);
     }
     
+    /**
+     * @return The date of the last event aggregated by every partition, null if any partition has not aggregated yet
+     */
+    private DateTime getLastAggregatedEventDate() {
+        final IEventAggregatorStatus eventAggregatorStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, false);
+        if (eventAggregatorStatus == null || eventAggregatorStatus.getLastEventDate() == null) {
+            return null;
+        }
+        
+        DateTime lastAggregated = eventAggregatorStatus.getLastEventDate();
+        if (this.aggregationThreads > 1) {
+            for (final IPortalEventAggregator<PortalEvent> portalEventAggregator : this.portalEventAggregators) {
+                final IEventAggregatorStatus partitionStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, getPartitionName(portalEventAggregator), false);
+                if (partitionStatus == null || partitionStatus.getLastEventDate() == null) {
+                    return null;
+                }
+                if (partitionStatus.getLastEventDate().isBefore(lastAggregated)) {
+                    lastAggregated = partitionStatus.getLastEventDate();
+                }
+            }
+        }
+        
+        return lastAggregated;
+    }
+    
+    /**
+     * First time aggregation happens run populateDimensions to ensure enough dimension data exists
+     */
+    private void checkDimensions() {
+        if (!this.checkedDimensions.get() && this.checkedDimensions.compareAndSet(false, true)) {
+            final boolean populatedDimensions = this.populateDimensions();
+            if (!populatedDimensions) {
+                this.logger.warn("First time aggregation has run and populateDimensions returned false, assuming current dimension data is available");
+            }
+        }
+    }
+    
+    /**
+     * @return The name of the partition, and of its {@link IEventAggregatorStatus}, for the aggregator
+     */
+    static String getPartitionName(IPortalEventAggregator<?> portalEventAggregator) {
+        return portalEventAggregator.getClass().getName();
+    }
+    
+    /**
+     * Aggregates a single partition, tracks the start of the next window between transactions
+     */
+    final class PartitionAggregationFunction implements Function<String, Boolean> {
+        private final IPortalEventAggregator<PortalEvent> portalEventAggregator;
+        private DateTime nextStart;
+        
+        PartitionAggregationFunction(IPortalEventAggregator<PortalEvent> portalEventAggregator) {
+            this.portalEventAggregator = portalEventAggregator;
+        }
+
+        @Override
+        public Boolean apply(String input) {
+            return doAggregatePartition(this);
+        }
+    }
+    
+    /**
+     * Only passes event types that at least one aggregator supports, {@link LoginEvent}s are always passed as
+     * they are needed to create event sessions. Counts every event type it is called with, used to tell if the
+     * batch was complete.
+     */
+    private final class AggregatedEventTypeFilter implements Predicate<Class<? extends PortalEvent>> {
+        private final Map<Class<? extends PortalEvent>, Boolean> supportedTypes = new HashMap<Class<? extends PortalEvent>, Boolean>();
+        private final MutableInt eventCounter;
+        
+        private AggregatedEventTypeFilter(MutableInt eventCounter) {
+            this.eventCounter = eventCounter;
+        }
+        
+        @Override
+        public boolean apply(Class<? extends PortalEvent> type) {
+            eventCounter.increment();
+            
+            Boolean supported = this.supportedTypes.get(type);
+            if (supported == null) {
+                supported = LoginEvent.class.isAssignableFrom(type);
+                for (final IPortalEventAggregator<PortalEvent> portalEventAggregator : portalEventAggregators) {
+                    if (portalEventAggregator.supports(type)) {
+                        supported = true;
+                        break;
+                    }
+                }
+                this.supportedTypes.put(type, supported);
+            }
+            return supported;
+        }
+    }
+    
     private final class AggregateEventsHandler extends FunctionWithoutResult<PortalEvent> {
         private final MutableInt eventCounter;
         private final IEventAggregatorStatus eventAggregatorStatus;
+        private final Set<IPortalEventAggregator<PortalEvent>> aggregators;
+        private final boolean createEventSessions;
         
         private final Map<AggregationInterval, AggregationIntervalInfo> currentIntervalInfo = new EnumMap<AggregationInterval, AggregationIntervalInfo>(AggregationInterval.class);
         private final Map<AggregationInterval, AggregationIntervalInfo> readOnlyIntervalInfo = Collections.unmodifiableMap(currentIntervalInfo);
@@ -493,17 +862,56 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         private final AggregatedIntervalConfig defaultAggregatedIntervalConfig;
         
         
-        private AggregateEventsHandler(MutableInt eventCounter, IEventAggregatorStatus eventAggregatorStatus) {
+        /**
+         * @param aggregators The aggregators to pass events and interval boundaries to
+         * @param createEventSessions If event sessions should be created for {@link LoginEvent}s, if false they must already exist
+         * @param defaultAggregatedGroupConfig Group config used by aggregators without their own config
+         * @param defaultAggregatedIntervalConfig Interval config used by aggregators without their own config
+         */
+        private AggregateEventsHandler(MutableInt eventCounter, IEventAggregatorStatus eventAggregatorStatus, 
+                Set<IPortalEventAggregator<PortalEvent>> aggregators, boolean createEventSessions,
+                AggregatedGroupConfig defaultAggregatedGroupConfig, AggregatedIntervalConfig defaultAggregatedIntervalConfig) {
             this.eventCounter = eventCounter;
             this.eventAggregatorStatus = eventAggregatorStatus;
-            this.defaultAggregatedGroupConfig = eventAggregationManagementDao.getDefaultAggregatedGroupConfig();
-            this.defaultAggregatedIntervalConfig = eventAggregationManagementDao.getDefaultAggregatedIntervalConfig();
+            this.aggregators = aggregators;
+            this.createEventSessions = createEventSessions;
+            this.defaultAggregatedGroupConfig = defaultAggregatedGroupConfig;
+            this.defaultAggregatedIntervalConfig = defaultAggregatedIntervalConfig;
         }
 
         @Override
         protected void applyWithoutResult(PortalEvent event) {
             final DateTime eventDate = event.getTimestampAsDate();
             
+            this.checkIntervalBoundaries(eventDate, event);
+            
+            //Aggregate the event
+            this.doAggregateEvent(event);
+            
+            //Update the status object with the event date
+            eventAggregatorStatus.setLastEventDate(eventDate);
+        }
+        
+        /**
+         * Handles the timestamps of events that no aggregator supports, time still moves forward for them so
+         * interval boundaries are crossed and the status object is updated just as if they had been aggregated.
+         */
+        private final class FilteredEventsHandler extends FunctionWithoutResult<DateTime> {
+            @Override
+            protected void applyWithoutResult(DateTime eventDate) {
+                checkIntervalBoundaries(eventDate, eventDate);
+                
+                //Update the status object with the event date
+                eventAggregatorStatus.setLastEventDate(eventDate);
+            }
+        }
+        
+        /**
+         * Notifies the aggregators of every interval boundary crossed by the event date
+         * 
+         * @param trigger What triggered the check, only used for logging
+         */
+        private void checkIntervalBoundaries(DateTime eventDate, Object trigger) {
             //If no interval data yet populate it.
             if (this.currentIntervalInfo.isEmpty()) {
                 final DateTime intervalDate;
@@ -532,19 +940,13 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
             for (final AggregationInterval interval : AggregationInterval.values()) {
                 AggregationIntervalInfo intervalInfo = this.currentIntervalInfo.get(interval);
                 if (intervalInfo != null && !intervalInfo.getEnd().isAfter(eventDate)) { //if there is no IntervalInfo that interval must not be supported in the current environment 
-                    logger.debug("Crossing {} Interval, triggerd by {}", interval, event);
+                    logger.debug("Crossing {} Interval, triggerd by {}", interval, trigger);
                     this.doHandleIntervalBoundary(interval, this.currentIntervalInfo);
                     
                     intervalInfo = intervalHelper.getIntervalInfo(interval, eventDate); 
                     this.currentIntervalInfo.put(interval, intervalInfo);
                 }
             }
-            
-            //Aggregate the event
-            this.doAggregateEvent(event);
-            
-            //Update the status object with the event date
-            eventAggregatorStatus.setLastEventDate(eventDate);
         }
         
 
@@ -553,7 +955,7 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
             
             //Load or create the event session
             EventSession eventSession;
-            if (item instanceof LoginEvent) {
+            if (this.createEventSessions && item instanceof LoginEvent) {
                 eventSession = eventSessionDao.createEventSession((LoginEvent)item);
             }
             else {
@@ -561,7 +963,7 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
             }
             
             //Give each aggregator a chance at the event
-            for (final IPortalEventAggregator<PortalEvent> portalEventAggregator : portalEventAggregators) {
+            for (final IPortalEventAggregator<PortalEvent> portalEventAggregator : this.aggregators) {
                 if (portalEventAggregator.supports(item.getClass())) {
                     final Class<? extends IPortalEventAggregator> aggregatorType = portalEventAggregator.getClass();
                     
@@ -581,7 +983,7 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         }
         
         private void doHandleIntervalBoundary(AggregationInterval interval, Map<AggregationInterval, AggregationIntervalInfo> intervals) {
-            for (final IPortalEventAggregator<PortalEvent> portalEventAggregator : portalEventAggregators) {
+            for (final IPortalEventAggregator<PortalEvent> portalEventAggregator : this.aggregators) {
                 
                 final Class<? extends IPortalEventAggregator> aggregatorType = portalEventAggregator.getClass();
                 final AggregatedIntervalConfig aggregatorIntervalConfig = this.getAggregatorIntervalConfig(aggregatorType);
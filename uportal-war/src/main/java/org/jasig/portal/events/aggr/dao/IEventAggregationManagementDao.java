@@ -42,6 +42,13 @@ public interface IEventAggregationManagementDao {
      */
     IEventAggregatorStatus getEventAggregatorStatus(IEventAggregatorStatus.ProcessingType processingType, boolean create);
     
+    /**
+     * Get the aggregation status for the specified processing type and partition
+     * 
+     * @param partitionName Name of the partition, null for unpartitioned processing
+     */
+    IEventAggregatorStatus getEventAggregatorStatus(IEventAggregatorStatus.ProcessingType processingType, String partitionName, boolean create);
+    
     /**
      * Update changes to the aggregation status object
      */
@@ -87,6 +87,11 @@ class EventAggregatorStatusImpl implements IEventAggregatorStatus {
         this.processingType = processingType;
     }
 
+    @Override
+    public String getPartitionName() {
+        return null;
+    }
+
     @Override
     public String getServerName() {
         return this.serverName;
@@ -65,6 +65,7 @@ public class JpaEventAggregationManagementDao extends BaseJpaDao implements IEve
     private static final Class<IPortalEventAggregator> DEFAULT_AGGREGATOR_TYPE = IPortalEventAggregator.class; 
     
     private CriteriaQuery<EventAggregatorStatusImpl> findEventAggregatorStatusByProcessingTypeQuery;
+    private CriteriaQuery<EventAggregatorPartitionStatusImpl> findEventAggregatorPartitionStatusQuery;
     private CriteriaQuery<AggregatedGroupConfigImpl> findAllGroupConfigsQuery;
     private CriteriaQuery<AggregatedGroupConfigImpl> findGroupConfigForAggregatorQuery;
     private CriteriaQuery<AggregatedIntervalConfigImpl> findAllIntervalConfigsQuery;
@@ -74,6 +75,7 @@ public class JpaEventAggregationManagementDao extends BaseJpaDao implements IEve
     private String deleteAllQuarterDetailsQuery;
 
     private ParameterExpression<ProcessingType> processingTypeParameter;
+    private ParameterExpression<String> partitionNameParameter;
     private ParameterExpression<Class> aggregatorTypeParameter;
     
     private TransactionOperations transactionOperations;
@@ -97,6 +99,7 @@ public class JpaEventAggregationManagementDao extends BaseJpaDao implements IEve
     @Override
     public void afterPropertiesSet() throws Exception {
         this.processingTypeParameter = this.createParameterExpression(ProcessingType.class, "processingType");
+        this.partitionNameParameter = this.createParameterExpression(String.class, "partitionName");
         this.aggregatorTypeParameter = this.createParameterExpression(Class.class, "aggregatorType");
         
         this.findEventAggregatorStatusByProcessingTypeQuery = this.createCriteriaQuery(new Function<CriteriaBuilder, CriteriaQuery<EventAggregatorStatusImpl>>() {
@@ -113,6 +116,23 @@ public class JpaEventAggregationManagementDao extends BaseJpaDao implements IEve
             }
         });
         
+        this.findEventAggregatorPartitionStatusQuery = this.createCriteriaQuery(new Function<CriteriaBuilder, CriteriaQuery<EventAggregatorPartitionStatusImpl>>() {
+            @Override
+            public CriteriaQuery<EventAggregatorPartitionStatusImpl> apply(CriteriaBuilder cb) {
+                final CriteriaQuery<EventAggregatorPartitionStatusImpl> criteriaQuery = cb.createQuery(EventAggregatorPartitionStatusImpl.class);
+                final Root<EventAggregatorPartitionStatusImpl> entityRoot = criteriaQuery.from(EventAggregatorPartitionStatusImpl.class);
+                criteriaQuery.select(entityRoot);
+                criteriaQuery.where(
+                    cb.and(
+                        cb.equal(entityRoot.get(EventAggregatorPartitionStatusImpl_.processingType), processingTypeParameter),
+                        cb.equal(entityRoot.get(EventAggregatorPartitionStatusImpl_.partitionName), partitionNameParameter)
+                    )
+                );
+                
+                return criteriaQuery;
+            }
+        });
+        
         this.findAllGroupConfigsQuery = this.createCriteriaQuery(new Function<CriteriaBuilder, CriteriaQuery<AggregatedGroupConfigImpl>>() {
             @Override
             public CriteriaQuery<AggregatedGroupConfigImpl> apply(CriteriaBuilder cb) {
@@ -228,6 +248,34 @@ public class JpaEventAggregationManagementDao extends BaseJpaDao implements IEve
         return status;
     }
 
+    @Override
+    public IEventAggregatorStatus getEventAggregatorStatus(final ProcessingType processingType, final String partitionName, boolean create) {
+        if (partitionName == null) {
+            return this.getEventAggregatorStatus(processingType, create);
+        }
+        
+        final TypedQuery<EventAggregatorPartitionStatusImpl> query = this.createCachedQuery(findEventAggregatorPartitionStatusQuery);
+        query.setParameter(this.processingTypeParameter, processingType);
+        query.setParameter(this.partitionNameParameter, partitionName);
+
+        final List<EventAggregatorPartitionStatusImpl> resultList = query.getResultList();
+        EventAggregatorPartitionStatusImpl status = DataAccessUtils.uniqueResult(resultList);
+        
+        //Create the status object if it doesn't yet exist
+        if (status == null && create) {
+            status = this.transactionOperations.execute(new TransactionCallback<EventAggregatorPartitionStatusImpl>() {
+                @Override
+                public EventAggregatorPartitionStatusImpl doInTransaction(TransactionStatus status) {
+                    final EventAggregatorPartitionStatusImpl eventAggregatorStatus = new EventAggregatorPartitionStatusImpl(processingType, partitionName);
+                    entityManager.persist(eventAggregatorStatus);
+                    return eventAggregatorStatus;
+                }
+            });
+        }
+        
+        return status;
+    }
+
     @Override
     @Transactional(value="aggrEventsTransactionManager")
     public void updateEventAggregatorStatus(IEventAggregatorStatus eventAggregatorStatus) {
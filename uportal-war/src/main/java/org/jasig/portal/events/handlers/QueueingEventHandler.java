@@ -21,19 +21,28 @@ package org.jasig.portal.events.handlers;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jasig.portal.spring.context.FilteringApplicationListener;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationEvent;
 
 /**
- * Queues PortalEvents in a local {@link ConcurrentLinkedQueue} and flushes the events to the configured
+ * Queues PortalEvents in a bounded local {@link ArrayBlockingQueue} and flushes the events to the configured
  * {@link BatchingEventHandler} when {@link #flush()} is called. This class must be used with some external
  * timer that will call {@link #flush()} at regular intervals
+ * <p>
+ * When the queue is full the configured {@link OverflowPolicy} decides what happens to new events. The default
+ * {@link OverflowPolicy#BLOCK} policy never drops events, the dropping policies must be configured explicitly
+ * and log a warning with the running dropped count when they discard events. When the
+ * queue is backed up and a consumer {@link Executor} is configured, {@link #flush()} hands additional batches
+ * to up to {@link #setConsumerCount(int)} concurrent consumers. The batch size grows with the queue depth
+ * up to {@link #setMaxBatchSize(int)}.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -41,21 +50,161 @@ import org.springframework.context.ApplicationEvent;
 public abstract class QueueingEventHandler<E extends ApplicationEvent> 
         extends FilteringApplicationListener<E> implements DisposableBean {
     
-    private final Queue<E> eventQueue = new ConcurrentLinkedQueue<E>();
-    private final Lock flushLock = new ReentrantLock();
-    private int batchSize = 25;
+    /**
+     * What to do with an event when the queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Block the publishing thread until there is room in the queue. If a positive block timeout is configured
+         * the event is dropped once it passes.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest queued event to make room for the new event
+         */
+        DROP_OLDEST,
+        /**
+         * Once the queue is three quarters full only queue every Nth event, drop the new event if the queue is full
+         */
+        SAMPLE;
+    }
     
-    //Used to hold events to flush, MUST only be read/written from within the flushLock 
-    private List<E> eventBuffer = new ArrayList<E>(this.batchSize);
+    /**
+     * After the first dropped event a warning is logged once every this many dropped events
+     */
+    private static final long DROPPED_WARN_INTERVAL = 1000;
     
-
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+    private final AtomicLong sampleCounter = new AtomicLong();
+    
+    private volatile BlockingQueue<E> eventQueue = new ArrayBlockingQueue<E>(10000);
+    private volatile Semaphore consumerPermits = new Semaphore(1);
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile Executor consumerExecutor;
+    private int capacity = 10000;
+    private int consumerCount = 1;
+    private int batchSize = 25;
+    private int maxBatchSize = 500;
+    private long blockTimeout = 0;
+    private int sampleRate = 10;
 
     /**
-     * The maximum number of events to be flushed to the {@link BatchingEventHandler} per call.
+     * The minimum number of events to be flushed to the {@link BatchingEventHandler} per call, defaults to 25.
      */
     public void setBatchSize(int batchSize) {
         this.batchSize = batchSize;
-        eventBuffer = new ArrayList<E>(this.batchSize);
+    }
+    
+    /**
+     * The maximum number of events to be flushed to the {@link BatchingEventHandler} per call when the queue is
+     * backed up, defaults to 500.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+    
+    /**
+     * The maximum number of events that can be queued, defaults to 10000. Events queued before the capacity is
+     * changed are discarded so this should only be called during configuration.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        this.eventQueue = new ArrayBlockingQueue<E>(capacity);
+    }
+    
+    /**
+     * What to do with new events when the queue is full, defaults to {@link OverflowPolicy#BLOCK}. The other
+     * policies drop events when the queue is full.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+    
+    /**
+     * Milliseconds to wait for room in the queue with {@link OverflowPolicy#BLOCK} before dropping the event,
+     * defaults to 0 which waits until there is room and never drops events.
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+    
+    /**
+     * With {@link OverflowPolicy#SAMPLE} only one in sampleRate events is queued once the queue is three
+     * quarters full, defaults to 10
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+    
+    /**
+     * The maximum number of threads flushing events at the same time, defaults to 1. Only used if
+     * a consumer {@link Executor} is configured.
+     */
+    public void setConsumerCount(int consumerCount) {
+        this.consumerCount = consumerCount;
+        this.consumerPermits = new Semaphore(consumerCount);
+    }
+    
+    /**
+     * Executor used to run additional consumers when the queue is backed up
+     */
+    public void setConsumerExecutor(Executor consumerExecutor) {
+        this.consumerExecutor = consumerExecutor;
+    }
+    
+    public final int getCapacity() {
+        return this.capacity;
+    }
+    
+    public final int getQueueDepth() {
+        return this.eventQueue.size();
+    }
+    
+    public final OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+    
+    public final long getQueuedCount() {
+        return this.queuedCount.get();
+    }
+    
+    public final long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+    
+    public final long getFlushedCount() {
+        return this.flushedCount.get();
+    }
+    
+    public final long getBatchCount() {
+        return this.batchCount.get();
+    }
+    
+    public final int getActiveConsumers() {
+        return this.consumerCount - this.consumerPermits.availablePermits();
+    }
+    
+    /**
+     * @return Average milliseconds to flush a batch of events
+     */
+    public final double getAverageFlushLatency() {
+        final long batches = this.batchCount.get();
+        if (batches == 0) {
+            return 0;
+        }
+        return this.flushNanos.get() / (double)batches / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+    
+    /**
+     * @return Milliseconds taken by the most recent batch flush
+     */
+    public final double getLastFlushLatency() {
+        return this.lastFlushNanos.get() / (double)TimeUnit.MILLISECONDS.toNanos(1);
     }
     
     /* (non-Javadoc)
@@ -63,7 +212,15 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
      */
     @Override
     public final void destroy() throws Exception {
-        this.flush();
+        //Wait for running consumers so all remaining events are flushed
+        final int consumers = this.consumerCount;
+        this.consumerPermits.acquire(consumers);
+        try {
+            this.drainQueue();
+        }
+        finally {
+            this.consumerPermits.release(consumers);
+        }
     }
     
     /* (non-Javadoc)
@@ -71,7 +228,70 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
      */
     @Override
     protected final void onFilteredApplicationEvent(E event) {
-        this.eventQueue.offer(event);
+        final BlockingQueue<E> queue = this.eventQueue;
+        
+        final boolean queued;
+        switch (this.overflowPolicy) {
+            case BLOCK: {
+                queued = this.offerBlocking(queue, event);
+                break;
+            }
+            case SAMPLE: {
+                queued = this.offerSampled(queue, event);
+                break;
+            }
+            default: {
+                queued = this.offerDropOldest(queue, event);
+                break;
+            }
+        }
+        
+        if (queued) {
+            this.queuedCount.incrementAndGet();
+        }
+        else {
+            this.eventDropped(event);
+        }
+    }
+    
+    private void eventDropped(E event) {
+        final long dropped = this.droppedCount.incrementAndGet();
+        if (dropped == 1 || dropped % DROPPED_WARN_INTERVAL == 0) {
+            this.logger.warn("Event queue is full, {} events have been dropped by the {} overflow policy", dropped, this.overflowPolicy);
+        }
+        this.logger.debug("Event queue is full, dropped event: {}", event);
+    }
+    
+    private boolean offerBlocking(BlockingQueue<E> queue, E event) {
+        try {
+            final long timeout = this.blockTimeout;
+            if (timeout <= 0) {
+                queue.put(event);
+                return true;
+            }
+            return queue.offer(event, timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    private boolean offerSampled(BlockingQueue<E> queue, E event) {
+        if (queue.size() >= this.capacity / 4 * 3 && this.sampleCounter.incrementAndGet() % this.sampleRate != 0) {
+            return false;
+        }
+        return queue.offer(event);
+    }
+    
+    private boolean offerDropOldest(BlockingQueue<E> queue, E event) {
+        while (!queue.offer(event)) {
+            final E dropped = queue.poll();
+            if (dropped != null) {
+                this.eventDropped(dropped);
+            }
+        }
+        return true;
     }
     
     /**
@@ -83,72 +303,120 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
     protected abstract void onApplicationEvents(Iterable<E> events);
     
     /**
-     * Flushes the queued PortalEvents to the configured {@link BatchingEventHandler}. If <code>force</code> is false
-     * flushing only happens if there are enough events in the queue and a flush isn't already under way. If 
-     * <code>force</code> is true all queued events will be flushed and the calling thread will wait until any previously
-     * executing flush call completes before flushing
-     * 
-     * @param force Forces flushing events to the {@link BatchingEventHandler} even if there are fewer than <code>flushCount</code> PortalEvents in the queue.
+     * Flushes the queued PortalEvents to the configured {@link BatchingEventHandler}. Returns immediately if all
+     * consumers are already busy. If the queue holds more than one batch of events and a consumer {@link Executor}
+     * is configured additional consumers are started, up to the configured consumer count.
      */
     public final void flush() {
-        if (eventQueue.isEmpty()) {
+        if (this.eventQueue.isEmpty()) {
             //No events to flush
             logger.trace("No events to flush, returning.");
             return;
         }
 
-        //Only one thread should be flushing at a time, try to get the flush lock and if it
-        //is already held just return.
-        if (!this.flushLock.tryLock()) {
-            logger.trace("FlushLock already held, returning.");
+        //Limit the number of threads flushing at a time, if all the consumers are busy just return
+        if (!this.consumerPermits.tryAcquire()) {
+            logger.trace("All event consumers are busy, returning.");
             return;
         }
         try {
-            while (!this.eventQueue.isEmpty()) {
-                //Clear the buffer for re-use
-                eventBuffer.clear();
-                
-                //Pop events off the queue into the buffer
-                while (!this.eventQueue.isEmpty() && eventBuffer.size() < this.batchSize) {
-                    final E event = eventQueue.poll();
-                    eventBuffer.add(event);
-                }
-
-                if (this.logger.isDebugEnabled()) {
-                    this.logger.debug("Flushing " + eventBuffer.size() + " events");
-                }
-
-                //Write events out to batching listener
-                try {
-                    this.onApplicationEvents(eventBuffer);
-                }
-                catch (Throwable t) {
-                    this.logger.error("An exception was thrown while trying to flush " + eventBuffer.size() + " events", t);
-
-                    final StringBuilder failedEvents = new StringBuilder();
-                    failedEvents.append("The following events that were being flushed, some may have been persisted correctly");
-
-                    for (final E portalEvent : eventBuffer) {
-                        failedEvents.append("\n\t");
+            this.startAdditionalConsumers();
+            this.drainQueue();
+        }
+        finally {
+            this.consumerPermits.release();
+        }
+    }
+    
+    /**
+     * Start extra consumers on the consumer executor while there is more queued than the active consumers
+     * can flush in a single batch each.
+     */
+    private void startAdditionalConsumers() {
+        final Executor executor = this.consumerExecutor;
+        if (executor == null) {
+            return;
+        }
+        
+        while (this.eventQueue.size() > this.getActiveConsumers() * this.maxBatchSize && this.consumerPermits.tryAcquire()) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
                         try {
-                            failedEvents.append(portalEvent.toString());
+                            drainQueue();
                         }
-                        catch (Exception e) {
-                            failedEvents.append("toString failed on a PortalEvent of type '")
-                                .append(portalEvent.getClass()).append("': ").append(e);
+                        finally {
+                            consumerPermits.release();
                         }
                     }
-
-                    this.logger.error(failedEvents.toString(), t);
-                }
+                });
+            }
+            catch (RuntimeException e) {
+                this.consumerPermits.release();
+                this.logger.warn("Failed to start additional event consumer, events will be flushed by the current consumer", e);
+                return;
             }
-
         }
-        finally {
-            //Clear the buffer to avoid memory leaks
-            eventBuffer.clear();
+    }
+    
+    /**
+     * Flush batches of events until the queue is empty
+     */
+    private void drainQueue() {
+        final List<E> eventBuffer = new ArrayList<E>(this.batchSize);
+        
+        while (!this.eventQueue.isEmpty()) {
+            //Scale the batch size with the backlog, split evenly over the active consumers
+            final int backlogBatchSize = this.eventQueue.size() / Math.max(1, this.getActiveConsumers());
+            final int currentBatchSize = Math.max(this.batchSize, Math.min(this.maxBatchSize, backlogBatchSize));
             
-            this.flushLock.unlock();
+            //Pop events off the queue into the buffer
+            eventBuffer.clear();
+            this.eventQueue.drainTo(eventBuffer, currentBatchSize);
+            if (eventBuffer.isEmpty()) {
+                //Another consumer emptied the queue
+                break;
+            }
+
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Flushing " + eventBuffer.size() + " events");
+            }
+
+            //Write events out to batching listener
+            final long start = System.nanoTime();
+            try {
+                this.onApplicationEvents(eventBuffer);
+                this.flushedCount.addAndGet(eventBuffer.size());
+            }
+            catch (Throwable t) {
+                this.logger.error("An exception was thrown while trying to flush " + eventBuffer.size() + " events", t);
+
+                final StringBuilder failedEvents = new StringBuilder();
+                failedEvents.append("The following events that were being flushed, some may have been persisted correctly");
+
+                for (final E portalEvent : eventBuffer) {
+                    failedEvents.append("\n\t");
+                    try {
+                        failedEvents.append(portalEvent.toString());
+                    }
+                    catch (Exception e) {
+                        failedEvents.append("toString failed on a PortalEvent of type '")
+                            .append(portalEvent.getClass()).append("': ").append(e);
+                    }
+                }
+
+                this.logger.error(failedEvents.toString(), t);
+            }
+            finally {
+                final long flushTime = System.nanoTime() - start;
+                this.lastFlushNanos.set(flushTime);
+                this.flushNanos.addAndGet(flushTime);
+                this.batchCount.incrementAndGet();
+            }
         }
+        
+        //Clear the buffer to avoid memory leaks
+        eventBuffer.clear();
     }
 }
@@ -0,0 +1,138 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events.handlers.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.hibernate.Session;
+import org.jasig.portal.events.PortalEvent;
+import org.joda.time.DateTime;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Alternative to {@link JpaPortalEventStore} that stores portal events in {@link CompactPersistentPortalEvent}s. The
+ * event type, portlet fname and execution time are stored in typed columns and the event itself is stored as deflated
+ * JSON. Inserts are flushed in groups of {@link #setInsertBatchSize(int)} so the JDBC driver can batch them.
+ * <p>
+ * During aggregation the event payload is only inflated and parsed for event types that pass the type filter, the
+ * aggregated flag is set with bulk updates.
+ * 
+ * @version $Revision$
+ */
+@Repository("compactPortalEventStore")
+public class CompactPortalEventStore extends JpaPortalEventStore {
+    private String markAggregatedQuery;
+    
+    public CompactPortalEventStore() {
+        super(CompactPersistentPortalEvent.class);
+        this.setInsertBatchSize(50);
+        this.setAggregationFlushPeriod(500);
+    }
+    
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        super.afterPropertiesSet();
+        
+        this.markAggregatedQuery = 
+                "UPDATE " + CompactPersistentPortalEvent.class.getName() + " e " +
+                "SET e." + CompactPersistentPortalEvent_.aggregated.getName() + " = true " +
+                "WHERE e." + CompactPersistentPortalEvent_.id.getName() + " IN (:ids)";
+    }
+    
+    /**
+     * Evicts the events and sets their aggregated flag with a single bulk update
+     */
+    @Override
+    protected void markAggregated(Session session, List<Object> persistentPortalEvents) {
+        if (persistentPortalEvents.isEmpty()) {
+            return;
+        }
+        
+        final List<Long> aggregatedIds = new ArrayList<Long>(persistentPortalEvents.size());
+        for (final Object persistentPortalEvent : persistentPortalEvents) {
+            aggregatedIds.add(((CompactPersistentPortalEvent)persistentPortalEvent).getId());
+            session.evict(persistentPortalEvent);
+        }
+        
+        final org.hibernate.Query update = session.createQuery(this.markAggregatedQuery);
+        update.setParameterList("ids", aggregatedIds);
+        update.executeUpdate();
+    }
+    
+    @Override
+    protected Object wrapPortalEvent(PortalEvent event) {
+        final byte[] portalEventData = this.toBytes(event);
+        return new CompactPersistentPortalEvent(event, portalEventData);
+    }
+    
+    @Override
+    protected DateTime getTimestamp(Object persistentPortalEvent) {
+        return ((CompactPersistentPortalEvent)persistentPortalEvent).getTimestamp();
+    }
+
+    @Override
+    protected Class<? extends PortalEvent> getEventType(Object persistentPortalEvent) {
+        return ((CompactPersistentPortalEvent)persistentPortalEvent).getEventType();
+    }
+
+    @Override
+    protected PortalEvent toPortalEvent(Object persistentPortalEvent) {
+        final CompactPersistentPortalEvent event = (CompactPersistentPortalEvent)persistentPortalEvent;
+        return this.toPortalEvent(event.getEventData(), event.getEventType());
+    }
+
+    protected <E extends PortalEvent> E toPortalEvent(final byte[] eventData, Class<E> eventType) {
+        final InputStream eventStream = new InflaterInputStream(new ByteArrayInputStream(eventData));
+        try {
+            return this.getObjectMapper().readValue(eventStream, eventType);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to deserialize PortalEvent data", e);
+        }
+        finally {
+            IOUtils.closeQuietly(eventStream);
+        }
+    }
+    
+    protected byte[] toBytes(PortalEvent event) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            final DeflaterOutputStream eventStream = new DeflaterOutputStream(buffer, deflater);
+            this.getObjectMapper().writeValue(eventStream, event);
+            eventStream.close();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to serialize PortalEvent data", e);
+        }
+        finally {
+            deflater.end();
+        }
+        return buffer.toByteArray();
+    }
+}
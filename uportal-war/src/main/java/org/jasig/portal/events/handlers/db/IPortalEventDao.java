@@ -23,6 +23,8 @@ import org.jasig.portal.concurrency.FunctionWithoutResult;
 import org.jasig.portal.events.PortalEvent;
 import org.joda.time.DateTime;
 
+import com.google.common.base.Predicate;
+
 /**
  * Persists, retrieves and deletes portal events from a persistent store 
  * 
@@ -61,6 +63,21 @@ public interface IPortalEventDao {
      */
     void aggregatePortalEvents(DateTime startTime, DateTime endTime, int maxEvents, FunctionWithoutResult<PortalEvent> handler);
     
+    /**
+     * Gets all un-aggregated persisted events in the time range. Events with a type that does not pass the
+     * eventTypeFilter are marked as aggregated without being loaded, only their timestamp is passed to the
+     * filteredEventHandler. After the handler is called on each event it is marked as aggregated.
+     * 
+     * @param startTime The inclusive start time to get events for
+     * @param endTime The exclusive end time to get events for
+     * @param maxEvents The maximum number events to retrieve, including filtered events. -1 means no limit
+     * @param eventTypeFilter Determines which event types are passed to the handler
+     * @param handler Function which will be called for each event.
+     * @param filteredEventHandler Function which will be called with the timestamp of each filtered event, may be null
+     */
+    void aggregatePortalEvents(DateTime startTime, DateTime endTime, int maxEvents, Predicate<Class<? extends PortalEvent>> eventTypeFilter, 
+            FunctionWithoutResult<PortalEvent> handler, FunctionWithoutResult<DateTime> filteredEventHandler);
+    
     /**
      * @return The timestamp of the oldest event in the persitent store
      */
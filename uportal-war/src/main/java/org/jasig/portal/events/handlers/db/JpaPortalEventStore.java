@@ -20,6 +20,8 @@
 package org.jasig.portal.events.handlers.db;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.persistence.EntityManager;
@@ -51,11 +53,16 @@ import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 
 /**
  * Stores portal events using JPA/Hibenate no internal batch segmentation is done to the passed list
  * of {@link PortalEvent}s. If a {@link PortalEvent} is not mapped as a persistent entity a message is logged
  * at the WARN level and the event is ignored.
+ * <p>
+ * Subclasses can store events in a different entity by overriding the entity specific hooks, the entity must use
+ * the same timestamp and aggregated attribute names as {@link PersistentPortalEvent}.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -65,9 +72,11 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private final ObjectMapper mapper;
+    private final Class<?> entityType;
     private String deleteQuery;
     private String selectQuery;
     private String selectUnaggregatedQuery;
+    private int insertBatchSize = 0;
     private int flushPeriod = 1000;
     private CriteriaQuery<DateTime> findNewestPersistentPortalEventTimestampQuery;
     private CriteriaQuery<DateTime> findOldestPersistentPortalEventTimestampQuery;
@@ -77,19 +86,39 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     private EntityManager entityManager;
     
     public JpaPortalEventStore() {
+        this(PersistentPortalEvent.class);
+    }
+    
+    /**
+     * @param entityType The entity that events are stored in
+     */
+    protected JpaPortalEventStore(Class<?> entityType) {
+        this.entityType = entityType;
+        
         mapper = new ObjectMapper();
         final AnnotationIntrospector pair = new AnnotationIntrospector.Pair(new JacksonAnnotationIntrospector(), new JaxbAnnotationIntrospector());
         mapper.getDeserializationConfig().withAnnotationIntrospector(pair);
         mapper.getSerializationConfig().withAnnotationIntrospector(pair);
     }
     
+    /**
+     * Number of events persisted before the session is flushed and cleared when storing events, should match the
+     * hibernate.jdbc.batch_size. 0 or less means the events are only flushed when the transaction commits, defaults to 0.
+     */
+    public void setInsertBatchSize(int insertBatchSize) {
+        this.insertBatchSize = insertBatchSize;
+    }
+    
     /**
      * Frequency that updated events should be flushed during a call to {@link #aggregatePortalEvents(DateTime, DateTime, int, FunctionWithoutResult)}, defaults to 1000.
      */
     public void setAggregationFlushPeriod(int flushPeriod) {
         this.flushPeriod = flushPeriod;
     }
-
+    
+    protected final ObjectMapper getObjectMapper() {
+        return this.mapper;
+    }
 
     /**
      * @param entityManager the entityManager to set
@@ -114,32 +143,32 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
         
         this.selectQuery = 
                 "SELECT e " +
-                "FROM " + PersistentPortalEvent.class.getName() + " e " +
+                "FROM " + this.entityType.getName() + " e " +
         		"WHERE e." + PersistentPortalEvent_.timestamp.getName() + " >= :" + this.startTimeParameter.getName() + " " +
                      "AND e." + PersistentPortalEvent_.timestamp.getName() + " < :" + this.endTimeParameter.getName() + " " + 
         		"ORDER BY e." + PersistentPortalEvent_.timestamp.getName() + " ASC";
         
         this.selectUnaggregatedQuery = 
                 "SELECT e " +
-                "FROM " + PersistentPortalEvent.class.getName() + " e " +
+                "FROM " + this.entityType.getName() + " e " +
                 "WHERE e." + PersistentPortalEvent_.timestamp.getName() + " >= :" + this.startTimeParameter.getName() + " " +
                      "AND e." + PersistentPortalEvent_.timestamp.getName() + " < :" + this.endTimeParameter.getName() + " " +
                      "AND (e." + PersistentPortalEvent_.aggregated.getName() + " is null OR e." + PersistentPortalEvent_.aggregated.getName() + " = false) " +
                 "ORDER BY e." + PersistentPortalEvent_.timestamp.getName() + " ASC";
         
         this.deleteQuery = 
-                "DELETE FROM " + PersistentPortalEvent.class.getName() + " e " +
+                "DELETE FROM " + this.entityType.getName() + " e " +
         		"WHERE e." + PersistentPortalEvent_.timestamp.getName() + " < :" + this.endTimeParameter.getName();
         
         this.findNewestPersistentPortalEventTimestampQuery = this.createCriteriaQuery(new Function<CriteriaBuilder, CriteriaQuery<DateTime>>() {
             @Override
             public CriteriaQuery<DateTime> apply(CriteriaBuilder cb) {
                 final CriteriaQuery<DateTime> criteriaQuery = cb.createQuery(DateTime.class);
-                final Root<PersistentPortalEvent> eventRoot = criteriaQuery.from(PersistentPortalEvent.class);
+                final Root<?> eventRoot = criteriaQuery.from(entityType);
                 
                 //Get the largest event timestamp
                 criteriaQuery
-                    .select(cb.greatest(eventRoot.get(PersistentPortalEvent_.timestamp)));
+                    .select(cb.greatest(eventRoot.<DateTime>get(PersistentPortalEvent_.timestamp.getName())));
                 
                 return criteriaQuery;
             }
@@ -150,11 +179,11 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
             @Override
             public CriteriaQuery<DateTime> apply(CriteriaBuilder cb) {
                 final CriteriaQuery<DateTime> criteriaQuery = cb.createQuery(DateTime.class);
-                final Root<PersistentPortalEvent> eventRoot = criteriaQuery.from(PersistentPortalEvent.class);
+                final Root<?> eventRoot = criteriaQuery.from(entityType);
                 
                 //Get the smallest event timestamp
                 criteriaQuery
-                    .select(cb.least(eventRoot.get(PersistentPortalEvent_.timestamp)));
+                    .select(cb.least(eventRoot.<DateTime>get(PersistentPortalEvent_.timestamp.getName())));
                 
                 return criteriaQuery;
             }
@@ -168,7 +197,7 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     @Override
     @Transactional(value="rawEvents")
     public void storePortalEvent(PortalEvent portalEvent) {
-        final PersistentPortalEvent persistentPortalEvent = this.wrapPortalEvent(portalEvent);
+        final Object persistentPortalEvent = this.wrapPortalEvent(portalEvent);
         this.entityManager.persist(persistentPortalEvent);
     }
 
@@ -178,14 +207,7 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     @Override
     @Transactional(value="rawEvents")
     public void storePortalEvents(PortalEvent... portalEvents) {
-        for (final PortalEvent portalEvent : portalEvents) {
-            try {
-                storePortalEvent(portalEvent);
-            }
-            catch (IllegalArgumentException iae) {
-                this.logger.warn(portalEvent.getClass().getName() + " is not mapped as a persistent entity and will not be stored. " + portalEvent + " Exception=" + iae.getMessage());
-            }
-        }
+        this.storePortalEvents(Arrays.asList(portalEvents));
     }
 
     /* (non-Javadoc)
@@ -194,12 +216,20 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     @Override
     @Transactional(value="rawEvents")
     public void storePortalEvents(Iterable<PortalEvent> portalEvents) {
+        int stored = 0;
         for (final PortalEvent portalEvent : portalEvents) {
             try {
                 storePortalEvent(portalEvent);
             }
             catch (IllegalArgumentException iae) {
                 this.logger.warn(portalEvent.getClass().getName() + " is not mapped as a persistent entity and will not be stored. " + portalEvent + " Exception=" + iae.getMessage());
+                continue;
+            }
+            
+            //Flush full batches and clear the context to keep memory use flat for large batches
+            if (this.insertBatchSize > 0 && ++stored % this.insertBatchSize == 0) {
+                this.entityManager.flush();
+                this.entityManager.clear();
             }
         }
     }
@@ -221,6 +251,13 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     @Override
     @Transactional(value="rawEvents")
     public void aggregatePortalEvents(DateTime startTime, DateTime endTime, int maxEvents, FunctionWithoutResult<PortalEvent> handler) {
+        this.aggregatePortalEvents(startTime, endTime, maxEvents, Predicates.<Class<? extends PortalEvent>>alwaysTrue(), handler, null);
+    }
+
+    @Override
+    @Transactional(value="rawEvents")
+    public void aggregatePortalEvents(DateTime startTime, DateTime endTime, int maxEvents, Predicate<Class<? extends PortalEvent>> eventTypeFilter, 
+            FunctionWithoutResult<PortalEvent> handler, FunctionWithoutResult<DateTime> filteredEventHandler) {
         final Session session = this.getEntityManager().unwrap(Session.class);
         final org.hibernate.Query query = session.createQuery(this.selectUnaggregatedQuery);
         query.setParameter(this.startTimeParameter.getName(), startTime);
@@ -229,29 +266,52 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
             query.setMaxResults(maxEvents);
         }
 
+        final List<Object> aggregatedEvents = new ArrayList<Object>(this.flushPeriod);
         int resultCount = 0;
         for (final ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY); results.next(); ) {
-            final PersistentPortalEvent persistentPortalEvent = (PersistentPortalEvent)results.get(0);
-            final PortalEvent portalEvent = this.toPortalEvent(persistentPortalEvent.getEventData(), persistentPortalEvent.getEventType());
-            handler.apply(portalEvent);
-            persistentPortalEvent.setAggregated(true);
-            session.persist(persistentPortalEvent);
+            final Object persistentPortalEvent = results.get(0);
+            //Only deserialize the events the handler is interested in
+            if (eventTypeFilter.apply(this.getEventType(persistentPortalEvent))) {
+                final PortalEvent portalEvent = this.toPortalEvent(persistentPortalEvent);
+                handler.apply(portalEvent);
+            }
+            else if (filteredEventHandler != null) {
+                filteredEventHandler.apply(this.getTimestamp(persistentPortalEvent));
+            }
+            aggregatedEvents.add(persistentPortalEvent);
             
-            //periodic flush and clear of session to manage memory demands
+            //periodic marking of aggregated events to manage memory demands
             if (++resultCount % this.flushPeriod == 0) {
-                this.logger.debug("Aggregated {} events, flush and clear session.", resultCount);
-                session.flush();
-                session.clear();
+                this.logger.debug("Aggregated {} events, marking them as aggregated.", resultCount);
+                this.markAggregated(session, aggregatedEvents);
+                aggregatedEvents.clear();
             }
         }
+        
+        this.markAggregated(session, aggregatedEvents);
+    }
+    
+    /**
+     * Marks the events as aggregated, called periodically during {@link #aggregatePortalEvents(DateTime, DateTime, int, Predicate, FunctionWithoutResult, FunctionWithoutResult)}
+     * with at most the aggregation flush period events.
+     */
+    protected void markAggregated(Session session, List<Object> persistentPortalEvents) {
+        for (final Object persistentPortalEvent : persistentPortalEvents) {
+            ((PersistentPortalEvent)persistentPortalEvent).setAggregated(true);
+            session.persist(persistentPortalEvent);
+        }
+        session.flush();
+        session.clear();
     }
     
     @Override
+    @Transactional(value="rawEvents", readOnly=true)
     public void getPortalEvents(DateTime startTime, DateTime endTime, FunctionWithoutResult<PortalEvent> handler) {
         this.getPortalEvents(startTime, endTime, -1, handler);
     }
     
     @Override
+    @Transactional(value="rawEvents", readOnly=true)
     public void getPortalEvents(DateTime startTime, DateTime endTime, int maxEvents, FunctionWithoutResult<PortalEvent> handler) {
         final Session session = this.getEntityManager().unwrap(Session.class);
         final org.hibernate.Query query = session.createQuery(this.selectQuery);
@@ -262,10 +322,9 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
         }
 
         for (final ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY); results.next(); ) {
-            final PersistentPortalEvent persistentPortalEvent = (PersistentPortalEvent)results.get(0);
-            final PortalEvent portalEvent = this.toPortalEvent(persistentPortalEvent.getEventData(), persistentPortalEvent.getEventType());
+            final Object persistentPortalEvent = results.get(0);
+            final PortalEvent portalEvent = this.toPortalEvent(persistentPortalEvent);
             handler.apply(portalEvent);
-            persistentPortalEvent.setAggregated(true);
             session.evict(persistentPortalEvent);
         }
     }
@@ -281,10 +340,26 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
         return query.executeUpdate();
     }
     
-    protected PersistentPortalEvent wrapPortalEvent(PortalEvent event) {
+    /**
+     * @return The entity to persist for the event
+     */
+    protected Object wrapPortalEvent(PortalEvent event) {
         final String portalEventData = this.toString(event);
         return new PersistentPortalEvent(event, portalEventData);
     }
+    
+    protected DateTime getTimestamp(Object persistentPortalEvent) {
+        return ((PersistentPortalEvent)persistentPortalEvent).getTimestamp();
+    }
+    
+    protected Class<? extends PortalEvent> getEventType(Object persistentPortalEvent) {
+        return ((PersistentPortalEvent)persistentPortalEvent).getEventType();
+    }
+    
+    protected PortalEvent toPortalEvent(Object persistentPortalEvent) {
+        final PersistentPortalEvent event = (PersistentPortalEvent)persistentPortalEvent;
+        return this.toPortalEvent(event.getEventData(), event.getEventType());
+    }
 
     protected <E extends PortalEvent> E toPortalEvent(final String eventData, Class<E> eventType) {
         try {
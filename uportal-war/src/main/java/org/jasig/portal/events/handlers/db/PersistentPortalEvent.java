@@ -119,6 +119,10 @@ public class PersistentPortalEvent implements Serializable {
         this.eventType = (Class<PortalEvent>)portalEvent.getClass();
     }
     
+    public DateTime getTimestamp() {
+        return this.timestamp;
+    }
+    
     public Class<PortalEvent> getEventType() {
         return this.eventType;
     }
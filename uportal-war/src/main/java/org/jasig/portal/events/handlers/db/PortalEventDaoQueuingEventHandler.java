@@ -19,9 +19,13 @@
 
 package org.jasig.portal.events.handlers.db;
 
+import java.util.concurrent.Executor;
+
 import org.jasig.portal.events.PortalEvent;
 import org.jasig.portal.events.handlers.QueueingEventHandler;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 /**
@@ -38,9 +42,39 @@ public class PortalEventDaoQueuingEventHandler extends QueueingEventHandler<Port
      * @param portalEventDao the portalEventDao to set
      */
     @Autowired
-    public void setPortalEventDao(IPortalEventDao portalEventDao) {
+    public void setPortalEventDao(@Qualifier("portalEventDao") IPortalEventDao portalEventDao) {
         this.portalEventDao = portalEventDao;
     }
+    
+    @Autowired
+    @Override
+    public void setConsumerExecutor(@Qualifier("uPortalTaskExecutor") Executor consumerExecutor) {
+        super.setConsumerExecutor(consumerExecutor);
+    }
+    
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.capacity:10000}")
+    @Override
+    public void setCapacity(int capacity) {
+        super.setCapacity(capacity);
+    }
+    
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.overflowPolicy:BLOCK}")
+    @Override
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        super.setOverflowPolicy(overflowPolicy);
+    }
+    
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.consumerCount:2}")
+    @Override
+    public void setConsumerCount(int consumerCount) {
+        super.setConsumerCount(consumerCount);
+    }
+    
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.maxBatchSize:500}")
+    @Override
+    public void setMaxBatchSize(int maxBatchSize) {
+        super.setMaxBatchSize(maxBatchSize);
+    }
 
     /* (non-Javadoc)
      * @see org.jasig.portal.events.handlers.QueueingEventHandler#onApplicationEvents(java.lang.Iterable)
@@ -201,6 +201,8 @@ public boolean deepContains(IGroupMember gm) throws GroupsException
 {
     if ( this.contains(gm) )
         { return true; }
+    if ( gm.isGroup() && getCompositeGroupService().isKnownDeepMember(gm.getKey(), getKey()) )
+        { return true; }
 
     boolean found = false;
     Iterator it = getMemberGroups();
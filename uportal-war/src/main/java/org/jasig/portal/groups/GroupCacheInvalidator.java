@@ -0,0 +1,69 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups;
+
+import org.jasig.portal.EntityTypes;
+import org.jasig.portal.concurrency.CachingException;
+import org.jasig.portal.concurrency.IEntityCachingService;
+import org.jasig.portal.concurrency.invalidation.IInvalidationBus;
+import org.jasig.portal.concurrency.invalidation.IInvalidationListener;
+import org.jasig.portal.concurrency.invalidation.InvalidationMessage;
+import org.jasig.portal.concurrency.invalidation.InvalidationType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Discards the cached copy of a group or entity whose memberships were changed on another
+ * server in the cluster. The change is published by {@link ReferenceCompositeGroupService}
+ * with the key of the group member, the member is removed from both the group and entity
+ * caches since the message does not say which of the two it was.
+ *
+ * @version $Revision$
+ */
+@Component
+public class GroupCacheInvalidator implements IInvalidationListener {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private IEntityCachingService entityCachingService;
+
+    @Autowired
+    public void setEntityCachingService(IEntityCachingService entityCachingService) {
+        this.entityCachingService = entityCachingService;
+    }
+
+    @Autowired
+    public void setInvalidationBus(IInvalidationBus invalidationBus) {
+        invalidationBus.registerListener(InvalidationType.GROUP_MEMBERSHIP, this);
+    }
+
+    @Override
+    public void invalidate(InvalidationMessage message) {
+        final String key = message.getKey();
+        try {
+            this.entityCachingService.remove(EntityTypes.GROUP_ENTITY_TYPE, key);
+            this.entityCachingService.remove(EntityTypes.LEAF_ENTITY_TYPE, key);
+        }
+        catch (CachingException e) {
+            this.logger.warn("Failed to remove group member " + key + " from the cache", e);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.groups;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-memory index of the group-in-group memberships held by a group store.
+ * Every group key is assigned an int id, direct memberships are held as arrays
+ * of parent ids and the ancestors of a group are computed on demand into a
+ * <code>BitSet</code> that is kept until the memberships change, so repeated
+ * deep membership checks are a single bit lookup.
+ * <p>
+ * Keys are composite group keys.  Member groups may belong to any service but
+ * only the memberships recorded in the indexed store are known, so a negative
+ * answer only means the membership cannot be found in this index.
+ * <p>
+ * Changes build a new immutable snapshot of the index which is then published
+ * for readers, they are expected to be rare compared to queries.
+ *
+ * @version $Revision$
+ */
+public class GroupClosureIndex
+{
+    // Group key to the keys of its member groups, guarded by this:
+    private final Map<String, Set<String>> memberGroupKeys = new HashMap<String, Set<String>>();
+    private volatile Snapshot snapshot = new Snapshot(Collections.<String, Set<String>>emptyMap());
+
+/**
+ * Replaces all of the memberships in the index.
+ * @param allMemberGroupKeys Map of group key to the keys of its member groups
+ */
+public synchronized void setAllMemberGroupKeys(Map<String, ? extends Collection<String>> allMemberGroupKeys)
+{
+    memberGroupKeys.clear();
+    for ( Map.Entry<String, ? extends Collection<String>> entry : allMemberGroupKeys.entrySet() )
+    {
+        if ( ! entry.getValue().isEmpty() )
+            { memberGroupKeys.put(entry.getKey(), new LinkedHashSet<String>(entry.getValue())); }
+    }
+    snapshot = new Snapshot(memberGroupKeys);
+}
+
+/**
+ * Replaces the member groups of a single group.
+ * @param groupKey the group that changed
+ * @param keys the keys of its member groups
+ */
+public synchronized void setMemberGroupKeys(String groupKey, Collection<String> keys)
+{
+    if ( keys.isEmpty() )
+        { memberGroupKeys.remove(groupKey); }
+    else
+        { memberGroupKeys.put(groupKey, new LinkedHashSet<String>(keys)); }
+    snapshot = new Snapshot(memberGroupKeys);
+}
+
+/**
+ * Removes a deleted group, both its member groups and its own memberships.
+ * @param groupKey the deleted group
+ */
+public synchronized void removeGroup(String groupKey)
+{
+    memberGroupKeys.remove(groupKey);
+    for ( Set<String> keys : memberGroupKeys.values() )
+        { keys.remove(groupKey); }
+    memberGroupKeys.values().removeAll(Collections.singleton(Collections.<String>emptySet()));
+    snapshot = new Snapshot(memberGroupKeys);
+}
+
+/**
+ * @return the keys of the groups that directly contain the group
+ */
+public Set<String> getContainingGroupKeys(String memberGroupKey)
+{
+    final Snapshot s = snapshot;
+    final Integer id = s.ids.get(memberGroupKey);
+    if ( id == null )
+        { return Collections.emptySet(); }
+
+    final Set<String> keys = new LinkedHashSet<String>();
+    for ( int parent : s.parents[id] )
+        { keys.add(s.keys[parent]); }
+    return keys;
+}
+
+/**
+ * @return the keys of the groups that contain the group, directly or through intermediate groups
+ */
+public Set<String> getAllContainingGroupKeys(String memberGroupKey)
+{
+    final Snapshot s = snapshot;
+    final Integer id = s.ids.get(memberGroupKey);
+    if ( id == null )
+        { return Collections.emptySet(); }
+
+    final BitSet ancestors = s.getAncestors(id);
+    final Set<String> keys = new LinkedHashSet<String>();
+    for ( int i = ancestors.nextSetBit(0); i >= 0; i = ancestors.nextSetBit(i + 1) )
+        { keys.add(s.keys[i]); }
+    return keys;
+}
+
+/**
+ * Answers if the group with <code>memberGroupKey</code> is a member of the
+ * group with <code>groupKey</code>, directly or through intermediate groups.
+ */
+public boolean isDeepMember(String memberGroupKey, String groupKey)
+{
+    final Snapshot s = snapshot;
+    final Integer memberId = s.ids.get(memberGroupKey);
+    final Integer groupId = s.ids.get(groupKey);
+    if ( memberId == null || groupId == null )
+        { return false; }
+    return s.getAncestors(memberId).get(groupId);
+}
+
+/**
+ * @return the number of groups in the index, as members or containing groups
+ */
+public int getGroupCount()
+{
+    return snapshot.keys.length;
+}
+
+/**
+ * Immutable view of the memberships, ancestor sets are filled in as they are requested.
+ */
+private static final class Snapshot
+{
+    private final String[] keys;
+    private final Map<String, Integer> ids;
+    private final int[][] parents;
+    private final AtomicReferenceArray<BitSet> ancestors;
+
+    Snapshot(Map<String, Set<String>> memberGroupKeys)
+    {
+        ids = new HashMap<String, Integer>();
+        final List<String> keyList = new ArrayList<String>();
+        final List<List<Integer>> parentList = new ArrayList<List<Integer>>();
+        for ( Map.Entry<String, Set<String>> entry : memberGroupKeys.entrySet() )
+        {
+            final int groupId = getId(entry.getKey(), keyList, parentList);
+            for ( String memberKey : entry.getValue() )
+            {
+                final int memberId = getId(memberKey, keyList, parentList);
+                parentList.get(memberId).add(groupId);
+            }
+        }
+
+        keys = keyList.toArray(new String[keyList.size()]);
+        parents = new int[keys.length][];
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            final List<Integer> memberParents = parentList.get(i);
+            parents[i] = new int[memberParents.size()];
+            for ( int p = 0; p < parents[i].length; p++ )
+                { parents[i][p] = memberParents.get(p); }
+        }
+        ancestors = new AtomicReferenceArray<BitSet>(keys.length);
+    }
+
+    private int getId(String key, List<String> keyList, List<List<Integer>> parentList)
+    {
+        Integer id = ids.get(key);
+        if ( id == null )
+        {
+            id = keyList.size();
+            ids.put(key, id);
+            keyList.add(key);
+            parentList.add(new ArrayList<Integer>(2));
+        }
+        return id;
+    }
+
+    /**
+     * Computes the ancestors with a breadth first walk of the parents, the
+     * visited set guards against circular memberships.
+     */
+    BitSet getAncestors(int id)
+    {
+        BitSet result = ancestors.get(id);
+        if ( result == null )
+        {
+            result = new BitSet(keys.length);
+            final int[] queue = new int[keys.length + 1];
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = id;
+            while ( head < tail )
+            {
+                for ( int parent : parents[queue[head++]] )
+                {
+                    if ( ! result.get(parent) )
+                    {
+                        result.set(parent);
+                        queue[tail++] = parent;
+                    }
+                }
+            }
+            ancestors.compareAndSet(id, null, result);
+        }
+        return result;
+    }
+}
+}
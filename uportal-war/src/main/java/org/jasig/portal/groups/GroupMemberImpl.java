@@ -21,8 +21,11 @@ package org.jasig.portal.groups;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.jasig.portal.EntityIdentifier;
@@ -287,6 +290,54 @@ private void initializeContainingGroupKeys() throws GroupsException
     setGroupKeysInitialized(true);
 }
 
+/**
+ * Cache the keys for <code>IEntityGroups</code> that contain each of the
+ * <code>IGroupMembers</code> whose keys are not yet cached, finding the
+ * containing groups of all of those members together.
+ * @param members java.util.Collection
+ */
+private void initializeContainingGroupKeys(Collection members) throws GroupsException
+{
+    List<GroupMemberImpl> uninitialized = new ArrayList<GroupMemberImpl>();
+    for ( Iterator it = members.iterator(); it.hasNext(); )
+    {
+        Object member = it.next();
+        if ( member instanceof GroupMemberImpl && ! ((GroupMemberImpl) member).areGroupKeysInitialized() )
+            { uninitialized.add((GroupMemberImpl) member); }
+    }
+
+    // A single member is initialized on demand by getGroupKeys().
+    if ( uninitialized.size() < 2 )
+        { return; }
+
+    Map<IGroupMember, Collection<IEntityGroup>> containingGroups =
+      getCompositeGroupService().findContainingGroups(uninitialized);
+    for ( GroupMemberImpl member : uninitialized )
+    {
+        Set keys = new HashSet(10);
+        Collection<IEntityGroup> groups = containingGroups.get(member);
+        if ( groups != null )
+        {
+            for ( IEntityGroup eg : groups )
+                { keys.add(eg.getEntityIdentifier().getKey()); }
+        }
+        member.primInitializeGroupKeys(keys);
+    }
+}
+
+/**
+ * Sets the containing group keys unless they were initialized in the meantime.
+ * @param keys Set
+ */
+private synchronized void primInitializeGroupKeys(Set keys)
+{
+    if ( ! groupKeysInitialized )
+    {
+        setGroupKeys(keys);
+        setGroupKeysInitialized(true);
+    }
+}
+
 /**
  * Answers if this <code>IGroupMember</code> is, recursively, a member of <code>IGroupMember</code> gm.
  * @return boolean
@@ -296,6 +347,15 @@ public boolean isDeepMemberOf(IGroupMember gm) throws GroupsException {
 
     if ( this.isMemberOf(gm) )
         { return true; }
+    if ( gm.isGroup() )
+    {
+        // One of our groups may be known to be inside gm without walking its members.
+        for ( Iterator it = getGroupKeys().iterator(); it.hasNext(); )
+        {
+            if ( getCompositeGroupService().isKnownDeepMember((String) it.next(), gm.getKey()) )
+                { return true; }
+        }
+    }
     return gm.deepContains( this );
 }
 /**
@@ -341,15 +401,28 @@ public boolean isMemberOf(IGroupMember gm) throws GroupsException
  */
 protected java.util.Set primGetAllContainingGroups(IGroupMember member, Set s) throws GroupsException
 {
-    Iterator i = member.getContainingGroups();
-    while ( i.hasNext() )
+    // Walk up the hierarchy one level at a time so that the containing groups
+    // of every group in a level can be found together.
+    Collection level = Collections.singletonList(member);
+    while ( ! level.isEmpty() )
     {
-        IGroupMember gm = (IGroupMember) i.next();
-        // avoid stack overflow in case of circular group dependencies
-        if (!s.contains(gm)) {
-            s.add(gm);
-            primGetAllContainingGroups(gm, s);
+        initializeContainingGroupKeys(level);
+
+        Collection nextLevel = new ArrayList();
+        for ( Iterator members = level.iterator(); members.hasNext(); )
+        {
+            Iterator i = ((IGroupMember) members.next()).getContainingGroups();
+            while ( i.hasNext() )
+            {
+                IGroupMember gm = (IGroupMember) i.next();
+                // avoid endless loop in case of circular group dependencies
+                if (!s.contains(gm)) {
+                    s.add(gm);
+                    nextLevel.add(gm);
+                }
+            }
         }
+        level = nextLevel;
     }
     return s;
 }
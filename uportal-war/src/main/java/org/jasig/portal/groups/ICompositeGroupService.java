@@ -19,7 +19,9 @@
 
 package org.jasig.portal.groups;
 
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 
 import javax.naming.Name;
 
@@ -44,6 +46,20 @@ public interface ICompositeGroupService extends IComponentGroupService {
    * @param gm IGroupMember
    */
   public Iterator findContainingGroups(IGroupMember gm) throws GroupsException;
+  /**
+   * Returns the groups that directly contain each of the <code>IGroupMembers</code>,
+   * e.g., one level of the group hierarchy, looked up together.
+   * @param members the group members in question
+   * @return Map of each member to the groups that contain it
+   */
+  public Map<IGroupMember, Collection<IEntityGroup>> findContainingGroups(Collection<? extends IGroupMember> members) throws GroupsException;
+  /**
+   * Answers if the group with <code>memberGroupKey</code> is known, from
+   * memberships held in memory, to be a member of the group with
+   * <code>groupKey</code>, directly or through intermediate groups.  A false
+   * answer is not conclusive.
+   */
+  public boolean isKnownDeepMember(String memberGroupKey, String groupKey) throws GroupsException;
   /**
    * Returns a pre-existing <code>IEntityGroup</code> or null if it does not
    * exist.
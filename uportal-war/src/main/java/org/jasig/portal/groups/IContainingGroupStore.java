@@ -0,0 +1,46 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.groups;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Optional interface for an <code>IEntityGroupStore</code> that can answer
+ * group hierarchy queries in bulk: the containing groups of many
+ * <code>IGroupMembers</code> at once, e.g., one level of the group hierarchy
+ * for all of a member's parents, with fewer round trips than calling
+ * <code>findContainingGroups(IGroupMember)</code> for each member, and all
+ * of the group-in-group memberships in the store.
+ *
+ * @version $Revision$
+ */
+public interface IContainingGroupStore {
+/**
+ * Find the groups that directly contain each of the members.
+ * @param members the group members in question
+ * @return Map of each member to the groups that contain it, members with no containing groups map to an empty Collection
+ */
+public Map<IGroupMember, Collection<IEntityGroup>> findContainingGroups(Collection<? extends IGroupMember> members) throws GroupsException;
+/**
+ * Find the member group keys of every group in the store that has member groups.
+ * @return Map of the local key of each group to the composite keys of its member groups
+ */
+public Map<String, Collection<String>> findAllMemberGroupKeys() throws GroupsException;
+}
@@ -25,9 +25,13 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,7 +47,7 @@ import org.jasig.portal.utils.SqlTransaction;
  * @author Dan Ellentuck
  * @version $Revision$
  */
-public class RDBMEntityGroupStore implements IEntityGroupStore, IGroupConstants {
+public class RDBMEntityGroupStore implements IEntityGroupStore, IContainingGroupStore, IGroupConstants {
     private static final Log log = LogFactory.getLog(RDBMEntityGroupStore.class);
     private static RDBMEntityGroupStore singleton;
 
@@ -73,6 +77,7 @@ public class RDBMEntityGroupStore implements IEntityGroupStore, IGroupConstants
     private static String findGroupSql;
     private static String findGroupsByCreatorSql;
     private static String findMemberGroupKeysSql;
+    private static String findAllMemberGroupKeysSql;
     private static String findMemberGroupsSql;
     private static String insertGroupSql;
     private static String updateGroupSql;
@@ -89,6 +94,9 @@ public class RDBMEntityGroupStore implements IEntityGroupStore, IGroupConstants
     private static String MEMBER_IS_GROUP = "T";
     private static String GROUP_NODE_SEPARATOR;
 
+    // Maximum number of member keys in the IN clause of a single containing groups query:
+    private static int MAX_MEMBER_KEYS_PER_QUERY = 100;
+
     // SQL strings for group MEMBERS crud:
     private static String allMemberColumns;
     private static String deleteMembersInGroupSql;
@@ -352,6 +360,112 @@ public Iterator findContainingGroups(IGroupMember gm) throws GroupsException
     }
 }
 
+/**
+ * Find the groups that directly contain each of the group members.  Members
+ * with the same leaf type (and member service for groups) are looked up
+ * together, at most <code>MAX_MEMBER_KEYS_PER_QUERY</code> keys per query,
+ * using a single connection.
+ * @param members the group members in question
+ * @return Map of each member to the groups that contain it
+ */
+public Map<IGroupMember, Collection<IEntityGroup>> findContainingGroups(Collection<? extends IGroupMember> members)
+throws GroupsException
+{
+    Map<IGroupMember, Collection<IEntityGroup>> containingGroups = new HashMap<IGroupMember, Collection<IEntityGroup>>();
+
+    // Members that can be found by the same query, keyed by memberIsGroup, type and member service:
+    Map<List<Object>, Map<String, List<IGroupMember>>> batches = new LinkedHashMap<List<Object>, Map<String, List<IGroupMember>>>();
+    for ( IGroupMember gm : members )
+    {
+        containingGroups.put(gm, new ArrayList<IEntityGroup>());
+
+        String memberKey = null;
+        String serviceName = null;
+        if ( gm.isGroup() )
+        {
+            IEntityGroup group = (IEntityGroup) gm;
+            memberKey = group.getLocalKey();
+            serviceName = group.getServiceName().toString();
+        }
+        else
+            { memberKey = gm.getKey(); }
+        Integer type = EntityTypes.getEntityTypeID(gm.getLeafType());
+
+        List<Object> batchKey = Arrays.<Object>asList(Boolean.valueOf(gm.isGroup()), type, serviceName);
+        Map<String, List<IGroupMember>> batch = batches.get(batchKey);
+        if ( batch == null )
+        {
+            batch = new LinkedHashMap<String, List<IGroupMember>>();
+            batches.put(batchKey, batch);
+        }
+        List<IGroupMember> keyMembers = batch.get(memberKey);
+        if ( keyMembers == null )
+        {
+            keyMembers = new ArrayList<IGroupMember>(1);
+            batch.put(memberKey, keyMembers);
+        }
+        keyMembers.add(gm);
+    }
+
+    java.sql.Connection conn = null;
+    try
+    {
+        conn = RDBMServices.getConnection();
+        for ( Map.Entry<List<Object>, Map<String, List<IGroupMember>>> batchEntry : batches.entrySet() )
+        {
+            boolean memberIsGroup = ((Boolean) batchEntry.getKey().get(0)).booleanValue();
+            int type = ((Integer) batchEntry.getKey().get(1)).intValue();
+            String serviceName = (String) batchEntry.getKey().get(2);
+            Map<String, List<IGroupMember>> batch = batchEntry.getValue();
+
+            List<String> memberKeys = new ArrayList<String>(batch.keySet());
+            for ( int start = 0; start < memberKeys.size(); start += MAX_MEMBER_KEYS_PER_QUERY )
+            {
+                List<String> queryKeys = memberKeys.subList(start, Math.min(start + MAX_MEMBER_KEYS_PER_QUERY, memberKeys.size()));
+                String sql = getFindContainingGroupsForMembersSql(memberIsGroup, queryKeys.size());
+                PreparedStatement ps = conn.prepareStatement(sql);
+                try
+                {
+                    int idx = 1;
+                    if ( memberIsGroup )
+                        { ps.setString(idx++, serviceName); }
+                    for ( String memberKey : queryKeys )
+                        { ps.setString(idx++, memberKey); }
+                    ps.setInt(idx, type);
+                    if (log.isDebugEnabled())
+                        log.debug(
+                                "RDBMEntityGroupStore.findContainingGroups(): " + ps +
+                                " (" + serviceName + ", " + queryKeys + ", " + type + ", memberIsGroup = " + memberIsGroup + ")");
+                    java.sql.ResultSet rs = ps.executeQuery();
+                    try
+                    {
+                        while (rs.next())
+                        {
+                            IEntityGroup eg = instanceFromResultSet(rs);
+                            String memberKey = rs.getString(6);
+                            for ( IGroupMember gm : batch.get(memberKey) )
+                                { containingGroups.get(gm).add(eg); }
+                        }
+                    }
+                    finally
+                        { rs.close(); }
+                }
+                finally
+                    { ps.close(); }
+            }
+        }
+    }
+    catch (Exception e)
+    {
+        log.error( "RDBMEntityGroupStore.findContainingGroups(): " + e);
+        throw new GroupsException("Problem retrieving containing groups: " + e);
+    }
+    finally
+        { RDBMServices.releaseConnection(conn); }
+
+    return containingGroups;
+}
+
 /**
  * Find the groups associated with this member key.
  * @param memberKey
@@ -613,6 +727,55 @@ public String[] findMemberGroupKeys(IEntityGroup group) throws GroupsException
 
     return (String[]) groupKeys.toArray(new String[groupKeys.size()]);
 }
+/**
+ * Find the member group keys of every group in the store with one query.
+ * @return Map of the local key of each group to the composite keys of its member groups
+ */
+public Map<String, Collection<String>> findAllMemberGroupKeys() throws GroupsException
+{
+    java.sql.Connection conn = null;
+    Map<String, Collection<String>> allMemberGroupKeys = new HashMap<String, Collection<String>>();
+
+    try
+    {
+        conn = RDBMServices.getConnection();
+        Statement stmnt = conn.createStatement();
+        try
+        {
+            String sql = getFindAllMemberGroupKeysSql();
+            if (log.isDebugEnabled())
+                log.debug("RDBMEntityGroupStore.findAllMemberGroupKeys(): " + sql);
+            ResultSet rs = stmnt.executeQuery(sql);
+            try
+            {
+                while (rs.next())
+                {
+                    String groupKey = rs.getString(1);
+                    Collection<String> memberGroupKeys = allMemberGroupKeys.get(groupKey);
+                    if ( memberGroupKeys == null )
+                    {
+                        memberGroupKeys = new ArrayList<String>();
+                        allMemberGroupKeys.put(groupKey, memberGroupKeys);
+                    }
+                    memberGroupKeys.add(rs.getString(2) + GROUP_NODE_SEPARATOR + rs.getString(3));
+                }
+            }
+            finally
+                { rs.close(); }
+        }
+        finally
+            { stmnt.close(); }
+    }
+    catch (SQLException sqle)
+    {
+        log.error( "RDBMEntityGroupStore.findAllMemberGroupKeys(): " + sqle);
+        throw new GroupsException("Problem retrieving member group keys: " + sqle);
+    }
+    finally
+        { RDBMServices.releaseConnection(conn); }
+
+    return allMemberGroupKeys;
+}
 /**
  * Find the IUserGroups that are members of the group.
  * @param group org.jasig.portal.groups.IEntityGroup
@@ -914,6 +1077,42 @@ private static java.lang.String getFindContainingGroupsForGroupSql()
     }
     return findContainingGroupsForGroupSql;
 }
+/**
+ * Returns the SQL to find the containing groups of <code>keyCount</code>
+ * members.  The member key is selected after the group columns so that
+ * each row can be matched to its member.
+ * @param memberIsGroup
+ * @param keyCount
+ * @return java.lang.String
+ */
+private static java.lang.String getFindContainingGroupsForMembersSql(boolean memberIsGroup, int keyCount)
+{
+    StringBuffer buff = new StringBuffer(500 + (keyCount * 3));
+    buff.append("SELECT ");
+    buff.append(getAllGroupColumnsWithTableAlias());
+    buff.append(", ");
+    buff.append(memberAlias(MEMBER_MEMBER_KEY_COLUMN));
+    buff.append(" FROM " + GROUP_TABLE_WITH_ALIAS + ", " + MEMBER_TABLE_WITH_ALIAS);
+    buff.append(" WHERE ");
+    buff.append(groupAlias(GROUP_ID_COLUMN) + EQ);
+    buff.append(memberAlias(MEMBER_GROUP_ID_COLUMN));
+    if ( memberIsGroup )
+    {
+        buff.append(" AND ");
+        buff.append(memberAlias(MEMBER_MEMBER_SERVICE_COLUMN) + EQUALS_PARAM);
+    }
+    buff.append(" AND ");
+    buff.append(memberAlias(MEMBER_MEMBER_KEY_COLUMN) + " IN (");
+    for ( int i = 0; i < keyCount; i++ )
+        { buff.append(i == 0 ? "?" : ", ?"); }
+    buff.append(")");
+    buff.append(" AND ");
+    buff.append(groupAlias(GROUP_TYPE_COLUMN) + EQUALS_PARAM);
+    buff.append(" AND ");
+    buff.append(memberAlias(MEMBER_IS_GROUP_COLUMN) + EQ + sqlQuote(memberIsGroup ? MEMBER_IS_GROUP : MEMBER_IS_ENTITY));
+
+    return buff.toString();
+}
 /**
  * @return java.lang.String
  */
@@ -953,6 +1152,27 @@ private static java.lang.String getFindGroupSql()
     }
     return findGroupSql;
 }
+/**
+ * @return java.lang.String
+ */
+private static java.lang.String getFindAllMemberGroupKeysSql()
+{
+    if (findAllMemberGroupKeysSql == null)
+    {
+            StringBuffer buff = new StringBuffer(200);
+            buff.append("SELECT ");
+            buff.append(MEMBER_GROUP_ID_COLUMN + ", " + MEMBER_MEMBER_SERVICE_COLUMN + ", " + MEMBER_MEMBER_KEY_COLUMN);
+            buff.append(" FROM ");
+            buff.append(MEMBER_TABLE);
+            buff.append(" WHERE ");
+            buff.append(MEMBER_IS_GROUP_COLUMN + EQ);
+            buff.append(sqlQuote(MEMBER_IS_GROUP));
+
+            findAllMemberGroupKeysSql = buff.toString();
+    }
+
+    return findAllMemberGroupKeysSql;
+}
 /**
  * @return java.lang.String
  */
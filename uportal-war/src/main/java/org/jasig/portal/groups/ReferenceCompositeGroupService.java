@@ -21,6 +21,7 @@ package org.jasig.portal.groups;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -32,8 +33,10 @@ import javax.naming.Name;
 
 import org.jasig.portal.EntityIdentifier;
 import org.jasig.portal.concurrency.CachingException;
+import org.jasig.portal.concurrency.invalidation.InvalidationType;
 import org.jasig.portal.services.EntityCachingService;
 import org.jasig.portal.services.GroupService;
+import org.jasig.portal.spring.locator.InvalidationBusLocator;
 
 /**
  * @author Dan Ellentuck
@@ -80,6 +83,56 @@ public Iterator findContainingGroups(IGroupMember gm) throws GroupsException
     }
     return allGroups.iterator();
 }
+/**
+ * Returns the groups that directly contain each of the <code>IGroupMembers</code>.
+ * Each component service is asked once for all of the members that it might
+ * contain a membership for.
+ * @param members the group members in question
+ * @return Map of each member to the groups that contain it
+ */
+public Map<IGroupMember, Collection<IEntityGroup>> findContainingGroups(Collection<? extends IGroupMember> members)
+throws GroupsException
+{
+    Map<IGroupMember, Collection<IEntityGroup>> allGroups = new HashMap<IGroupMember, Collection<IEntityGroup>>();
+    for ( IGroupMember gm : members )
+        { allGroups.put(gm, new ArrayList<IEntityGroup>()); }
+
+    IIndividualGroupService service = null;
+    for ( Iterator services = getComponentServices().values().iterator(); services.hasNext(); )
+    {
+        service = (IIndividualGroupService) services.next();
+        List<IGroupMember> serviceMembers = new ArrayList<IGroupMember>();
+        for ( IGroupMember gm : members )
+        {
+            if ( gm.isEntity() || service.isEditable() ||
+              getComponentService(((IEntityGroup)gm).getServiceName()) == service )
+                { serviceMembers.add(gm); }
+        }
+
+        if ( ! serviceMembers.isEmpty() )
+        {
+            Map<IGroupMember, Collection<IEntityGroup>> serviceGroups = service.findContainingGroups(serviceMembers);
+            for ( Map.Entry<IGroupMember, Collection<IEntityGroup>> entry : serviceGroups.entrySet() )
+                { allGroups.get(entry.getKey()).addAll(entry.getValue()); }
+        }
+    }
+    return allGroups;
+}
+/**
+ * Answers if any of the component services knows the group with
+ * <code>memberGroupKey</code> to be a deep member of the group with
+ * <code>groupKey</code>.
+ */
+public boolean isKnownDeepMember(String memberGroupKey, String groupKey) throws GroupsException
+{
+    for ( Iterator services = getComponentServices().values().iterator(); services.hasNext(); )
+    {
+        IIndividualGroupService service = (IIndividualGroupService) services.next();
+        if ( service.isKnownDeepMember(memberGroupKey, groupKey) )
+            { return true; }
+    }
+    return false;
+}
 /**
  * Returns a pre-existing <code>IEntityGroup</code> or null if the
  * <code>IGroupMember</code> does not exist.
@@ -385,6 +438,7 @@ protected void cacheRemove(IGroupMember gm) throws GroupsException
         { EntityCachingService.instance().remove(gm.getEntityIdentifier()); }
     catch (CachingException ce)
         { throw new GroupsException("Problem removing group member " + gm.getKey() + " from cache", ce); }
+    publishMembershipChange(gm);
 }
 
  /**
@@ -396,6 +450,16 @@ protected void cacheUpdate(IGroupMember gm) throws GroupsException
         { EntityCachingService.instance().update(gm); }
     catch (CachingException ce)
         { throw new GroupsException("Problem updating group member " + gm.getKey() + " in cache", ce); }
+    publishMembershipChange(gm);
+}
+
+/**
+ * Tells the other servers in the cluster to discard their cached copy of the
+ * changed group member, see {@link GroupCacheInvalidator}.
+ */
+protected void publishMembershipChange(IGroupMember gm)
+{
+    InvalidationBusLocator.getInvalidationBus().publish(InvalidationType.GROUP_MEMBERSHIP, gm.getEntityIdentifier().getKey());
 }
 
 /**
@@ -20,21 +20,37 @@
 package org.jasig.portal.groups;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.naming.InvalidNameException;
 import javax.naming.Name;
 
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
 import org.jasig.portal.EntityIdentifier;
+import org.jasig.portal.EntityTypes;
 import org.jasig.portal.concurrency.CachingException;
 import org.jasig.portal.concurrency.IEntityLock;
 import org.jasig.portal.concurrency.LockingException;
+import org.jasig.portal.concurrency.invalidation.IInvalidationListener;
+import org.jasig.portal.concurrency.invalidation.InvalidationMessage;
+import org.jasig.portal.concurrency.invalidation.InvalidationType;
 import org.jasig.portal.services.EntityCachingService;
 import org.jasig.portal.services.EntityLockService;
 import org.jasig.portal.services.GroupService;
+import org.jasig.portal.spring.locator.InvalidationBusLocator;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -57,6 +73,13 @@ implements IIndividualGroupService, ILockableGroupService
 
     // Entity searcher
     protected IEntitySearcher entitySearcher;
+
+    // In-memory index of the group-in-group memberships in the store, see getClosureIndex():
+    private volatile GroupClosureIndex closureIndex;
+    private volatile boolean closureIndexUnavailable = false;
+    private boolean closureIndexListenerRegistered = false;
+    // Keys of changed groups whose member groups are reloaded on the next use of the index:
+    private final Set<String> staleClosureIndexGroups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     
 /**
  * ReferenceGroupsService constructor.
@@ -94,6 +117,9 @@ public void deleteGroup(IEntityGroup group) throws GroupsException
     throwExceptionIfNotInternallyManaged();
     synchronizeGroupMembersOnDelete(group);
     getGroupStore().delete(group);
+    GroupClosureIndex index = closureIndex;
+    if ( index != null )
+        { index.removeGroup(group.getKey()); }
     if ( cacheInUse() )
         { cacheRemove(group); }
 }
@@ -202,25 +228,282 @@ public void deleteGroup(ILockableEntityGroup group) throws GroupsException
  */
 public Iterator findContainingGroups(IGroupMember gm) throws GroupsException
 {
+    if ( gm.isGroup() )
+    {
+        Collection<IEntityGroup> indexedGroups = findIndexedContainingGroups(gm);
+        if ( indexedGroups != null )
+            { return indexedGroups.iterator(); }
+    }
+
     Collection groups = new ArrayList(10);
     IEntityGroup group = null;
     for ( Iterator it = getGroupStore().findContainingGroups(gm); it.hasNext(); )
     {
         group = (IEntityGroup) it.next();
-        group.setLocalGroupService(this);
+        primAddContainingGroup(group);
         groups.add(group);
-        if (cacheInUse())
+    }
+    return groups.iterator();
+}
+
+/**
+ * Returns and caches the containing groups for each of the <code>IGroupMembers</code>.
+ * Groups whose containing groups are in the closure index and the cache are
+ * answered from memory.  If the group store is an <code>IContainingGroupStore</code>
+ * the other members are looked up together, otherwise they are looked up one
+ * at a time.
+ * @param members the group members in question
+ * @return Map of each member to the groups that contain it
+ */
+public Map<IGroupMember, Collection<IEntityGroup>> findContainingGroups(Collection<? extends IGroupMember> members)
+throws GroupsException
+{
+    Map<IGroupMember, Collection<IEntityGroup>> indexedGroups = new HashMap<IGroupMember, Collection<IEntityGroup>>();
+    List<IGroupMember> storeMembers = new ArrayList<IGroupMember>(members.size());
+    for ( IGroupMember gm : members )
+    {
+        Collection<IEntityGroup> groups = gm.isGroup() ? findIndexedContainingGroups(gm) : null;
+        if ( groups != null )
+            { indexedGroups.put(gm, groups); }
+        else
+            { storeMembers.add(gm); }
+    }
+    if ( storeMembers.isEmpty() )
+        { return indexedGroups; }
+
+    Map<IGroupMember, Collection<IEntityGroup>> containingGroups = null;
+    IEntityGroupStore store = getGroupStore();
+    if ( store instanceof IContainingGroupStore )
+        { containingGroups = ((IContainingGroupStore) store).findContainingGroups(storeMembers); }
+    else
+    {
+        containingGroups = new HashMap<IGroupMember, Collection<IEntityGroup>>();
+        for ( IGroupMember gm : storeMembers )
         {
-            try
+            Collection<IEntityGroup> groups = new ArrayList<IEntityGroup>();
+            for ( Iterator it = store.findContainingGroups(gm); it.hasNext(); )
+                { groups.add((IEntityGroup) it.next()); }
+            containingGroups.put(gm, groups);
+        }
+    }
+
+    for ( Collection<IEntityGroup> groups : containingGroups.values() )
+    {
+        for ( IEntityGroup group : groups )
+            { primAddContainingGroup(group); }
+    }
+    containingGroups.putAll(indexedGroups);
+    return containingGroups;
+}
+
+/**
+ * Returns the groups in this service that contain the member group if they
+ * are known from the closure index and all of them are cached, otherwise null.
+ * @param gm a member group
+ */
+private Collection<IEntityGroup> findIndexedContainingGroups(IGroupMember gm) throws GroupsException
+{
+    GroupClosureIndex index = getClosureIndex();
+    if ( index == null )
+        { return null; }
+
+    Collection<IEntityGroup> groups = new ArrayList<IEntityGroup>();
+    try
+    {
+        for ( String groupKey : index.getContainingGroupKeys(gm.getKey()) )
+        {
+            IEntityGroup group = getGroupFromCache(groupKey);
+            if ( group == null )
+                { return null; }
+            groups.add(group);
+        }
+    }
+    catch (CachingException ce)
+        { throw new GroupsException("Problem finding containing groups", ce); }
+    return groups;
+}
+
+/**
+ * Answers if the group with <code>memberGroupKey</code> is a member of the
+ * group with <code>groupKey</code>, directly or through intermediate groups,
+ * according to the closure index of this service.
+ */
+public boolean isKnownDeepMember(String memberGroupKey, String groupKey) throws GroupsException
+{
+    GroupClosureIndex index = getClosureIndex();
+    return index != null && index.isDeepMember(memberGroupKey, groupKey);
+}
+
+/**
+ * Returns the in-memory index of the group-in-group memberships in the store,
+ * loading it with a single query on first use.  Groups that changed since the
+ * last use are reloaded first.  The index is only available if the store is an
+ * <code>IContainingGroupStore</code> and groups are cached.  Membership changes
+ * made on other servers are learned from the group membership invalidations
+ * published on the invalidation bus.
+ * @return the index or null if it is not available
+ */
+protected GroupClosureIndex getClosureIndex()
+{
+    GroupClosureIndex index = closureIndex;
+    if ( index != null )
+    {
+        refreshStaleClosureIndexGroups();
+        return closureIndex;
+    }
+    if ( closureIndexUnavailable )
+        { return null; }
+
+    synchronized (this)
+    {
+        if ( closureIndex == null && ! closureIndexUnavailable )
+        {
+            if ( ! cacheInUse() || ! (getGroupStore() instanceof IContainingGroupStore) )
+                { closureIndexUnavailable = true; }
+            else
             {
-                if ( getGroupFromCache(group.getEntityIdentifier().getKey()) == null )
-                    { cacheAdd(group); }
+                try
+                    { closureIndex = buildClosureIndex(); }
+                catch (GroupsException ge)
+                    { log.error("Problem loading group closure index for service " + getServiceName(), ge); }
             }
-            catch (CachingException ce)
-                { throw new GroupsException("Problem finding containing groups", ce); }
         }
+        return closureIndex;
+    }
+}
+
+/**
+ * Registers for group cache invalidations and loads the memberships from the store.
+ */
+private GroupClosureIndex buildClosureIndex() throws GroupsException
+{
+    if ( ! closureIndexListenerRegistered )
+    {
+        Ehcache groupCache = CacheManager.getInstance().getEhcache(IEntityGroup.class.getName());
+        if ( groupCache == null )
+        {
+            log.warn("No " + IEntityGroup.class.getName() + " cache, group closure index is disabled for service " + getServiceName());
+            closureIndexUnavailable = true;
+            return null;
+        }
+        groupCache.getCacheEventNotificationService().registerListener(new ClosureIndexUpdater());
+        try
+            { InvalidationBusLocator.getInvalidationBus().registerListener(InvalidationType.GROUP_MEMBERSHIP, new ClosureIndexInvalidationListener()); }
+        catch (RuntimeException re)
+            { log.warn("No invalidation bus, group closure index for service " + getServiceName() + " will not see changes made on other servers", re); }
+        closureIndexListenerRegistered = true;
+    }
+
+    Map<String, Collection<String>> memberGroupKeys = ((IContainingGroupStore) getGroupStore()).findAllMemberGroupKeys();
+    Map<String, Collection<String>> indexedKeys = new HashMap<String, Collection<String>>(memberGroupKeys.size());
+    for ( Map.Entry<String, Collection<String>> entry : memberGroupKeys.entrySet() )
+        { indexedKeys.put(getCompositeGroupKey(entry.getKey()), entry.getValue()); }
+
+    GroupClosureIndex index = new GroupClosureIndex();
+    index.setAllMemberGroupKeys(indexedKeys);
+    if (log.isInfoEnabled())
+        log.info("Loaded group closure index for service " + getServiceName() + " with " + index.getGroupCount() + " groups");
+    return index;
+}
+
+/**
+ * Marks a group that changed, here or on another server, so its member groups
+ * are reloaded into the closure index on the next use of the index.  Only
+ * records the key, the store is not queried.
+ * @param groupKey the composite key of the group
+ */
+protected void markClosureIndexStale(String groupKey)
+{
+    if ( ! closureIndexUnavailable )
+        { staleClosureIndexGroups.add(groupKey); }
+}
+
+/**
+ * Reloads the member groups of the groups marked stale since the last use of
+ * the closure index.
+ */
+private void refreshStaleClosureIndexGroups()
+{
+    if ( staleClosureIndexGroups.isEmpty() )
+        { return; }
+
+    for ( Iterator<String> itr = staleClosureIndexGroups.iterator(); itr.hasNext(); )
+    {
+        String groupKey = itr.next();
+        itr.remove();
+        refreshClosureIndex(groupKey);
+    }
+}
+
+/**
+ * Reloads the member groups of a group in the closure index.  If the group
+ * cannot be reloaded the index is discarded and rebuilt on next use.
+ * @param groupKey the composite key of the group
+ */
+protected void refreshClosureIndex(String groupKey)
+{
+    GroupClosureIndex index = closureIndex;
+    if ( index == null )
+        { return; }
+
+    CompositeEntityIdentifier ent = null;
+    try
+    {
+        ent = newCompositeEntityIdentifier(groupKey);
+        if ( ! groupKey.equals(getCompositeGroupKey(ent.getLocalKey())) )
+            { return; }
+    }
+    catch (GroupsException ge)
+    {
+        // Not the key of a group in this service
+        return;
+    }
+
+    try
+    {
+        IEntityGroup group = primFindGroup(ent.getLocalKey());
+        if ( group == null )
+            { index.removeGroup(groupKey); }
+        else
+            { index.setMemberGroupKeys(groupKey, Arrays.asList(getGroupStore().findMemberGroupKeys(group))); }
+    }
+    catch (GroupsException ge)
+    {
+        log.warn("Problem refreshing group closure index for " + groupKey + ", discarding index", ge);
+        closureIndex = null;
+    }
+}
+
+/**
+ * @return the composite key of a group in this service
+ */
+private String getCompositeGroupKey(String localKey) throws GroupsException
+{
+    CompositeEntityIdentifier ent = new CompositeEntityIdentifier(localKey, EntityTypes.GROUP_ENTITY_TYPE);
+    try
+        { ent.setServiceName(getServiceName()); }
+    catch (InvalidNameException ine)
+        { throw new GroupsException("Problem setting service name for group " + localKey, ine); }
+    return ent.getKey();
+}
+
+/**
+ * Sets this service as the local service of a containing group returned by
+ * the store and caches the group if it is not already cached.
+ */
+private void primAddContainingGroup(IEntityGroup group) throws GroupsException
+{
+    group.setLocalGroupService(this);
+    if (cacheInUse())
+    {
+        try
+        {
+            if ( getGroupFromCache(group.getEntityIdentifier().getKey()) == null )
+                { cacheAdd(group); }
+        }
+        catch (CachingException ce)
+            { throw new GroupsException("Problem finding containing groups", ce); }
     }
-    return groups.iterator();
 }
 
 /**
@@ -738,6 +1021,7 @@ throws GroupsException
 public void updateGroupMembers(IEntityGroup group) throws GroupsException {
     throwExceptionIfNotInternallyManaged();
     getGroupStore().updateMembers(group);
+    markClosureIndexStale(group.getKey());
     if ( cacheInUse())
         { cacheUpdate(group); }
     synchronizeGroupMembersOnUpdate(group);
@@ -769,6 +1053,7 @@ throws GroupsException
                 " has invalid lock."); }
 
         getGroupStore().updateMembers(group);
+        markClosureIndexStale(group.getKey());
         if ( cacheInUse())
             { cacheRemove(group); }
         synchronizeGroupMembersOnUpdate(group);
@@ -873,4 +1158,55 @@ protected boolean isForeign(IGroupMember member)
     }
 }
 
+
+/**
+ * Marks groups updated in or removed from the group cache as stale in the closure
+ * index.  Called while the cache is being modified so it never queries the store.
+ */
+private class ClosureIndexUpdater implements CacheEventListener
+{
+    public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    }
+
+    public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+        refresh(element);
+    }
+
+    public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+        refresh(element);
+    }
+
+    public void notifyElementExpired(Ehcache cache, Element element) {
+    }
+
+    public void notifyElementEvicted(Ehcache cache, Element element) {
+    }
+
+    public void notifyRemoveAll(Ehcache cache) {
+        closureIndex = null;
+        staleClosureIndexGroups.clear();
+    }
+
+    public void dispose() {
+    }
+
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    private void refresh(Element element) {
+        if ( element != null && element.getObjectKey() != null )
+            { markClosureIndexStale(String.valueOf(element.getObjectKey())); }
+    }
+}
+
+/**
+ * Marks groups whose memberships were changed on other servers as stale in the closure index
+ */
+private class ClosureIndexInvalidationListener implements IInvalidationListener
+{
+    public void invalidate(InvalidationMessage message) {
+        markClosureIndexStale(message.getKey());
+    }
+}
 }
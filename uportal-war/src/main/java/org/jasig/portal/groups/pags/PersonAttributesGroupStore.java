@@ -19,17 +19,17 @@
 
 package org.jasig.portal.groups.pags;
 
+import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -49,7 +49,9 @@ import org.jasig.portal.groups.ILockableEntityGroup;
 import org.jasig.portal.security.IPerson;
 import org.jasig.portal.security.PersonFactory;
 import org.jasig.portal.security.provider.RestrictedPerson;
+import org.jasig.portal.spring.locator.CacheFactoryLocator;
 import org.jasig.portal.spring.locator.PersonAttributeDaoLocator;
+import org.jasig.portal.utils.cache.CacheFactory;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
 
@@ -66,10 +68,12 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
    private static final Class<IPerson> IPERSON_CLASS = IPerson.class;
    private static final EntityIdentifier[] EMPTY_SEARCH_RESULTS =
        new EntityIdentifier[0];
+   private static final String MEMBERSHIP_CACHE = "org.jasig.portal.groups.pags.PersonAttributesGroupStore.MEMBERSHIP_CACHE";
    private Properties props;
    private Map groupDefinitions;
    private Map<String, IEntityGroup> groups;
    private Map<String, List> containingGroups;
+   private PersonAttributesMembershipEvaluator membershipEvaluator;
       
    public PersonAttributesGroupStore() {
       groups = new HashMap<String, IEntityGroup>();
@@ -108,6 +112,7 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
            cachePut(group);
        }
        cacheContainingGroupsForGroups();
+       membershipEvaluator = new PersonAttributesMembershipEvaluator(groupDefinitions, (Map)containingGroups);
    }
    
 
@@ -144,26 +149,52 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
       {
          if (member.getEntityType() != IPERSON_CLASS) 
              { return false; }
-         IPerson person = null;
-         try {
-             IPersonAttributeDao pa = PersonAttributeDaoLocator.getPersonAttributeDao();
-             final IPersonAttributes personAttributes = pa.getPerson(member.getKey());
-
-             RestrictedPerson rp = PersonFactory.createRestrictedPerson();
-             if (personAttributes != null) {
-                 rp.setAttributes(personAttributes.getAttributes());
-             }
-             
-             person = rp;
-         }
-         catch (Exception ex) { 
-             log.error("Exception acquiring attributes for member " + member + " while checking if group " + group + " contains this member.", ex);
-             return false; 
-         }
-         return testRecursively(groupDef, person, member);
+         int groupIndex = membershipEvaluator.getGroupIndex(group.getLocalKey());
+         if (groupIndex < 0)
+             { return false; }
+         return getMembership(member).get(groupIndex);
       }
    }
 
+   /**
+    * Returns the membership vector of the person, evaluating every PAGS group
+    * for the person in a single pass if it is not already cached.  The cached
+    * vector is only reused while the person's attributes are unchanged, so
+    * membership always reflects the attributes returned by the person
+    * attribute DAO.
+    * @return BitSet indexed by PersonAttributesMembershipEvaluator.getGroupIndex
+    */
+   private BitSet getMembership(IGroupMember member)
+   {
+       Map<String, List<Object>> attributes = null;
+       try {
+           IPersonAttributeDao pa = PersonAttributeDaoLocator.getPersonAttributeDao();
+           final IPersonAttributes personAttributes = pa.getPerson(member.getKey());
+           if (personAttributes != null) {
+               attributes = personAttributes.getAttributes();
+           }
+       }
+       catch (Exception ex) { 
+           log.error("Exception acquiring attributes for member " + member + " while determining the groups containing this member.", ex);
+           return new BitSet(); 
+       }
+
+       final CacheFactory cacheFactory = CacheFactoryLocator.getCacheFactory();
+       final Map<Serializable, CachedMembership> membershipCache = cacheFactory.getCache(MEMBERSHIP_CACHE);
+       final CachedMembership cachedMembership = membershipCache.get(member.getKey());
+       if (cachedMembership != null && cachedMembership.isFor(attributes))
+           { return cachedMembership.getMembership(); }
+
+       RestrictedPerson rp = PersonFactory.createRestrictedPerson();
+       if (attributes != null) {
+           rp.setAttributes(attributes);
+       }
+
+       final BitSet membership = membershipEvaluator.evaluate(rp);
+       membershipCache.put(member.getKey(), new CachedMembership(attributes, membership));
+       return membership;
+   }
+
    public void delete(IEntityGroup group) throws GroupsException {
       throw new UnsupportedOperationException("PersonAttributesGroupStore: Method delete() not supported.");
    }
@@ -199,53 +230,6 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
        }
    }
 
-   private boolean testRecursively(GroupDefinition groupDef, IPerson person,
-       IGroupMember member)
-   throws GroupsException {
-       if ( ! groupDef.contains(person) )
-           { return false;}
-       else
-       {
-           IEntityGroup group = cacheGet(groupDef.getKey());
-           IEntityGroup parentGroup = null;
-           Set<IEntityGroup> allParents = primGetAllContainingGroups(group, new HashSet<IEntityGroup>());
-           boolean testPassed = true;
-           for (Iterator<IEntityGroup> i=allParents.iterator(); i.hasNext() && testPassed;)
-           {
-               parentGroup = i.next();
-               GroupDefinition parentGroupDef = 
-                 (GroupDefinition) groupDefinitions.get(parentGroup.getLocalKey());
-               testPassed = parentGroupDef.test(person);               
-           }
-           
-           if (!testPassed && log.isWarnEnabled()) {
-               StringBuffer sb = new StringBuffer();
-               sb.append("PAGS group=").append(group.getKey());
-               sb.append(" contained person=").append(member.getKey());
-               sb.append(", but the person failed to be contained in ");
-               sb.append("ancesters of this group");
-               sb.append((parentGroup != null ? " (parentGroup="+parentGroup.getKey()+")" : ""));
-               sb.append(". This may indicate a ");
-               sb.append("misconfigured PAGS group ");
-               sb.append("store. Please check PAGSGroupStoreConfig.xml.");
-               log.warn(sb.toString());
-           }
-           return testPassed;
-       }
-   }
-   private java.util.Set<IEntityGroup> primGetAllContainingGroups(IEntityGroup group, Set<IEntityGroup> s)
-   throws GroupsException
-   {
-       Iterator i = findContainingGroups(group);
-       while ( i.hasNext() )
-       {
-           IEntityGroup parentGroup = (IEntityGroup) i.next();
-           s.add(parentGroup);
-           primGetAllContainingGroups(parentGroup, s);
-       }
-       return s;
-   }
-
    public Iterator findContainingGroups(IGroupMember member) 
    throws GroupsException 
    {
@@ -263,11 +247,12 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
    }
    private Iterator<IEntityGroup> findContainingGroupsForEntity(IEntity member)
    throws GroupsException {
-       List<IEntityGroup> results = new ArrayList<IEntityGroup>();
-       for (Iterator<IEntityGroup> i = groups.values().iterator(); i.hasNext(); ) {
-          IEntityGroup group = i.next();
-          if ( contains(group, member)) 
-              { results.add(group); }
+       if (member.getEntityType() != IPERSON_CLASS) 
+           { return Collections.<IEntityGroup>emptyList().iterator(); }
+       BitSet membership = getMembership(member);
+       List<IEntityGroup> results = new ArrayList<IEntityGroup>(membership.cardinality());
+       for (int i = membership.nextSetBit(0); i >= 0; i = membership.nextSetBit(i + 1)) {
+          results.add(cacheGet(membershipEvaluator.getGroupKey(i)));
        }
        return results.iterator();
    }
@@ -357,6 +342,36 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
       throw new UnsupportedOperationException("PersonAttributesGroupStore: Method updateMembers() not supported.");
    }
    
+   /**
+    * Membership vector of a person along with the attributes it was evaluated from
+    */
+   private static class CachedMembership implements Serializable {
+      private static final long serialVersionUID = 1L;
+      private final Map<String, List<Object>> attributes;
+      private final BitSet membership;
+      
+      public CachedMembership(Map<String, List<Object>> attributes, BitSet membership) {
+         this.attributes = copy(attributes);
+         this.membership = membership;
+      }
+      public boolean isFor(Map<String, List<Object>> attributes) {
+         return this.attributes == null ? attributes == null : this.attributes.equals(attributes);
+      }
+      public BitSet getMembership() {
+         return membership;
+      }
+      private static Map<String, List<Object>> copy(Map<String, List<Object>> attributes) {
+         if (attributes == null)
+             { return null; }
+         final Map<String, List<Object>> copy = new HashMap<String, List<Object>>();
+         for (Map.Entry<String, List<Object>> entry : attributes.entrySet()) {
+            final List<Object> values = entry.getValue();
+            copy.put(entry.getKey(), values == null ? null : new ArrayList<Object>(values));
+         }
+         return copy;
+      }
+   }
+
    public static class GroupDefinition {
       private String key;
       private String name;
@@ -398,6 +413,9 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
       public void addTestGroup(TestGroup testGroup) {
          testGroups.add(testGroup);
       }
+      List<TestGroup> getTestGroups() {
+         return testGroups;
+      }
       public boolean contains(IPerson person) {
          return ( testGroups.isEmpty() ) ? false : test(person);
       }
@@ -427,6 +445,9 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
       public void addTest(IPersonTester test) {
          tests.add(test);
       }
+      List<IPersonTester> getTests() {
+         return tests;
+      }
       
       public boolean test(IPerson person) {
          for (Iterator<IPersonTester> i = tests.iterator(); i.hasNext(); ) {
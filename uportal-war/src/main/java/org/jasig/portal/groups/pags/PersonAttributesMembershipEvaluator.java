@@ -0,0 +1,257 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups.pags;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.portal.groups.IEntityGroup;
+import org.jasig.portal.groups.pags.PersonAttributesGroupStore.GroupDefinition;
+import org.jasig.portal.groups.pags.PersonAttributesGroupStore.TestGroup;
+import org.jasig.portal.groups.pags.testers.BaseAttributeTester;
+import org.jasig.portal.security.IPerson;
+
+/**
+ * Compiled form of the PAGS group definitions. Built once from the {@link GroupDefinition}s, each distinct
+ * {@link IPersonTester} is shared by every test group that uses it and every group's transitive ancestors are
+ * resolved up front. Evaluating a person runs each distinct tester and each group's tests at most once and
+ * returns the complete membership vector, indexed by {@link #getGroupIndex(String)}, in a single pass.
+ * <p>
+ * A person is a member of a group if the group has tests and the person passes them, and the person also
+ * passes the tests of every ancestor of the group, matching {@link PersonAttributesGroupStore#contains}.
+ *
+ * @version $Revision$
+ */
+class PersonAttributesMembershipEvaluator {
+    private static final byte UNKNOWN = 0;
+    private static final byte PASSED = 1;
+    private static final byte FAILED = 2;
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private final String[] groupKeys;
+    private final Map<String, Integer> groupIndexes;
+    private final IPersonTester[] testers;
+    /** group index -> test groups (OR) -> tester indexes (AND) */
+    private final int[][][] groupTests;
+    /** group index -> indexes of all ancestor groups */
+    private final int[][] groupAncestors;
+
+    /**
+     * @param groupDefinitions Group definitions keyed by local group key
+     * @param containingGroups Immediate containing groups keyed by local group key
+     */
+    PersonAttributesMembershipEvaluator(Map<String, GroupDefinition> groupDefinitions, Map<String, List<IEntityGroup>> containingGroups) {
+        final int groupCount = groupDefinitions.size();
+        this.groupKeys = new String[groupCount];
+        this.groupIndexes = new HashMap<String, Integer>(groupCount * 2);
+
+        int index = 0;
+        for (final String groupKey : groupDefinitions.keySet()) {
+            this.groupKeys[index] = groupKey;
+            this.groupIndexes.put(groupKey, index);
+            index++;
+        }
+
+        //Compile the tests, sharing identical testers
+        final Map<Object, Integer> testerIndexes = new HashMap<Object, Integer>();
+        final List<IPersonTester> testerList = new ArrayList<IPersonTester>();
+        this.groupTests = new int[groupCount][][];
+        for (int groupIndex = 0; groupIndex < groupCount; groupIndex++) {
+            final GroupDefinition groupDefinition = groupDefinitions.get(this.groupKeys[groupIndex]);
+            final List<TestGroup> testGroups = groupDefinition.getTestGroups();
+
+            final int[][] compiledTestGroups = new int[testGroups.size()][];
+            for (int testGroupIndex = 0; testGroupIndex < compiledTestGroups.length; testGroupIndex++) {
+                final List<IPersonTester> tests = testGroups.get(testGroupIndex).getTests();
+
+                final int[] compiledTests = new int[tests.size()];
+                for (int testIndex = 0; testIndex < compiledTests.length; testIndex++) {
+                    final IPersonTester tester = tests.get(testIndex);
+                    final Object testerKey = getTesterKey(tester);
+
+                    Integer testerIndex = testerIndexes.get(testerKey);
+                    if (testerIndex == null) {
+                        testerIndex = testerList.size();
+                        testerList.add(tester);
+                        testerIndexes.put(testerKey, testerIndex);
+                    }
+                    compiledTests[testIndex] = testerIndex;
+                }
+                compiledTestGroups[testGroupIndex] = compiledTests;
+            }
+            this.groupTests[groupIndex] = compiledTestGroups;
+        }
+        this.testers = testerList.toArray(new IPersonTester[testerList.size()]);
+
+        //Resolve the transitive ancestors of each group
+        this.groupAncestors = new int[groupCount][];
+        for (int groupIndex = 0; groupIndex < groupCount; groupIndex++) {
+            final Set<Integer> ancestors = new LinkedHashSet<Integer>();
+            this.collectAncestors(this.groupKeys[groupIndex], containingGroups, ancestors);
+
+            final int[] compiledAncestors = new int[ancestors.size()];
+            int ancestorIndex = 0;
+            for (final Integer ancestor : ancestors) {
+                compiledAncestors[ancestorIndex++] = ancestor;
+            }
+            this.groupAncestors[groupIndex] = compiledAncestors;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Compiled " + groupCount + " PAGS groups using " + this.testers.length + " distinct testers");
+        }
+    }
+
+    /**
+     * @return The number of groups in the membership vector
+     */
+    public int getGroupCount() {
+        return this.groupKeys.length;
+    }
+
+    /**
+     * @return The local key of the group at the index of the membership vector
+     */
+    public String getGroupKey(int groupIndex) {
+        return this.groupKeys[groupIndex];
+    }
+
+    /**
+     * @return The index of the group in the membership vector, -1 if the group is not a PAGS group
+     */
+    public int getGroupIndex(String groupKey) {
+        final Integer groupIndex = this.groupIndexes.get(groupKey);
+        return groupIndex != null ? groupIndex : -1;
+    }
+
+    /**
+     * @return The distinct testers used by all of the groups
+     */
+    public Collection<IPersonTester> getTesters() {
+        return Arrays.asList(this.testers);
+    }
+
+    /**
+     * Evaluates the membership of the person in every group
+     *
+     * @return A set bit for each group index the person is a member of
+     */
+    public BitSet evaluate(IPerson person) {
+        final byte[] testerResults = new byte[this.testers.length];
+        final byte[] groupResults = new byte[this.groupKeys.length];
+
+        final BitSet membership = new BitSet(this.groupKeys.length);
+        for (int groupIndex = 0; groupIndex < this.groupKeys.length; groupIndex++) {
+            //Groups without tests have no direct members
+            if (this.groupTests[groupIndex].length == 0 || !this.test(groupIndex, person, testerResults, groupResults)) {
+                continue;
+            }
+
+            boolean ancestorsPassed = true;
+            int ancestorIndex = -1;
+            for (final int ancestor : this.groupAncestors[groupIndex]) {
+                if (!this.test(ancestor, person, testerResults, groupResults)) {
+                    ancestorsPassed = false;
+                    ancestorIndex = ancestor;
+                    break;
+                }
+            }
+
+            if (ancestorsPassed) {
+                membership.set(groupIndex);
+            }
+            else if (log.isWarnEnabled()) {
+                log.warn("PAGS group=" + this.groupKeys[groupIndex] + " contained person=" + person.getAttribute(IPerson.USERNAME) +
+                        ", but the person failed to be contained in ancesters of this group (parentGroup=" +
+                        this.groupKeys[ancestorIndex] + "). This may indicate a misconfigured PAGS group store. " +
+                        "Please check PAGSGroupStoreConfig.xml.");
+            }
+        }
+
+        return membership;
+    }
+
+    /**
+     * Tests the person against the test groups of the group, memoizing tester and group results
+     */
+    private boolean test(int groupIndex, IPerson person, byte[] testerResults, byte[] groupResults) {
+        if (groupResults[groupIndex] != UNKNOWN) {
+            return groupResults[groupIndex] == PASSED;
+        }
+
+        final int[][] testGroups = this.groupTests[groupIndex];
+
+        //Matches GroupDefinition.test, a group without tests passes
+        boolean passed = testGroups.length == 0;
+        for (int testGroupIndex = 0; testGroupIndex < testGroups.length && !passed; testGroupIndex++) {
+            passed = true;
+            for (final int testerIndex : testGroups[testGroupIndex]) {
+                if (testerResults[testerIndex] == UNKNOWN) {
+                    testerResults[testerIndex] = this.testers[testerIndex].test(person) ? PASSED : FAILED;
+                }
+                if (testerResults[testerIndex] == FAILED) {
+                    passed = false;
+                    break;
+                }
+            }
+        }
+
+        groupResults[groupIndex] = passed ? PASSED : FAILED;
+        return passed;
+    }
+
+    private void collectAncestors(String groupKey, Map<String, List<IEntityGroup>> containingGroups, Set<Integer> ancestors) {
+        final List<IEntityGroup> parents = containingGroups.get(groupKey);
+        if (parents == null) {
+            return;
+        }
+
+        for (final IEntityGroup parent : parents) {
+            final Integer parentIndex = this.groupIndexes.get(parent.getLocalKey());
+            //Guard against cycles in the group definitions
+            if (parentIndex != null && ancestors.add(parentIndex)) {
+                this.collectAncestors(parent.getLocalKey(), containingGroups, ancestors);
+            }
+        }
+    }
+
+    /**
+     * Attribute testers with the same type, attribute and test value always give the same result, any
+     * other tester is only shared with itself.
+     */
+    private static Object getTesterKey(IPersonTester tester) {
+        if (tester instanceof BaseAttributeTester) {
+            final BaseAttributeTester attributeTester = (BaseAttributeTester) tester;
+            return Arrays.asList(tester.getClass(), attributeTester.getAttributeName(), attributeTester.getTestValue());
+        }
+
+        return tester;
+    }
+}
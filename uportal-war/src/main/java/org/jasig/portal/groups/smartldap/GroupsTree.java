@@ -0,0 +1,287 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups.smartldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.portal.groups.IEntityGroup;
+
+/**
+ * Immutable, array-based index of all SmartLdap groups.  Groups are held in 
+ * key order and relationships are stored as arrays of indexes into that order, 
+ * so a tree of tens of thousands of groups costs little more than the groups 
+ * themselves.  Each key is the same <code>String</code> instance held by its 
+ * group, so no copies of the DNs are retained.  Instances are never modified 
+ * after construction and may be swapped in and read without locking.
+ */
+final class GroupsTree {
+
+    private static final int[] NO_INDEXES = new int[0];
+
+    // Instance Members.
+    private final String[] keys;
+    private final IEntityGroup[] groups;
+    private final String[] upperCaseNames;
+    private final int[][] parents;
+    private final int[][] children;
+    private final int[] discoveredBy;
+    private final String changeMarker;
+    private final long fullRefreshTime;
+
+    /*
+     * Public API.
+     */
+
+    /**
+     * Builds the tree from the specified records.  Only relationships between 
+     * groups in <code>records</code> are kept;  groups with no other parent 
+     * become children of <code>rootGroup</code>.
+     * 
+     * @param records All groups, keyed by local key (DN)
+     * @param discoveredBy Key of the group whose membership led to each group 
+     * that was not found under the baseDn;  used to detect circular references 
+     * during a delta refresh
+     * @param rootGroup Group that parents all otherwise parentless groups
+     * @param changeMarker Highest modifyTimestamp/USN value seen so far, or 
+     * <code>null</code> if changes are not tracked
+     * @param fullRefreshTime Timestamp (milliseconds) of the last full refresh
+     */
+    public GroupsTree(Map<String,LdapRecord> records, Map<String,String> discoveredBy, 
+                            IEntityGroup rootGroup, String changeMarker, long fullRefreshTime) {
+
+        // Assertions.
+        if (records == null) {
+            String msg = "Argument 'records' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (discoveredBy == null) {
+            String msg = "Argument 'discoveredBy' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (rootGroup == null) {
+            String msg = "Argument 'rootGroup' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+
+        // Catalog every group (incl. rootGroup) in key order...
+        final Map<String,IEntityGroup> catalog = new HashMap<String,IEntityGroup>(records.size() + 1);
+        for (LdapRecord r : records.values()) {
+            catalog.put(r.getGroup().getLocalKey(), r.getGroup());
+        }
+        catalog.put(rootGroup.getLocalKey(), rootGroup);
+
+        final int size = catalog.size();
+        this.keys = new String[size];
+        int i = 0;
+        for (IEntityGroup g : catalog.values()) {
+            // Use the group's own key instance so each DN is held only once
+            keys[i++] = g.getLocalKey();
+        }
+        Arrays.sort(keys);
+
+        this.groups = new IEntityGroup[size];
+        this.upperCaseNames = new String[size];
+        for (i = 0; i < size; i++) {
+            groups[i] = catalog.get(keys[i]);
+            upperCaseNames[i] = groups[i].getName().toUpperCase();
+        }
+
+        // Resolve children to indexes, counting parents as we go...
+        final int rootIndex = indexOf(rootGroup.getLocalKey());
+        this.children = new int[size][];
+        final int[] parentCounts = new int[size];
+        for (i = 0; i < size; i++) {
+            final LdapRecord r = records.get(keys[i]);
+            if (i == rootIndex || r == null) {
+                children[i] = NO_INDEXES;
+                continue;
+            }
+            // NB:  We're only interested in relationships between 
+            // objects in the catalog;  discard everything else...
+            final int[] buffer = new int[r.getKeysOfChildren().size()];
+            int count = 0;
+            for (String childKey : r.getKeysOfChildren()) {
+                final int c = indexOf(childKey);
+                if (c >= 0 && c != rootIndex) {
+                    buffer[count++] = c;
+                    parentCounts[c]++;
+                }
+            }
+            children[i] = count == 0 ? NO_INDEXES : Arrays.copyOf(buffer, count);
+        }
+
+        // The root group is a parent for all groups that have no other parent...
+        int rootChildCount = 0;
+        for (i = 0; i < size; i++) {
+            if (i != rootIndex && parentCounts[i] == 0) {
+                rootChildCount++;
+            }
+        }
+        final int[] rootChildren = new int[rootChildCount];
+        rootChildCount = 0;
+        for (i = 0; i < size; i++) {
+            if (i != rootIndex && parentCounts[i] == 0) {
+                rootChildren[rootChildCount++] = i;
+                parentCounts[i] = 1;
+            }
+        }
+        children[rootIndex] = rootChildren;
+
+        // Invert the children into parents...
+        this.parents = new int[size][];
+        for (i = 0; i < size; i++) {
+            parents[i] = parentCounts[i] == 0 ? NO_INDEXES : new int[parentCounts[i]];
+            parentCounts[i] = 0;
+        }
+        for (i = 0; i < size; i++) {
+            for (int c : children[i]) {
+                parents[c][parentCounts[c]++] = i;
+            }
+        }
+
+        this.discoveredBy = new int[size];
+        for (i = 0; i < size; i++) {
+            final String parentKey = discoveredBy.get(keys[i]);
+            this.discoveredBy[i] = parentKey != null ? indexOf(parentKey) : -1;
+        }
+
+        this.changeMarker = changeMarker;
+        this.fullRefreshTime = fullRefreshTime;
+
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public boolean contains(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return The group with the specified key, or <code>null</code> if it is 
+     * not a SmartLdap managed group
+     */
+    public IEntityGroup getGroup(String key) {
+        final int i = indexOf(key);
+        return i >= 0 ? groups[i] : null;
+    }
+
+    /**
+     * @return The parents of the specified group;  empty if it is not a 
+     * SmartLdap managed group
+     */
+    public List<IEntityGroup> getParents(String key) {
+        final int i = indexOf(key);
+        return i >= 0 ? toGroups(parents[i]) : Collections.<IEntityGroup>emptyList();
+    }
+
+    /**
+     * @return The children of the specified group;  empty if it is not a 
+     * SmartLdap managed group
+     */
+    public List<IEntityGroup> getChildren(String key) {
+        final int i = indexOf(key);
+        return i >= 0 ? toGroups(children[i]) : Collections.<IEntityGroup>emptyList();
+    }
+
+    /**
+     * @return Keys of all groups whose upper case name matches the specified 
+     * regular expression
+     */
+    public List<String> findKeysByUpperCaseName(String regex) {
+        final List<String> rslt = new ArrayList<String>();
+        for (int i = 0; i < keys.length; i++) {
+            if (upperCaseNames[i].matches(regex)) {
+                rslt.add(keys[i]);
+            }
+        }
+        return rslt;
+    }
+
+    public String getChangeMarker() {
+        return changeMarker;
+    }
+
+    public long getFullRefreshTime() {
+        return fullRefreshTime;
+    }
+
+    /**
+     * Recreates the records this tree was built from, keyed by local key and 
+     * excluding the root group.  The children of each record are limited to 
+     * SmartLdap managed groups.
+     */
+    public Map<String,LdapRecord> getRecords(IEntityGroup rootGroup) {
+        final Map<String,LdapRecord> rslt = new LinkedHashMap<String,LdapRecord>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (groups[i] == rootGroup) {
+                continue;
+            }
+            final List<String> childKeys = new ArrayList<String>(children[i].length);
+            for (int c : children[i]) {
+                childKeys.add(keys[c]);
+            }
+            rslt.put(keys[i], new LdapRecord(groups[i], childKeys));
+        }
+        return rslt;
+    }
+
+    /**
+     * @return The key of the group that led to each group not found under the 
+     * baseDn
+     */
+    public Map<String,String> getDiscoveredBy() {
+        final Map<String,String> rslt = new HashMap<String,String>();
+        for (int i = 0; i < keys.length; i++) {
+            if (discoveredBy[i] >= 0) {
+                rslt.put(keys[i], keys[discoveredBy[i]]);
+            }
+        }
+        return rslt;
+    }
+
+    /*
+     * Implementation.
+     */
+
+    private int indexOf(String key) {
+        if (key == null) {
+            return -1;
+        }
+        final int i = Arrays.binarySearch(keys, key);
+        return i >= 0 ? i : -1;
+    }
+
+    private List<IEntityGroup> toGroups(int[] indexes) {
+        final List<IEntityGroup> rslt = new ArrayList<IEntityGroup>(indexes.length);
+        for (int i : indexes) {
+            rslt.add(groups[i]);
+        }
+        return rslt;
+    }
+
+}
@@ -0,0 +1,616 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups.smartldap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.portal.groups.IEntityGroup;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextExecutor;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.LdapEncoder;
+import org.springframework.ldap.core.LdapTemplate;
+
+/**
+ * Reads the SmartLdap groups from the directory and builds a new 
+ * {@link GroupsTree}.  Groups under the baseDn are read first;  if 
+ * 'resolveMemberGroups' is enabled the member groups of each newly found group 
+ * are then resolved one level at a time, with all of the queries for a level 
+ * running in parallel on the refresh <code>Executor</code>.  Every query uses 
+ * the LDAP paged results control so large result sets don't hit server size 
+ * limits.
+ * <p>
+ * If a change tracking attribute (e.g. modifyTimestamp or uSNChanged) is 
+ * configured the builder may instead perform a delta refresh:  only groups 
+ * whose change tracking value is at or above the highest value seen by the 
+ * previous refresh are read, along with any new member groups they lead to, 
+ * and every other group is carried over from the previous tree.  Deleted 
+ * groups are only noticed by a full refresh, which happens every 
+ * 'fullRefreshIntervalSeconds'.
+ */
+final class GroupsTreeBuilder {
+
+    // Instance Members.
+    private final LdapTemplate ldapTemplate;
+    private final AttributesMapper attributesMapper;
+    private final Executor executor;
+    private final IEntityGroup rootGroup;
+    private final String baseDn;
+    private final String filter;
+    private final boolean resolveMemberGroups;
+    private final List<String> resolveDnList;
+    private final String memberOfAttributeName;
+    private final int pageSize;
+    private final String changeTrackingAttributeName;
+    private final long fullRefreshIntervalSeconds;
+    private final String[] returningAttributes;
+    private final Log log = LogFactory.getLog(getClass());
+
+    /*
+     * Public API.
+     */
+
+    public GroupsTreeBuilder(ContextSource contextSource, AttributesMapper attributesMapper, 
+                    Executor executor, IEntityGroup rootGroup, String baseDn, String filter, 
+                    boolean resolveMemberGroups, List<String> resolveDnList, 
+                    String memberOfAttributeName, int pageSize, 
+                    String changeTrackingAttributeName, long fullRefreshIntervalSeconds) {
+
+        // Assertions.
+        if (contextSource == null) {
+            String msg = "Argument 'contextSource' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (attributesMapper == null) {
+            String msg = "Argument 'attributesMapper' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (executor == null) {
+            String msg = "Argument 'executor' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (rootGroup == null) {
+            String msg = "Argument 'rootGroup' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (baseDn == null) {
+            String msg = "Argument 'baseDn' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (filter == null) {
+            String msg = "Argument 'filter' cannot be null.";
+            throw new IllegalArgumentException(msg);
+        }
+
+        // Instance Members.
+        this.ldapTemplate = new LdapTemplate(contextSource);
+        this.attributesMapper = attributesMapper;
+        this.executor = executor;
+        this.rootGroup = rootGroup;
+        this.baseDn = baseDn;
+        this.filter = filter;
+        this.resolveMemberGroups = resolveMemberGroups;
+        this.resolveDnList = resolveDnList != null 
+                                ? new ArrayList<String>(resolveDnList) 
+                                : Collections.<String>emptyList();
+        this.memberOfAttributeName = memberOfAttributeName;
+        this.pageSize = pageSize;
+        this.changeTrackingAttributeName = changeTrackingAttributeName != null 
+                                && changeTrackingAttributeName.trim().length() != 0 
+                                ? changeTrackingAttributeName.trim() : null;
+        this.fullRefreshIntervalSeconds = fullRefreshIntervalSeconds;
+
+        // Operational attributes like modifyTimestamp are only returned when 
+        // asked for by name;  '*' still returns all the user attributes.
+        this.returningAttributes = this.changeTrackingAttributeName != null 
+                                ? new String[] { "*", this.changeTrackingAttributeName } 
+                                : null;
+
+    }
+
+    /**
+     * Builds a new tree, reusing the unchanged groups of <code>previous</code> 
+     * when a delta refresh is possible.
+     * 
+     * @param previous The current tree, or <code>null</code> if there isn't one
+     */
+    public GroupsTree build(GroupsTree previous) {
+
+        final long timestamp = System.currentTimeMillis();
+        final RefreshState state = new RefreshState();
+
+        final boolean delta = isDeltaRefreshPossible(previous, timestamp);
+        final List<String> frontier;
+        final long fullRefreshTime;
+        if (delta) {
+            frontier = readChangedGroups(previous, state);
+            fullRefreshTime = previous.getFullRefreshTime();
+        } else {
+            frontier = readBaseGroups(state);
+            fullRefreshTime = timestamp;
+        }
+
+        final int changedCount = frontier.size();
+        if (resolveMemberGroups) {
+            resolveMemberGroups(frontier, state);
+        }
+
+        final GroupsTree rslt = new GroupsTree(state.records, state.discoveredBy, 
+                                rootGroup, state.changeMarker, fullRefreshTime);
+
+        if (log.isInfoEnabled()) {
+            long benchmark = System.currentTimeMillis() - timestamp;
+            log.info((delta ? "Delta" : "Full") + " refresh of groups tree completed in " 
+                                + benchmark + " milliseconds");
+            log.info("Total number of LDAP queries:  " + state.queryCount);
+            String msg = "init() :: groups " + (delta ? "changed" : "read") + "=" + changedCount 
+                                + ", member groups resolved=" + state.resolvedCount 
+                                + ", final size of groups tree=" + rslt.size();
+            log.info(msg);
+        }
+
+        return rslt;
+
+    }
+
+    /**
+     * Removes from the record any child that also appears in the chain of 
+     * groups that led to it.  These circular references may be permitted by 
+     * the LDAP server, but they are EXTREMELY TOXIC to GaP.
+     */
+    public LdapRecord detectAndEliminateGroupReferences(LdapRecord record, List<String> groupChain) {
+        
+        LdapRecord rslt = record;  // default
+        
+        List<String> keysOfChildren = record.getKeysOfChildren();
+        List<String> filteredChildren = new ArrayList<String>();
+        for (String key : keysOfChildren) {
+            if (!groupChain.contains(key)) {
+                filteredChildren.add(key);
+            } else {
+                // Circular reference detected!
+                StringBuilder msg = new StringBuilder();
+                msg.append("Circular reference detected and removed for the following groups:  '")
+                                                .append(key).append("' and '")
+                                                .append(record.getGroup().getLocalKey()).append("'");
+                log.warn(msg.toString());
+            }
+        }
+        if (filteredChildren.size() < keysOfChildren.size()) {
+            rslt = new LdapRecord(record.getGroup(), filteredChildren);
+        }
+        
+        return rslt;
+
+    }
+    
+    /**
+     * @return true if the record has a child within the specified DN that 
+     * isn't already one of the <code>records</code>
+     */
+    public boolean hasUndiscoveredChildrenWithinDn(LdapRecord record, String dn, Map<String,LdapRecord> records) {
+        
+        boolean rslt = false;  // default
+
+        for (String childKey : record.getKeysOfChildren()) {
+            if (childKey.endsWith(dn)) {
+                if (!records.containsKey(childKey)) {
+                    rslt = true;
+                    break;
+                } else {
+                    if (log.isTraceEnabled()) {
+                        log.trace("Child group is already in collection:  " + childKey);
+                    }
+                }
+            }
+        }
+        
+        if (log.isTraceEnabled()) {
+            log.trace("Query for children of parent group '" + record.getGroup().getLocalKey() + "':  " + rslt);
+        }
+
+        return rslt;
+        
+    }
+
+    /*
+     * Implementation.
+     */
+
+    private boolean isDeltaRefreshPossible(GroupsTree previous, long timestamp) {
+
+        if (changeTrackingAttributeName == null || previous == null || previous.getChangeMarker() == null) {
+            return false;
+        }
+
+        if (fullRefreshIntervalSeconds <= 0) {
+            // Full refreshes after the first may be disabled by setting 
+            // fullRefreshIntervalSeconds to zero or negative.
+            return true;
+        }
+
+        return timestamp < previous.getFullRefreshTime() + (fullRefreshIntervalSeconds * 1000L);
+
+    }
+
+    /**
+     * Reads every group under the baseDn.
+     * 
+     * @return Keys of the groups read
+     */
+    private List<String> readBaseGroups(RefreshState state) {
+
+        final List<Query> queries = Collections.singletonList(new Query(baseDn, filter, null));
+        final QueryResult result = runQueries(queries, state).get(0);
+
+        if (log.isInfoEnabled()) {
+            log.info("init() found " + result.records.size() + " records.");
+        }
+
+        final List<String> rslt = new ArrayList<String>(result.records.size());
+        final List<String> emptyChain = Collections.emptyList();
+        for (LdapRecord r : result.records) {
+            final String key = r.getGroup().getLocalKey();
+            if (!state.records.containsKey(key)) {
+                state.records.put(key, detectAndEliminateGroupReferences(r, emptyChain));
+                rslt.add(key);
+            }
+        }
+
+        return rslt;
+
+    }
+
+    /**
+     * Copies the groups of the previous tree and replaces those that have 
+     * changed since it was built.
+     * 
+     * @return Keys of the groups that changed
+     */
+    private List<String> readChangedGroups(GroupsTree previous, RefreshState state) {
+
+        state.records.putAll(previous.getRecords(rootGroup));
+        state.discoveredBy.putAll(previous.getDiscoveredBy());
+        state.changeMarker = previous.getChangeMarker();
+
+        final String changedFilter = "(" + changeTrackingAttributeName + ">=" 
+                                + LdapEncoder.filterEncode(previous.getChangeMarker()) + ")";
+        final List<Query> queries = new ArrayList<Query>();
+        queries.add(new Query(baseDn, "(&" + filter + changedFilter + ")", null));
+        if (resolveMemberGroups) {
+            for (String resolveDn : resolveDnList) {
+                queries.add(new Query(resolveDn, "(&" + filter + changedFilter + ")", null));
+            }
+        }
+        final List<QueryResult> results = runQueries(queries, state);
+
+        final Set<String> rslt = new HashSet<String>();
+
+        // Groups under the baseDn are always included...
+        final List<String> emptyChain = Collections.emptyList();
+        for (LdapRecord r : results.get(0).records) {
+            final String key = r.getGroup().getLocalKey();
+            if (rslt.add(key)) {
+                state.discoveredBy.remove(key);
+                state.records.put(key, detectAndEliminateGroupReferences(r, emptyChain));
+            }
+        }
+
+        // ...but other groups only matter if they were already members
+        for (int i = 1; i < results.size(); i++) {
+            for (LdapRecord r : results.get(i).records) {
+                final String key = r.getGroup().getLocalKey();
+                if (state.discoveredBy.containsKey(key) && rslt.add(key)) {
+                    final List<String> chain = getGroupChain(state.discoveredBy.get(key), state);
+                    state.records.put(key, detectAndEliminateGroupReferences(r, chain));
+                }
+            }
+        }
+
+        if (log.isInfoEnabled()) {
+            log.info("init() found " + rslt.size() + " changed records.");
+        }
+
+        return new ArrayList<String>(rslt);
+
+    }
+
+    /**
+     * Follows the members of the specified groups, and then the members of any 
+     * new groups found, until no new groups are found.  All the queries for 
+     * each level of the tree run in parallel.
+     */
+    private void resolveMemberGroups(List<String> frontier, RefreshState state) {
+
+        while (!frontier.isEmpty()) {
+
+            // Be sure we don't waste a lot of time with unnecessary queries
+            final List<Query> queries = new ArrayList<Query>();
+            for (String key : frontier) {
+                final LdapRecord r = state.records.get(key);
+                for (String resolveDn : resolveDnList) {
+                    if (hasUndiscoveredChildrenWithinDn(r, resolveDn, state.records)) {
+                        final String memberFilter = "(&" + filter + "(" + memberOfAttributeName + "=" 
+                                                + LdapEncoder.filterEncode(key) + "))";
+                        queries.add(new Query(resolveDn, memberFilter, key));
+                    }
+                }
+            }
+            final List<QueryResult> results = runQueries(queries, state);
+
+            final List<String> nextFrontier = new ArrayList<String>();
+            for (int i = 0; i < queries.size(); i++) {
+                final String parentKey = queries.get(i).parentKey;
+                final List<String> chain = getGroupChain(parentKey, state);
+                for (LdapRecord r : results.get(i).records) {
+                    final String key = r.getGroup().getLocalKey();
+                    // If we have seen this group before there's no 
+                    // need to follow its tree of decendents
+                    if (!state.records.containsKey(key)) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("SmartLdap adding record for group:  " + r.getGroup().getName());
+                        }
+                        state.records.put(key, detectAndEliminateGroupReferences(r, chain));
+                        state.discoveredBy.put(key, parentKey);
+                        state.resolvedCount++;
+                        nextFrontier.add(key);
+                    }
+                }
+            }
+            frontier = nextFrontier;
+
+        }
+
+    }
+
+    /**
+     * @return The specified group preceded by the chain of groups whose 
+     * memberships led to it, outermost first
+     */
+    private List<String> getGroupChain(String key, RefreshState state) {
+        final LinkedList<String> rslt = new LinkedList<String>();
+        for (String k = key; k != null && !rslt.contains(k); k = state.discoveredBy.get(k)) {
+            rslt.addFirst(k);
+        }
+        return rslt;
+    }
+
+    /**
+     * Hands each query to the executor and waits for all of them.  Any query 
+     * not yet picked up by a pool thread is run by the calling thread instead, 
+     * so a refresh never waits on a pool that it is itself occupying.
+     */
+    private List<QueryResult> runQueries(List<Query> queries, RefreshState state) {
+
+        final List<FutureTask<QueryResult>> tasks = new ArrayList<FutureTask<QueryResult>>(queries.size());
+        for (Query q : queries) {
+            final FutureTask<QueryResult> task = new FutureTask<QueryResult>(q);
+            tasks.add(task);
+            if (queries.size() > 1) {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException ree) {
+                    // We'll run it ourselves below
+                }
+            }
+        }
+
+        final List<QueryResult> rslt = new ArrayList<QueryResult>(tasks.size());
+        for (FutureTask<QueryResult> task : tasks) {
+            // A no-op if a pool thread already started this task
+            task.run();
+            try {
+                final QueryResult result = task.get();
+                if (result.changeMarker != null && compareChangeMarkers(result.changeMarker, state.changeMarker) > 0) {
+                    state.changeMarker = result.changeMarker;
+                }
+                rslt.add(result);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for SmartLdap queries", ie);
+            } catch (ExecutionException ee) {
+                final Throwable cause = ee.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException("SmartLdap query failed", cause);
+            }
+        }
+        state.queryCount += queries.size();
+
+        return rslt;
+
+    }
+
+    /**
+     * Orders change tracking values.  Numeric values (USNs) are compared by 
+     * magnitude;  everything else (e.g. GeneralizedTime timestamps) is compared 
+     * lexically.  <code>null</code> comes before every value.
+     */
+    static int compareChangeMarkers(String m1, String m2) {
+        if (m1 == null || m2 == null) {
+            return m1 == null ? (m2 == null ? 0 : -1) : 1;
+        }
+        if (m1.length() != m2.length() && isDigits(m1) && isDigits(m2)) {
+            return m1.length() - m2.length();
+        }
+        return m1.compareTo(m2);
+    }
+
+    private static boolean isDigits(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return s.length() != 0;
+    }
+
+    private QueryResult search(final String dn, final String searchFilter) {
+
+        final SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(returningAttributes);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Searching for SmartLdap groups:  baseDn=" + dn + ", filter=" + searchFilter);
+        }
+
+        return (QueryResult) ldapTemplate.executeReadOnly(new ContextExecutor() {
+            public Object executeWithContext(DirContext ctx) throws NamingException {
+
+                final QueryResult rslt = new QueryResult();
+                // All pages must be read over the same connection
+                final LdapContext pagedCtx = pageSize > 0 && ctx instanceof LdapContext 
+                                        ? (LdapContext) ctx : null;
+                byte[] cookie = null;
+                do {
+                    if (pagedCtx != null) {
+                        setPagedResultsControl(pagedCtx, cookie);
+                    }
+                    final NamingEnumeration<SearchResult> results = ctx.search(dn, searchFilter, controls);
+                    try {
+                        while (results.hasMore()) {
+                            final Attributes attr = results.next().getAttributes();
+                            rslt.add((LdapRecord) attributesMapper.mapFromAttributes(attr), getChangeMarker(attr));
+                        }
+                    } finally {
+                        results.close();
+                    }
+                    cookie = pagedCtx != null ? getPagedResultsCookie(pagedCtx) : null;
+                } while (cookie != null && cookie.length != 0);
+
+                return rslt;
+
+            }
+        });
+
+    }
+
+    private void setPagedResultsControl(LdapContext ctx, byte[] cookie) throws NamingException {
+        try {
+            // Non-critical so servers without paging simply return everything
+            ctx.setRequestControls(new Control[] { new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL) });
+        } catch (IOException ioe) {
+            NamingException ne = new NamingException("Failed to create the paged results control");
+            ne.setRootCause(ioe);
+            throw ne;
+        }
+    }
+
+    private byte[] getPagedResultsCookie(LdapContext ctx) throws NamingException {
+        final Control[] controls = ctx.getResponseControls();
+        if (controls != null) {
+            for (Control c : controls) {
+                if (c instanceof PagedResultsResponseControl) {
+                    return ((PagedResultsResponseControl) c).getCookie();
+                }
+            }
+        }
+        return null;
+    }
+
+    private String getChangeMarker(Attributes attr) throws NamingException {
+        if (changeTrackingAttributeName == null) {
+            return null;
+        }
+        final Attribute a = attr.get(changeTrackingAttributeName);
+        if (a == null || a.get() == null) {
+            return null;
+        }
+        return a.get().toString();
+    }
+
+    /*
+     * Nested Types.
+     */
+
+    /**
+     * Everything gathered so far by one call to build();  only ever used by 
+     * the thread that called build().
+     */
+    private static final class RefreshState {
+        private final Map<String,LdapRecord> records = new HashMap<String,LdapRecord>();
+        private final Map<String,String> discoveredBy = new HashMap<String,String>();
+        private String changeMarker = null;
+        private int queryCount = 0;
+        private int resolvedCount = 0;
+    }
+
+    private final class Query implements Callable<QueryResult> {
+
+        private final String dn;
+        private final String searchFilter;
+        private final String parentKey;
+
+        public Query(String dn, String searchFilter, String parentKey) {
+            this.dn = dn;
+            this.searchFilter = searchFilter;
+            this.parentKey = parentKey;
+        }
+
+        public QueryResult call() {
+            return search(dn, searchFilter);
+        }
+
+    }
+
+    private static final class QueryResult {
+
+        private final List<LdapRecord> records = new ArrayList<LdapRecord>();
+        private String changeMarker = null;
+
+        public void add(LdapRecord record, String marker) {
+            records.add(record);
+            if (marker != null && compareChangeMarkers(marker, changeMarker) > 0) {
+                changeMarker = marker;
+            }
+        }
+
+    }
+
+}
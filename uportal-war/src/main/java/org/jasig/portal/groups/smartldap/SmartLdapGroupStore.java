@@ -20,24 +20,19 @@
 package org.jasig.portal.groups.smartldap;
 
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.danann.cernunnos.Task;
-import org.danann.cernunnos.runtime.RuntimeRequestResponse;
-import org.danann.cernunnos.runtime.ScriptRunner;
 import org.jasig.portal.EntityIdentifier;
 import org.jasig.portal.groups.ComponentGroupServiceDescriptor;
-import org.jasig.portal.groups.EntityGroupImpl;
 import org.jasig.portal.groups.EntityTestingGroupImpl;
 import org.jasig.portal.groups.GroupsException;
 import org.jasig.portal.groups.IEntityGroup;
@@ -51,6 +46,9 @@ import org.jasig.portal.security.PersonFactory;
 import org.jasig.portal.spring.locator.PersonAttributeDaoLocator;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 public final class SmartLdapGroupStore implements IEntityGroupStore {
 		
@@ -69,8 +67,19 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
      */
     private volatile long lastTreeRefreshTime = 0;
 
-    private final ScriptRunner runner;
-    private final Task initTask;
+    /**
+     * Runs tree refreshes and their LDAP queries.  May be provided as the 
+     * 'refreshExecutor' bean in SmartLdapGroupStoreConfix.xml.
+     */
+    private final Executor refreshExecutor;
+
+    private final GroupsTreeBuilder treeBuilder;
+
+    /**
+     * The refresh currently running in the background, if any.
+     */
+    private FutureTask<GroupsTree> refreshTask = null;
+
     private final Log log = LogFactory.getLog(getClass());
     
     /*
@@ -80,18 +89,15 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
     /**
      * Single-object abstraction that contains all knowledge of SmartLdap groups:
      * <ul>
-     *   <li>Map of all groups keyed by 'key' (DN).  Includes ROOT_GROUP.</li>
-     *   <li>Map of all parent relationships keyed by the 'key' (DN) of the child;  
-     *       the values are lists of the 'keys' (DNs) of its parents.  
-     *       Includes ROOT_GROUP.</li>
-     *   <li>Map of all child relationships keyed by the 'key' (DN) of the parent;  
-     *       the values are lists of the 'keys' (DNs) of its children.  
-     *       Includes ROOT_GROUP.</li>
-     *   <li>Map of all 'keys' (DNs) of SmartLdap managed groups indexed by group 
-     *       name in upper case.  Includes ROOT_GROUP.</li>
+     *   <li>All groups by 'key' (DN).  Includes ROOT_GROUP.</li>
+     *   <li>The parents of each group.  Includes ROOT_GROUP.</li>
+     *   <li>The children of each group.  Includes ROOT_GROUP.</li>
+     *   <li>The name of each group in upper case.  Includes ROOT_GROUP.</li>
      * </ul>
+     * The tree is immutable;  a refresh builds a new one and swaps it in, so 
+     * each method reads this field once and uses that tree throughout.
      */
-    private GroupsTree groupsTree;
+    private volatile GroupsTree groupsTree;
 
     /*
      * Public API.
@@ -132,8 +138,8 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
     	}
     	
     	// All of our groups (incl. ROOT_GROUP) 
-    	// are indexed in the 'groups' map by key...
-    	return groupsTree.getGroups().get(key);
+    	// are indexed in the groupsTree by key...
+    	return groupsTree.getGroup(key);
     
     }
 
@@ -149,17 +155,13 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
     		refreshTree();
     	}
 
+    	final GroupsTree tree = groupsTree;
     	List<IEntityGroup> rslt = new LinkedList<IEntityGroup>();
     	if (gm.isGroup()) {		
     	    // Check the local indeces...
     		IEntityGroup group = (IEntityGroup) gm;
-    		List<String> list = groupsTree.getParents().get(group.getLocalKey());
-    		if (list != null) {
-    			// should only reach this code if its a SmartLdap managed group...
-        		for (String s : list) {
-        			rslt.add(groupsTree.getGroups().get(s));
-        		}
-    		}
+    		// should only find parents if its a SmartLdap managed group...
+    		rslt.addAll(tree.getParents(group.getLocalKey()));
     	} else if (gm.isEntity() && gm.getEntityType().equals(ROOT_GROUP.getEntityType())) {	
     	    
     	    // Ask the individual...
@@ -196,8 +198,9 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
                     }
 
                     for (String s : list) {
-                        if (groupsTree.getGroups().containsKey(s)) {
-                            rslt.add(groupsTree.getGroups().get(s));
+                        IEntityGroup g = tree.getGroup(s);
+                        if (g != null) {
+                            rslt.add(g);
                         }
                     }
                 }
@@ -283,17 +286,8 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
     		log.debug("Invoking findMemberGroups() for group:  " + group.getLocalKey());
     	}
 
-    	List<IEntityGroup> rslt = new LinkedList<IEntityGroup>();
-    	
-    	List<String> list = groupsTree.getChildren().get(group.getLocalKey());
-    	if (list != null) {
-			// should only reach this code if its a SmartLdap managed group...
-    		for (String s : list) {
-    			rslt.add(groupsTree.getGroups().get(s));
-    		}
-    	}
-    	
-    	return rslt.iterator();
+    	// should only find children if its a SmartLdap managed group...
+    	return groupsTree.getChildren(group.getLocalKey()).iterator();
 
     }
 
@@ -361,13 +355,8 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
     	}
     	
     	List<EntityIdentifier> rslt = new LinkedList<EntityIdentifier>(); 
-    	for (Map.Entry<String,List<String>> y : groupsTree.getKeysByUpperCaseName().entrySet()) {
-    		if (y.getKey().matches(regex)) {
-    			List<String> keys = y.getValue();
-    			for (String k : keys) {
-    				rslt.add(new EntityIdentifier(k, IEntityGroup.class));
-    			}
-    		}
+    	for (String k : groupsTree.findKeysByUpperCaseName(regex)) {
+    		rslt.add(new EntityIdentifier(k, IEntityGroup.class));
     	}
     	
     	return rslt.toArray(new EntityIdentifier[0]);
@@ -384,64 +373,6 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
         throw new UnsupportedOperationException(UNSUPPORTED_MESSAGE);
     }
     
-    public LdapRecord detectAndEliminateGroupReferences(LdapRecord record, List<String> groupChain) {
-        
-        LdapRecord rslt = record;  // default
-        
-        List<String> keysOfChildren = record.getKeysOfChildren();
-        List<String> filteredChildren = new ArrayList<String>();
-        for (String key : keysOfChildren) {
-            if (!groupChain.contains(key)) {
-                filteredChildren.add(key);
-            } else {
-                // Circular reference detected!
-                StringBuilder msg = new StringBuilder();
-                msg.append("Circular reference detected and removed for the following groups:  '")
-                                                .append(key).append("' and '")
-                                                .append(record.getGroup().getLocalKey()).append("'");
-                log.warn(msg.toString());
-            }
-        }
-        if (filteredChildren.size() < keysOfChildren.size()) {
-            rslt = new LdapRecord(record.getGroup(), filteredChildren);
-        }
-        
-        return rslt;
-
-    }
-    
-    public boolean hasUndiscoveredChildrenWithinDn(LdapRecord record, String baseDn, Set<LdapRecord> groupsSet) {
-        
-        boolean rslt = false;  // default
-
-        for (String childKey : record.getKeysOfChildren()) {
-            if (childKey.endsWith(baseDn)) {
-                // Make sure the one we found isn't already in the groupsSet;  
-                // NOTE!... this test takes advantage of the implementation of 
-                // equals() on LdapRecord, which states that 2 records with the 
-                // same group key are equal.
-                IEntityGroup group = new EntityGroupImpl(childKey, IPerson.class);
-                List<String> list = Collections.emptyList();
-                LdapRecord proxy = new LdapRecord(group, list);
-                if (!groupsSet.contains(proxy)) {
-                    rslt = true;
-                    break;
-                } else {
-                    if (log.isTraceEnabled()) {
-                        log.trace("Child group is already in collection:  " + childKey);
-                    }
-                }
-            }
-        }
-        
-        if (log.isTraceEnabled()) {
-            log.trace("Query for children of parent group '" + record.getGroup().getLocalKey() + "':  " + rslt);
-        }
-
-        return rslt;
-        
-    }
-
     /*
      * Implementation.
      */
@@ -457,6 +388,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
 
     }
 
+    @SuppressWarnings("unchecked")
     private SmartLdapGroupStore() {
         
     	// Spring tech...
@@ -468,9 +400,46 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
 		    groupsTreeRefreshIntervalSeconds = (Long) spring_context.getBean("groupsTreeRefreshIntervalSeconds");
 		}
 
-		// Cernunnos tech...
-		runner = new ScriptRunner();
-        initTask = runner.compileTask(getClass().getResource("init.crn").toExternalForm());
+		// Executor for refreshes and their queries
+		if (spring_context.containsBean("refreshExecutor")) {
+		    refreshExecutor = (Executor) spring_context.getBean("refreshExecutor");
+		} else {
+		    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		    executor.setCorePoolSize(4);
+		    executor.setMaxPoolSize(4);
+		    executor.setDaemon(true);
+		    executor.setThreadNamePrefix("SmartLdap-Refresh-");
+		    executor.afterPropertiesSet();
+		    refreshExecutor = executor;
+		}
+
+		// 'resolveDn' came before 'resolveDnList,' and older configs might 
+		// still be using it
+		List<String> resolveDnList = null;
+		if (spring_context.containsBean("resolveDnList")) {
+		    resolveDnList = (List<String>) spring_context.getBean("resolveDnList");
+		} else if (spring_context.containsBean("resolveDn")) {
+		    resolveDnList = new LinkedList<String>();
+		    resolveDnList.add((String) spring_context.getBean("resolveDn"));
+		}
+
+		treeBuilder = new GroupsTreeBuilder(
+		        (ContextSource) spring_context.getBean("ldapContext"), 
+		        (AttributesMapper) spring_context.getBean("attributesMapper"), 
+		        refreshExecutor, 
+		        ROOT_GROUP, 
+		        (String) spring_context.getBean("baseDn"), 
+		        (String) spring_context.getBean("filter"), 
+		        spring_context.containsBean("resolveMemberGroups") 
+		                && (Boolean) spring_context.getBean("resolveMemberGroups"), 
+		        resolveDnList, 
+		        (String) spring_context.getBean("memberOfAttributeName"), 
+		        spring_context.containsBean("pageSize") 
+		                ? (Integer) spring_context.getBean("pageSize") : 500, 
+		        spring_context.containsBean("changeTrackingAttributeName") 
+		                ? (String) spring_context.getBean("changeTrackingAttributeName") : null, 
+		        spring_context.containsBean("fullRefreshIntervalSeconds") 
+		                ? (Long) spring_context.getBean("fullRefreshIntervalSeconds") : 86400L);
 
     }
     
@@ -497,7 +466,7 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
 
     /**
      * Verifies that the collection of groups needs rebuilding and, if so, 
-     * spawns a new worker <code>Thread</code> for that purpose.
+     * submits a refresh to the <code>refreshExecutor</code> for that purpose.
      */
     private synchronized void refreshTree() {
         
@@ -507,218 +476,47 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
             return;
         }
         
-        log.info("Refreshing groups tree for SmartLdap");
+        if (refreshTask != null && !refreshTask.isDone()) {
+            // The previous refresh is still running
+            return;
+        }
         
-        // We must join the builder thread if
-        // we don't have an existing groupsTree.
-        final boolean doJoin = groupsTree == null;
+        log.info("Refreshing groups tree for SmartLdap");
         
-        // In most cases, re-build the tree in a separate thread;  the current 
-        // request can proceed with the newly-expired groupsTree.
-        Thread refresh = new Thread("SmartLdap Refresh Worker") {
+        final GroupsTree previous = groupsTree;
+        final FutureTask<GroupsTree> refresh = new FutureTask<GroupsTree>(new Runnable() {
             public void run() {
                 // Replace the old with the new...
                 try {
-                    groupsTree = buildGroupsTree();
+                    groupsTree = treeBuilder.build(previous);
                 } catch (Throwable t) {
                     log.error("SmartLdapGroupStore failed to build the groups tree", t);
                 }
             }
-        };
-        refresh.setDaemon(true);
-        refresh.start();
-        if (doJoin) {
+        }, null);
+
+        if (previous == null) {
+            // We must build the tree ourselves if we 
+            // don't have an existing groupsTree.
+            refresh.run();
+        } else {
+            // In most cases, re-build the tree in the background;  the current 
+            // request can proceed with the newly-expired groupsTree.
             try {
-                log.info("Joining the SmartLdap Refresh Worker Thread");
-                refresh.join();
-            } catch (InterruptedException ie) {
-                throw new RuntimeException(ie);
+                refreshExecutor.execute(refresh);
+                refreshTask = refresh;
+            } catch (RejectedExecutionException ree) {
+                log.warn("SmartLdap refresh could not be started;  will try again in " 
+                                        + groupsTreeRefreshIntervalSeconds + " seconds", ree);
             }
         }
         
-        // Even if the refresh thread failed, don't try 
+        // Even if the refresh failed, don't try 
         // again for another groupsTreeRefreshIntervalSeconds.
         lastTreeRefreshTime = System.currentTimeMillis();
 
     }
 
-    private GroupsTree buildGroupsTree() {
-        
-        long timestamp = System.currentTimeMillis();
-        
-        // Prepare the new local indeces...
-        Map<String,IEntityGroup> new_groups = Collections.synchronizedMap(new HashMap<String,IEntityGroup>());
-        Map<String,List<String>> new_parents = Collections.synchronizedMap(new HashMap<String,List<String>>());
-        Map<String,List<String>> new_children = Collections.synchronizedMap(new HashMap<String,List<String>>());
-        Map<String,List<String>> new_keysByUpperCaseName = Collections.synchronizedMap(new HashMap<String,List<String>>());
-
-        // Gather IEntityGroup objects from LDAP...
-        RuntimeRequestResponse req = new RuntimeRequestResponse();
-        Set<LdapRecord> set = new HashSet<LdapRecord>();
-        req.setAttribute("GROUPS", set);
-        req.setAttribute("smartLdapGroupStore", this);
-        SubQueryCounter queryCounter = new SubQueryCounter();
-        req.setAttribute("queryCounter", queryCounter);
-        req.setAttribute("baseFilter", spring_context.getBean("filter"));
-        for (String name : spring_context.getBeanDefinitionNames()) {
-            req.setAttribute(name, spring_context.getBean(name));
-        }
-        runner.run(initTask, req);
-        
-        if (log.isInfoEnabled()) {
-            String msg = "init() found " + set.size() + " records.";
-            log.info(msg);
-        }
-        
-        // Do a first loop to build the main catalog (new_groups)...
-        for (LdapRecord r : set) {
-            
-            // new_groups (me)...
-            IEntityGroup g = r.getGroup();
-            new_groups.put(g.getLocalKey(), g);
-
-        }
-        
-        // Do a second loop to build local indeces...
-        for (LdapRecord r : set) {
-
-            IEntityGroup g = r.getGroup();
-
-            // new_parents (I am a parent for all my children)...
-            for (String childKey : r.getKeysOfChildren()) {
-                
-                // NB:  We're only interested in relationships between 
-                // objects in the main catalog (i.e. new_groups);  
-                // discard everything else...
-                if (!new_groups.containsKey(childKey)) {
-                    break;
-                }
-
-                List<String> parentsList = new_parents.get(childKey);
-                if (parentsList == null) {
-                    // first parent for this child...
-                    parentsList = Collections.synchronizedList(new LinkedList<String>());
-                    new_parents.put(childKey, parentsList);
-                }
-                parentsList.add(g.getLocalKey());
-
-            }
-            
-            // new_children...
-            List<String> childrenList = Collections.synchronizedList(new LinkedList<String>());
-            for (String childKey : r.getKeysOfChildren()) {
-                // NB:  We're only interested in relationships between 
-                // objects in the main catalog (i.e. new_groups);  
-                // discard everything else...
-                if (new_groups.containsKey(childKey)) {
-                    childrenList.add(childKey);
-                }
-            }
-            new_children.put(g.getLocalKey(), childrenList);
-            
-            // new_keysByUpperCaseName...
-            List<String> groupsWithMyName = new_keysByUpperCaseName.get(g.getName().toUpperCase());
-            if (groupsWithMyName == null) {
-                // I am the first group with my name (pretty likely)...
-                groupsWithMyName = Collections.synchronizedList(new LinkedList<String>());
-                new_keysByUpperCaseName.put(g.getName().toUpperCase(), groupsWithMyName);
-            }
-            groupsWithMyName.add(g.getLocalKey());
-            
-        }       
-        
-        /*
-         * Now load the ROOT_GROUP into the collections...
-         */
-
-        // new_groups (me)...
-        new_groups.put(ROOT_GROUP.getLocalKey(), ROOT_GROUP);
-
-        // new_parents (I am a parent for all groups that have no other parent)...
-        List<String> childrenOfRoot = Collections.synchronizedList(new LinkedList<String>());   // for later...
-        for (String possibleChildKey : new_groups.keySet()) {
-            if (!possibleChildKey.equals(ROOT_GROUP.getLocalKey()) && !new_parents.containsKey(possibleChildKey)) {
-                List<String> p = Collections.synchronizedList(new LinkedList<String>());
-                p.add(ROOT_GROUP.getLocalKey());
-                new_parents.put(possibleChildKey, p);
-                childrenOfRoot.add(possibleChildKey);   // for later...
-            }
-        }
-        
-        // new_children...
-        new_children.put(ROOT_GROUP.getLocalKey(), childrenOfRoot);
-        
-        // new_keysByUpperCaseName...
-        List<String> groupsWithMyName = new_keysByUpperCaseName.get(ROOT_GROUP.getName().toUpperCase());
-        if (groupsWithMyName == null) {
-            // I am the first group with my name (pretty likely)...
-            groupsWithMyName = Collections.synchronizedList(new LinkedList<String>());
-            new_keysByUpperCaseName.put(ROOT_GROUP.getName().toUpperCase(), groupsWithMyName);
-        }
-        groupsWithMyName.add(ROOT_GROUP.getLocalKey());
-
-        if (log.isInfoEnabled()) {
-            long benchmark = System.currentTimeMillis() - timestamp;
-            log.info("Refresh of groups tree completed in " + benchmark + " milliseconds");
-            log.info("Total number of LDAP queries:  " + (queryCounter.getCount() + 1));
-            String msg = "init() :: final size of each collection is as follows..."
-                            + "\n\tgroups=" + new_groups.size()
-                            + "\n\tparents=" + new_parents.size()
-                            + "\n\tchildren=" + new_children.size()
-                            + "\n\tkeysByUpperCaseName=" + new_keysByUpperCaseName.size();
-            log.info(msg);
-        }
-        
-        if (log.isTraceEnabled()) {
-            
-            StringBuilder msg = new StringBuilder();
-
-            // new_groups...
-            msg.setLength(0);
-            msg.append("Here are the keys of the new_groups collection:");
-            for (String s : new_groups.keySet()) {
-                msg.append("\n\t").append(s);
-            }
-            log.trace(msg.toString());
-            
-            // new_parents...
-            msg.setLength(0);
-            msg.append("Here are the parents of each child in the new_parents collection:");
-            for (Map.Entry<String,List<String>> y : new_parents.entrySet()) {
-                msg.append("\n\tchild=").append(y.getKey());
-                for (String s : y.getValue()) {
-                    msg.append("\n\t\tparent=").append(s);
-                }
-            }
-            log.trace(msg.toString());
-            
-            // new_children...
-            msg.setLength(0);
-            msg.append("Here are the children of each parent in the new_children collection:");
-            for (Map.Entry<String,List<String>> y : new_children.entrySet()) {
-                msg.append("\n\tparent=").append(y.getKey());
-                for (String s : y.getValue()) {
-                    msg.append("\n\t\tchild=").append(s);
-                }
-            }
-            log.trace(msg.toString());
-            
-            // new_keysByUpperCaseName...
-            msg.append("Here are the groups that have each name in the new_keysByUpperCaseName collection:");
-            for (Map.Entry<String,List<String>> y : new_keysByUpperCaseName.entrySet()) {
-                msg.append("\n\tname=").append(y.getKey());
-                for (String s : y.getValue()) {
-                    msg.append("\n\t\tgroup=").append(s);
-                }
-            }
-            log.trace(msg.toString());
-            
-        }
-
-        return new GroupsTree(new_groups, new_parents, new_children, new_keysByUpperCaseName);
-
-    }
-
     /*
      * Nested Types.
      */
@@ -740,79 +538,5 @@ public final class SmartLdapGroupStore implements IEntityGroupStore {
         }
     
     }
-    
-    private static final class GroupsTree {
-        
-        // Instance Members.
-        private final Map<String,IEntityGroup> groups;
-        private final Map<String,List<String>> parents;
-        private final Map<String,List<String>> children;
-        private final Map<String,List<String>> keysByUpperCaseName;
-        
-        /*
-         * Public API.
-         */
-        
-        public GroupsTree(Map<String,IEntityGroup> groups, Map<String,List<String>> parents, 
-                                Map<String,List<String>> children, 
-                                Map<String,List<String>> keysByUpperCaseName) {
-            
-            // Assertions.
-            if (groups == null) {
-                String msg = "Argument 'groups' cannot be null.";
-                throw new IllegalArgumentException(msg);
-            }
-            if (parents == null) {
-                String msg = "Argument 'parents' cannot be null.";
-                throw new IllegalArgumentException(msg);
-            }
-            if (children == null) {
-                String msg = "Argument 'children' cannot be null.";
-                throw new IllegalArgumentException(msg);
-            }
-            if (keysByUpperCaseName == null) {
-                String msg = "Argument 'keysByUpperCaseName' cannot be null.";
-                throw new IllegalArgumentException(msg);
-            }
-            
-            // Instance Members.
-            this.groups = groups;
-            this.parents = parents;
-            this.children = children;
-            this.keysByUpperCaseName = keysByUpperCaseName;
-
-        }
-        
-        public Map<String,IEntityGroup> getGroups() {
-            return groups;
-        }
-
-        public Map<String,List<String>> getParents() {
-            return parents;
-        }
-
-        public Map<String,List<String>> getChildren() {
-            return children;
-        }
-
-        public Map<String,List<String>> getKeysByUpperCaseName() {
-            return keysByUpperCaseName;
-        }
-
-    }
-    
-    private static final class SubQueryCounter {
-        
-        private int count = 0;
-        
-        public void increment() {
-            ++count;
-        }
-        
-        public int getCount() {
-            return count;
-        }
-        
-    }
 
 }
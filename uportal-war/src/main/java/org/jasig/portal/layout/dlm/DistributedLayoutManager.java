@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -35,6 +36,7 @@ import java.util.Vector;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -69,6 +71,7 @@ import org.jasig.portal.security.provider.AuthorizationImpl;
 import org.jasig.portal.spring.locator.PortletDefinitionRegistryLocator;
 import org.jasig.portal.spring.locator.UserIdentityStoreLocator;
 import org.jasig.portal.xml.XmlUtilities;
+import org.jasig.portal.xml.stream.XMLEventBufferReader;
 import org.jasig.portal.xml.xpath.XPathOperations;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -92,6 +95,7 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
 
     private XmlUtilities xmlUtilities;
     private ILayoutCachingService layoutCachingService;
+    private ILayoutWriteBehindService layoutWriteBehindService;
     private IUserLayoutStore distributedLayoutStore;
     private XPathOperations xpathOperations;
     private IPortalEventFactory portalEventFactory;
@@ -110,6 +114,8 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     protected String cacheKey="initialKey";
     protected String rootNodeId = null;
 
+    private volatile LayoutEvents layoutEvents;
+
     private boolean channelsAdded = false;
     private boolean isFragmentOwner = false;
 
@@ -158,6 +164,11 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         this.layoutCachingService = layoutCachingService;
     }
 
+    @Autowired
+    public void setLayoutWriteBehindService(ILayoutWriteBehindService layoutWriteBehindService) {
+        this.layoutWriteBehindService = layoutWriteBehindService;
+    }
+
     @Autowired
     public void setDistributedLayoutStore(IUserLayoutStore distributedLayoutStore) {
         this.distributedLayoutStore = distributedLayoutStore;
@@ -228,6 +239,9 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
                 LOG.debug("Load from store for " +
                     owner.getAttribute(IPerson.USERNAME));
             }
+            
+            // A deferred save must be written first or the stored layout would replace the unsaved changes 
+            this.layoutWriteBehindService.flush(this.owner, this.profile);
             userLayout = this.distributedLayoutStore.getUserLayout(this.owner,this.profile);
             
             final Document userLayoutDocument = userLayout.getLayout();
@@ -235,13 +249,13 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             // DistributedLayoutManager shall gracefully remove channels 
             // that the user isn't authorized to render from folders of type 
             // 'header' and 'footer'.
-            IAuthorizationPrincipal principal = authorizationService.newPrincipal(owner.getUserName(), IPerson.class);
+            final List<Element> channels = new ArrayList<Element>();
+            final Set<String> chanIds = new HashSet<String>();
             NodeList nodes = userLayoutDocument.getElementsByTagName("folder");
             for (int i=0; i < nodes.getLength(); i++) {
           	  Element fd = (Element) nodes.item(i);
           	  String type = fd.getAttribute("type");
           	  if (type != null && (type.equals("header") || type.equals("footer"))) {
-          		  // Here's where we do the work...
           		  if (LOG.isDebugEnabled()) {
           			  LOG.debug("RDBMUserLayoutStore examining the '" 
         					  	+ type 
@@ -249,30 +263,42 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
         					  	+ owner.getUserName() 
         					  	+ "' for non-authorized channels.");
           		  }
-          		  NodeList channels = fd.getElementsByTagName("channel");
-          		  for (int j=0; j < channels.getLength(); j++) {
-          			  Element ch = (Element) channels.item(j);
-          			  try {
-          				  String chanId = ch.getAttribute("chanID");
-          				  if (!principal.canRender(chanId)) {
-          					  fd.removeChild(ch);
-          					  if (LOG.isDebugEnabled()) {
-          						  LOG.debug("RDBMUserLayoutStore removing channel '" 
-            							  	+ ch.getAttribute("fname") 
-            							  	+ "' from the header or footer of user '" 
-            							  	+ owner.getUserName() 
-            							  	+ "' because he/she isn't authorized to render it.");
-          					  }
-          				  }
-          			  } catch (Throwable t) {
-          				  // Log this...
-          				  LOG.warn("RDBMUserLayoutStore was unable to analyze channel element with Id=" 
-          						  									+ch.getAttribute("chanID"), t);
-          			  }
+          		  NodeList folderChannels = fd.getElementsByTagName("channel");
+          		  for (int j=0; j < folderChannels.getLength(); j++) {
+          			  Element ch = (Element) folderChannels.item(j);
+          			  channels.add(ch);
+          			  chanIds.add(ch.getAttribute("chanID"));
           		  }
           	  }
             }
             
+            if (!channels.isEmpty()) {
+                // Here's where we do the work, all channels are checked in a single pass
+                Set<String> renderableChanIds = null;
+                try {
+                    IAuthorizationPrincipal principal = authorizationService.newPrincipal(owner.getUserName(), IPerson.class);
+                    renderableChanIds = principal.getRenderableChannels(chanIds);
+                } catch (Throwable t) {
+                    // Log this...
+                    LOG.warn("RDBMUserLayoutStore was unable to analyze header and footer channels " + chanIds, t);
+                }
+                
+                if (renderableChanIds != null) {
+                    for (final Element ch : channels) {
+                        if (!renderableChanIds.contains(ch.getAttribute("chanID"))) {
+                            ch.getParentNode().removeChild(ch);
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("RDBMUserLayoutStore removing channel '" 
+                                            + ch.getAttribute("fname") 
+                                            + "' from the header or footer of user '" 
+                                            + owner.getUserName() 
+                                            + "' because he/she isn't authorized to render it.");
+                            }
+                        }
+                    }
+                }
+            }
+            
             setUserLayoutDOM( userLayout );
         }
         return userLayout;
@@ -285,16 +311,56 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             throw new PortalException("User layout has not been initialized for " + owner.getAttribute(IPerson.USERNAME));
         }
         
+        //Replay the events of the layout if they have already been read for this revision of the layout
+        final String layoutCacheKey = this.cacheKey;
+        LayoutEvents events = this.layoutEvents;
+        if (events == null || events.layout != ul || !events.cacheKey.equals(layoutCacheKey)) {
+            events = new LayoutEvents(ul, layoutCacheKey, this.readLayoutEvents(ul));
+            this.layoutEvents = events;
+        }
+        
+        return new XMLEventBufferReader(events.events.listIterator());
+    }
+    
+    /**
+     * Reads all of the StAX events for the layout into an immutable list
+     */
+    private List<XMLEvent> readLayoutEvents(Document ul) {
         final XMLInputFactory xmlInputFactory = this.xmlUtilities.getXmlInputFactory();
         
         final DOMSource layoutSoure = new DOMSource(ul);
         try {
-            return xmlInputFactory.createXMLEventReader(layoutSoure);
+            final XMLEventReader layoutReader = xmlInputFactory.createXMLEventReader(layoutSoure);
+            try {
+                final List<XMLEvent> events = new ArrayList<XMLEvent>();
+                while (layoutReader.hasNext()) {
+                    events.add(layoutReader.nextEvent());
+                }
+                return Collections.unmodifiableList(events);
+            }
+            finally {
+                layoutReader.close();
+            }
         }
         catch (XMLStreamException e) {
             throw new RuntimeException("Failed to create Layout XMLStreamReader for user: " + owner.getAttribute(IPerson.USERNAME), e);
         }
     }
+    
+    /**
+     * The StAX events of a layout document, valid as long as the document and layout cache key are unchanged
+     */
+    private static final class LayoutEvents {
+        private final Document layout;
+        private final String cacheKey;
+        private final List<XMLEvent> events;
+        
+        public LayoutEvents(Document layout, String cacheKey, List<XMLEvent> events) {
+            this.layout = layout;
+            this.cacheKey = cacheKey;
+            this.events = events;
+        }
+    }
 
     /**
      * Instantiates an empty transformer to generate SAX events for the layout.
@@ -349,8 +415,25 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             throw new PortalException("UserLayout has not been initialized for " 
                     + owner.getAttribute(IPerson.USERNAME) + ".");
         }
+        
+        if (this.layoutWriteBehindService.isEnabled()) {
+            // The save is written later by another thread, hand it a copy so edits made to the layout
+            // in the meantime can't change the document while it is being written
+            this.layoutWriteBehindService.scheduleSave(this, (Document) uld.cloneNode(true));
+        }
+        else {
+            this.writeUserLayout(uld);
+        }
+    }
+    
+    /**
+     * Writes the layout to the layout store, called by {@link #saveUserLayout()} or for deferred
+     * saves by the {@link ILayoutWriteBehindService}.
+     */
+    synchronized void writeUserLayout(Document uld) throws PortalException {
         try {
             this.distributedLayoutStore.setUserLayout(this.owner,this.profile,uld,channelsAdded);
+            this.layoutCachingService.publishLayoutChange(this.owner, this.profile);
         } catch (Exception e) {
             throw new PortalException("Exception encountered while " +
                     "saving layout for userId=" + this.owner.getID() +
@@ -1471,8 +1554,11 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
 
         try
         {
+            // drop unsaved changes so they are not written over the reset layout
+            this.layoutWriteBehindService.discard(person);
             userStore.removePortalUID( person.getID() );
             userStore.getPortalUID( person, true );
+            this.layoutCachingService.publishLayoutChange(person, profile);
 
             // see if the current user was the one to reset their layout and if
             // so we need to refresh our local copy of their layout
@@ -1555,6 +1641,15 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
     {
         return owner;
     }
+
+    /**
+     * Returns the profile of this layout manager instance.
+     * @return IUserProfile object
+     */
+    IUserProfile getProfile()
+    {
+        return profile;
+    }
  
     /**
      * Returns a resolver for local names. This layout manager supports this
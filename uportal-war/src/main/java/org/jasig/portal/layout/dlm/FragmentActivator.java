@@ -19,12 +19,20 @@
 
 package org.jasig.portal.layout.dlm;
 
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import net.sf.ehcache.Ehcache;
@@ -43,31 +51,45 @@ import org.jasig.portal.security.IPerson;
 import org.jasig.portal.security.provider.PersonImpl;
 import org.jasig.portal.utils.ConcurrentMapUtils;
 import org.jasig.portal.utils.Tuple;
-import org.jasig.portal.utils.threading.ReadResult;
-import org.jasig.portal.utils.threading.ReadWriteCallback;
-import org.jasig.portal.utils.threading.ReadWriteLockTemplate;
-import org.jasig.portal.utils.threading.SingletonDoubleCheckedCreator;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.WebApplicationContext;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
+ * Loads and caches the {@link UserView} of each fragment. All fragments are activated in parallel
+ * on the portal task executor when the portal starts. Concurrent requests for a fragment that is
+ * still loading share the single in-flight activation. Once a fragment has been activated its
+ * view is retained, when the userViews cache entry expires the last view continues to be returned
+ * while a replacement is activated in the background. Retained views are dropped when the owner's
+ * views are cleared or the fragment is no longer configured.
+ * 
  * @version $Revision$ $Date$
  * @since uPortal 2.5
  */
 @Service
-public class FragmentActivator extends SingletonDoubleCheckedCreator<Boolean>
+public class FragmentActivator implements ApplicationListener<ContextRefreshedEvent>
 {
     public static final String RCS_ID = "@(#) $Header$";
     private static final Log LOG = LogFactory.getLog(FragmentActivator.class);
 
-    private final ConcurrentMap<String, ReadWriteLock> userViewLocks = new ConcurrentHashMap<String, ReadWriteLock>();
+    /**
+     * Last activated view of each fragment/locale, entries are replaced rather than expired so readers
+     * always have a view to use while a refresh is running.
+     */
+    private final ConcurrentMap<Tuple<String, String>, UserView> activeViews = new ConcurrentHashMap<Tuple<String, String>, UserView>();
+    private final ConcurrentMap<Tuple<String, String>, FutureTask<UserView>> activations = new ConcurrentHashMap<Tuple<String, String>, FutureTask<UserView>>();
+    private final ConcurrentMap<String, AtomicInteger> ownerGenerations = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicBoolean activationStarted = new AtomicBoolean(false);
     
     private Ehcache userViews;
+    private Executor activationExecutor;
     private IUserIdentityStore identityStore;
     private IUserLayoutStore userLayoutStore;
     private IStylesheetUserPreferencesDao stylesheetUserPreferencesDao;
@@ -85,6 +107,11 @@ public class FragmentActivator extends SingletonDoubleCheckedCreator<Boolean>
         this.userViews = userViews;
     }
 
+    @Autowired
+    public void setActivationExecutor(@Qualifier("uPortalTaskExecutor") Executor activationExecutor) {
+        this.activationExecutor = activationExecutor;
+    }
+
     @Autowired
     public void setConfigurationLoader(ConfigurationLoader configurationLoader) {
         this.configurationLoader = configurationLoader;
@@ -106,19 +133,23 @@ public class FragmentActivator extends SingletonDoubleCheckedCreator<Boolean>
     }
     
 
-    /**
-     * Activation will only be run once and will return immediately for every call once activation
-     * is complete.
+    /* (non-Javadoc)
+     * @see org.springframework.context.ApplicationListener#onApplicationEvent(org.springframework.context.ApplicationEvent)
      */
-    void activateFragments() {
-        this.get();
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        //Only activate in the portal web application, command line tools load the same contexts. Child
+        //contexts publish their refresh events to this context as well so only the first one counts.
+        if (event.getApplicationContext() instanceof WebApplicationContext && this.activationStarted.compareAndSet(false, true)) {
+            this.activateFragments();
+        }
     }
 
-    /* (non-Javadoc)
-     * @see org.jasig.portal.utils.threading.SingletonDoubleCheckedCreator#createSingleton(java.lang.Object[])
+    /**
+     * Starts activation of every fragment for every portal locale on the activation executor and
+     * returns without waiting for the activations to complete.
      */
-    @Override
-    protected Boolean createSingleton(Object... args) {
+    void activateFragments() {
         final List<FragmentDefinition> fragments = this.configurationLoader.getFragments();
         
         if (LOG.isDebugEnabled()) {
@@ -133,25 +164,18 @@ public class FragmentActivator extends SingletonDoubleCheckedCreator<Boolean>
             if (LOG.isDebugEnabled()) {
                 LOG.debug("\n\nNo Fragments to Activate." );
             }
-        }
-        else
-        {
-            for (final FragmentDefinition fragmentDefinition : fragments) {
-                for (Locale locale : LocaleManager.getPortalLocales()) {
-                    activateFragment(fragmentDefinition, locale);
-                }
-            }
+            return;
         }
         
-        // now let other threads in to get their layouts.
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("\n\n------ done with Activation ------\n" );
+        for (final FragmentDefinition fragmentDefinition : fragments) {
+            for (final Locale locale : LocaleManager.getPortalLocales()) {
+                final Tuple<String, String> key = getUserViewKey(fragmentDefinition.getOwnerId(), locale);
+                this.startActivation(fragmentDefinition, locale, key, false);
+            }
         }
-        
-        return true;
     }
     
-    private UserView activateFragment(FragmentDefinition fd, Locale locale) {
+    UserView activateFragment(FragmentDefinition fd, Locale locale) {
         
         // Assertions.
         if (fd == null) {
@@ -189,7 +213,6 @@ public class FragmentActivator extends SingletonDoubleCheckedCreator<Boolean>
                 }
                 loadPreferences( view, fd);
                 fragmentizeLayout( view, fd);
-                this.setUserView(fd.getOwnerId(), locale, view);
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("\n\n------ done activating " + fd.getName() + " (locale = " + locale.toString() + ")" );
                 }
@@ -220,46 +243,93 @@ public class FragmentActivator extends SingletonDoubleCheckedCreator<Boolean>
             throw new IllegalArgumentException(msg);
         }
         
-        // Activate the fragment just-in-time if it's new using some locking to make sure the same
-        // fragment isn't being loaded by multiple concurrent threads
         final String ownerId = fd.getOwnerId();
-        final ReadWriteLock userViewLock = getUserViewLock(ownerId);
-        final UserView rslt = 
-            ReadWriteLockTemplate.doWithLock(userViewLock, new ReadWriteCallback<UserView>() {
-                public ReadResult<UserView> doInReadLock() {
-                    final net.sf.ehcache.Element element = getUserView(ownerId, locale);
-                    final UserView userView = element != null ? (UserView)element.getObjectValue() : null;
-                    if (userView == null) {
-                        return new ReadResult<UserView>(true);
-                    }
-                    
-                    return new ReadResult<UserView>(false, userView);
-                }
-    
-                public UserView doInWriteLock(ReadResult<UserView> readResult) {
-                    final UserView userView = activateFragment(fd, locale);
-                    
-                    if (userView == null) {
-                        // This is worrysome...
-                        LOG.warn("No UserView object could be activated for owner '" + ownerId 
-                                                    + "' -- null will be returned");
-                    }
-                    
-                    return userView;
-                }
-            });
+        final Tuple<String, String> key = getUserViewKey(ownerId, locale);
+        
+        final net.sf.ehcache.Element element = userViews.get(key);
+        if (element != null) {
+            return (UserView) element.getObjectValue();
+        }
+        
+        // The cached view expired or was invalidated, keep using the last view while a new one is
+        // activated in the background
+        final UserView activeView = activeViews.get(key);
+        if (activeView != null) {
+            this.startActivation(fd, locale, key, false);
+            return activeView;
+        }
+        
+        // Activate the fragment just-in-time if it's new, concurrent callers wait on the same activation
+        final FutureTask<UserView> activation = this.startActivation(fd, locale, key, true);
+        final UserView userView = this.getActivationResult(fd, locale, activation);
+        if (userView == null) {
+            // This is worrysome...
+            LOG.warn("No UserView object could be activated for owner '" + ownerId 
+                                        + "' -- null will be returned");
+        }
+        
+        return userView;
+    }
+
+    /**
+     * Returns the in-flight activation of the fragment view, starting a new activation if there is none.
+     * A new activation is run by the calling thread if runInline is true and on the activation executor
+     * otherwise.
+     */
+    protected FutureTask<UserView> startActivation(FragmentDefinition fd, Locale locale, Tuple<String, String> key, boolean runInline) {
+        final FutureTask<UserView> existingActivation = activations.get(key);
+        if (existingActivation != null) {
+            if (!existingActivation.isDone()) {
+                return existingActivation;
+            }
             
-        return rslt;
+            //A completed activation removes itself, its view may not have been stored so it is not reused
+            activations.remove(key, existingActivation);
+        }
+        
+        final FutureTask<UserView> activation = new ActivationTask(fd, locale, key);
+        final FutureTask<UserView> concurrentActivation = activations.putIfAbsent(key, activation);
+        if (concurrentActivation != null) {
+            return concurrentActivation;
+        }
+        
+        if (runInline || this.activationExecutor == null) {
+            activation.run();
+        }
+        else {
+            try {
+                this.activationExecutor.execute(activation);
+            }
+            catch (RejectedExecutionException e) {
+                activations.remove(key, activation);
+                LOG.warn("Activation of fragment '" + fd.getName() + "' (locale = " + locale + ") was rejected by the activation executor, it will be retried on the next request");
+            }
+        }
         
+        return activation;
+    }
+    
+    private UserView getActivationResult(FragmentDefinition fd, Locale locale, FutureTask<UserView> activation) {
+        try {
+            return activation.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while waiting for activation of fragment '" + fd.getName() + "' (locale = " + locale + ")");
+            return null;
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("Failed to activate fragment '" + fd.getName() + "' (locale = " + locale + ")", e.getCause());
+        }
     }
 
-    protected ReadWriteLock getUserViewLock(final String ownerId) {
-        final ReadWriteLock userViewLock = userViewLocks.get(ownerId);
-        if (userViewLock != null) {
-            return userViewLock;
+    protected AtomicInteger getOwnerGeneration(final String ownerId) {
+        final AtomicInteger generation = ownerGenerations.get(ownerId);
+        if (generation != null) {
+            return generation;
         }
         
-        return ConcurrentMapUtils.putIfAbsent(userViewLocks, ownerId, new ReentrantReadWriteLock(true));
+        return ConcurrentMapUtils.putIfAbsent(ownerGenerations, ownerId, new AtomicInteger());
     }
     
     public void setUserView(String ownerId, Locale locale, UserView v) {
@@ -278,8 +348,16 @@ public class FragmentActivator extends SingletonDoubleCheckedCreator<Boolean>
             LOG.debug("Setting UserView instance for user:  " + ownerId);
         }
         
-        userViews.put(new net.sf.ehcache.Element(new Tuple<String, String>(ownerId, locale.toString()), v));
-        
+        final Tuple<String, String> key = getUserViewKey(ownerId, locale);
+        final AtomicInteger generation = getOwnerGeneration(ownerId);
+        synchronized (generation) {
+            putUserView(key, v);
+        }
+    }
+    
+    private void putUserView(Tuple<String, String> key, UserView v) {
+        userViews.put(new net.sf.ehcache.Element(key, v));
+        activeViews.put(key, v);
     }
     
     public boolean hasUserView(FragmentDefinition fd, Locale locale) {
@@ -290,7 +368,8 @@ public class FragmentActivator extends SingletonDoubleCheckedCreator<Boolean>
             throw new IllegalArgumentException(msg);
         }
 
-        return getUserView(fd.getOwnerId(), locale) != null;
+        final Tuple<String, String> key = getUserViewKey(fd.getOwnerId(), locale);
+        return activeViews.containsKey(key) || userViews.get(key) != null;
 
     }
     
@@ -555,30 +634,102 @@ public class FragmentActivator extends SingletonDoubleCheckedCreator<Boolean>
         }
     }
     
-    private net.sf.ehcache.Element getUserView(String ownerId, Locale locale) {
-        return userViews.get(new Tuple<String, String>(ownerId, locale.toString()));
+    private static Tuple<String, String> getUserViewKey(String ownerId, Locale locale) {
+        return new Tuple<String, String>(ownerId, locale.toString());
     }
     
+    /**
+     * Removes the views of the owner's fragment, the next request for a view activates the fragment
+     * again. Activations of the owner's fragment already running when this is called will not
+     * store their views.
+     */
     public void clearChacheForOwner(final String ownerId) {
-        final ReadWriteLock userViewLock = getUserViewLock(ownerId);
-        ReadWriteLockTemplate.doWithLock(userViewLock, new ReadWriteCallback<UserView>() {
-            @Override
-            public ReadResult<UserView> doInReadLock() {
-                // continue with write lock
-                return new ReadResult<UserView>(true);
+        final AtomicInteger generation = getOwnerGeneration(ownerId);
+        synchronized (generation) {
+            generation.incrementAndGet();
+            
+            List<?> keys = userViews.getKeys();
+            for (Object key : keys) {
+                Tuple<?, ?> tuple = (Tuple<?, ?>) key;
+                if (ownerId.equals(tuple.first)) {
+                    userViews.remove(key);
+                }
             }
-
-            @Override
-            public UserView doInWriteLock(ReadResult<UserView> readResult) {
-                List<?> keys = userViews.getKeys();
-                for (Object key : keys) {
-                    Tuple<?, ?> tuple = (Tuple<?, ?>) key;
-                    if (ownerId.equals(tuple.first)) {
-                        userViews.remove(key);
-                    }
+            
+            for (final Iterator<Tuple<String, String>> keyItr = activeViews.keySet().iterator(); keyItr.hasNext(); ) {
+                if (ownerId.equals(keyItr.next().first)) {
+                    keyItr.remove();
                 }
-                return null;
             }
-        });
+        }
+    }
+    
+    /**
+     * Removes the views of fragments that are no longer configured so they are neither retained
+     * nor returned.
+     */
+    void pruneActiveViews() {
+        final List<FragmentDefinition> fragments = this.configurationLoader.getFragments();
+        final Set<String> ownerIds = new HashSet<String>();
+        if (fragments != null) {
+            for (final FragmentDefinition fragmentDefinition : fragments) {
+                ownerIds.add(fragmentDefinition.getOwnerId());
+            }
+        }
+        
+        for (final Iterator<Tuple<String, String>> keyItr = activeViews.keySet().iterator(); keyItr.hasNext(); ) {
+            final Tuple<String, String> key = keyItr.next();
+            if (!ownerIds.contains(key.first)) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Fragment of " + key.first + " is no longer configured, dropping its view for locale " + key.second);
+                }
+                keyItr.remove();
+                userViews.remove(key);
+            }
+        }
+    }
+    
+    /**
+     * Activates a fragment view and stores it if the owner's views were not cleared while the activation
+     * was running. A refresh of a retained view also drops the views of fragments that have been
+     * removed. Removes itself from the in-flight activations once complete.
+     */
+    private class ActivationTask extends FutureTask<UserView> {
+        private final Tuple<String, String> key;
+
+        public ActivationTask(final FragmentDefinition fd, final Locale locale, final Tuple<String, String> key) {
+            super(new Callable<UserView>() {
+                @Override
+                public UserView call() throws Exception {
+                    final AtomicInteger generation = getOwnerGeneration(fd.getOwnerId());
+                    final int startGeneration = generation.get();
+                    final boolean refresh = activeViews.containsKey(key);
+                    
+                    final UserView view = activateFragment(fd, locale);
+                    if (view != null) {
+                        synchronized (generation) {
+                            if (generation.get() == startGeneration) {
+                                putUserView(key, view);
+                            }
+                            else if (LOG.isDebugEnabled()) {
+                                LOG.debug("Views of " + fd.getOwnerId() + " were cleared while fragment '" + fd.getName() + "' was being activated, the activated view will not be cached");
+                            }
+                        }
+                    }
+                    
+                    if (refresh) {
+                        pruneActiveViews();
+                    }
+                    
+                    return view;
+                }
+            });
+            this.key = key;
+        }
+
+        @Override
+        protected void done() {
+            activations.remove(this.key, this);
+        }
     }
 }
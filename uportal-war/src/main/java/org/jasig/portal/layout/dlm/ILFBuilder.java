@@ -32,6 +32,8 @@ import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import net.sf.ehcache.Ehcache;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jasig.portal.AuthorizationException;
@@ -64,6 +66,97 @@ public class ILFBuilder
         if (LOG.isDebugEnabled()) {
             LOG.debug("Constructing ILF for IPerson='" + person + "'");
         }
+
+        // build the auth principal for determining if pushed channels can be 
+        // used by this user
+        return constructILF(PLF, sequence, getPrincipal(person));
+    }
+
+    static Document constructILF( Document PLF, List<Document> sequence, IAuthorizationPrincipal ap)
+    {
+        Document result = createILFDocument(PLF);
+
+        // now merge fragments one at a time into ILF document
+        
+        for (final Document document : sequence) {
+            mergeFragment( document, result, ap );
+        }
+        return result;
+    }
+
+    /**
+     * Constructs the ILF from a merged copy of the fragments shared with every
+     * other user that has the same applicable fragments and is denied the same
+     * channels. Each channel in the fragments is authorized once and the
+     * user's ILF only needs a deep copy of the merged fragments instead of a
+     * node by node merge of each fragment.
+     * 
+     * @param mergedFragmentsCache holds {@link MergedFragments} keyed by the fragment sequence
+     */
+    public static Document constructILF( Document PLF, List<Document> sequence, IPerson person, Ehcache mergedFragmentsCache)
+    {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Constructing ILF from cached merged fragments for IPerson='" + person + "'");
+        }
+        return constructILF(PLF, sequence, getPrincipal(person), mergedFragmentsCache);
+    }
+
+    static Document constructILF( Document PLF, List<Document> sequence, IAuthorizationPrincipal ap, Ehcache mergedFragmentsCache)
+    {
+        Document result = createILFDocument(PLF);
+        
+        // only walk the fragments for their channels when the sequence isn't cached yet
+        final MergedFragments.Key key = new MergedFragments.Key(sequence);
+        final net.sf.ehcache.Element element = mergedFragmentsCache.get(key);
+        MergedFragments mergedFragments;
+        if (element != null) {
+            mergedFragments = (MergedFragments) element.getObjectValue();
+        }
+        else {
+            mergedFragments = new MergedFragments(key, sequence);
+            final net.sf.ehcache.Element existing = mergedFragmentsCache.putIfAbsent(new net.sf.ehcache.Element(key, mergedFragments));
+            if (existing != null) {
+                mergedFragments = (MergedFragments) existing.getObjectValue();
+            }
+        }
+        
+        // authorize each distinct channel once
+        final Set<String> deniedChannelIds = new HashSet<String>();
+        for (final String channelId : mergedFragments.getChannelIds()) {
+            if (!ap.canRender(channelId)) {
+                deniedChannelIds.add(channelId);
+            }
+        }
+        
+        Document mergedCopy = mergedFragments.getMergedCopy(deniedChannelIds);
+        if (mergedCopy == null) {
+            mergedCopy = createILFDocument(PLF);
+            final Element mergedRoot = (Element) mergedCopy.getDocumentElement().getFirstChild();
+            for (final Document document : sequence) {
+                final Element fragmentRoot = (Element) document.getDocumentElement().getFirstChild();
+                mergeChildren( fragmentRoot, mergedRoot, null, deniedChannelIds, new HashSet() );
+            }
+            mergedFragments.setMergedCopy(deniedChannelIds, mergedCopy);
+        }
+        
+        // copy the merged fragment content in to the user's ILF
+        final Element mergedRoot = (Element) mergedCopy.getDocumentElement().getFirstChild();
+        final Element ilfRoot = (Element) result.getDocumentElement().getFirstChild();
+        for (Node item = mergedRoot.getFirstChild(); item != null; item = item.getNextSibling()) {
+            final Element newChild = (Element) result.importNode(item, true);
+            ilfRoot.appendChild(newChild);
+            setIdAttributes(newChild);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Creates the ILF document containing a copy of the PLF's layout and root
+     * folder elements, including the root's node identifier.
+     */
+    private static Document createILFDocument(Document PLF)
+    {
         // first construct the destination document and root element. The root
         // element should be a complete copy of the PLF's root including its
         // node identifier in the new document. This requires the use of
@@ -80,20 +173,33 @@ public class ILFBuilder
         
         if (ilfRoot.getAttribute(Constants.ATT_ID) != null)
             ilfRoot.setIdAttribute(Constants.ATT_ID, true);
-
-        // build the auth principal for determining if pushed channels can be 
-        // used by this user
+        
+        return result;
+    }
+    
+    private static IAuthorizationPrincipal getPrincipal(IPerson person)
+    {
         EntityIdentifier ei = person.getEntityIdentifier();
         AuthorizationService authS = AuthorizationService.instance();
-        IAuthorizationPrincipal ap = authS.newPrincipal(ei.getKey(), 
-                ei.getType());
-
-        // now merge fragments one at a time into ILF document
+        return authS.newPrincipal(ei.getKey(), ei.getType());
+    }
+    
+    /**
+     * Marks the ID attribute of the element and all of its descendants as the
+     * node identifier, importing a node into another document does not carry
+     * over which attributes are identifiers.
+     */
+    private static void setIdAttributes(Element element)
+    {
+        String id = element.getAttribute(Constants.ATT_ID);
+        if (id != null && ! id.equals(""))
+            element.setIdAttribute(Constants.ATT_ID, true);
         
-        for (final Document document : sequence) {
-            mergeFragment( document, result, ap );
+        for (Node item = element.getFirstChild(); item != null; item = item.getNextSibling()) {
+            if (item instanceof Element) {
+                setIdAttributes((Element) item);
+            }
         }
-        return result;
     }
 
     /**
@@ -111,7 +217,7 @@ public class ILFBuilder
         Element fragmentRoot = (Element) fragmentLayout.getFirstChild();
         Element compositeLayout = composite.getDocumentElement();
         Element compositeRoot = (Element) compositeLayout.getFirstChild();
-        mergeChildren( fragmentRoot, compositeRoot, ap, new HashSet() );
+        mergeChildren( fragmentRoot, compositeRoot, ap, null, new HashSet() );
     }    
 
 
@@ -119,12 +225,14 @@ public class ILFBuilder
      * @param source parent of children
      * @param dest receiver of children
      * @param ap User's authorization principal for determining if they can view a channel
+     * @param deniedChannelIds Channels that are not merged, used instead of the ap if not null
      * @param visitedNodes A Set of nodes from the source tree that have been visited to get to this node, used to ensure a loop doesn't exist in the source tree.
      * @throws AuthorizationException
      */
     private static void mergeChildren( Element source,
                                        Element dest, 
                                        IAuthorizationPrincipal ap,
+                                       Set<String> deniedChannelIds,
                                        Set visitedNodes ) 
     throws AuthorizationException
     {
@@ -149,14 +257,14 @@ public class ILFBuilder
                 Element child = (Element) item;
                 Element newChild = null;
     
-                if( null != child && mergeAllowed( child, ap ))
+                if( null != child && mergeAllowed( child, ap, deniedChannelIds ))
                 {
                     newChild = (Element) destDoc.importNode( child, false );
                     dest.appendChild( newChild );
                     String id = newChild.getAttribute(Constants.ATT_ID);
                     if (id != null && ! id.equals(""))
                         newChild.setIdAttribute(Constants.ATT_ID, true);
-                    mergeChildren( child, newChild, ap, visitedNodes );
+                    mergeChildren( child, newChild, ap, deniedChannelIds, visitedNodes );
                 }
             }
             
@@ -172,19 +280,23 @@ public class ILFBuilder
      * end user. If not then they are discarded from the merge.
      * 
      * @param child
-     * @param person
+     * @param ap
+     * @param deniedChannelIds channels known to be denied, checked instead of the ap if not null
      * @return
      * @throws AuthorizationException
      * @throws NumberFormatException
      */
     private static boolean mergeAllowed( Element child, 
-            IAuthorizationPrincipal ap ) 
+            IAuthorizationPrincipal ap,
+            Set<String> deniedChannelIds ) 
     throws AuthorizationException
     {
         if (! child.getTagName().equals("channel"))
             return true;
         
         String channelPublishId = child.getAttribute("chanID");
+        if (deniedChannelIds != null)
+            return ! deniedChannelIds.contains(channelPublishId);
         return ap.canRender(channelPublishId);
     }
 
@@ -37,4 +37,10 @@ public interface ILayoutCachingService {
 
     public DistributedUserLayout getCachedLayout(IPerson owner, IUserProfile profile);
 
+    /**
+     * Tells the other servers in the cluster to discard their cached copy of the layout, called
+     * after the layout has been changed in the layout store.
+     */
+    public void publishLayoutChange(IPerson owner, IUserProfile profile);
+
 }
\ No newline at end of file
@@ -0,0 +1,59 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.layout.dlm;
+
+import org.jasig.portal.IUserProfile;
+import org.jasig.portal.security.IPerson;
+import org.w3c.dom.Document;
+
+/**
+ * Defers and coalesces layout saves so a burst of layout edits results in a single write of the
+ * layout. Pending saves must be written before the layout is loaded from the store again and when
+ * the user logs out.
+ * 
+ * @version $Revision$
+ */
+public interface ILayoutWriteBehindService {
+    
+    /**
+     * @return true if layout saves should be handed to {@link #scheduleSave(DistributedLayoutManager, Document)}
+     */
+    public boolean isEnabled();
+
+    /**
+     * Schedule the layout of the layout manager to be written, replaces any save already pending for the same
+     * owner and profile. The layout is written from another thread so it must not be changed after it is
+     * scheduled, callers pass a copy of the layout manager's document.
+     */
+    public void scheduleSave(DistributedLayoutManager layoutManager, Document layout);
+    
+    /**
+     * Write the pending save, if any, for the owner and profile before returning. Saves of the layout that
+     * other threads are writing are finished before returning too.
+     */
+    public void flush(IPerson owner, IUserProfile profile);
+    
+    /**
+     * Drop the pending saves for all of the owner's profiles, used when the layout is reset.
+     */
+    public void discard(IPerson owner);
+
+}
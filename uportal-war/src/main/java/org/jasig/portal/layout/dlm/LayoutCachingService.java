@@ -27,6 +27,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jasig.portal.IUserProfile;
 import org.jasig.portal.UserProfile;
+import org.jasig.portal.concurrency.invalidation.IInvalidationBus;
+import org.jasig.portal.concurrency.invalidation.IInvalidationListener;
+import org.jasig.portal.concurrency.invalidation.InvalidationMessage;
+import org.jasig.portal.concurrency.invalidation.InvalidationType;
 import org.jasig.portal.events.LoginEvent;
 import org.jasig.portal.events.LogoutEvent;
 import org.jasig.portal.events.PortalEvent;
@@ -43,6 +47,7 @@ public class LayoutCachingService implements ApplicationListener<PortalEvent>, I
     protected final Log logger = LogFactory.getLog(this.getClass());
     
     private Map<Serializable, DistributedUserLayout> layoutCache;
+    private IInvalidationBus invalidationBus;
     
     /**
      * @return the layoutCache
@@ -56,6 +61,27 @@ public class LayoutCachingService implements ApplicationListener<PortalEvent>, I
     public void setLayoutCache(Map<Serializable, DistributedUserLayout> layoutCache) {
         this.layoutCache = layoutCache;
     }
+    /**
+     * @param invalidationBus Bus used to discard layouts changed on other servers in the cluster
+     */
+    public void setInvalidationBus(IInvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+        invalidationBus.registerListener(InvalidationType.LAYOUT, new IInvalidationListener() {
+            @Override
+            public void invalidate(InvalidationMessage message) {
+                final String key = message.getKey();
+                final int separator = key.indexOf(':');
+                if (separator < 0) {
+                    logger.warn("Ignoring layout invalidation with malformed key: " + key);
+                    return;
+                }
+                
+                final Integer profileId = Integer.valueOf(key.substring(0, separator));
+                final String userName = key.substring(separator + 1);
+                layoutCache.remove(new Tuple<String, Integer>(userName, profileId));
+            }
+        });
+    }
 
     /* (non-Javadoc)
      * @see org.springframework.context.ApplicationListener#onApplicationEvent(org.springframework.context.ApplicationEvent)
@@ -110,6 +136,14 @@ public class LayoutCachingService implements ApplicationListener<PortalEvent>, I
         final Serializable cacheKey = this.getCacheKey(owner, profile);
         this.layoutCache.remove(cacheKey);
     }
+    
+    @Override
+    public void publishLayoutChange(IPerson owner, IUserProfile profile) {
+        if (this.invalidationBus != null) {
+            this.invalidationBus.publish(InvalidationType.LAYOUT, profile.getProfileId() + ":" + owner.getUserName());
+        }
+    }
+    
     protected Serializable getCacheKey(IPerson owner, IUserProfile profile) {
         return new Tuple<String, Integer>(owner.getUserName(), profile.getProfileId());
     }
@@ -0,0 +1,323 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.layout.dlm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.portal.IUserProfile;
+import org.jasig.portal.events.LogoutEvent;
+import org.jasig.portal.events.PortalEvent;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.utils.Tuple;
+import org.joda.time.ReadableDuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Service;
+import org.w3c.dom.Document;
+
+/**
+ * Holds layout saves for a short delay, a layout saved again during the delay is only written once. Pending
+ * saves are written by {@link #flush()}, called by the portal task scheduler, and synchronously when the
+ * user logs out or the portal shuts down.
+ * <p>
+ * The pending save holds a copy of the layout taken when the save was scheduled, the layout manager's
+ * document keeps changing while the save waits and is never read by the thread writing the save. Edits made
+ * after the copy are written by the save scheduled for them.
+ * <p>
+ * Each save is numbered when it is scheduled. Writes of the same layout happen one at a time and a save is
+ * skipped if a newer save of the layout has already been written, so a slow thread can never write an older
+ * copy over a newer one.
+ * 
+ * @version $Revision$
+ */
+@Service("layoutWriteBehindService")
+public class LayoutWriteBehindService implements ILayoutWriteBehindService, ApplicationListener<PortalEvent>, DisposableBean {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final Map<Tuple<String, Integer>, PendingSave> pendingSaves = new LinkedHashMap<Tuple<String, Integer>, PendingSave>();
+    //Saves removed from pendingSaves that have not finished writing, guarded by pendingSaves
+    private final Map<Tuple<String, Integer>, LayoutWrites> layoutWrites = new HashMap<Tuple<String, Integer>, LayoutWrites>();
+    private long nextSequence = 0;
+    
+    private boolean enabled = false;
+    private long writeDelay = 5000;
+    
+    /**
+     * If layout saves are deferred, defaults to false which writes the layout on each save
+     */
+    @Value("${org.jasig.portal.layout.dlm.LayoutWriteBehindService.enabled:false}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    /**
+     * How long a save is held waiting for more changes to the same layout, defaults to 5 seconds
+     */
+    @Value("${org.jasig.portal.layout.dlm.LayoutWriteBehindService.writeDelay:PT5S}")
+    public void setWriteDelay(ReadableDuration writeDelay) {
+        this.writeDelay = writeDelay.getMillis();
+    }
+    
+    @Override
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+    
+    /**
+     * @return Number of layouts waiting to be written
+     */
+    public int getPendingCount() {
+        synchronized (this.pendingSaves) {
+            return this.pendingSaves.size();
+        }
+    }
+
+    @Override
+    public void scheduleSave(DistributedLayoutManager layoutManager, Document layout) {
+        final Tuple<String, Integer> key = getKey(layoutManager.getOwner(), layoutManager.getProfile());
+        
+        synchronized (this.pendingSaves) {
+            final PendingSave pendingSave = this.pendingSaves.get(key);
+            
+            //Keep the original schedule time so continuous editing can't hold off the write forever
+            final long scheduled = pendingSave != null ? pendingSave.scheduled : System.currentTimeMillis();
+            this.pendingSaves.put(key, new PendingSave(key, this.nextSequence++, layoutManager, layout, scheduled));
+        }
+    }
+
+    /**
+     * Writes the pending save for the owner and profile. If there is none but a save of the layout is still
+     * waiting to be written by another thread that save is written instead so the store is current when
+     * this returns.
+     */
+    @Override
+    public void flush(IPerson owner, IUserProfile profile) {
+        final Tuple<String, Integer> key = getKey(owner, profile);
+        
+        PendingSave pendingSave;
+        synchronized (this.pendingSaves) {
+            pendingSave = this.pendingSaves.remove(key);
+            if (pendingSave != null) {
+                this.startWrite(pendingSave);
+            }
+            else {
+                //The other thread may be waiting for the layout manager this thread holds, write the save here
+                final LayoutWrites writes = this.layoutWrites.get(key);
+                if (writes != null && writes.newest.sequence > writes.writtenSequence) {
+                    pendingSave = writes.newest;
+                    this.startWrite(pendingSave);
+                }
+            }
+        }
+        
+        if (pendingSave != null) {
+            this.write(pendingSave);
+        }
+    }
+
+    @Override
+    public void discard(IPerson owner) {
+        this.removePendingSaves(owner.getUserName(), Long.MAX_VALUE, false);
+    }
+    
+    /**
+     * Writes the pending saves that have been waiting longer than the write delay
+     */
+    public void flush() {
+        final long scheduledBefore = System.currentTimeMillis() - this.writeDelay;
+        for (final PendingSave pendingSave : this.removePendingSaves(null, scheduledBefore, true)) {
+            this.write(pendingSave);
+        }
+    }
+    
+    /**
+     * Writes the pending saves of users that log out
+     */
+    @Override
+    public void onApplicationEvent(PortalEvent event) {
+        if (event instanceof LogoutEvent) {
+            final IPerson person = event.getPerson();
+            for (final PendingSave pendingSave : this.removePendingSaves(person.getUserName(), Long.MAX_VALUE, true)) {
+                this.write(pendingSave);
+            }
+        }
+    }
+
+    /**
+     * Writes all pending saves
+     */
+    @Override
+    public void destroy() throws Exception {
+        for (final PendingSave pendingSave : this.removePendingSaves(null, Long.MAX_VALUE, true)) {
+            this.write(pendingSave);
+        }
+    }
+    
+    /**
+     * @param userName Only remove saves for this user, null for all users
+     * @param scheduledBefore Only remove saves scheduled before this time
+     * @param write If the removed saves are going to be written, each one must then be passed to {@link #write(PendingSave)}
+     */
+    protected List<PendingSave> removePendingSaves(String userName, long scheduledBefore, boolean write) {
+        final List<PendingSave> removed = new ArrayList<PendingSave>();
+        
+        synchronized (this.pendingSaves) {
+            for (final Iterator<Map.Entry<Tuple<String, Integer>, PendingSave>> pendingSaveItr = this.pendingSaves.entrySet().iterator(); pendingSaveItr.hasNext(); ) {
+                final Map.Entry<Tuple<String, Integer>, PendingSave> pendingSaveEntry = pendingSaveItr.next();
+                final PendingSave pendingSave = pendingSaveEntry.getValue();
+                if ((userName == null || userName.equals(pendingSaveEntry.getKey().first)) && pendingSave.scheduled <= scheduledBefore) {
+                    removed.add(pendingSave);
+                    pendingSaveItr.remove();
+                    if (write) {
+                        this.startWrite(pendingSave);
+                    }
+                }
+            }
+        }
+        
+        return removed;
+    }
+    
+    /**
+     * Tracks a save that was removed from the pending saves until {@link #write(PendingSave)} finishes with it,
+     * must be called while holding the pendingSaves lock
+     */
+    private void startWrite(PendingSave pendingSave) {
+        LayoutWrites writes = this.layoutWrites.get(pendingSave.key);
+        if (writes == null) {
+            writes = new LayoutWrites();
+            this.layoutWrites.put(pendingSave.key, writes);
+        }
+        
+        writes.saves++;
+        if (writes.newest == null || writes.newest.sequence < pendingSave.sequence) {
+            writes.newest = pendingSave;
+        }
+    }
+    
+    protected void write(PendingSave pendingSave) {
+        final DistributedLayoutManager layoutManager = pendingSave.layoutManager;
+        
+        //Lock the layout manager before waiting on other writes of the layout, the same order as a
+        //request thread that loads the layout while holding the layout manager lock
+        synchronized (layoutManager) {
+            final LayoutWrites writes;
+            synchronized (this.pendingSaves) {
+                writes = this.layoutWrites.get(pendingSave.key);
+                
+                //Only one write of a layout at a time
+                while (writes.writing) {
+                    try {
+                        this.pendingSaves.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        this.logger.warn("Interrupted waiting to write layout for " + pendingSave.key.first);
+                        this.finishWrite(writes, pendingSave, false);
+                        return;
+                    }
+                }
+                
+                //Never write an older copy of the layout over a newer one
+                if (pendingSave.sequence <= writes.writtenSequence) {
+                    this.finishWrite(writes, pendingSave, true);
+                    return;
+                }
+                
+                writes.writing = true;
+            }
+            
+            boolean written = false;
+            try {
+                layoutManager.writeUserLayout(pendingSave.layout);
+                written = true;
+            }
+            catch (Exception e) {
+                this.logger.error("Failed to write layout for " + pendingSave.key.first + ", the save will be retried", e);
+            }
+            finally {
+                synchronized (this.pendingSaves) {
+                    writes.writing = false;
+                    this.finishWrite(writes, pendingSave, written);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Records the outcome of writing a save, must be called while holding the pendingSaves lock
+     * 
+     * @param written If the save was written or skipped because a newer save was already written
+     */
+    private void finishWrite(LayoutWrites writes, PendingSave pendingSave, boolean written) {
+        if (written) {
+            writes.writtenSequence = Math.max(writes.writtenSequence, pendingSave.sequence);
+        }
+        else if (pendingSave.sequence == writes.newest.sequence && !this.pendingSaves.containsKey(pendingSave.key)) {
+            //Re-queue the save unless there is a newer one to write
+            this.pendingSaves.put(pendingSave.key, pendingSave);
+        }
+        
+        if (--writes.saves == 0) {
+            this.layoutWrites.remove(pendingSave.key);
+        }
+        
+        this.pendingSaves.notifyAll();
+    }
+    
+    protected static Tuple<String, Integer> getKey(IPerson owner, IUserProfile profile) {
+        return new Tuple<String, Integer>(owner.getUserName(), profile.getProfileId());
+    }
+    
+    protected static final class PendingSave {
+        private final Tuple<String, Integer> key;
+        private final long sequence;
+        private final DistributedLayoutManager layoutManager;
+        private final Document layout;
+        private final long scheduled;
+        
+        public PendingSave(Tuple<String, Integer> key, long sequence, DistributedLayoutManager layoutManager, Document layout, long scheduled) {
+            this.key = key;
+            this.sequence = sequence;
+            this.layoutManager = layoutManager;
+            this.layout = layout;
+            this.scheduled = scheduled;
+        }
+    }
+    
+    /**
+     * The saves of a layout that are being written
+     */
+    private static final class LayoutWrites {
+        private int saves;
+        private boolean writing;
+        private PendingSave newest;
+        private long writtenSequence = -1;
+    }
+}
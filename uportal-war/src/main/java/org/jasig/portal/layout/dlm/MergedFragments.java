@@ -0,0 +1,146 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.layout.dlm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * The merge of a sequence of fragment layouts shared by all users that have the same applicable
+ * fragments. Holds the distinct channel ids used in the fragments and a merged copy of the fragments
+ * for each distinct set of channels users are not allowed to render, so the authorization checks are
+ * done once per channel and the merge is done once per set of denied channels rather than once per user.
+ * <p>
+ * The fragment documents are compared by identity, a re-activated fragment is a new document so a
+ * MergedFragments built from the old document is never returned for the new one.
+ * 
+ * @version $Revision$
+ */
+class MergedFragments {
+    /**
+     * Bounds the merged copies held when users have many different sets of denied channels
+     */
+    static final int MAX_MERGED_COPIES = 32;
+    
+    private final Key key;
+    private final Set<String> channelIds;
+    private final ConcurrentMap<Set<String>, Document> mergedCopies = new ConcurrentHashMap<Set<String>, Document>();
+    
+    public MergedFragments(List<Document> fragments) {
+        this(new Key(fragments), fragments);
+    }
+    
+    /**
+     * @param key The key of the fragments, avoids building the key again when it was already used for a cache lookup
+     */
+    public MergedFragments(Key key, List<Document> fragments) {
+        this.key = key;
+        
+        final Set<String> channelIds = new LinkedHashSet<String>();
+        for (final Document fragment : fragments) {
+            final NodeList channels = fragment.getElementsByTagName("channel");
+            for (int i = 0; i < channels.getLength(); i++) {
+                channelIds.add(((Element) channels.item(i)).getAttribute("chanID"));
+            }
+        }
+        this.channelIds = Collections.unmodifiableSet(channelIds);
+    }
+    
+    public Key getKey() {
+        return this.key;
+    }
+    
+    /**
+     * @return The distinct channel ids used in the fragments
+     */
+    public Set<String> getChannelIds() {
+        return this.channelIds;
+    }
+    
+    /**
+     * @return The merged copy of the fragments without the denied channels, null if it has not been stored
+     */
+    public Document getMergedCopy(Set<String> deniedChannelIds) {
+        return this.mergedCopies.get(deniedChannelIds);
+    }
+    
+    /**
+     * Stores the merged copy unless the maximum number of copies is already held. The stored document must
+     * not be modified.
+     */
+    public void setMergedCopy(Set<String> deniedChannelIds, Document mergedCopy) {
+        if (this.mergedCopies.size() < MAX_MERGED_COPIES) {
+            this.mergedCopies.putIfAbsent(deniedChannelIds, mergedCopy);
+        }
+    }
+    
+    /**
+     * Cache key for a sequence of fragment documents, compares the documents by identity
+     */
+    static final class Key {
+        private final List<Document> fragments;
+        private final int hash;
+        
+        public Key(List<Document> fragments) {
+            this.fragments = new ArrayList<Document>(fragments);
+            
+            int hash = 1;
+            for (final Document fragment : this.fragments) {
+                hash = 31 * hash + System.identityHashCode(fragment);
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            if (this.hash != other.hash || this.fragments.size() != other.fragments.size()) {
+                return false;
+            }
+            for (int i = 0; i < this.fragments.size(); i++) {
+                if (this.fragments.get(i) != other.fragments.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -20,8 +20,6 @@
 package org.jasig.portal.layout.dlm;
 
 import java.io.StringWriter;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -67,6 +65,7 @@ import org.jasig.portal.layout.StylesheetUserPreferencesImpl;
 import org.jasig.portal.layout.dao.IStylesheetUserPreferencesDao;
 import org.jasig.portal.layout.om.IStylesheetDescriptor;
 import org.jasig.portal.layout.om.IStylesheetUserPreferences;
+import org.jasig.portal.layout.simple.LayoutStructureRow;
 import org.jasig.portal.layout.simple.RDBMUserLayoutStore;
 import org.jasig.portal.portlet.dao.IPortletEntityDao;
 import org.jasig.portal.portlet.dao.jpa.PortletPreferenceImpl;
@@ -126,6 +125,7 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
     private FragmentActivator fragmentActivator;
 
     private Ehcache fragmentNodeInfoCache;
+    private Ehcache mergedFragmentsCache;
     
     private boolean errorOnMissingPortlet = true;
     private boolean errorOnMissingUser = true;
@@ -189,6 +189,13 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         this.fragmentNodeInfoCache = fragmentNodeInfoCache;
     }
 
+    @Autowired
+    public void setMergedFragmentsCache(
+            @Qualifier("org.jasig.portal.layout.dlm.ILFBuilder.mergedFragments")
+            Ehcache mergedFragmentsCache) {
+        this.mergedFragmentsCache = mergedFragmentsCache;
+    }
+
     @Value("${org.jasig.portal.io.layout.errorOnMissingPortlet}")
     public void setErrorOnMissingPortlet(boolean errorOnMissingPortlet) {
         this.errorOnMissingPortlet = errorOnMissingPortlet;
@@ -1305,7 +1312,7 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
                     + XmlUtilitiesImpl.toString(PLF));
         }
 
-        final Document ILF = ILFBuilder.constructILF(PLF, applicables, person);
+        final Document ILF = ILFBuilder.constructILF(PLF, applicables, person, this.mergedFragmentsCache);
         person.setAttribute(Constants.PLF, PLF);
         final IntegrationResult result = new IntegrationResult();
         PLFIntegrator.mergePLFintoILF(PLF, ILF, result);
@@ -1618,14 +1625,13 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
     }
 
     @Override
-    protected int saveStructure(Node node, PreparedStatement structStmt, PreparedStatement parmStmt)
-            throws SQLException {
+    protected int saveStructure(Node node, Map<Integer, LayoutStructureRow> rows) {
         if (node == null) { // No more
             return 0;
         }
         if (node.getNodeName().equals("parameter")) {
             //parameter, skip it and go on to the next node
-            return this.saveStructure(node.getNextSibling(), structStmt, parmStmt);
+            return this.saveStructure(node.getNextSibling(), rows);
         }
         if (!(node instanceof Element)) {
             return 0;
@@ -1657,59 +1663,42 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
         final boolean isChannel = node.getNodeName().equals("channel");
 
         if (node.hasChildNodes()) {
-            childStructId = this.saveStructure(node.getFirstChild(), structStmt, parmStmt);
+            childStructId = this.saveStructure(node.getFirstChild(), rows);
         }
-        nextStructId = this.saveStructure(node.getNextSibling(), structStmt, parmStmt);
-        structStmt.clearParameters();
-        structStmt.setInt(1, saveStructId);
-        structStmt.setInt(2, nextStructId);
-        structStmt.setInt(3, childStructId);
+        nextStructId = this.saveStructure(node.getNextSibling(), rows);
 
         final String externalId = structure.getAttribute("external_id");
+        final String eID;
         if (externalId != null && externalId.trim().length() > 0) {
-            final Integer eID = new Integer(externalId);
-            structStmt.setInt(4, eID.intValue());
+            eID = new Integer(externalId).toString();
         }
         else {
-            structStmt.setNull(4, java.sql.Types.NUMERIC);
-
+            eID = null;
         }
+        final String name;
         if (isChannel) {
             chanId = Integer.parseInt(node.getAttributes().getNamedItem("chanID").getNodeValue());
-            structStmt.setInt(5, chanId);
-            structStmt.setNull(6, java.sql.Types.VARCHAR);
+            name = null;
         }
         else {
-            structStmt.setNull(5, java.sql.Types.NUMERIC);
-            structStmt.setString(6, structure.getAttribute("name"));
-        }
-        final String structType = structure.getAttribute("type");
-        structStmt.setString(7, structType);
-        structStmt.setString(8, RDBMServices.dbFlag(xmlBool(structure.getAttribute("hidden"))));
-        structStmt.setString(9, RDBMServices.dbFlag(xmlBool(structure.getAttribute("immutable"))));
-        structStmt.setString(10, RDBMServices.dbFlag(xmlBool(structure.getAttribute("unremovable"))));
-        if (LOG.isDebugEnabled()) {
-            LOG.debug(structStmt.toString());
+            name = structure.getAttribute("name");
         }
-        structStmt.executeUpdate();
+        final LayoutStructureRow row = new LayoutStructureRow(saveStructId, nextStructId, childStructId, eID,
+                isChannel ? Integer.valueOf(chanId) : null, name, structure.getAttribute("type"),
+                RDBMServices.dbFlag(xmlBool(structure.getAttribute("hidden"))),
+                RDBMServices.dbFlag(xmlBool(structure.getAttribute("immutable"))),
+                RDBMServices.dbFlag(xmlBool(structure.getAttribute("unremovable"))));
 
         // code to persist extension attributes for dlm
         final NamedNodeMap attribs = node.getAttributes();
         for (int i = 0; i < attribs.getLength(); i++) {
             final Node attrib = attribs.item(i);
-            final String name = attrib.getNodeName();
+            final String attribName = attrib.getNodeName();
 
-            if (name.startsWith(Constants.NS) && !name.equals(Constants.ATT_PLF_ID)
-                    && !name.equals(Constants.ATT_FRAGMENT) && !name.equals(Constants.ATT_PRECEDENCE)) {
+            if (attribName.startsWith(Constants.NS) && !attribName.equals(Constants.ATT_PLF_ID)
+                    && !attribName.equals(Constants.ATT_FRAGMENT) && !attribName.equals(Constants.ATT_PRECEDENCE)) {
                 // a cp extension attribute. Push into param table.
-                parmStmt.clearParameters();
-                parmStmt.setInt(1, saveStructId);
-                parmStmt.setString(2, name);
-                parmStmt.setString(3, attrib.getNodeValue());
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug(parmStmt.toString());
-                }
-                parmStmt.executeUpdate();
+                row.addParameter(attribName, attrib.getNodeValue());
             }
         }
         final NodeList parameters = node.getChildNodes();
@@ -1732,19 +1721,17 @@ public class RDBMDistributedLayoutStore extends RDBMUserLayoutStore {
                         // override only for adhoc or if diff from chan def
                         final IPortletDefinitionParameter cp = channelDef.getParameter(parmName);
                         if (cp == null || !cp.getValue().equals(parmValue)) {
-                            parmStmt.clearParameters();
-                            parmStmt.setInt(1, saveStructId);
-                            parmStmt.setString(2, parmName);
-                            parmStmt.setString(3, parmValue);
-                            if (LOG.isDebugEnabled()) {
-                                LOG.debug(parmStmt);
-                            }
-                            parmStmt.executeUpdate();
+                            row.addParameter(parmName, parmValue);
                         }
                     }
                 }
             }
         }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(row);
+        }
+        rows.put(saveStructId, row);
         return saveStructId;
     }
 
@@ -0,0 +1,153 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.layout.simple;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The values of a UP_LAYOUT_STRUCT row and its UP_LAYOUT_PARAM rows as they are written
+ * when a layout is saved. Used to find the rows that actually changed so only those are
+ * written.
+ *
+ * @version $Revision$
+ */
+public final class LayoutStructureRow {
+    private final int structId;
+    private final int nextStructId;
+    private final int childStructId;
+    private final String externalId;
+    private final Integer chanId;
+    private final String name;
+    private final String type;
+    private final String hidden;
+    private final String immutable;
+    private final String unremovable;
+    private final Map<String, String> parameters = new LinkedHashMap<String, String>();
+
+    /**
+     * @param externalId Numeric external id or null
+     * @param chanId Channel id for channels, null for folders
+     * @param name Folder name, null for channels
+     * @param hidden Database flag as returned by {@link org.jasig.portal.RDBMServices#dbFlag(boolean)}
+     * @param immutable Database flag as returned by {@link org.jasig.portal.RDBMServices#dbFlag(boolean)}
+     * @param unremovable Database flag as returned by {@link org.jasig.portal.RDBMServices#dbFlag(boolean)}
+     */
+    public LayoutStructureRow(int structId, int nextStructId, int childStructId, String externalId, Integer chanId,
+            String name, String type, String hidden, String immutable, String unremovable) {
+        this.structId = structId;
+        this.nextStructId = nextStructId;
+        this.childStructId = childStructId;
+        this.externalId = externalId;
+        this.chanId = chanId;
+        this.name = name;
+        this.type = type;
+        this.hidden = hidden;
+        this.immutable = immutable;
+        this.unremovable = unremovable;
+    }
+
+    public void addParameter(String parameterName, String parameterValue) {
+        this.parameters.put(parameterName, parameterValue);
+    }
+
+    public int getStructId() {
+        return this.structId;
+    }
+    public int getNextStructId() {
+        return this.nextStructId;
+    }
+    public int getChildStructId() {
+        return this.childStructId;
+    }
+    public String getExternalId() {
+        return this.externalId;
+    }
+    public Integer getChanId() {
+        return this.chanId;
+    }
+    public String getName() {
+        return this.name;
+    }
+    public String getType() {
+        return this.type;
+    }
+    public String getHidden() {
+        return this.hidden;
+    }
+    public String getImmutable() {
+        return this.immutable;
+    }
+    public String getUnremovable() {
+        return this.unremovable;
+    }
+    public Map<String, String> getParameters() {
+        return this.parameters;
+    }
+
+    /**
+     * @return true if the UP_LAYOUT_STRUCT columns of both rows have the same values, parameters are not compared.
+     * Null and empty strings are considered equal as some databases store empty strings as null.
+     */
+    public boolean isSameStructure(LayoutStructureRow other) {
+        return this.structId == other.structId
+                && this.nextStructId == other.nextStructId
+                && this.childStructId == other.childStructId
+                && (this.chanId == null ? other.chanId == null : this.chanId.equals(other.chanId))
+                && isSame(this.externalId, other.externalId)
+                && isSame(this.name, other.name)
+                && isSame(this.type, other.type)
+                && isSame(this.hidden, other.hidden)
+                && isSame(this.immutable, other.immutable)
+                && isSame(this.unremovable, other.unremovable);
+    }
+
+    /**
+     * @return true if the parameters of both rows have the same values.
+     */
+    public boolean isSameParameters(LayoutStructureRow other) {
+        if (this.parameters.size() != other.parameters.size()) {
+            return false;
+        }
+        for (final Map.Entry<String, String> parameterEntry : this.parameters.entrySet()) {
+            final String parameterName = parameterEntry.getKey();
+            if (!other.parameters.containsKey(parameterName) || !isSame(parameterEntry.getValue(), other.parameters.get(parameterName))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSame(String a, String b) {
+        return StringUtils.defaultString(a).trim().equals(StringUtils.defaultString(b).trim());
+    }
+
+    @Override
+    public String toString() {
+        return "LayoutStructureRow [structId=" + this.structId + ", nextStructId=" + this.nextStructId
+                + ", childStructId=" + this.childStructId + ", externalId=" + this.externalId + ", chanId="
+                + this.chanId + ", name=" + this.name + ", type=" + this.type + ", hidden=" + this.hidden
+                + ", immutable=" + this.immutable + ", unremovable=" + this.unremovable + ", parameters="
+                + this.parameters + "]";
+    }
+}
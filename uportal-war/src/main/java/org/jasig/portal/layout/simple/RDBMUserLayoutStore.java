@@ -24,12 +24,16 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 import javax.annotation.Resource;
@@ -1131,7 +1135,239 @@ public abstract class RDBMUserLayoutStore implements IUserLayoutStore, Initializ
 
   protected abstract Element getStructure(Document doc, LayoutStructure ls);
 
-  protected abstract int saveStructure (Node node, PreparedStatement structStmt, PreparedStatement parmStmt) throws SQLException;
+  /**
+   * Adds the rows for the node, its children and its following siblings to the rows map.
+   * @return the struct id of the node, 0 if there is no node
+   */
+  protected abstract int saveStructure (Node node, Map<Integer, LayoutStructureRow> rows);
+
+  /**
+   * Loads the UP_LAYOUT_STRUCT and UP_LAYOUT_PARAM rows currently stored for the layout. The struct
+   * ids of parameter rows that have no matching structure row are added to orphanedParameterIds.
+   */
+  protected Map<Integer, LayoutStructureRow> loadStructureRows(Connection con, int userId, int layoutId, Set<Integer> orphanedParameterIds) throws SQLException {
+      final Map<Integer, LayoutStructureRow> rows = new LinkedHashMap<Integer, LayoutStructureRow>();
+
+      PreparedStatement pstmt = con.prepareStatement("SELECT STRUCT_ID, NEXT_STRUCT_ID, CHLD_STRUCT_ID, EXTERNAL_ID, CHAN_ID, NAME, TYPE, HIDDEN, IMMUTABLE, UNREMOVABLE "
+              + "FROM UP_LAYOUT_STRUCT WHERE USER_ID=? AND LAYOUT_ID=?");
+      try {
+          pstmt.setInt(1, userId);
+          pstmt.setInt(2, layoutId);
+          final ResultSet rs = pstmt.executeQuery();
+          try {
+              while (rs.next()) {
+                  final int structId = rs.getInt(1);
+                  final int nextStructId = rs.getInt(2);
+                  final int childStructId = rs.getInt(3);
+                  final String externalId = rs.getString(4);
+                  Integer chanId = rs.getInt(5);
+                  if (rs.wasNull()) {
+                      chanId = null;
+                  }
+                  rows.put(structId, new LayoutStructureRow(structId, nextStructId, childStructId, externalId, chanId,
+                          rs.getString(6), rs.getString(7), rs.getString(8), rs.getString(9), rs.getString(10)));
+              }
+          } finally {
+              rs.close();
+          }
+      } finally {
+          pstmt.close();
+      }
+
+      pstmt = con.prepareStatement("SELECT STRUCT_ID, STRUCT_PARM_NM, STRUCT_PARM_VAL FROM UP_LAYOUT_PARAM WHERE USER_ID=? AND LAYOUT_ID=?");
+      try {
+          pstmt.setInt(1, userId);
+          pstmt.setInt(2, layoutId);
+          final ResultSet rs = pstmt.executeQuery();
+          try {
+              while (rs.next()) {
+                  final int structId = rs.getInt(1);
+                  final LayoutStructureRow row = rows.get(structId);
+                  if (row != null) {
+                      row.addParameter(rs.getString(2), rs.getString(3));
+                  }
+                  else {
+                      orphanedParameterIds.add(structId);
+                  }
+              }
+          } finally {
+              rs.close();
+          }
+      } finally {
+          pstmt.close();
+      }
+
+      return rows;
+  }
+
+  /**
+   * Writes the rows of a layout being saved. Rather than deleting and re-inserting every row of the
+   * layout only the rows that differ from the stored rows are deleted, updated or inserted and each
+   * kind of statement is sent to the database as a single JDBC batch.
+   */
+  protected void saveStructureRows(Connection con, int userId, int layoutId, Map<Integer, LayoutStructureRow> rows) throws SQLException {
+      final Set<Integer> parameterDeleteIds = new LinkedHashSet<Integer>();
+      final Map<Integer, LayoutStructureRow> storedRows = this.loadStructureRows(con, userId, layoutId, parameterDeleteIds);
+
+      final List<Integer> structDeleteIds = new ArrayList<Integer>();
+      for (final LayoutStructureRow storedRow : storedRows.values()) {
+          final Integer structId = storedRow.getStructId();
+          if (!rows.containsKey(structId)) {
+              structDeleteIds.add(structId);
+              if (!storedRow.getParameters().isEmpty()) {
+                  parameterDeleteIds.add(structId);
+              }
+          }
+      }
+
+      final List<LayoutStructureRow> structUpdates = new ArrayList<LayoutStructureRow>();
+      final List<LayoutStructureRow> structInserts = new ArrayList<LayoutStructureRow>();
+      final List<LayoutStructureRow> parameterInserts = new ArrayList<LayoutStructureRow>();
+      for (final LayoutStructureRow row : rows.values()) {
+          final Integer structId = row.getStructId();
+          final LayoutStructureRow storedRow = storedRows.get(structId);
+          if (storedRow == null) {
+              structInserts.add(row);
+              if (!row.getParameters().isEmpty()) {
+                  parameterInserts.add(row);
+              }
+              continue;
+          }
+
+          if (!row.isSameStructure(storedRow)) {
+              structUpdates.add(row);
+          }
+          if (!row.isSameParameters(storedRow)) {
+              if (!storedRow.getParameters().isEmpty()) {
+                  parameterDeleteIds.add(structId);
+              }
+              if (!row.getParameters().isEmpty()) {
+                  parameterInserts.add(row);
+              }
+          }
+      }
+
+      if (log.isDebugEnabled()) {
+          log.debug("Saving layout " + layoutId + " for user " + userId + ": " + rows.size() + " rows, " + 
+                  structInserts.size() + " inserted, " + structUpdates.size() + " updated, " + structDeleteIds.size() + 
+                  " deleted, parameters of " + parameterDeleteIds.size() + " removed and of " + parameterInserts.size() + " added");
+      }
+
+      if (!parameterDeleteIds.isEmpty()) {
+          final PreparedStatement pstmt = con.prepareStatement("DELETE FROM UP_LAYOUT_PARAM WHERE USER_ID=? AND LAYOUT_ID=? AND STRUCT_ID=?");
+          try {
+              for (final Integer structId : parameterDeleteIds) {
+                  pstmt.setInt(1, userId);
+                  pstmt.setInt(2, layoutId);
+                  pstmt.setInt(3, structId);
+                  pstmt.addBatch();
+              }
+              pstmt.executeBatch();
+          } finally {
+              pstmt.close();
+          }
+      }
+
+      if (!structDeleteIds.isEmpty()) {
+          final PreparedStatement pstmt = con.prepareStatement("DELETE FROM UP_LAYOUT_STRUCT WHERE USER_ID=? AND LAYOUT_ID=? AND STRUCT_ID=?");
+          try {
+              for (final Integer structId : structDeleteIds) {
+                  pstmt.setInt(1, userId);
+                  pstmt.setInt(2, layoutId);
+                  pstmt.setInt(3, structId);
+                  pstmt.addBatch();
+              }
+              pstmt.executeBatch();
+          } finally {
+              pstmt.close();
+          }
+      }
+
+      if (!structUpdates.isEmpty()) {
+          final PreparedStatement pstmt = con.prepareStatement("UPDATE UP_LAYOUT_STRUCT SET NEXT_STRUCT_ID=?, CHLD_STRUCT_ID=?, EXTERNAL_ID=?, CHAN_ID=?, "
+                  + "NAME=?, TYPE=?, HIDDEN=?, IMMUTABLE=?, UNREMOVABLE=? WHERE USER_ID=? AND LAYOUT_ID=? AND STRUCT_ID=?");
+          try {
+              for (final LayoutStructureRow row : structUpdates) {
+                  this.setStructureColumns(pstmt, row, 1);
+                  pstmt.setInt(10, userId);
+                  pstmt.setInt(11, layoutId);
+                  pstmt.setInt(12, row.getStructId());
+                  pstmt.addBatch();
+              }
+              pstmt.executeBatch();
+          } finally {
+              pstmt.close();
+          }
+      }
+
+      if (!structInserts.isEmpty()) {
+          final PreparedStatement pstmt = con.prepareStatement("INSERT INTO UP_LAYOUT_STRUCT "
+                  + "(USER_ID, LAYOUT_ID, STRUCT_ID, NEXT_STRUCT_ID, CHLD_STRUCT_ID, EXTERNAL_ID, CHAN_ID, NAME, TYPE, HIDDEN, IMMUTABLE, UNREMOVABLE) "
+                  + "VALUES (?,?,?,?,?,?,?,?,?,?,?,?)");
+          try {
+              for (final LayoutStructureRow row : structInserts) {
+                  pstmt.setInt(1, userId);
+                  pstmt.setInt(2, layoutId);
+                  pstmt.setInt(3, row.getStructId());
+                  this.setStructureColumns(pstmt, row, 4);
+                  pstmt.addBatch();
+              }
+              pstmt.executeBatch();
+          } finally {
+              pstmt.close();
+          }
+      }
+
+      if (!parameterInserts.isEmpty()) {
+          final PreparedStatement pstmt = con.prepareStatement("INSERT INTO UP_LAYOUT_PARAM "
+                  + "(USER_ID, LAYOUT_ID, STRUCT_ID, STRUCT_PARM_NM, STRUCT_PARM_VAL) VALUES (?,?,?,?,?)");
+          try {
+              for (final LayoutStructureRow row : parameterInserts) {
+                  for (final Map.Entry<String, String> parameter : row.getParameters().entrySet()) {
+                      pstmt.setInt(1, userId);
+                      pstmt.setInt(2, layoutId);
+                      pstmt.setInt(3, row.getStructId());
+                      pstmt.setString(4, parameter.getKey());
+                      pstmt.setString(5, parameter.getValue());
+                      pstmt.addBatch();
+                  }
+              }
+              pstmt.executeBatch();
+          } finally {
+              pstmt.close();
+          }
+      }
+  }
+
+  /**
+   * Sets the NEXT_STRUCT_ID through UNREMOVABLE columns of the row starting at the specified parameter index
+   */
+  private void setStructureColumns(PreparedStatement pstmt, LayoutStructureRow row, int index) throws SQLException {
+      pstmt.setInt(index, row.getNextStructId());
+      pstmt.setInt(index + 1, row.getChildStructId());
+      if (row.getExternalId() != null) {
+          pstmt.setInt(index + 2, Integer.parseInt(row.getExternalId()));
+      }
+      else {
+          pstmt.setNull(index + 2, java.sql.Types.NUMERIC);
+      }
+      if (row.getChanId() != null) {
+          pstmt.setInt(index + 3, row.getChanId());
+      }
+      else {
+          pstmt.setNull(index + 3, java.sql.Types.NUMERIC);
+      }
+      if (row.getName() != null) {
+          pstmt.setString(index + 4, row.getName());
+      }
+      else {
+          pstmt.setNull(index + 4, java.sql.Types.VARCHAR);
+      }
+      pstmt.setString(index + 5, row.getType());
+      pstmt.setString(index + 6, row.getHidden());
+      pstmt.setString(index + 7, row.getImmutable());
+      pstmt.setString(index + 8, row.getUnremovable());
+  }
 
   public void setUserBrowserMapping (final IPerson person, final String userAgentArg, final int profileId) {
 	  final int userId = person.getID();
@@ -1220,50 +1456,13 @@ public abstract class RDBMUserLayoutStore implements IUserLayoutStore, Initializ
               firstLayout = true;
           }
 
-          String sql = "DELETE FROM UP_LAYOUT_PARAM WHERE USER_ID=? AND LAYOUT_ID=?";
-          PreparedStatement pstmt = con.prepareStatement(sql);
-          try {
-              pstmt.clearParameters();
-              pstmt.setInt(1, userId);
-              pstmt.setInt(2, layoutId);
-              if (log.isDebugEnabled())
-                  log.debug(sql);
-              pstmt.executeUpdate();
-          } finally {
-              pstmt.close();
-          }
-
-          sql = "DELETE FROM UP_LAYOUT_STRUCT WHERE USER_ID=? AND LAYOUT_ID=?";
-          pstmt = con.prepareStatement(sql);
-          try {
-              pstmt.clearParameters();
-              pstmt.setInt(1, userId);
-              pstmt.setInt(2, layoutId);
-              if (log.isDebugEnabled())
-                log.debug(sql);
-              pstmt.executeUpdate();
-          } finally {
-              pstmt.close();
-          }
-
-          PreparedStatement structStmt = con.prepareStatement("INSERT INTO UP_LAYOUT_STRUCT "
-                  + "(USER_ID, LAYOUT_ID, STRUCT_ID, NEXT_STRUCT_ID, CHLD_STRUCT_ID,EXTERNAL_ID,CHAN_ID,NAME,TYPE,HIDDEN,IMMUTABLE,UNREMOVABLE) "
-                  + "VALUES (" + userId + "," + layoutId + ",?,?,?,?,?,?,?,?,?,?)");
-
-          PreparedStatement parmStmt = con.prepareStatement("INSERT INTO UP_LAYOUT_PARAM "
-                  + "(USER_ID, LAYOUT_ID, STRUCT_ID, STRUCT_PARM_NM, STRUCT_PARM_VAL) " + "VALUES (" + userId + "," + layoutId + ",?,?,?)");
-
-          int firstStructId;
-          try {
-              firstStructId = saveStructure(layoutXML.getFirstChild().getFirstChild(), structStmt, parmStmt);
-          } finally {
-              structStmt.close();
-              parmStmt.close();
-          }
+          final Map<Integer, LayoutStructureRow> rows = new LinkedHashMap<Integer, LayoutStructureRow>();
+          final int firstStructId = saveStructure(layoutXML.getFirstChild().getFirstChild(), rows);
+          saveStructureRows(con, userId, layoutId, rows);
 
           //Check to see if the user has a matching layout
-          sql = "SELECT * FROM UP_USER_LAYOUT WHERE USER_ID=? AND LAYOUT_ID=?";
-          pstmt = con.prepareStatement(sql);
+          String sql = "SELECT * FROM UP_USER_LAYOUT WHERE USER_ID=? AND LAYOUT_ID=?";
+          PreparedStatement pstmt = con.prepareStatement(sql);
           try {
               pstmt.clearParameters();
               pstmt.setInt(1, userId);
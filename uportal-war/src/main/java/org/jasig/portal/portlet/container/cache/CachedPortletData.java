@@ -21,22 +21,38 @@
  */
 package org.jasig.portal.portlet.container.cache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.portlet.CacheControl;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.time.DateUtils;
 
 /**
  * Java bean to represent the data cached for a portlet request via 
  * {@link CacheControl}s.
  * 
+ * The body of the cached output can be stored GZIP compressed, see {@link #compress(int)}. The
+ * byte and string data accessors transparently decompress the body.
+ * 
+ * Identical bodies can be shared between instances via {@link #shareBody(ConcurrentMap)}, the shared
+ * bodies are keyed by {@link #getBodyETag()}.
+ * 
  * @author Nicholas Blair, npblair@wisc.edu
  * @version $Id$
  */
@@ -48,8 +64,18 @@ public class CachedPortletData implements Serializable {
 	private int expirationTimeSeconds;
 	private int cacheConfigurationMaxTTL;
 	
+	private static final Charset STRING_DATA_CHARSET = Charset.forName("UTF-8");
+
+	private String portletFname;
 	private byte[] byteData;
+	private int byteDataLength = -1;
 	private String stringData;
+	private byte[] compressedData;
+	private boolean compressedStringData;
+	private String bodyETag;
+	
+	private boolean publicScope;
+	private transient long revalidationStarted;
 	
 	private Integer status;
 	private String statusMessage;
@@ -91,10 +117,25 @@ public class CachedPortletData implements Serializable {
 	public void setExpirationTimeSeconds(int expirationTimeSeconds) {
 		this.expirationTimeSeconds = expirationTimeSeconds;
 	}
+	/**
+	 * @return the fname of the portlet that generated the data
+	 */
+	public String getPortletFname() {
+		return portletFname;
+	}
+	/**
+	 * @param portletFname the fname of the portlet that generated the data
+	 */
+	public void setPortletFname(String portletFname) {
+		this.portletFname = portletFname;
+	}
 	/**
 	 * @return the byteData
 	 */
 	public byte[] getByteData() {
+		if (compressedData != null && !compressedStringData) {
+			return decompress(compressedData);
+		}
 		return byteData;
 	}
 	/**
@@ -102,11 +143,51 @@ public class CachedPortletData implements Serializable {
 	 */
 	public void setByteData(byte[] byteData) {
 		this.byteData = byteData;
+		this.byteDataLength = byteData != null ? byteData.length : -1;
+		this.bodyETag = null;
+		if (!compressedStringData) {
+			this.compressedData = null;
+		}
+	}
+	/**
+	 * @return The uncompressed length of the byte data, -1 if there is no byte data
+	 */
+	public int getByteDataLength() {
+		if (byteData == null && (compressedData == null || compressedStringData)) {
+			return -1;
+		}
+		return byteDataLength;
+	}
+	/**
+	 * Write the byte data to the stream. Uncompressed data is written with a single write of the stored
+	 * array, compressed data is decompressed directly into the stream.
+	 * 
+	 * @return false if there is no byte data
+	 */
+	public boolean writeByteData(OutputStream outputStream) throws IOException {
+		if (compressedData != null && !compressedStringData) {
+			final GZIPInputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(compressedData));
+			try {
+				IOUtils.copy(gzipStream, outputStream);
+			}
+			finally {
+				IOUtils.closeQuietly(gzipStream);
+			}
+			return true;
+		}
+		if (byteData != null) {
+			outputStream.write(byteData);
+			return true;
+		}
+		return false;
 	}
 	/**
 	 * @return the stringData
 	 */
 	public String getStringData() {
+		if (compressedData != null && compressedStringData) {
+			return new String(decompress(compressedData), STRING_DATA_CHARSET);
+		}
 		return stringData;
 	}
 	/**
@@ -114,6 +195,182 @@ public class CachedPortletData implements Serializable {
 	 */
 	public void setStringData(String stringData) {
 		this.stringData = stringData;
+		this.bodyETag = null;
+		if (compressedStringData) {
+			this.compressedData = null;
+			this.compressedStringData = false;
+		}
+	}
+	/**
+	 * @return true if the body is stored compressed
+	 */
+	public boolean isCompressed() {
+		return compressedData != null;
+	}
+	/**
+	 * GZIP compress the body if it is at least minimumSize bytes (or chars for string data) long. Should be called
+	 * before the data is placed in a cache as this method is not thread-safe.
+	 * 
+	 * @param minimumSize The smallest body that will be compressed
+	 */
+	public void compress(int minimumSize) {
+		if (compressedData != null) {
+			return;
+		}
+		
+		if (byteData != null && byteData.length >= minimumSize) {
+			compressedData = compress(byteData);
+			compressedStringData = false;
+			byteData = null;
+			bodyETag = null;
+		}
+		else if (stringData != null && stringData.length() >= minimumSize) {
+			compressedData = compress(stringData.getBytes(STRING_DATA_CHARSET));
+			compressedStringData = true;
+			stringData = null;
+			bodyETag = null;
+		}
+	}
+	/**
+	 * @return true if the data was cached in the public scope
+	 */
+	public boolean isPublicScope() {
+		return publicScope;
+	}
+	/**
+	 * @param publicScope true if the data is cached in the public scope
+	 */
+	public void setPublicScope(boolean publicScope) {
+		this.publicScope = publicScope;
+	}
+	/**
+	 * @return A strong entity tag computed from the stored form of the body, null if there is no body
+	 */
+	public String getBodyETag() {
+		if (bodyETag == null) {
+			if (compressedData != null) {
+				bodyETag = (compressedStringData ? "zs-" : "zb-") + DigestUtils.shaHex(compressedData);
+			}
+			else if (byteData != null) {
+				bodyETag = "b-" + DigestUtils.shaHex(byteData);
+			}
+			else if (stringData != null) {
+				bodyETag = "s-" + DigestUtils.shaHex(stringData.getBytes(STRING_DATA_CHARSET));
+			}
+		}
+		return bodyETag;
+	}
+	/**
+	 * Replace the stored body with an identical body already in sharedBodies, or add this body to
+	 * sharedBodies if there is none. Should be called after {@link #compress(int)} and before the data
+	 * is placed in a cache as this method is not thread-safe.
+	 * 
+	 * @param sharedBodies Stored bodies keyed by {@link #getBodyETag()}
+	 * @return true if an existing body was reused
+	 */
+	public boolean shareBody(ConcurrentMap<String, Object> sharedBodies) {
+		final String key = this.getBodyETag();
+		if (key == null) {
+			return false;
+		}
+		
+		final Object body;
+		if (compressedData != null) {
+			body = compressedData;
+		}
+		else if (byteData != null) {
+			body = byteData;
+		}
+		else {
+			body = stringData;
+		}
+		
+		final Object sharedBody = sharedBodies.putIfAbsent(key, body);
+		if (sharedBody == null || sharedBody == body) {
+			return false;
+		}
+		
+		//The etag includes the storage form so the shared body is always the same type as the local one
+		if (compressedData != null) {
+			compressedData = (byte[]) sharedBody;
+		}
+		else if (byteData != null) {
+			byteData = (byte[]) sharedBody;
+		}
+		else {
+			stringData = (String) sharedBody;
+		}
+		return true;
+	}
+	/**
+	 * Mark the start of a refresh of this expired data. Only one caller at a time is allowed to refresh,
+	 * a refresh that has not completed within timeoutMillis is assumed to have failed.
+	 * 
+	 * @return true if the caller should refresh the data, false if another refresh is already in progress
+	 */
+	public synchronized boolean startRevalidation(long timeoutMillis) {
+		final long now = System.currentTimeMillis();
+		if (revalidationStarted != 0 && now - revalidationStarted < timeoutMillis) {
+			return false;
+		}
+		
+		revalidationStarted = now;
+		return true;
+	}
+	/**
+	 * @return The number of seconds since this data expired, 0 if it has not expired or never expires
+	 */
+	public int getSecondsExpired() {
+		if (expirationTimeSeconds <= 0) {
+			return 0;
+		}
+		
+		final long expiresAt = timeStored.getTime() + expirationTimeSeconds * 1000L;
+		final long secondsExpired = (System.currentTimeMillis() - expiresAt) / 1000;
+		return secondsExpired > 0 ? (int) secondsExpired : 0;
+	}
+	/**
+	 * @return The approximate number of bytes used to store the body
+	 */
+	public int getStoredSize() {
+		if (compressedData != null) {
+			return compressedData.length;
+		}
+		if (byteData != null) {
+			return byteData.length;
+		}
+		if (stringData != null) {
+			return stringData.length() * 2;
+		}
+		return 0;
+	}
+	
+	private static byte[] compress(byte[] data) {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 4);
+		try {
+			final GZIPOutputStream gzipStream = new GZIPOutputStream(buffer);
+			gzipStream.write(data);
+			gzipStream.close();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("IOException while compressing in-memory data", e);
+		}
+		return buffer.toByteArray();
+	}
+	
+	private static byte[] decompress(byte[] data) {
+		try {
+			final GZIPInputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(data));
+			try {
+				return IOUtils.toByteArray(gzipStream);
+			}
+			finally {
+				IOUtils.closeQuietly(gzipStream);
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("IOException while decompressing in-memory data", e);
+		}
 	}
 	/**
 	 * @return the contentType
@@ -227,6 +484,7 @@ public class CachedPortletData implements Serializable {
 	public synchronized void updateExpirationTime(int requestedExpirationTimeSeconds) { 
 		this.expirationTimeSeconds = Math.min(requestedExpirationTimeSeconds, getCacheConfigurationMaxTTL());
 		this.timeStored = new Date();
+		this.revalidationStarted = 0;
 	}
 	/**
 	 * 
@@ -250,12 +508,13 @@ public class CachedPortletData implements Serializable {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + Arrays.hashCode(byteData);
+		result = prime * result + Arrays.hashCode(getByteData());
 		result = prime * result
 				+ ((contentType == null) ? 0 : contentType.hashCode());
 		result = prime * result + ((etag == null) ? 0 : etag.hashCode());
 		result = prime * result + expirationTimeSeconds;
 		result = prime * result + ((headers == null) ? 0 : headers.hashCode());
+		final String stringData = getStringData();
 		result = prime * result
 				+ ((stringData == null) ? 0 : stringData.hashCode());
 		result = prime * result
@@ -271,7 +530,7 @@ public class CachedPortletData implements Serializable {
 		if (getClass() != obj.getClass())
 			return false;
 		CachedPortletData other = (CachedPortletData) obj;
-		if (!Arrays.equals(byteData, other.byteData))
+		if (!Arrays.equals(getByteData(), other.getByteData()))
 			return false;
 		if (contentType == null) {
 			if (other.contentType != null)
@@ -290,10 +549,12 @@ public class CachedPortletData implements Serializable {
 				return false;
 		} else if (!headers.equals(other.headers))
 			return false;
+		final String stringData = getStringData();
+		final String otherStringData = other.getStringData();
 		if (stringData == null) {
-			if (other.stringData != null)
+			if (otherStringData != null)
 				return false;
-		} else if (!stringData.equals(other.stringData))
+		} else if (!stringData.equals(otherStringData))
 			return false;
 		if (timeStored == null) {
 			if (other.timeStored != null)
@@ -304,9 +565,10 @@ public class CachedPortletData implements Serializable {
 	}
 	@Override
 	public String toString() {
-		return "CachedPortletData [etag=" + etag + ", timeStored=" + timeStored
+		return "CachedPortletData [portletFname=" + portletFname + ", etag=" + etag + ", timeStored=" + timeStored
 				+ ", expirationTimeSeconds=" + expirationTimeSeconds
-				+ ", contentType=" + contentType + ", headers=" + headers + "]";
+				+ ", contentType=" + contentType + ", storedSize=" + getStoredSize()
+				+ ", compressed=" + isCompressed() + ", headers=" + headers + "]";
 	}
 	
 	
@@ -21,6 +21,7 @@ package org.jasig.portal.portlet.container.cache;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -38,27 +39,31 @@ import org.jasig.portal.utils.web.PortletHttpServletResponseWrapper;
  * @version $Revision$
  */
 public class CachingPortletHttpServletResponseWrapper extends PortletHttpServletResponseWrapper {
+    private static final String DEFAULT_CHARACTER_ENCODING = "ISO-8859-1";
+    
     private final CachedPortletData cachedPortletData;
     private final int cacheThresholdSize;
-    private LimitedBufferOutputStream cachingOutputStream;
-    private LimitedBufferStringWriter cachingWriter;
+    private final CaptureBufferPool captureBufferPool;
+    private CaptureOutputStream cachingOutputStream;
+    private CaptureWriter cachingWriter;
     
     private boolean badStatusCode = false;
     private ServletOutputStream outputStream;
     private PrintWriter printWriter;
     
-    public CachingPortletHttpServletResponseWrapper(HttpServletResponse httpServletResponse, int cacheThresholdSize) {
+    public CachingPortletHttpServletResponseWrapper(HttpServletResponse httpServletResponse, int cacheThresholdSize, CaptureBufferPool captureBufferPool) {
         super(httpServletResponse);
         
         this.cachedPortletData = new CachedPortletData();
         this.cacheThresholdSize = cacheThresholdSize;
+        this.captureBufferPool = captureBufferPool;
     }
 
     @Override
     public ServletOutputStream getOutputStream() throws IOException {
         ServletOutputStream os = this.outputStream;
         if (os == null) {
-            this.cachingOutputStream = new LimitedBufferOutputStream(this.cacheThresholdSize);
+            this.cachingOutputStream = this.captureBufferPool.createOutputStream(this.cacheThresholdSize);
             os = new TeeServletOutputStream(super.getOutputStream(), this.cachingOutputStream);
             this.outputStream = os;
         }
@@ -69,7 +74,7 @@ public class CachingPortletHttpServletResponseWrapper extends PortletHttpServlet
     public PrintWriter getWriter() throws IOException {
         PrintWriter pw = this.printWriter;
         if (pw == null) {
-            this.cachingWriter = new LimitedBufferStringWriter(cacheThresholdSize);
+            this.cachingWriter = this.captureBufferPool.createWriter(this.cacheThresholdSize);
             pw = new PrintWriter(new TeeWriter(super.getWriter(), this.cachingWriter));
             this.printWriter = pw;
         }
@@ -205,10 +210,39 @@ public class CachingPortletHttpServletResponseWrapper extends PortletHttpServlet
         }
         
         if (this.cachingWriter != null) {
-            final StringBuffer buffer = this.cachingWriter.getBuffer();
-            this.cachedPortletData.setStringData(buffer.toString());
+            //Store the written characters encoded the same way the writer encoded them so replay doesn't need to re-encode
+            final String capturedContent = this.cachingWriter.getCapturedContent();
+            if (capturedContent != null) {
+                String characterEncoding = this.getCharacterEncoding();
+                if (characterEncoding == null) {
+                    characterEncoding = DEFAULT_CHARACTER_ENCODING;
+                }
+                
+                try {
+                    this.cachedPortletData.setByteData(capturedContent.getBytes(characterEncoding));
+                    if (this.cachedPortletData.getCharacterEncoding() == null) {
+                        this.cachedPortletData.setCharacterEncoding(characterEncoding);
+                    }
+                }
+                catch (UnsupportedEncodingException e) {
+                    this.cachedPortletData.setStringData(capturedContent);
+                }
+            }
         }
 
         return this.cachedPortletData;
     }
+    
+    /**
+     * Returns the capture buffers to the {@link CaptureBufferPool}, must be called once the response
+     * is complete and {@link #getCachedPortletData()} is no longer needed.
+     */
+    public void releaseCaptureBuffers() {
+        if (this.cachingOutputStream != null) {
+            this.cachingOutputStream.release();
+        }
+        if (this.cachingWriter != null) {
+            this.cachingWriter.release();
+        }
+    }
 }
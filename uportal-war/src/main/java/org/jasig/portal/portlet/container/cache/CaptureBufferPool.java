@@ -0,0 +1,210 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.container.cache;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Source of the buffers used to capture portlet output for caching. Captured output is stored in
+ * fixed size segments that are recycled through a per-thread pool once the capture is complete so a
+ * capture only holds as much memory as the portlet actually wrote. Exposed via JMX as
+ * uPortal:section=Framework,name=CaptureBufferPool
+ * 
+ * @version $Revision$
+ */
+@Component("captureBufferPool")
+public class CaptureBufferPool {
+    /**
+     * Size in bytes of each byte segment
+     */
+    public static final int BYTE_SEGMENT_SIZE = 4096;
+    /**
+     * Size in chars of each char segment, 4 KB like the byte segments
+     */
+    public static final int CHAR_SEGMENT_SIZE = 2048;
+    
+    private final ThreadLocal<Deque<byte[]>> byteSegments = new ThreadLocal<Deque<byte[]>>() {
+        @Override
+        protected Deque<byte[]> initialValue() {
+            return new ArrayDeque<byte[]>();
+        }
+    };
+    private final ThreadLocal<Deque<char[]>> charSegments = new ThreadLocal<Deque<char[]>>() {
+        @Override
+        protected Deque<char[]> initialValue() {
+            return new ArrayDeque<char[]>();
+        }
+    };
+    
+    private final AtomicLong segmentsAllocated = new AtomicLong();
+    private final AtomicLong segmentsReused = new AtomicLong();
+    private final AtomicLong segmentsDiscarded = new AtomicLong();
+    private final AtomicLong captureCount = new AtomicLong();
+    private final AtomicLong thresholdExceededCount = new AtomicLong();
+    private final AtomicLong capturedBytes = new AtomicLong();
+    
+    private int maxPooledSegments = 32;
+    
+    /**
+     * @param maxPooledSegments Maximum number of segments of each type retained for reuse by each thread
+     */
+    @Value("${org.jasig.portal.portlet.container.cache.CaptureBufferPool.maxPooledSegments:32}")
+    public void setMaxPooledSegments(int maxPooledSegments) {
+        this.maxPooledSegments = maxPooledSegments;
+    }
+    
+    /**
+     * @param threshold Maximum number of bytes to capture
+     */
+    public CaptureOutputStream createOutputStream(int threshold) {
+        return new CaptureOutputStream(this, threshold);
+    }
+    
+    /**
+     * @param threshold Maximum number of chars to capture
+     */
+    public CaptureWriter createWriter(int threshold) {
+        return new CaptureWriter(this, threshold);
+    }
+    
+    byte[] borrowByteSegment() {
+        final byte[] segment = this.byteSegments.get().poll();
+        if (segment != null) {
+            this.segmentsReused.incrementAndGet();
+            return segment;
+        }
+        
+        this.segmentsAllocated.incrementAndGet();
+        return new byte[BYTE_SEGMENT_SIZE];
+    }
+    
+    void returnByteSegments(List<byte[]> segments) {
+        final Deque<byte[]> pooledSegments = this.byteSegments.get();
+        for (final byte[] segment : segments) {
+            if (pooledSegments.size() < this.maxPooledSegments) {
+                pooledSegments.push(segment);
+            }
+            else {
+                this.segmentsDiscarded.incrementAndGet();
+            }
+        }
+    }
+    
+    char[] borrowCharSegment() {
+        final char[] segment = this.charSegments.get().poll();
+        if (segment != null) {
+            this.segmentsReused.incrementAndGet();
+            return segment;
+        }
+        
+        this.segmentsAllocated.incrementAndGet();
+        return new char[CHAR_SEGMENT_SIZE];
+    }
+    
+    void returnCharSegments(List<char[]> segments) {
+        final Deque<char[]> pooledSegments = this.charSegments.get();
+        for (final char[] segment : segments) {
+            if (pooledSegments.size() < this.maxPooledSegments) {
+                pooledSegments.push(segment);
+            }
+            else {
+                this.segmentsDiscarded.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * @param size Number of bytes or chars captured
+     * @param thresholdExceeded If the capture was abandoned because the output exceeded the threshold
+     */
+    void recordCapture(int size, boolean thresholdExceeded) {
+        this.captureCount.incrementAndGet();
+        if (thresholdExceeded) {
+            this.thresholdExceededCount.incrementAndGet();
+        }
+        else {
+            this.capturedBytes.addAndGet(size);
+        }
+    }
+
+    /**
+     * @return Number of segments that have been created because the pool of the borrowing thread was empty
+     */
+    public long getSegmentsAllocated() {
+        return this.segmentsAllocated.get();
+    }
+    
+    /**
+     * @return Number of bytes allocated for segments, each segment is 4 KB
+     */
+    public long getBytesAllocated() {
+        return this.segmentsAllocated.get() * BYTE_SEGMENT_SIZE;
+    }
+
+    /**
+     * @return Number of segment borrows served from the pool
+     */
+    public long getSegmentsReused() {
+        return this.segmentsReused.get();
+    }
+
+    /**
+     * @return Number of returned segments dropped because the pool of the returning thread was full
+     */
+    public long getSegmentsDiscarded() {
+        return this.segmentsDiscarded.get();
+    }
+    
+    /**
+     * @return Fraction of segment borrows served from the pool
+     */
+    public double getReuseRatio() {
+        final long reused = this.segmentsReused.get();
+        final long total = reused + this.segmentsAllocated.get();
+        return total == 0 ? 0 : (double)reused / total;
+    }
+
+    /**
+     * @return Number of completed captures
+     */
+    public long getCaptureCount() {
+        return this.captureCount.get();
+    }
+
+    /**
+     * @return Number of captures abandoned because the output exceeded the threshold
+     */
+    public long getThresholdExceededCount() {
+        return this.thresholdExceededCount.get();
+    }
+
+    /**
+     * @return Total size of the output captured by captures that did not exceed the threshold
+     */
+    public long getCapturedBytes() {
+        return this.capturedBytes.get();
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.container.cache;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link OutputStream} that captures up to a threshold number of bytes in segments borrowed from a
+ * {@link CaptureBufferPool}. Once the threshold is exceeded the captured content is discarded and further
+ * writes are ignored. {@link #release()} must be called once the captured content is no longer needed
+ * to return the segments to the pool.
+ * 
+ * Not thread-safe.
+ * 
+ * @version $Revision$
+ */
+public class CaptureOutputStream extends OutputStream {
+    private final CaptureBufferPool captureBufferPool;
+    private final int threshold;
+    private final List<byte[]> segments = new ArrayList<byte[]>();
+    private byte[] segment;
+    private int segmentPosition;
+    private int size;
+    private boolean limitExceeded = false;
+    private boolean released = false;
+
+    CaptureOutputStream(CaptureBufferPool captureBufferPool, int threshold) {
+        this.captureBufferPool = captureBufferPool;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) {
+        if (!this.reserve(1)) {
+            return;
+        }
+        
+        this.nextSegment();
+        this.segment[this.segmentPosition++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (!this.reserve(len)) {
+            return;
+        }
+        
+        while (len > 0) {
+            this.nextSegment();
+            final int length = Math.min(len, this.segment.length - this.segmentPosition);
+            System.arraycopy(b, off, this.segment, this.segmentPosition, length);
+            this.segmentPosition += length;
+            off += length;
+            len -= length;
+        }
+    }
+    
+    /**
+     * @return true if the content exceeded the threshold and was discarded
+     */
+    public boolean isLimitExceeded() {
+        return this.limitExceeded;
+    }
+    
+    /**
+     * @return Number of bytes captured
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * @return An exactly sized copy of the captured content, null if the threshold was exceeded
+     */
+    public byte[] getCapturedContent() {
+        if (this.limitExceeded) {
+            return null;
+        }
+        if (this.released) {
+            throw new IllegalStateException("The captured content has already been released");
+        }
+        
+        final byte[] content = new byte[this.size];
+        int position = 0;
+        for (final byte[] s : this.segments) {
+            final int length = Math.min(s.length, this.size - position);
+            System.arraycopy(s, 0, content, position, length);
+            position += length;
+        }
+        return content;
+    }
+    
+    /**
+     * Returns the segments to the pool, the captured content is no longer available after this
+     * is called.
+     */
+    public void release() {
+        if (this.released) {
+            return;
+        }
+        
+        this.released = true;
+        this.captureBufferPool.recordCapture(this.size, this.limitExceeded);
+        this.releaseSegments();
+    }
+    
+    private boolean reserve(int len) {
+        if (this.limitExceeded || this.released) {
+            return false;
+        }
+        
+        if (this.size + len > this.threshold) {
+            this.limitExceeded = true;
+            this.releaseSegments();
+            return false;
+        }
+        
+        this.size += len;
+        return true;
+    }
+    
+    private void nextSegment() {
+        if (this.segment == null || this.segmentPosition == this.segment.length) {
+            this.segment = this.captureBufferPool.borrowByteSegment();
+            this.segments.add(this.segment);
+            this.segmentPosition = 0;
+        }
+    }
+    
+    private void releaseSegments() {
+        this.captureBufferPool.returnByteSegments(this.segments);
+        this.segments.clear();
+        this.segment = null;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.container.cache;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Writer} that captures up to a threshold number of chars in segments borrowed from a
+ * {@link CaptureBufferPool}. Once the threshold is exceeded the captured content is discarded and further
+ * writes are ignored. {@link #release()} must be called once the captured content is no longer needed
+ * to return the segments to the pool.
+ * 
+ * Not thread-safe.
+ * 
+ * @version $Revision$
+ */
+public class CaptureWriter extends Writer {
+    private final CaptureBufferPool captureBufferPool;
+    private final int threshold;
+    private final List<char[]> segments = new ArrayList<char[]>();
+    private char[] segment;
+    private int segmentPosition;
+    private int size;
+    private boolean limitExceeded = false;
+    private boolean released = false;
+
+    CaptureWriter(CaptureBufferPool captureBufferPool, int threshold) {
+        this.captureBufferPool = captureBufferPool;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int c) {
+        if (!this.reserve(1)) {
+            return;
+        }
+        
+        this.nextSegment();
+        this.segment[this.segmentPosition++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        if (!this.reserve(len)) {
+            return;
+        }
+        
+        while (len > 0) {
+            this.nextSegment();
+            final int length = Math.min(len, this.segment.length - this.segmentPosition);
+            System.arraycopy(cbuf, off, this.segment, this.segmentPosition, length);
+            this.segmentPosition += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        if (!this.reserve(len)) {
+            return;
+        }
+        
+        while (len > 0) {
+            this.nextSegment();
+            final int length = Math.min(len, this.segment.length - this.segmentPosition);
+            str.getChars(off, off + length, this.segment, this.segmentPosition);
+            this.segmentPosition += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+    
+    /**
+     * @return true if the content exceeded the threshold and was discarded
+     */
+    public boolean isLimitExceeded() {
+        return this.limitExceeded;
+    }
+    
+    /**
+     * @return Number of chars captured
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * @return The captured content, null if the threshold was exceeded
+     */
+    public String getCapturedContent() {
+        if (this.limitExceeded) {
+            return null;
+        }
+        if (this.released) {
+            throw new IllegalStateException("The captured content has already been released");
+        }
+        
+        final StringBuilder content = new StringBuilder(this.size);
+        int position = 0;
+        for (final char[] s : this.segments) {
+            final int length = Math.min(s.length, this.size - position);
+            content.append(s, 0, length);
+            position += length;
+        }
+        return content.toString();
+    }
+    
+    /**
+     * Returns the segments to the pool, the captured content is no longer available after this
+     * is called.
+     */
+    public void release() {
+        if (this.released) {
+            return;
+        }
+        
+        this.released = true;
+        this.captureBufferPool.recordCapture(this.size, this.limitExceeded);
+        this.releaseSegments();
+    }
+    
+    private boolean reserve(int len) {
+        if (this.limitExceeded || this.released) {
+            return false;
+        }
+        
+        if (this.size + len > this.threshold) {
+            this.limitExceeded = true;
+            this.releaseSegments();
+            return false;
+        }
+        
+        this.size += len;
+        return true;
+    }
+    
+    private void nextSegment() {
+        if (this.segment == null || this.segmentPosition == this.segment.length) {
+            this.segment = this.captureBufferPool.borrowCharSegment();
+            this.segments.add(this.segment);
+            this.segmentPosition = 0;
+        }
+    }
+    
+    private void releaseSegments() {
+        this.captureBufferPool.returnCharSegments(this.segments);
+        this.segments.clear();
+        this.segment = null;
+    }
+}
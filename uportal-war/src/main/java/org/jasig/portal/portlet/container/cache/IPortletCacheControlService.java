@@ -77,6 +77,16 @@ public interface IPortletCacheControlService {
 	 */
 	CachedPortletData getCachedPortletResourceOutput(IPortletWindowId portletWindowId, HttpServletRequest httpRequest);
 	
+	/**
+	 * Determine if expired {@link CachedPortletData} should be replayed instead of re-rendering the portlet.
+	 * Only one caller is told to re-render an expired entry, concurrent callers are served the stale content
+	 * until the entry is refreshed or the stale window has passed.
+	 * 
+	 * @param cachedPortletData expired cached data
+	 * @return true if the stale content should be replayed, false if the caller should re-render the portlet
+	 */
+	boolean shouldServeStaleContent(CachedPortletData cachedPortletData);
+	
 	/**
 	 * This method checks the {@link CacheControl} to determine if the output should be captured
 	 * for caching.
@@ -30,7 +30,9 @@ import org.apache.commons.io.output.ThresholdingOutputStream;
  * 
  * @author Nicholas Blair
  * @version $Id$
+ * @deprecated Use {@link CaptureBufferPool#createOutputStream(int)}, captures into pooled segments instead of a single threshold sized buffer
  */
+@Deprecated
 public class LimitedBufferOutputStream extends ThresholdingOutputStream {
 
 	private ByteArrayOutputStream stream;
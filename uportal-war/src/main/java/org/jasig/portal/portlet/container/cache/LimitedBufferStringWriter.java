@@ -26,7 +26,9 @@ import java.io.StringWriter;
  * 
  * @author Nicholas Blair
  * @version $Id$
+ * @deprecated Use {@link CaptureBufferPool#createWriter(int)}, captures into pooled segments instead of a single threshold sized buffer
  */
+@Deprecated
 public class LimitedBufferStringWriter extends StringWriter {
 
 	private final long thresholdBytes;
@@ -26,21 +26,27 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.portlet.CacheControl;
 import javax.portlet.MimeResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.sf.ehcache.CacheException;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.event.CacheEventListener;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.pluto.container.om.portlet.PortletDefinition;
 import org.jasig.portal.portlet.container.CacheControlImpl;
+import org.jasig.portal.portlet.om.IPortletDefinition;
 import org.jasig.portal.portlet.om.IPortletDefinitionId;
 import org.jasig.portal.portlet.om.IPortletEntity;
 import org.jasig.portal.portlet.om.IPortletEntityId;
@@ -49,6 +55,7 @@ import org.jasig.portal.portlet.om.IPortletWindowId;
 import org.jasig.portal.portlet.registry.IPortletDefinitionRegistry;
 import org.jasig.portal.portlet.registry.IPortletEntityRegistry;
 import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
+import org.jasig.portal.utils.ConcurrentMapUtils;
 import org.jasig.portal.utils.web.PortalWebUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -56,10 +63,20 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.support.RequestContextUtils;
 
+import com.google.common.collect.MapMaker;
+
 /**
  * Default implementation of {@link IPortletCacheControlService}.
  * {@link CacheControl}s are stored in a {@link Map} stored as a {@link HttpServletRequest} attribute.
  * 
+ * Cached bodies larger than {@link #setCompressionThreshold(int)} are stored GZIP compressed. Bytes
+ * stored per portlet are tracked in {@link PortletCacheStatistics} and new output is not cached once a
+ * portlet has used {@link #setMaxBytesPerPortlet(long)} bytes across the output caches.
+ * 
+ * Identical public scope bodies are stored once and shared between entries by their body ETag. Expired
+ * public scope entries are served for up to {@link #setMaxStaleSeconds(int)} while a single request
+ * re-renders the portlet, see {@link #shouldServeStaleContent(CachedPortletData)}.
+ * 
  * @author Nicholas Blair
  * @version $Id$
  */
@@ -84,6 +101,19 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
     
     // default to 100 KB
     private int cacheSizeThreshold = 102400;
+    // default to 4 KB
+    private int compressionThreshold = 4096;
+    // default to no limit
+    private long maxBytesPerPortlet = 0;
+    // default to 1 minute
+    private int maxStaleSeconds = 60;
+    // default to 30 seconds
+    private long revalidationTimeout = 30000;
+    private PortletCacheStatistics portletCacheStatistics = new PortletCacheStatistics();
+    // bodies are only kept while a cached entry references them
+    private final ConcurrentMap<String, Object> sharedPublicBodies = new MapMaker().weakValues().makeMap();
+    private final StoredBytesCacheEventListener storedBytesListener = new StoredBytesCacheEventListener();
+    
     /**
 	 * @param privateScopePortletRenderOutputCache the privateScopePortletRenderOutputCache to set
 	 */
@@ -91,6 +121,7 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
     @Qualifier("org.jasig.portal.portlet.container.cache.PortletCacheControlServiceImpl.privateScopePortletRenderOutputCache")
 	public void setPrivateScopePortletRenderOutputCache(Ehcache privateScopePortletRenderOutputCache) {
 		this.privateScopePortletRenderOutputCache = privateScopePortletRenderOutputCache;
+		registerStoredBytesListener(privateScopePortletRenderOutputCache);
 	}
 	/**
 	 * @param publicScopePortletRenderOutputCache the publicScopePortletRenderOutputCache to set
@@ -99,6 +130,7 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
     @Qualifier("org.jasig.portal.portlet.container.cache.PortletCacheControlServiceImpl.publicScopePortletRenderOutputCache")
 	public void setPublicScopePortletRenderOutputCache(Ehcache publicScopePortletRenderOutputCache) {
 		this.publicScopePortletRenderOutputCache = publicScopePortletRenderOutputCache;
+		registerStoredBytesListener(publicScopePortletRenderOutputCache);
 	}
     /**
      * @param privateScopePortletResourceOutputCache
@@ -108,6 +140,7 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
     public void setPrivateScopePortletResourceOutputCache(
     		Ehcache privateScopePortletResourceOutputCache) {
 		this.privateScopePortletResourceOutputCache = privateScopePortletResourceOutputCache;
+		registerStoredBytesListener(privateScopePortletResourceOutputCache);
 	}
     /**
      * @param publicScopePortletResourceOutputCache
@@ -117,6 +150,7 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 	public void setPublicScopePortletResourceOutputCache(
 			Ehcache publicScopePortletResourceOutputCache) {
 		this.publicScopePortletResourceOutputCache = publicScopePortletResourceOutputCache;
+		registerStoredBytesListener(publicScopePortletResourceOutputCache);
 	}
 	/**
 	 * @param cacheSizeThreshold the cacheSizeThreshold to set
@@ -125,6 +159,41 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 	public void setCacheSizeThreshold(int cacheSizeThreshold) {
 		this.cacheSizeThreshold = cacheSizeThreshold;
 	}
+	/**
+	 * @param compressionThreshold Cached output of at least this size is stored GZIP compressed 
+	 */
+	@Value("${org.jasig.portal.portlet.container.cache.PortletCacheControlServiceImpl.compressionThreshold:4096}")
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+	/**
+	 * @param maxBytesPerPortlet Maximum number of bytes the output of a single portlet definition can use across all of the output caches, 0 for no limit
+	 */
+	@Value("${org.jasig.portal.portlet.container.cache.PortletCacheControlServiceImpl.maxBytesPerPortlet:0}")
+	public void setMaxBytesPerPortlet(long maxBytesPerPortlet) {
+		this.maxBytesPerPortlet = maxBytesPerPortlet;
+	}
+	/**
+	 * @param maxStaleSeconds How long after expiration a public scope entry can be served while it is being refreshed, 0 to disable
+	 */
+	@Value("${org.jasig.portal.portlet.container.cache.PortletCacheControlServiceImpl.maxStaleSeconds:60}")
+	public void setMaxStaleSeconds(int maxStaleSeconds) {
+		this.maxStaleSeconds = maxStaleSeconds;
+	}
+	/**
+	 * @param revalidationTimeout Milliseconds after which an incomplete refresh of an entry is abandoned and another request may refresh it
+	 */
+	@Value("${org.jasig.portal.portlet.container.cache.PortletCacheControlServiceImpl.revalidationTimeout:30000}")
+	public void setRevalidationTimeout(long revalidationTimeout) {
+		this.revalidationTimeout = revalidationTimeout;
+	}
+	/**
+	 * @param portletCacheStatistics Statistics tracker for the output caches
+	 */
+	@Autowired(required=false)
+	public void setPortletCacheStatistics(PortletCacheStatistics portletCacheStatistics) {
+		this.portletCacheStatistics = portletCacheStatistics;
+	}
 	/*
 	 * (non-Javadoc)
 	 * @see org.jasig.portal.portlet.container.cache.IPortletCacheControlService#getCacheSizeThreshold()
@@ -242,13 +311,17 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
         final IPortletEntity entity = this.portletEntityRegistry.getPortletEntity(httpRequest, entityId);
         final IPortletDefinitionId definitionId = entity.getPortletDefinitionId();	
 		
+        final String fname = getPortletFname(entity);
+		
 		Serializable publicCacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
 		Element publicCacheElement = this.publicScopePortletRenderOutputCache.get(publicCacheKey);
 		if(publicCacheElement != null) {
 			if(publicCacheElement.isExpired()) {
 				this.publicScopePortletRenderOutputCache.remove(publicCacheKey);
+				this.portletCacheStatistics.recordMiss(fname);
 				return null;
 			} else {
+				this.portletCacheStatistics.recordHit(fname);
 				return (CachedPortletData) publicCacheElement.getValue();
 			}
 		} else {
@@ -258,13 +331,16 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 			if(privateCacheElement != null) {
 				if(privateCacheElement.isExpired()) {
 					this.privateScopePortletRenderOutputCache.remove(privateCacheKey);
+					this.portletCacheStatistics.recordMiss(fname);
 					return null;
 				} else {
+					this.portletCacheStatistics.recordHit(fname);
 					return (CachedPortletData) privateCacheElement.getValue();
 				}
 			}
 		}
 		
+		this.portletCacheStatistics.recordMiss(fname);
 		return null;
 	}
 	
@@ -281,6 +357,8 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
         final IPortletEntity entity = this.portletEntityRegistry.getPortletEntity(httpRequest, entityId);
         final IPortletDefinitionId definitionId = entity.getPortletDefinitionId();	
 		
+        final String fname = getPortletFname(entity);
+		
 		Serializable publicCacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
 		Element publicCacheElement = this.publicScopePortletResourceOutputCache.get(publicCacheKey);	
 		if(publicCacheElement != null) {
@@ -288,8 +366,10 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 			// only remove from cache if not using validation method
 			if(publicCacheElement.isExpired() && StringUtils.isBlank(cachedPortletData.getEtag())) {
 				this.publicScopePortletResourceOutputCache.remove(publicCacheKey);
+				this.portletCacheStatistics.recordMiss(fname);
 				return null;
 			}
+			this.portletCacheStatistics.recordHit(fname);
 			return cachedPortletData;
 		} else {
 			// public cache contained no content, check private
@@ -299,12 +379,15 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 				CachedPortletData cachedPortletData = (CachedPortletData) privateCacheElement.getValue();
 				if(privateCacheElement.isExpired() && StringUtils.isBlank(cachedPortletData.getEtag())) {
 					this.privateScopePortletResourceOutputCache.remove(privateCacheKey);
+					this.portletCacheStatistics.recordMiss(fname);
 					return null;
 				} 	
+				this.portletCacheStatistics.recordHit(fname);
 				return cachedPortletData;
 			}
 		}
 		
+		this.portletCacheStatistics.recordMiss(fname);
 		return null;
 	}
 	/*
@@ -336,22 +419,33 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 		
         final int expirationTime = cacheControl.getExpirationTime();
 		CachedPortletData newData = new CachedPortletData();
+		newData.setPortletFname(getPortletFname(entity));
 		newData.setExpirationTimeSeconds(expirationTime);
 		newData.setTimeStored(new Date());
 		newData.setStringData(content);
 		newData.setEtag(cacheControl.getETag());
+		newData.compress(this.compressionThreshold);
 		
+		final Ehcache cache;
+		final Serializable cacheKey;
 		if(cacheControl.isPublicScope()) {
-			newData.setCacheConfigurationMaxTTL(new Long(publicScopePortletRenderOutputCache.getCacheConfiguration().getTimeToLiveSeconds()).intValue());
-			Serializable publicCacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
-			Element publicCacheElement = constructCacheElement(publicCacheKey, newData, publicScopePortletRenderOutputCache.getCacheConfiguration(), cacheControl);
-			this.publicScopePortletRenderOutputCache.put(publicCacheElement);		
+			cache = this.publicScopePortletRenderOutputCache;
+			cacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
 		} else {
-			newData.setCacheConfigurationMaxTTL(new Long(privateScopePortletRenderOutputCache.getCacheConfiguration().getTimeToLiveSeconds()).intValue());
-			Serializable privateCacheKey = generatePrivateScopePortletDataCacheKey(httpRequest, portletWindowId, entityId, definitionId, portletWindow.getRenderParameters());
-			Element privateCacheElement = constructCacheElement(privateCacheKey, newData, privateScopePortletRenderOutputCache.getCacheConfiguration(), cacheControl);
-			this.privateScopePortletRenderOutputCache.put(privateCacheElement);
+			cache = this.privateScopePortletRenderOutputCache;
+			cacheKey = generatePrivateScopePortletDataCacheKey(httpRequest, portletWindowId, entityId, definitionId, portletWindow.getRenderParameters());
+		}
+		
+		if (isOverPortletQuota(cache, cacheKey, newData)) {
+			return;
+		}
+		
+		if(cacheControl.isPublicScope()) {
+			shareBody(newData);
 		}
+		newData.setCacheConfigurationMaxTTL(new Long(cache.getCacheConfiguration().getTimeToLiveSeconds()).intValue());
+		Element cacheElement = constructCacheElement(cacheKey, newData, cache.getCacheConfiguration(), cacheControl);
+		putCachedPortletData(cache, cacheElement);
 	}
 
 	@Override
@@ -365,21 +459,119 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
         final IPortletDefinitionId definitionId = entity.getPortletDefinitionId();	
 		
         final int expirationTime = cacheControl.getExpirationTime();
+        cachedPortletData.setPortletFname(getPortletFname(entity));
         cachedPortletData.setEtag(cacheControl.getETag());
         cachedPortletData.setExpirationTimeSeconds(expirationTime);
         cachedPortletData.setTimeStored(new Date());
-		
+        cachedPortletData.compress(this.compressionThreshold);
+        //Computed now so replays of the cached resource don't have to hash the body
+        cachedPortletData.getBodyETag();
+        
+		final Ehcache cache;
+		final Serializable cacheKey;
 		if(cacheControl.isPublicScope()) {
-		    cachedPortletData.setCacheConfigurationMaxTTL(new Long(publicScopePortletResourceOutputCache.getCacheConfiguration().getTimeToLiveSeconds()).intValue());
-			Serializable publicCacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
-			Element publicCacheElement = constructCacheElement(publicCacheKey, cachedPortletData, publicScopePortletResourceOutputCache.getCacheConfiguration(), cacheControl);
-			this.publicScopePortletResourceOutputCache.put(publicCacheElement);		
+			cache = this.publicScopePortletResourceOutputCache;
+			cacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
 		} else {
-		    cachedPortletData.setCacheConfigurationMaxTTL(new Long(privateScopePortletResourceOutputCache.getCacheConfiguration().getTimeToLiveSeconds()).intValue());
-			Serializable privateCacheKey = generatePrivateScopePortletDataCacheKey(httpRequest, portletWindowId, entityId, definitionId, portletWindow.getRenderParameters());
-			Element privateCacheElement = constructCacheElement(privateCacheKey, cachedPortletData, privateScopePortletResourceOutputCache.getCacheConfiguration(), cacheControl);
-			this.privateScopePortletResourceOutputCache.put(privateCacheElement);
+			cache = this.privateScopePortletResourceOutputCache;
+			cacheKey = generatePrivateScopePortletDataCacheKey(httpRequest, portletWindowId, entityId, definitionId, portletWindow.getRenderParameters());
+		}
+		
+        if (isOverPortletQuota(cache, cacheKey, cachedPortletData)) {
+            return;
+        }
+		
+		if(cacheControl.isPublicScope()) {
+		    shareBody(cachedPortletData);
 		}
+		cachedPortletData.setCacheConfigurationMaxTTL(new Long(cache.getCacheConfiguration().getTimeToLiveSeconds()).intValue());
+		Element cacheElement = constructCacheElement(cacheKey, cachedPortletData, cache.getCacheConfiguration(), cacheControl);
+		putCachedPortletData(cache, cacheElement);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.jasig.portal.portlet.container.cache.IPortletCacheControlService#shouldServeStaleContent(org.jasig.portal.portlet.container.cache.CachedPortletData)
+	 */
+	@Override
+	public boolean shouldServeStaleContent(CachedPortletData cachedPortletData) {
+		if (this.maxStaleSeconds <= 0 || !cachedPortletData.isPublicScope() || cachedPortletData.getExpirationTimeSeconds() <= 0) {
+			return false;
+		}
+		if (cachedPortletData.getSecondsExpired() > this.maxStaleSeconds) {
+			return false;
+		}
+		
+		//The first caller refreshes the entry, everyone else gets the stale content until the refresh is done
+		return !cachedPortletData.startRevalidation(this.revalidationTimeout);
+	}
+	
+	/**
+	 * Mark the data as public scope and replace its body with an identical shared body if one exists
+	 */
+	protected void shareBody(CachedPortletData data) {
+		data.setPublicScope(true);
+		if (data.shareBody(this.sharedPublicBodies)) {
+			this.portletCacheStatistics.recordSharedBytes(data.getPortletFname(), data.getStoredSize());
+		}
+	}
+	
+	/**
+	 * @return true if caching the data under the key would push the portlet over its {@link #setMaxBytesPerPortlet(long)}
+	 * quota. The bytes of an existing entry for the same key of the portlet are not counted as they are replaced.
+	 */
+	protected boolean isOverPortletQuota(Ehcache cache, Serializable cacheKey, CachedPortletData data) {
+		if (this.maxBytesPerPortlet <= 0) {
+			return false;
+		}
+		
+		final String fname = data.getPortletFname();
+		long bytesUsed = this.portletCacheStatistics.getBytesUsed(fname);
+		
+		final Element existingElement = cache.getQuiet(cacheKey);
+		if (existingElement != null && existingElement.getObjectValue() instanceof CachedPortletData) {
+			final CachedPortletData existingData = (CachedPortletData) existingElement.getObjectValue();
+			if (fname.equals(existingData.getPortletFname())) {
+				bytesUsed -= existingData.getStoredSize();
+			}
+		}
+		
+		if (bytesUsed + data.getStoredSize() > this.maxBytesPerPortlet) {
+			if (log.isDebugEnabled()) {
+				log.debug("Not caching output of " + fname + ", it is using " + bytesUsed + " of its " + this.maxBytesPerPortlet + " byte quota");
+			}
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Put the element in the cache, removing the stored bytes of any element it replaces from the statistics.
+	 * The bytes of the new element are recorded by the {@link StoredBytesCacheEventListener}
+	 */
+	protected void putCachedPortletData(Ehcache cache, Element element) {
+		final Element existingElement = cache.getQuiet(element.getObjectKey());
+		cache.put(element);
+		if (existingElement != null) {
+			this.storedBytesListener.recordBytes(cache, existingElement, -1);
+		}
+	}
+	
+	/**
+	 * @return The fname of the entity's portlet definition, falls back to the definition id if the definition is not available
+	 */
+	protected String getPortletFname(IPortletEntity entity) {
+		final IPortletDefinition portletDefinition = entity.getPortletDefinition();
+		if (portletDefinition != null) {
+			return portletDefinition.getFName();
+		}
+		
+		return String.valueOf(entity.getPortletDefinitionId());
+	}
+	
+	private void registerStoredBytesListener(Ehcache cache) {
+		cache.getCacheEventNotificationService().registerListener(this.storedBytesListener);
 	}
 	
 	/**
@@ -404,7 +596,12 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 			return new Element(cacheKey, data);
 		}
 		Long cacheConfigTTL = cacheConfig.getTimeToLiveSeconds();
-		Long min = Math.min(cacheConfigTTL, cacheControlTTL.longValue());
+		long elementTTL = cacheControlTTL.longValue();
+		if (data.isPublicScope() && elementTTL > 0) {
+			// keep public scope entries around long enough to be served stale while being refreshed
+			elementTTL += this.maxStaleSeconds;
+		}
+		Long min = Math.min(cacheConfigTTL, elementTTL);
 		
 		return new Element(cacheKey, data, null, null, min.intValue());
 	}
@@ -479,4 +676,88 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
     	return key;
     }
 	
+    
+    /**
+     * Keeps the per-portlet stored byte counts in {@link PortletCacheStatistics} up to date as
+     * entries are added to and evicted from the output caches. The bytes are also tracked per cache
+     * so clearing one cache only removes that cache's bytes from the statistics.
+     */
+    private class StoredBytesCacheEventListener implements CacheEventListener {
+        //cache name -> portlet fname -> bytes stored
+        private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> cacheBytes = new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLong>>();
+        
+        @Override
+        public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+            recordBytes(cache, element, 1);
+        }
+
+        @Override
+        public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+            recordBytes(cache, element, 1);
+        }
+
+        @Override
+        public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+            recordBytes(cache, element, -1);
+        }
+
+        @Override
+        public void notifyElementExpired(Ehcache cache, Element element) {
+            recordBytes(cache, element, -1);
+        }
+
+        @Override
+        public void notifyElementEvicted(Ehcache cache, Element element) {
+            recordBytes(cache, element, -1);
+        }
+
+        @Override
+        public void notifyRemoveAll(Ehcache cache) {
+            final ConcurrentMap<String, AtomicLong> portletBytes = this.cacheBytes.get(cache.getName());
+            if (portletBytes == null) {
+                return;
+            }
+            
+            for (final Map.Entry<String, AtomicLong> portletBytesEntry : portletBytes.entrySet()) {
+                final long bytes = portletBytesEntry.getValue().getAndSet(0);
+                if (bytes != 0) {
+                    portletCacheStatistics.recordBytes(portletBytesEntry.getKey(), -bytes);
+                }
+            }
+        }
+
+        @Override
+        public void dispose() {
+        }
+
+        @Override
+        public Object clone() throws CloneNotSupportedException {
+            throw new CloneNotSupportedException();
+        }
+        
+        void recordBytes(Ehcache cache, Element element, int sign) {
+            if (element == null || !(element.getObjectValue() instanceof CachedPortletData)) {
+                return;
+            }
+            
+            final CachedPortletData data = (CachedPortletData) element.getObjectValue();
+            final String fname = data.getPortletFname();
+            final long bytes = sign * data.getStoredSize();
+            this.getPortletBytes(cache.getName(), fname).addAndGet(bytes);
+            portletCacheStatistics.recordBytes(fname, bytes);
+        }
+        
+        private AtomicLong getPortletBytes(String cacheName, String fname) {
+            ConcurrentMap<String, AtomicLong> portletBytes = this.cacheBytes.get(cacheName);
+            if (portletBytes == null) {
+                portletBytes = ConcurrentMapUtils.putIfAbsent(this.cacheBytes, cacheName, new ConcurrentHashMap<String, AtomicLong>());
+            }
+            
+            AtomicLong bytes = portletBytes.get(fname);
+            if (bytes == null) {
+                bytes = ConcurrentMapUtils.putIfAbsent(portletBytes, fname, new AtomicLong());
+            }
+            return bytes;
+        }
+    }
 }
@@ -0,0 +1,148 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.container.cache;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jasig.portal.utils.ConcurrentMapUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tracks per-portlet hit, miss, stored and shared byte counts for the portlet output caches. Exposed
+ * via JMX as uPortal:section=Framework,name=PortletCacheStatistics
+ * 
+ * @version $Revision$
+ */
+@Component("portletCacheStatistics")
+public class PortletCacheStatistics {
+    private final ConcurrentMap<String, PortletStatistics> portletStatistics = new ConcurrentHashMap<String, PortletStatistics>();
+    
+    public void recordHit(String fname) {
+        this.getPortletStatistics(fname).hits.incrementAndGet();
+    }
+    
+    public void recordMiss(String fname) {
+        this.getPortletStatistics(fname).misses.incrementAndGet();
+    }
+    
+    /**
+     * @param bytes Number of bytes added to (positive) or removed from (negative) the caches for the portlet
+     */
+    public void recordBytes(String fname, long bytes) {
+        this.getPortletStatistics(fname).bytes.addAndGet(bytes);
+    }
+    
+    /**
+     * @param bytes Number of bytes saved by sharing an identical cached body
+     */
+    public void recordSharedBytes(String fname, long bytes) {
+        this.getPortletStatistics(fname).sharedBytes.addAndGet(bytes);
+    }
+    
+    /**
+     * @return Number of bytes currently stored in the caches for the portlet
+     */
+    public long getBytesUsed(String fname) {
+        final PortletStatistics statistics = this.portletStatistics.get(fname);
+        return statistics != null ? statistics.bytes.get() : 0;
+    }
+
+    public Map<String, Long> getHitCounts() {
+        final SortedMap<String, Long> hitCounts = new TreeMap<String, Long>();
+        for (final Map.Entry<String, PortletStatistics> statisticsEntry : this.portletStatistics.entrySet()) {
+            hitCounts.put(statisticsEntry.getKey(), statisticsEntry.getValue().hits.get());
+        }
+        return hitCounts;
+    }
+    
+    public Map<String, Long> getMissCounts() {
+        final SortedMap<String, Long> missCounts = new TreeMap<String, Long>();
+        for (final Map.Entry<String, PortletStatistics> statisticsEntry : this.portletStatistics.entrySet()) {
+            missCounts.put(statisticsEntry.getKey(), statisticsEntry.getValue().misses.get());
+        }
+        return missCounts;
+    }
+    
+    public Map<String, Double> getHitRatios() {
+        final SortedMap<String, Double> hitRatios = new TreeMap<String, Double>();
+        for (final Map.Entry<String, PortletStatistics> statisticsEntry : this.portletStatistics.entrySet()) {
+            final PortletStatistics statistics = statisticsEntry.getValue();
+            final long hits = statistics.hits.get();
+            final long total = hits + statistics.misses.get();
+            hitRatios.put(statisticsEntry.getKey(), total == 0 ? 0 : (double)hits / total);
+        }
+        return hitRatios;
+    }
+    
+    public Map<String, Long> getBytesUsed() {
+        final SortedMap<String, Long> bytesUsed = new TreeMap<String, Long>();
+        for (final Map.Entry<String, PortletStatistics> statisticsEntry : this.portletStatistics.entrySet()) {
+            bytesUsed.put(statisticsEntry.getKey(), statisticsEntry.getValue().bytes.get());
+        }
+        return bytesUsed;
+    }
+    
+    public Map<String, Long> getSharedBytes() {
+        final SortedMap<String, Long> sharedBytes = new TreeMap<String, Long>();
+        for (final Map.Entry<String, PortletStatistics> statisticsEntry : this.portletStatistics.entrySet()) {
+            sharedBytes.put(statisticsEntry.getKey(), statisticsEntry.getValue().sharedBytes.get());
+        }
+        return sharedBytes;
+    }
+    
+    public long getTotalBytesUsed() {
+        long total = 0;
+        for (final PortletStatistics statistics : this.portletStatistics.values()) {
+            total += statistics.bytes.get();
+        }
+        return total;
+    }
+    
+    /**
+     * Reset the hit, miss and shared byte counts
+     */
+    public void resetHitCounts() {
+        for (final PortletStatistics statistics : this.portletStatistics.values()) {
+            statistics.hits.set(0);
+            statistics.misses.set(0);
+            statistics.sharedBytes.set(0);
+        }
+    }
+    
+    private PortletStatistics getPortletStatistics(String fname) {
+        PortletStatistics statistics = this.portletStatistics.get(fname);
+        if (statistics == null) {
+            statistics = ConcurrentMapUtils.putIfAbsent(this.portletStatistics, fname, new PortletStatistics());
+        }
+        return statistics;
+    }
+    
+    private static final class PortletStatistics {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong sharedBytes = new AtomicLong();
+    }
+}
@@ -64,4 +64,22 @@ public class TeeWriter extends Writer {
 		this.branch.write(cbuf, off, len);
 	}
 
+	/* (non-Javadoc)
+	 * @see java.io.Writer#write(java.lang.String, int, int)
+	 */
+	@Override
+	public synchronized void write(String str, int off, int len) throws IOException {
+		this.original.write(str, off, len);
+		this.branch.write(str, off, len);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Writer#write(int)
+	 */
+	@Override
+	public synchronized void write(int c) throws IOException {
+		this.original.write(c);
+		this.branch.write(c);
+	}
+
 }
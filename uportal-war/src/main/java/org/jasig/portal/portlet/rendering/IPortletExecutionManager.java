@@ -20,6 +20,8 @@
 package org.jasig.portal.portlet.rendering;
 
 import java.io.Writer;
+import java.util.Collection;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -81,6 +83,17 @@ public interface IPortletExecutionManager {
      */
     public void startPortletRender(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
     
+    /**
+     * Initiates the rendering workers for the BODY output of all the portlets on the page that
+     * have not already been started. The workers are submitted together, slowest portlets first,
+     * and share a single page level deadline. Returns immediately.
+     * 
+     * @param portletWindowIds
+     * @param request
+     * @param response
+     */
+    public void startPortletRenders(Collection<IPortletWindowId> portletWindowIds, HttpServletRequest request, HttpServletResponse response);
+    
     /**
      * 
      * @param portletWindowId
@@ -108,6 +121,11 @@ public interface IPortletExecutionManager {
      * @return true if the specified portlet been requested to render it's output for the BODY during this request.
      */
     public boolean isPortletRenderRequested(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
+    
+    /**
+     * @return true if the specified portlet has been requested to render it's output for the BODY during this request and the render has completed.
+     */
+    public boolean isPortletRenderComplete(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
 
     /**
      * @see #getPortletHeadOutput(IPortletWindowId, HttpServletRequest, HttpServletResponse)
@@ -155,4 +173,14 @@ public interface IPortletExecutionManager {
     public int getPortletNewItemCount(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
 
     public String getPortletLink(IPortletWindowId portletWindowId, String defaultUrl, HttpServletRequest request, HttpServletResponse response);
-}
\ No newline at end of file
+
+    /**
+     * @return The ids of the portlets that have been started rendering their BODY output during this request
+     */
+    public Set<IPortletWindowId> getRenderingPortletWindowIds(HttpServletRequest request);
+
+    /**
+     * @return The ids of the portlets that have been started rendering their HEAD output during this request
+     */
+    public Set<IPortletWindowId> getHeaderRenderingPortletWindowIds(HttpServletRequest request);
+}
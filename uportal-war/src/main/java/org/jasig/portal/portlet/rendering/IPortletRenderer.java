@@ -123,6 +123,18 @@ public interface IPortletRenderer {
      * @return
      */
     public long doServeResource(IPortletWindowId portletWindowId, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse);
+    
+    /**
+     * Answers a conditional resource request from the portlet's cached resource output without executing the
+     * portlet. If the cached output has not expired and matches the If-None-Match or If-Modified-Since header
+     * of the request a 304 is sent.
+     * 
+     * @param portletWindowId
+     * @param httpServletRequest
+     * @param httpServletResponse
+     * @return true if a 304 was sent, false if the resource request needs to be executed
+     */
+    public boolean doServeResourceNotModified(IPortletWindowId portletWindowId, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse);
     /**
      * Resets a portlet's window data to the defaults and clears all portlet scoped session data
      * 
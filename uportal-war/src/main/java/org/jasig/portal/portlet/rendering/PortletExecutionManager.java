@@ -20,14 +20,20 @@
 package org.jasig.portal.portlet.rendering;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.portlet.Event;
@@ -51,6 +57,7 @@ import org.jasig.portal.portlet.rendering.worker.IPortletExecutionWorker;
 import org.jasig.portal.portlet.rendering.worker.IPortletFailureExecutionWorker;
 import org.jasig.portal.portlet.rendering.worker.IPortletRenderExecutionWorker;
 import org.jasig.portal.portlet.rendering.worker.IPortletWorkerFactory;
+import org.jasig.portal.utils.Tuple;
 import org.jasig.portal.utils.web.PortalWebUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -76,6 +83,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
     private static final long DEBUG_TIMEOUT = TimeUnit.HOURS.toMillis(1);
     private static final String PORTLET_HEADER_RENDERING_MAP = PortletExecutionManager.class.getName() + ".PORTLET_HEADER_RENDERING_MAP";
 	private static final String PORTLET_RENDERING_MAP = PortletExecutionManager.class.getName() + ".PORTLET_RENDERING_MAP";
+	static final String PORTLET_RENDERING_DEADLINE = PortletExecutionManager.class.getName() + ".PORTLET_RENDERING_DEADLINE";
     
     protected static final String SESSION_ATTRIBUTE__PORTLET_FAILURE_CAUSE_MAP = PortletExecutionManager.class.getName() + ".PORTLET_FAILURE_CAUSE_MAP";
     
@@ -90,6 +98,12 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
      * Queue used to track workers that did not complete in their alloted time. 
      */
     private final Queue<IPortletExecutionWorker<?>> hungWorkers = new ConcurrentLinkedQueue<IPortletExecutionWorker<?>>();
+    
+    /**
+     * Moving average of the render duration of each portlet, keyed by fname. Used to submit the
+     * slowest portlets on a page first.
+     */
+    private final ConcurrentMap<String, Long> averageRenderDurations = new ConcurrentHashMap<String, Long>();
 
     private ApplicationEventPublisher applicationEventPublisher;
     
@@ -98,6 +112,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
     private IPortletWindowRegistry portletWindowRegistry;
     private IPortletEventCoordinationService eventCoordinationService;
     private IPortletWorkerFactory portletWorkerFactory;
+    private IPortletRenderer portletRenderer;
     
     /**
      * @param maxEventIterations The maximum number of iterations to spend dispatching events. Defaults to 100
@@ -116,6 +131,11 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         this.portletWorkerFactory = portletWorkerFactory;
     }
 
+    @Autowired
+    public void setPortletRenderer(IPortletRenderer portletRenderer) {
+        this.portletRenderer = portletRenderer;
+    }
+
     @Autowired
     public void setEventCoordinationService(IPortletEventCoordinationService eventCoordinationService) {
         this.eventCoordinationService = eventCoordinationService;
@@ -154,6 +174,10 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
      * Checks to see if a worker has been retrieved (not orphaned) and if it is complete.
      */
     protected void checkWorkerCompletion(HttpServletRequest request, IPortletRenderExecutionWorker portletRenderExecutionWorker) {
+        if (portletRenderExecutionWorker.isComplete()) {
+            this.updateAverageRenderDuration(portletRenderExecutionWorker);
+        }
+        
         if (!portletRenderExecutionWorker.isRetrieved()) {
             final IPortletWindowId portletWindowId = portletRenderExecutionWorker.getPortletWindowId();
             final IPortletWindow portletWindow = this.portletWindowRegistry.getPortletWindow(request, portletWindowId);
@@ -172,6 +196,26 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         }
     }
 
+    /**
+     * Track the render duration of the worker's portlet, weighting the newest duration by 1/4
+     */
+    protected void updateAverageRenderDuration(IPortletRenderExecutionWorker portletRenderExecutionWorker) {
+        final String fname = portletRenderExecutionWorker.getPortletFname();
+        final long duration = portletRenderExecutionWorker.getDuration();
+        if (fname == null || duration < 0) {
+            return;
+        }
+        
+        final Long average = this.averageRenderDurations.get(fname);
+        if (average == null) {
+            this.averageRenderDurations.put(fname, duration);
+        }
+        else {
+            //Lost updates from concurrent requests are fine for an estimate
+            this.averageRenderDurations.put(fname, (average * 3 + duration) / 4);
+        }
+    }
+
     /**
      * Cancel the worker and add it to the hung workers queue
      */
@@ -424,12 +468,65 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
     
     
 
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#startPortletRenders(java.util.Collection, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public void startPortletRenders(Collection<IPortletWindowId> portletWindowIds, HttpServletRequest request, HttpServletResponse response) {
+        final Map<IPortletWindowId, IPortletRenderExecutionWorker> portletRenderingMap = this.getPortletRenderingMap(request);
+        
+        //Collect the portlets that still need rendering along with their expected render duration
+        final List<Tuple<IPortletWindowId, Long>> pendingRenders = new ArrayList<Tuple<IPortletWindowId, Long>>(portletWindowIds.size());
+        long pageTimeout = 0;
+        for (final IPortletWindowId portletWindowId : portletWindowIds) {
+            if (portletRenderingMap.containsKey(portletWindowId)) {
+                continue;
+            }
+            
+            final IPortletDefinition portletDefinition = this.getPortletDefinition(portletWindowId, request);
+            final Long averageRenderDuration = this.averageRenderDurations.get(portletDefinition.getFName());
+            pendingRenders.add(new Tuple<IPortletWindowId, Long>(portletWindowId, averageRenderDuration != null ? averageRenderDuration : 0l));
+            
+            pageTimeout = Math.max(pageTimeout, this.getPortletRenderTimeout(portletWindowId, request));
+        }
+        
+        if (pendingRenders.isEmpty()) {
+            return;
+        }
+        
+        //Slowest portlets first so they overlap with the rest of the page instead of trailing it
+        Collections.sort(pendingRenders, new Comparator<Tuple<IPortletWindowId, Long>>() {
+            @Override
+            public int compare(Tuple<IPortletWindowId, Long> o1, Tuple<IPortletWindowId, Long> o2) {
+                return o2.second.compareTo(o1.second);
+            }
+        });
+        
+        //All workers on the page share a single deadline, set by the slowest allowed portlet
+        if (request.getAttribute(PORTLET_RENDERING_DEADLINE) == null) {
+            request.setAttribute(PORTLET_RENDERING_DEADLINE, System.currentTimeMillis() + pageTimeout);
+        }
+        
+        for (final Tuple<IPortletWindowId, Long> pendingRender : pendingRenders) {
+            this.startPortletRenderInternal(pendingRender.first, request, response);
+        }
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Started " + pendingRenders.size() + " portlet renders with a page timeout of " + pageTimeout + "ms");
+        }
+    }
+
     /* (non-Javadoc)
 	 * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#serveResource(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
 	 */
 	@Override
 	public void doPortletServeResource(IPortletWindowId portletWindowId,
 			HttpServletRequest request, HttpServletResponse response) {
+		//Conditional requests for unexpired cached resources are answered without starting a portlet worker
+		if (this.portletRenderer.doServeResourceNotModified(portletWindowId, request, response)) {
+			return;
+		}
+		
 		final long timeout = getPortletResourceTimeout(portletWindowId, request);
 		
 		final IPortletExecutionWorker<Long> resourceWorker = this.portletWorkerFactory.createResourceWorker(request, response, portletWindowId);
@@ -515,6 +612,17 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         return tracker != null;
     }
     
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#isPortletRenderComplete(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public boolean isPortletRenderComplete(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response) {
+        final Map<IPortletWindowId, IPortletRenderExecutionWorker> portletRenderingMap = this.getPortletRenderingMap(request);
+        final IPortletRenderExecutionWorker tracker = portletRenderingMap.get(portletWindowId);
+        
+        return tracker != null && tracker.isComplete();
+    }
+    
     /* (non-Javadoc)
 	 * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#getPortletHeadOutput(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
 	 */
@@ -584,7 +692,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
 		try {
 //			final PortletRenderResult portletRenderResult = tracker.get(timeout);
 			 //TODO publish portlet render event - should actually be published from the portlet renderer impl
-			final String output = tracker.getOutput(timeout);
+			final String output = tracker.getOutput(getPortletRenderWaitTimeout(timeout, tracker, request));
 			return output == null ? "" : output;
 		} catch (Exception e) {
 		    final IPortletFailureExecutionWorker failureWorker = this.portletWorkerFactory.createFailureWorker(request, response, portletWindowId, e);
@@ -632,7 +740,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
             final long timeout = getPortletRenderTimeout(portletWindowId, request);
             
     		try {
-    			final PortletRenderResult portletRenderResult = tracker.get(timeout);
+    			final PortletRenderResult portletRenderResult = tracker.get(getPortletRenderWaitTimeout(timeout, tracker, request));
     			if (portletRenderResult != null) {
         	        final String title = portletRenderResult.getTitle();
         	        if (title != null) {
@@ -670,7 +778,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         final long timeout = getPortletRenderTimeout(portletWindowId, request);
         
         try {
-            final PortletRenderResult portletRenderResult = tracker.get(timeout);
+            final PortletRenderResult portletRenderResult = tracker.get(getPortletRenderWaitTimeout(timeout, tracker, request));
             if (portletRenderResult != null) {
                 final int newItemCount = portletRenderResult.getNewItemCount();
                 return newItemCount;
@@ -689,7 +797,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         final long timeout = getPortletRenderTimeout(portletWindowId, request);
         
         try {
-            final PortletRenderResult portletRenderResult = tracker.get(timeout);
+            final PortletRenderResult portletRenderResult = tracker.get(getPortletRenderWaitTimeout(timeout, tracker, request));
             if (portletRenderResult != null) {
                 final String link = portletRenderResult.getExternalLink();
                 if (StringUtils.isNotBlank(link)) {
@@ -748,6 +856,26 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         return portletDefinition.getTimeout();
     }
     
+    /**
+     * If the portlet renders for the request were started as a batch the time from the worker's
+     * start until the page deadline is used when it is shorter than the portlet's own timeout. This
+     * keeps portlets that are waited on late in the page from stacking their timeouts on top of the
+     * earlier ones. The timeout is measured from the worker's start, like
+     * {@link IPortletExecutionWorker#get(long)} does, so time spent waiting on earlier portlets is
+     * not counted against it a second time.
+     */
+    protected long getPortletRenderWaitTimeout(long timeout, IPortletExecutionWorker<?> worker, HttpServletRequest request) {
+        final Long deadline = (Long)request.getAttribute(PORTLET_RENDERING_DEADLINE);
+        if (deadline == null || this.ignoreTimeouts) {
+            return timeout;
+        }
+        
+        //A worker that hasn't started yet can't start any earlier than now
+        final long startedTime = worker.getStartedTime();
+        final long measuredFrom = startedTime > 0 ? startedTime : System.currentTimeMillis();
+        return Math.min(timeout, Math.max(0, deadline - measuredFrom));
+    }
+    
     protected long getPortletResourceTimeout(IPortletWindowId portletWindowId, HttpServletRequest request) {
         if (this.ignoreTimeouts) {
             return DEBUG_TIMEOUT;
@@ -828,6 +956,22 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         return portletRenderExecutionWorker;
     }
 
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#getRenderingPortletWindowIds(javax.servlet.http.HttpServletRequest)
+     */
+    @Override
+    public Set<IPortletWindowId> getRenderingPortletWindowIds(HttpServletRequest request) {
+        return Collections.unmodifiableSet(this.getPortletRenderingMap(request).keySet());
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#getHeaderRenderingPortletWindowIds(javax.servlet.http.HttpServletRequest)
+     */
+    @Override
+    public Set<IPortletWindowId> getHeaderRenderingPortletWindowIds(HttpServletRequest request) {
+        return Collections.unmodifiableSet(this.getPortletHeaderRenderingMap(request).keySet());
+    }
+
     /**
      * Returns a request attribute scoped Map of portlets that are rendering for the current request.
      */
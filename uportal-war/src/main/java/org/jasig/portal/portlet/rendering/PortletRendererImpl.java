@@ -54,8 +54,9 @@ import org.jasig.portal.portlet.OutputCapturingHttpServletResponseWrapper;
 import org.jasig.portal.portlet.PortletDispatchException;
 import org.jasig.portal.portlet.container.cache.CachedPortletData;
 import org.jasig.portal.portlet.container.cache.CachingPortletHttpServletResponseWrapper;
+import org.jasig.portal.portlet.container.cache.CaptureBufferPool;
+import org.jasig.portal.portlet.container.cache.CaptureWriter;
 import org.jasig.portal.portlet.container.cache.IPortletCacheControlService;
-import org.jasig.portal.portlet.container.cache.LimitedBufferStringWriter;
 import org.jasig.portal.portlet.container.cache.TeeServletOutputStream;
 import org.jasig.portal.portlet.container.cache.TeeWriter;
 import org.jasig.portal.portlet.container.services.AdministrativeRequestListenerController;
@@ -90,6 +91,9 @@ public class PortletRendererImpl implements IPortletRenderer {
     private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
 
 	private static final String IF_NONE_MATCH = "If-None-Match";
+	
+	private static final String CACHED_RESOURCE_OUTPUT_ATTRIBUTE = PortletRendererImpl.class.getName() + ".CACHED_RESOURCE_OUTPUT.";
+	private static final Object NO_CACHED_RESOURCE_OUTPUT = new Object();
 
 	protected final Log logger = LogFactory.getLog(this.getClass());
     
@@ -102,6 +106,7 @@ public class PortletRendererImpl implements IPortletRenderer {
     private IPortletCacheControlService portletCacheControlService;
     private IPortalEventFactory portalEventFactory;
     private IUrlSyntaxProvider urlSyntaxProvider;
+    private CaptureBufferPool captureBufferPool = new CaptureBufferPool();
 
     @Autowired
     public void setUrlSyntaxProvider(IUrlSyntaxProvider urlSyntaxProvider) {
@@ -135,6 +140,10 @@ public class PortletRendererImpl implements IPortletRenderer {
 			IPortletCacheControlService portletCacheControlService) {
 		this.portletCacheControlService = portletCacheControlService;
 	}
+    @Autowired
+    public void setCaptureBufferPool(CaptureBufferPool captureBufferPool) {
+        this.captureBufferPool = captureBufferPool;
+    }
 	
 	
 	/**
@@ -258,7 +267,7 @@ public class PortletRendererImpl implements IPortletRenderer {
     
    /**
     * Interacts with the {@link IPortletCacheControlService} to determine if the markup should come from cache or not.
-    * If cached data doesn't exist or is expired, this delegates to {@link #doRenderMarkupInternal(IPortletWindowId, HttpServletRequest, HttpServletResponse, Writer)}.
+    * If cached data doesn't exist or is expired (and not being served stale), this delegates to {@link #doRenderMarkupInternal(IPortletWindowId, HttpServletRequest, HttpServletResponse, Writer)}.
     * 
     * (non-Javadoc)
     * @see org.jasig.portal.portlet.rendering.IPortletRenderer#doRenderMarkup(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, java.io.Writer)
@@ -270,6 +279,10 @@ public class PortletRendererImpl implements IPortletRenderer {
     		// regardless if etag is set or not, we need to replay cachedPortlet Data if it's not expired
     		return doRenderMarkupReplayCachedContent(portletWindowId, httpServletRequest, writer, cachedPortletData);
     	}
+    	if(cachedPortletData != null && this.portletCacheControlService.shouldServeStaleContent(cachedPortletData)) {
+    		// another request is already refreshing the expired data, replay it rather than rendering concurrently
+    		return doRenderMarkupReplayCachedContent(portletWindowId, httpServletRequest, writer, cachedPortletData);
+    	}
     	
     	// cached data is either null or expired
     	// have to invoke PortletContainer#doRender
@@ -277,26 +290,31 @@ public class PortletRendererImpl implements IPortletRenderer {
     	// check cacheControl AFTER portlet render to see if the portlet said "useCachedContent"
         CacheControl cacheControl = this.portletCacheControlService.getPortletRenderCacheControl(portletWindowId, httpServletRequest);   
         // alter writer argument to capture output
-        LimitedBufferStringWriter captureWriter = new LimitedBufferStringWriter(this.portletCacheControlService.getCacheSizeThreshold());
-        TeeWriter teeWriter = new TeeWriter(writer, captureWriter);
-        PortletRenderResult result = doRenderMarkupInternal(portletWindowId, httpServletRequest, httpServletResponse, teeWriter);
-        
-        boolean useCachedContent = cacheControl.useCachedContent();
-        final IPortletWindow portletWindow = this.portletWindowRegistry.getPortletWindow(httpServletRequest, portletWindowId);
-		if(useCachedContent && cachedPortletData == null) {
-			throw new PortletDispatchException("The portlet window '"+ portletWindow + "' indicated via CacheControl#useCachedContent that the portal should render cached content, however there is no cached content to return. This is a portlet bug.", portletWindow);
-		}
-        
-        if (useCachedContent) {
-        	cachedPortletData.updateExpirationTime(cacheControl.getExpirationTime());
-    		return doRenderMarkupReplayCachedContent(portletWindowId, httpServletRequest, writer, cachedPortletData);
-        } else {
-        	boolean shouldCache = this.portletCacheControlService.shouldOutputBeCached(cacheControl);
-        	if(shouldCache && !captureWriter.isLimitExceeded()) {
-        		this.portletCacheControlService.cachePortletRenderOutput(portletWindowId, httpServletRequest, captureWriter.toString(), cacheControl);
-        	}
+        final CaptureWriter captureWriter = this.captureBufferPool.createWriter(this.portletCacheControlService.getCacheSizeThreshold());
+        try {
+            TeeWriter teeWriter = new TeeWriter(writer, captureWriter);
+            PortletRenderResult result = doRenderMarkupInternal(portletWindowId, httpServletRequest, httpServletResponse, teeWriter);
+            
+            boolean useCachedContent = cacheControl.useCachedContent();
+            final IPortletWindow portletWindow = this.portletWindowRegistry.getPortletWindow(httpServletRequest, portletWindowId);
+    		if(useCachedContent && cachedPortletData == null) {
+    			throw new PortletDispatchException("The portlet window '"+ portletWindow + "' indicated via CacheControl#useCachedContent that the portal should render cached content, however there is no cached content to return. This is a portlet bug.", portletWindow);
+    		}
+            
+            if (useCachedContent) {
+            	cachedPortletData.updateExpirationTime(cacheControl.getExpirationTime());
+        		return doRenderMarkupReplayCachedContent(portletWindowId, httpServletRequest, writer, cachedPortletData);
+            } else {
+            	boolean shouldCache = this.portletCacheControlService.shouldOutputBeCached(cacheControl);
+            	if(shouldCache && !captureWriter.isLimitExceeded()) {
+            		this.portletCacheControlService.cachePortletRenderOutput(portletWindowId, httpServletRequest, captureWriter.getCapturedContent(), cacheControl);
+            	}
+            }
+        	return result;
+        }
+        finally {
+            captureWriter.release();
         }
-    	return result;
     }
     
     /**
@@ -475,6 +493,49 @@ public class PortletRendererImpl implements IPortletRenderer {
         return new PortletRenderResult(title, externalLink, newItemCount, executionTime);
 	}
 	
+	/* (non-Javadoc)
+	 * @see org.jasig.portal.portlet.rendering.IPortletRenderer#doServeResourceNotModified(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	@Override
+	public boolean doServeResourceNotModified(IPortletWindowId portletWindowId, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+	    if (httpServletRequest.getHeader(IF_NONE_MATCH) == null && httpServletRequest.getHeader(IF_MODIFIED_SINCE) == null) {
+	        return false;
+	    }
+	    
+	    final long start = System.currentTimeMillis();
+	    final CachedPortletData cachedPortletData = this.portletCacheControlService.getCachedPortletResourceOutput(portletWindowId, httpServletRequest);
+	    if (cachedPortletData == null || cachedPortletData.isExpired() || !this.isNotModified(httpServletRequest, cachedPortletData)) {
+	        //Keep the lookup for doServeResource so the cache isn't checked twice for the request
+	        httpServletRequest.setAttribute(CACHED_RESOURCE_OUTPUT_ATTRIBUTE + portletWindowId, cachedPortletData != null ? cachedPortletData : NO_CACHED_RESOURCE_OUTPUT);
+	        return false;
+	    }
+	    
+	    if(logger.isDebugEnabled()) {
+	        logger.debug("returning 304 for portletWindowId " + portletWindowId + " without executing the resource request");
+	    }
+	    httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	    
+	    final IPortletWindow portletWindow = this.portletWindowRegistry.getPortletWindow(httpServletRequest, portletWindowId);
+	    final long executionTime = System.currentTimeMillis() - start;
+	    publishResourceExecutionEvent(httpServletRequest, portletWindow, executionTime, true);
+	    return true;
+	}
+	
+	/**
+	 * Cached resource output for the portlet window, uses the lookup done by {@link #doServeResourceNotModified(IPortletWindowId, HttpServletRequest, HttpServletResponse)}
+	 * for the request if there was one.
+	 */
+	protected CachedPortletData getCachedPortletResourceOutput(IPortletWindowId portletWindowId, HttpServletRequest httpServletRequest) {
+	    final String attributeName = CACHED_RESOURCE_OUTPUT_ATTRIBUTE + portletWindowId;
+	    final Object cachedResourceOutput = httpServletRequest.getAttribute(attributeName);
+	    if (cachedResourceOutput != null) {
+	        httpServletRequest.removeAttribute(attributeName);
+	        return cachedResourceOutput instanceof CachedPortletData ? (CachedPortletData) cachedResourceOutput : null;
+	    }
+	    
+	    return this.portletCacheControlService.getCachedPortletResourceOutput(portletWindowId, httpServletRequest);
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.jasig.portal.portlet.rendering.IPortletRenderer#doServeResource(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, java.io.Writer)
 	 */
@@ -484,13 +545,19 @@ public class PortletRendererImpl implements IPortletRenderer {
 			HttpServletRequest httpServletRequest,
 			HttpServletResponse httpServletResponse) {
 		final IPortletWindow portletWindow = this.portletWindowRegistry.getPortletWindow(httpServletRequest, portletWindowId);
-		CachedPortletData cachedPortletData = this.portletCacheControlService.getCachedPortletResourceOutput(portletWindowId, httpServletRequest);
+		CachedPortletData cachedPortletData = this.getCachedPortletResourceOutput(portletWindowId, httpServletRequest);
     	if(cachedPortletData != null && !cachedPortletData.isExpired()) {
     		if(logger.isDebugEnabled()) {
     			logger.debug("cached content available and not expired for portletWindowId " + portletWindowId );
     		}
     		return doServeResourceCachedOutput(portletWindowId, httpServletRequest, httpServletResponse, cachedPortletData, portletWindow);
     	}
+    	if(cachedPortletData != null && this.portletCacheControlService.shouldServeStaleContent(cachedPortletData)) {
+    		if(logger.isDebugEnabled()) {
+    			logger.debug("cached content for portletWindowId " + portletWindowId + " is expired and being refreshed by another request, serving stale content");
+    		}
+    		return doServeResourceCachedOutput(portletWindowId, httpServletRequest, httpServletResponse, cachedPortletData, portletWindow);
+    	}
 		
     	// cached data is either null or expired
     	// have to invoke PortletContainer#doServeResource
@@ -498,11 +565,12 @@ public class PortletRendererImpl implements IPortletRenderer {
         // construct stream to capture output
        
 	    final long start = System.currentTimeMillis();
+	    CachingPortletHttpServletResponseWrapper responseWrapper = null;
 		try {
 			//Setup the request and response
 	        httpServletRequest = this.setupPortletRequest(httpServletRequest);
 	        // use overloaded setup to override the outputstream
-	        CachingPortletHttpServletResponseWrapper responseWrapper = this.setupCachingPortletResponse(httpServletResponse, this.portletCacheControlService.getCacheSizeThreshold());
+	        responseWrapper = this.setupCachingPortletResponse(httpServletResponse, this.portletCacheControlService.getCacheSizeThreshold());
 			this.portletContainer.doServeResource(portletWindow.getPlutoPortletWindow(), httpServletRequest, responseWrapper);
 			// check cacheControl AFTER portlet serveResource to see if the portlet said "useCachedContent"
 			boolean useCachedContent = cacheControl.useCachedContent();
@@ -545,12 +613,62 @@ public class PortletRendererImpl implements IPortletRenderer {
         catch (IOException ioe) {
             throw new PortletDispatchException("The portlet window '" + portletWindow + "' threw an exception while executing serveResource.", portletWindow, ioe);
         }
+		finally {
+		    if (responseWrapper != null) {
+		        responseWrapper.releaseCaptureBuffers();
+		    }
+		}
 		final long executionTime = System.currentTimeMillis() - start;
 		
 		publishResourceExecutionEvent(httpServletRequest, portletWindow, executionTime, false);
         
         return executionTime;
 	}
+	/**
+	 * @return The entity tag to send with the cached resource, the portlet's ETag if it set one and the quoted
+	 * {@link CachedPortletData#getBodyETag()} otherwise. null if neither is available.
+	 */
+	protected String getResponseETag(CachedPortletData cachedPortletData) {
+	    final String etag = cachedPortletData.getEtag();
+	    if (StringUtils.isNotBlank(etag)) {
+	        return etag;
+	    }
+	    
+	    final String bodyETag = cachedPortletData.getBodyETag();
+	    if (bodyETag != null) {
+	        return "\"" + bodyETag + "\"";
+	    }
+	    
+	    return null;
+	}
+	
+	/**
+	 * @return true if the If-None-Match header of the request matches the cached resource's entity tag or, for
+	 * unexpired resources, the If-Modified-Since header is not before the time the resource was cached.
+	 */
+	protected boolean isNotModified(HttpServletRequest httpServletRequest, CachedPortletData cachedPortletData) {
+	    final String etag = this.getResponseETag(cachedPortletData);
+	    final String ifNoneMatch = httpServletRequest.getHeader(IF_NONE_MATCH);
+	    if (etag != null && ifNoneMatch != null) {
+	        for (final String tag : StringUtils.split(ifNoneMatch, ',')) {
+	            final String trimmedTag = tag.trim();
+	            if ("*".equals(trimmedTag) || etag.equals(trimmedTag)) {
+	                return true;
+	            }
+	        }
+	    }
+	    
+	    if (!cachedPortletData.isExpired()) {
+	        //HTTP dates have second resolution
+	        final long ifModifiedSince = httpServletRequest.getDateHeader(IF_MODIFIED_SINCE);
+	        if (ifModifiedSince != -1 && cachedPortletData.getTimeStored().getTime() / 1000 <= ifModifiedSince / 1000) {
+	            return true;
+	        }
+	    }
+	    
+	    return false;
+	}
+	
 	/**
 	 * Helper method to invoke {@link IPortalEventFactory#publishPortletResourceExecutionEvent(HttpServletRequest, Object, String, long, Map, String, boolean)}.
 	 * 
@@ -593,35 +711,16 @@ public class PortletRendererImpl implements IPortletRenderer {
 	protected long doServeResourceCachedOutput(IPortletWindowId portletWindowId, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, CachedPortletData cachedPortletData, IPortletWindow portletWindow) {
 		long start = System.currentTimeMillis();
 		
-		//If there is an etag and it matches the IF_NONE_MATCH header return a 304
-		final String etag = cachedPortletData.getEtag();
-		if(StringUtils.isNotBlank(etag)) {
-			final String ifNoneMatch = httpServletRequest.getHeader(IF_NONE_MATCH);
-			if(etag.equals(ifNoneMatch)) {
-				// browser already has the content! send a 304
-				if(logger.isDebugEnabled()) {
-					logger.debug("returning 304 for portletWindowId " + portletWindowId + ", ifNoneMatch header=" + ifNoneMatch + ", " + cachedPortletData.getEtag() + ", cachedPortletData#expired=" + cachedPortletData.isExpired());
-				}
-				httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-				final long executionTime = System.currentTimeMillis() - start;
-				publishResourceExecutionEvent(httpServletRequest, portletWindow, executionTime, true);
-				return executionTime;
-			}
-		}
-		
-		//If the cached portlet data is not expired and the last mod date is within the IF_MODIFIED_SINCE window return a 304 
-		if(!cachedPortletData.isExpired()) {
-			long ifModifiedSince = httpServletRequest.getDateHeader(IF_MODIFIED_SINCE);
-			if(cachedPortletData.getTimeStored().getTime() == ifModifiedSince) {
-				// browser already has the content! send a 304
-				if(logger.isDebugEnabled()) {
-					logger.debug("returning 304 for portletWindowId " + portletWindowId + ", ifModifiedSince header=" + ifModifiedSince);
-				}
-				httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-				final long executionTime = System.currentTimeMillis() - start;
-				publishResourceExecutionEvent(httpServletRequest, portletWindow, executionTime, true);
-				return executionTime;
+		//If the browser already has the content send a 304
+		final String etag = this.getResponseETag(cachedPortletData);
+		if(this.isNotModified(httpServletRequest, cachedPortletData)) {
+			if(logger.isDebugEnabled()) {
+				logger.debug("returning 304 for portletWindowId " + portletWindowId + ", ifNoneMatch header=" + httpServletRequest.getHeader(IF_NONE_MATCH) + ", " + etag + ", cachedPortletData#expired=" + cachedPortletData.isExpired());
 			}
+			httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			final long executionTime = System.currentTimeMillis() - start;
+			publishResourceExecutionEvent(httpServletRequest, portletWindow, executionTime, true);
+			return executionTime;
 		}
 		
 		//********* Browser does NOT have the content, replay the cached response *********//
@@ -646,9 +745,12 @@ public class PortletRendererImpl implements IPortletRenderer {
         
         final Integer contentLength = cachedPortletData.getContentLength();
         if (contentLength != null) {
-            //We could derive this from the cached data but lets try to faithfully replay the cached response
+            //Faithfully replay the length set by the portlet
             httpServletResponse.setContentLength(contentLength);
         }
+        else if (cachedPortletData.getByteDataLength() >= 0) {
+            httpServletResponse.setContentLength(cachedPortletData.getByteDataLength());
+        }
         
         final String contentType = cachedPortletData.getContentType();
         if (contentType != null) {
@@ -680,16 +782,16 @@ public class PortletRendererImpl implements IPortletRenderer {
 		//Set the ETag again
 		if (etag != null) {
 			httpServletResponse.setHeader("ETag", etag);
-		} else {
+		}
+		if (StringUtils.isBlank(cachedPortletData.getEtag())) {
 			httpServletResponse.setDateHeader("Last-Modified", cachedPortletData.getTimeStored().getTime());
 		}
 		
-		//Replay content
-		final byte[] byteData = cachedPortletData.getByteData();
-		if (byteData != null) {
+		//Replay content, byte data is written as stored without going through a writer
+		if (cachedPortletData.getByteDataLength() >= 0) {
     		try {
-    			ServletOutputStream servletOutputStream = httpServletResponse.getOutputStream();
-                servletOutputStream.write(byteData);
+    			final ServletOutputStream servletOutputStream = httpServletResponse.getOutputStream();
+    			cachedPortletData.writeByteData(servletOutputStream);
     		} catch (IOException e) {
     			 throw new PortletDispatchException("The portlet window '" + portletWindow + "' threw an exception while writing cached resource content.", portletWindow, e);
     		} 
@@ -786,7 +888,7 @@ public class PortletRendererImpl implements IPortletRenderer {
      */
     protected CachingPortletHttpServletResponseWrapper setupCachingPortletResponse(HttpServletResponse httpServletResponse, int cacheThresholdSize) throws IOException {
         final CachingPortletHttpServletResponseWrapper portletHttpServletResponseWrapper = 
-                new CachingPortletHttpServletResponseWrapper(httpServletResponse, cacheThresholdSize);
+                new CachingPortletHttpServletResponseWrapper(httpServletResponse, cacheThresholdSize, this.captureBufferPool);
         return portletHttpServletResponseWrapper;
     }
     
@@ -0,0 +1,95 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+
+/**
+ * Complete output of a page render along with the body entity tags of the cached portlet content
+ * that was incorporated into the page. The page is only valid while each of those portlets still
+ * has the same content in the portlet cache.
+ *
+ * @version $Revision$
+ */
+class CachedPage {
+    private static final Charset CHARSET = Charset.forName(DynamicRenderingPipeline.CHARACTER_SET);
+
+    private final byte[] content;
+    private final String contentType;
+    private final String eTag;
+    private final Map<IPortletWindowId, String> portletBodyETags;
+
+    public CachedPage(String content, String contentType, Map<IPortletWindowId, String> portletBodyETags) {
+        this.content = content.getBytes(CHARSET);
+        this.contentType = contentType;
+        this.eTag = "\"" + DigestUtils.shaHex(this.content) + "\"";
+        this.portletBodyETags = Collections.unmodifiableMap(new LinkedHashMap<IPortletWindowId, String>(portletBodyETags));
+    }
+
+    /**
+     * @return The page encoded using {@link DynamicRenderingPipeline#CHARACTER_SET}
+     */
+    public byte[] getContent() {
+        return this.content;
+    }
+
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    /**
+     * @return Quoted strong entity tag for the page content
+     */
+    public String getETag() {
+        return this.eTag;
+    }
+
+    /**
+     * @return The {@link org.jasig.portal.portlet.container.cache.CachedPortletData#getBodyETag()} of each portlet on the page
+     */
+    public Map<IPortletWindowId, String> getPortletBodyETags() {
+        return this.portletBodyETags;
+    }
+
+    /**
+     * @return true if the value of an If-None-Match request header matches the entity tag of this page
+     */
+    public boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (final String tag : StringUtils.split(ifNoneMatch, ',')) {
+            final String trimmedTag = tag.trim();
+            if ("*".equals(trimmedTag) || this.eTag.equals(trimmedTag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -20,26 +20,56 @@
 package org.jasig.portal.rendering;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.OutputKeys;
 
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
 import org.jasig.portal.character.stream.CharacterEventReader;
 import org.jasig.portal.character.stream.events.CharacterDataEvent;
 import org.jasig.portal.character.stream.events.CharacterEvent;
 import org.jasig.portal.character.stream.events.CharacterEventTypes;
 import org.jasig.portal.events.IPortalEventFactory;
+import org.jasig.portal.portlet.container.cache.CachedPortletData;
+import org.jasig.portal.portlet.container.cache.IPortletCacheControlService;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
 import org.jasig.portal.url.IPortalRequestInfo;
 import org.jasig.portal.url.IUrlSyntaxProvider;
+import org.jasig.portal.url.UrlType;
+import org.jasig.portal.utils.cache.CacheKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
  * Top level class that initiates rendering via a {@link CharacterPipelineComponent}
+ * <p>
+ * Character data is written to the response writer as it is produced but the response is only
+ * flushed once {@link #setFlushThreshold(int)} characters are pending, {@link #setMaxFlushDelay(long)}
+ * has passed since the last flush or the data contains one of the {@link #setFlushMarkers(Set)}. This
+ * coalesces the many small character events into larger writes while the page still streams
+ * progressively to the browser. Pending output is also flushed before the pipeline waits on a portlet
+ * that has not completed rendering, see {@link #RESPONSE_FLUSHER_ATTRIBUTE}.
+ * <p>
+ * If a {@link #setPageCache(Ehcache)} is configured the complete output of RENDER requests is cached using the
+ * {@link CharacterPipelineComponent#getCacheKey(HttpServletRequest, HttpServletResponse)} of the pipeline, which
+ * covers the user's layout, the theme and structure parameters and the portlet window states. A page is only
+ * cached if every portlet on it was replayed from the portlet cache and the cached page is only used while
+ * each of those portlets still has the same cached content. Cached pages are sent with an ETag and are answered
+ * with a 304 if the browser already has the page.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -47,13 +77,33 @@ import org.springframework.beans.factory.annotation.Autowired;
 public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
     public static final String CHARACTER_SET = "UTF-8";
     public static final String DEFAULT_MEDIA_TYPE = "text/html";
+    /**
+     * Request attribute holding a {@link java.io.Flushable} that flushes the page output written so far. Components
+     * that are about to block while the page is rendered, such as when waiting on portlet output, use it so the
+     * browser gets the pending output without waiting for the flush threshold or the next character event.
+     */
+    public static final String RESPONSE_FLUSHER_ATTRIBUTE = DynamicRenderingPipeline.class.getName() + ".RESPONSE_FLUSHER";
     
     protected final Logger logger = LoggerFactory.getLogger(getClass());
     
     private CharacterPipelineComponent pipeline;
     private IPortalEventFactory portalEventFactory;
     private IUrlSyntaxProvider urlSyntaxProvider;
+    private int flushThreshold = 8192;
+    private long maxFlushDelay = TimeUnit.MILLISECONDS.toNanos(100);
+    private Set<String> flushMarkers = Collections.singleton("</head>");
+    private IPortletExecutionManager portletExecutionManager;
+    private IPortletCacheControlService portletCacheControlService;
+    private Ehcache pageCache;
+    private boolean pageCacheEnabled = false;
+    private int maxCachedPageSize = 262144;
     
+    private final AtomicLong renderCount = new AtomicLong();
+    private final AtomicLong charactersWritten = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong pageCacheHits = new AtomicLong();
+    private final AtomicLong pageCacheMisses = new AtomicLong();
+    private final AtomicLong pageNotModifiedCount = new AtomicLong();
 
     @Autowired
     public void setUrlSyntaxProvider(IUrlSyntaxProvider urlSyntaxProvider) {
@@ -65,6 +115,37 @@ public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
         this.portalEventFactory = portalEventFactory;
     }
 
+    @Autowired
+    public void setPortletExecutionManager(IPortletExecutionManager portletExecutionManager) {
+        this.portletExecutionManager = portletExecutionManager;
+    }
+
+    @Autowired
+    public void setPortletCacheControlService(IPortletCacheControlService portletCacheControlService) {
+        this.portletCacheControlService = portletCacheControlService;
+    }
+
+    /**
+     * Cache for complete page output, if not set pages are never cached.
+     */
+    public void setPageCache(Ehcache pageCache) {
+        this.pageCache = pageCache;
+    }
+
+    /**
+     * If complete page output should be cached, defaults to false.
+     */
+    public void setPageCacheEnabled(boolean pageCacheEnabled) {
+        this.pageCacheEnabled = pageCacheEnabled;
+    }
+
+    /**
+     * Pages with more characters than this are not cached, defaults to 262144.
+     */
+    public void setMaxCachedPageSize(int maxCachedPageSize) {
+        this.maxCachedPageSize = maxCachedPageSize;
+    }
+
     /**
      * The root element in the rendering pipeline. This element MUST only return {@link CharacterEventTypes#CHARACTER}
      * type events.
@@ -73,6 +154,63 @@ public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
         this.pipeline = pipeline;
     }
 
+    /**
+     * Number of characters that can be pending in the response before it is flushed, defaults to 8192.
+     * A value of 0 flushes after every character event.
+     */
+    public void setFlushThreshold(int flushThreshold) {
+        this.flushThreshold = flushThreshold;
+    }
+
+    /**
+     * Maximum number of milliseconds pending data is held before the response is flushed, defaults to 100.
+     */
+    public void setMaxFlushDelay(long maxFlushDelay) {
+        this.maxFlushDelay = TimeUnit.MILLISECONDS.toNanos(maxFlushDelay);
+    }
+
+    /**
+     * Markup that triggers a flush of the response once it has been written, defaults to &lt;/head&gt;
+     * so the browser can start loading page resources while the body renders.
+     */
+    public void setFlushMarkers(Set<String> flushMarkers) {
+        this.flushMarkers = new LinkedHashSet<String>(flushMarkers);
+    }
+    
+    public final long getRenderCount() {
+        return this.renderCount.get();
+    }
+    
+    public final long getCharactersWritten() {
+        return this.charactersWritten.get();
+    }
+    
+    public final long getFlushCount() {
+        return this.flushCount.get();
+    }
+    
+    public final long getCharactersWrittenPerRender() {
+        final long renders = this.getRenderCount();
+        return this.getCharactersWritten() / (renders == 0 ? 1 : renders);
+    }
+    
+    public final long getFlushesPerRender() {
+        final long renders = this.getRenderCount();
+        return this.getFlushCount() / (renders == 0 ? 1 : renders);
+    }
+    
+    public final long getPageCacheHits() {
+        return this.pageCacheHits.get();
+    }
+    
+    public final long getPageCacheMisses() {
+        return this.pageCacheMisses.get();
+    }
+    
+    public final long getPageNotModifiedCount() {
+        return this.pageNotModifiedCount.get();
+    }
+
     @Override
     public void renderState(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
         //Disable page caching
@@ -81,6 +219,22 @@ public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
         res.setDateHeader("Expires", 0);
         
         final long startTime = System.currentTimeMillis();
+        final IPortalRequestInfo portalRequestInfo = this.urlSyntaxProvider.getPortalRequestInfo(req);
+        
+        final Serializable pageCacheKey = this.getPageCacheKey(req, res, portalRequestInfo);
+        if (pageCacheKey != null) {
+            final CachedPage cachedPage = this.getCachedPage(req, pageCacheKey);
+            if (cachedPage != null) {
+                this.pageCacheHits.incrementAndGet();
+                this.writeCachedPage(req, res, cachedPage);
+                
+                final long executionTime = System.currentTimeMillis() - startTime;
+                this.portalEventFactory.publishPortalRenderEvent(req, this, req.getPathInfo(), executionTime, portalRequestInfo);
+                return;
+            }
+            
+            this.pageCacheMisses.incrementAndGet();
+        }
 
         final PipelineEventReader<CharacterEventReader, CharacterEvent> pipelineEventReader = this.pipeline.getEventReader(req, res);
         final String mediaType = getMediaType(req, res, pipelineEventReader);
@@ -89,24 +243,159 @@ public class DynamicRenderingPipeline implements IPortalRenderingPipeline {
         final String contentType = mediaType + "; charset=" + CHARACTER_SET;
         res.setContentType(contentType);
         
-        final PrintWriter writer = res.getWriter();
+        final ResponseFlushCoalescer output = new ResponseFlushCoalescer(res.getWriter(), res, this.flushThreshold, this.maxFlushDelay, this.flushMarkers);
         
-        for (final CharacterEvent event : pipelineEventReader) {
-            if (CharacterEventTypes.CHARACTER != event.getEventType()) {
-                throw new RenderingPipelineConfigurationException("Only " + CharacterEventTypes.CHARACTER + " events are supported in the top level renderer. " + event.getEventType() + " is not supported.");
+        StringBuilder pageBuffer = pageCacheKey != null ? new StringBuilder() : null;
+        req.setAttribute(RESPONSE_FLUSHER_ATTRIBUTE, output);
+        try {
+            for (final CharacterEvent event : pipelineEventReader) {
+                if (CharacterEventTypes.CHARACTER != event.getEventType()) {
+                    throw new RenderingPipelineConfigurationException("Only " + CharacterEventTypes.CHARACTER + " events are supported in the top level renderer. " + event.getEventType() + " is not supported.");
+                }
+                
+                final String data = ((CharacterDataEvent)event).getData();
+                output.write(data);
+                if (pageBuffer != null) {
+                    if (pageBuffer.length() + data.length() > this.maxCachedPageSize) {
+                        pageBuffer = null;
+                    }
+                    else {
+                        pageBuffer.append(data);
+                    }
+                }
             }
-            
-            final String data = ((CharacterDataEvent)event).getData();
-            writer.print(data);
-            writer.flush();
-            res.flushBuffer();
+        }
+        finally {
+            req.removeAttribute(RESPONSE_FLUSHER_ATTRIBUTE);
+        }
+        
+        output.flush();
+        
+        final long written = output.getWritten();
+        final int flushes = output.getFlushes();
+        this.renderCount.incrementAndGet();
+        this.charactersWritten.addAndGet(written);
+        this.flushCount.addAndGet(flushes);
+        this.logger.debug("Wrote {} characters in {} flushes for {}", new Object[] { written, flushes, req.getRequestURI() });
+        
+        if (pageBuffer != null) {
+            this.cachePage(req, pageCacheKey, pageBuffer, contentType, startTime);
         }
         
         final long executionTime = System.currentTimeMillis() - startTime;
-        final IPortalRequestInfo portalRequestInfo = this.urlSyntaxProvider.getPortalRequestInfo(req);
         this.portalEventFactory.publishPortalRenderEvent(req, this, req.getPathInfo(), executionTime, portalRequestInfo);
     }
 
+    /**
+     * @return The page cache key for the request, null if the output of the request should not be cached
+     */
+    protected Serializable getPageCacheKey(HttpServletRequest req, HttpServletResponse res, IPortalRequestInfo portalRequestInfo) {
+        if (!this.pageCacheEnabled || this.pageCache == null) {
+            return null;
+        }
+        
+        if (!"GET".equals(req.getMethod()) || portalRequestInfo.getUrlType() != UrlType.RENDER) {
+            return null;
+        }
+        
+        final CacheKey pipelineCacheKey = this.pipeline.getCacheKey(req, res);
+        if (pipelineCacheKey == null) {
+            return null;
+        }
+        
+        return new CacheKey(DynamicRenderingPipeline.class.getName(), pipelineCacheKey);
+    }
+    
+    /**
+     * @return The cached page for the key if every portlet on it still has the same content in the portlet cache, null if not
+     */
+    protected CachedPage getCachedPage(HttpServletRequest req, Serializable pageCacheKey) {
+        final Element element = this.pageCache.get(pageCacheKey);
+        if (element == null) {
+            return null;
+        }
+        
+        final CachedPage cachedPage = (CachedPage)element.getObjectValue();
+        for (final Map.Entry<IPortletWindowId, String> portletBodyETagEntry : cachedPage.getPortletBodyETags().entrySet()) {
+            final IPortletWindowId portletWindowId = portletBodyETagEntry.getKey();
+            final CachedPortletData cachedPortletData = this.getCachedPortletData(req, portletWindowId);
+            if (cachedPortletData == null || cachedPortletData.isExpired() || !portletBodyETagEntry.getValue().equals(cachedPortletData.getBodyETag())) {
+                this.logger.debug("Cached content of {} changed, not using cached page {}", portletWindowId, pageCacheKey);
+                this.pageCache.remove(pageCacheKey);
+                return null;
+            }
+        }
+        
+        return cachedPage;
+    }
+    
+    /**
+     * Cache the page if every portlet on it was replayed from the portlet cache during this request and
+     * no portlet contributed content to the page head.
+     */
+    protected void cachePage(HttpServletRequest req, Serializable pageCacheKey, StringBuilder pageBuffer, String contentType, long startTime) {
+        if (!this.portletExecutionManager.getHeaderRenderingPortletWindowIds(req).isEmpty()) {
+            return;
+        }
+        
+        final Set<IPortletWindowId> portletWindowIds = this.portletExecutionManager.getRenderingPortletWindowIds(req);
+        final Map<IPortletWindowId, String> portletBodyETags = new LinkedHashMap<IPortletWindowId, String>();
+        for (final IPortletWindowId portletWindowId : portletWindowIds) {
+            final CachedPortletData cachedPortletData = this.getCachedPortletData(req, portletWindowId);
+            
+            //Content that was cached by this request was rendered by the portlet, only replayed content is known to be cacheable  
+            if (cachedPortletData == null || cachedPortletData.isExpired() || cachedPortletData.getTimeStored().getTime() >= startTime) {
+                return;
+            }
+            
+            final String bodyETag = cachedPortletData.getBodyETag();
+            if (bodyETag == null) {
+                return;
+            }
+            portletBodyETags.put(portletWindowId, bodyETag);
+        }
+        
+        final CachedPage cachedPage = new CachedPage(pageBuffer.toString(), contentType, portletBodyETags);
+        this.pageCache.put(new Element(pageCacheKey, cachedPage));
+        this.logger.debug("Cached page {} with {} portlets", pageCacheKey, portletBodyETags.size());
+    }
+    
+    /**
+     * @return The cached render output of the portlet, null if there is none or the portlet window no longer exists
+     */
+    protected CachedPortletData getCachedPortletData(HttpServletRequest req, IPortletWindowId portletWindowId) {
+        try {
+            return this.portletCacheControlService.getCachedPortletRenderOutput(portletWindowId, req);
+        }
+        catch (RuntimeException e) {
+            this.logger.debug("Failed to get cached render output for " + portletWindowId, e);
+            return null;
+        }
+    }
+    
+    /**
+     * Send the cached page or a 304 if it matches the If-None-Match header of the request
+     */
+    protected void writeCachedPage(HttpServletRequest req, HttpServletResponse res, CachedPage cachedPage) throws IOException {
+        res.setHeader("ETag", cachedPage.getETag());
+        
+        if (cachedPage.matches(req.getHeader("If-None-Match"))) {
+            this.pageNotModifiedCount.incrementAndGet();
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        
+        final byte[] content = cachedPage.getContent();
+        res.setContentType(cachedPage.getContentType());
+        res.setContentLength(content.length);
+        res.getOutputStream().write(content);
+        res.flushBuffer();
+        
+        this.renderCount.incrementAndGet();
+        this.charactersWritten.addAndGet(content.length);
+        this.flushCount.incrementAndGet();
+    }
+
     /**
      * Determine the media type to use for the response
      */
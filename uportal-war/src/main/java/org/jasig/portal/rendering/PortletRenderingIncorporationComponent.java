@@ -19,6 +19,8 @@
 
 package org.jasig.portal.rendering;
 
+import java.io.Flushable;
+import java.io.IOException;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -36,6 +38,8 @@ import org.jasig.portal.character.stream.events.PortletTitlePlaceholderEvent;
 import org.jasig.portal.portlet.om.IPortletWindowId;
 import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
 import org.jasig.portal.utils.cache.CacheKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
@@ -45,6 +49,8 @@ import org.springframework.beans.factory.annotation.Autowired;
  * @version $Revision$
  */
 public class PortletRenderingIncorporationComponent extends CharacterPipelineComponentWrapper {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
     private IPortletExecutionManager portletExecutionManager;
     
     @Autowired
@@ -103,6 +109,10 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
                     final PortletContentPlaceholderEvent contentPlaceholderEvent = (PortletContentPlaceholderEvent)event;
                     final IPortletWindowId portletWindowId = contentPlaceholderEvent.getPortletWindowId();
                     
+                    if (!portletExecutionManager.isPortletRenderComplete(portletWindowId, this.request, this.response)) {
+                        this.flushPendingOutput();
+                    }
+                    
                     final String output = portletExecutionManager.getPortletOutput(portletWindowId, this.request, this.response);
                     
                     return new CharacterDataEventImpl(output);
@@ -137,5 +147,22 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
             
             return event;
         }
+        
+        /**
+         * Send the page output written so far to the browser before waiting on a portlet
+         */
+        private void flushPendingOutput() {
+            final Flushable responseFlusher = (Flushable)this.request.getAttribute(DynamicRenderingPipeline.RESPONSE_FLUSHER_ATTRIBUTE);
+            if (responseFlusher == null) {
+                return;
+            }
+            
+            try {
+                responseFlusher.flush();
+            }
+            catch (IOException e) {
+                logger.debug("Failed to flush pending output before waiting on portlet output", e);
+            }
+        }
     }
 }
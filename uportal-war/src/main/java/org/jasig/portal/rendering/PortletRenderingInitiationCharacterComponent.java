@@ -19,9 +19,11 @@
 
 package org.jasig.portal.rendering;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -74,7 +76,8 @@ public class PortletRenderingInitiationCharacterComponent extends CharacterPipel
 
         final CharacterEventReader eventReader = pipelineEventReader.getEventReader();
         
-        final List<CharacterEvent> eventBuffer = new LinkedList<CharacterEvent>();
+        final List<CharacterEvent> eventBuffer = new ArrayList<CharacterEvent>();
+        final Set<IPortletWindowId> portletWindowIds = new LinkedHashSet<IPortletWindowId>();
         while (eventReader.hasNext()) {
             final CharacterEvent event = eventReader.next();
             
@@ -93,9 +96,8 @@ public class PortletRenderingInitiationCharacterComponent extends CharacterPipel
                     final PortletContentPlaceholderEvent headerEvent = (PortletContentPlaceholderEvent)event;
                     final IPortletWindowId portletWindowId = headerEvent.getPortletWindowId();
                     
-                    if (!this.portletExecutionManager.isPortletRenderRequested(portletWindowId, request, response)) {
-                        this.portletExecutionManager.startPortletRender(portletWindowId, request, response);
-                    }
+                    //Content rendering is started as a batch once all portlets on the page are known
+                    portletWindowIds.add(portletWindowId);
                     
                     break;
                 }
@@ -104,6 +106,8 @@ public class PortletRenderingInitiationCharacterComponent extends CharacterPipel
             eventBuffer.add(event);
         }
         
+        this.portletExecutionManager.startPortletRenders(portletWindowIds, request, response);
+        
         final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
         final CharacterEventBufferReader bufferEventReader = new CharacterEventBufferReader(eventBuffer.listIterator());
         return new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(bufferEventReader, outputProperties);
@@ -19,7 +19,9 @@
 
 package org.jasig.portal.rendering;
 
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -42,7 +44,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 /**
  * Initiates portlet rendering based each encountered {@link IUserLayoutManager#CHANNEL_HEADER} and
- * {@link IUserLayoutManager#CHANNEL} element in the event stream
+ * {@link IUserLayoutManager#CHANNEL} element in the event stream. Header rendering is started as
+ * each element is encountered, content rendering for all of the portlets is started as a single
+ * batch at the end of the document.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -90,6 +94,7 @@ public class PortletRenderingInitiationStAXComponent extends StAXPipelineCompone
     private class PortletRenderingXMLEventReader extends FilteringXMLEventReader {
         private final HttpServletRequest request;
         private final HttpServletResponse response;
+        private final Set<IPortletWindowId> portletWindowIds = new LinkedHashSet<IPortletWindowId>();
         
         public PortletRenderingXMLEventReader(HttpServletRequest request, HttpServletResponse response, XMLEventReader reader) {
             super(reader);
@@ -114,9 +119,10 @@ public class PortletRenderingInitiationStAXComponent extends StAXPipelineCompone
 					final IPortletWindow portletWindow = portletWindowAndElement.first;
                     final IPortletWindowId portletWindowId = portletWindow.getPortletWindowId();
 
+                    //Content rendering is started as a batch once all portlets on the page are known
                     if (!portletExecutionManager.isPortletRenderRequested(portletWindowId, this.request, this.response)) {
-                        portletExecutionManager.startPortletRender(portletWindowId, this.request, this.response);
-                        logger.debug("Initiated portlet markup rendering for: {}", portletWindow);
+                        this.portletWindowIds.add(portletWindowId);
+                        logger.debug("Queued portlet markup rendering for: {}", portletWindow);
                     }
                     else {
                         logger.debug("Portlet render already requested for: {}", portletWindow);
@@ -146,6 +152,11 @@ public class PortletRenderingInitiationStAXComponent extends StAXPipelineCompone
                     return portletWindowAndElement.second;
                 }
             } 
+        	else if (event.isEndDocument() && !this.portletWindowIds.isEmpty()) {
+        	    portletExecutionManager.startPortletRenders(this.portletWindowIds, this.request, this.response);
+        	    logger.debug("Initiated portlet markup rendering for {} portlets", this.portletWindowIds.size());
+        	    this.portletWindowIds.clear();
+        	}
             
             return event;
         }
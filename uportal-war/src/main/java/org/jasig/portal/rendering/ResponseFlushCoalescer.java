@@ -0,0 +1,117 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes page output to the response and decides when the response is flushed. The response is
+ * flushed once the threshold number of characters is pending, the max delay has passed since the
+ * last flush or the data contains one of the flush markers. {@link #flush()} flushes any pending
+ * output right away and is called by components that are about to block, see
+ * {@link DynamicRenderingPipeline#RESPONSE_FLUSHER_ATTRIBUTE}.
+ * <p>
+ * Not thread safe, only used by the thread rendering the page.
+ *
+ * @version $Revision$
+ */
+class ResponseFlushCoalescer implements Flushable {
+    private final PrintWriter writer;
+    private final HttpServletResponse response;
+    private final int flushThreshold;
+    private final long maxFlushDelay;
+    private final Set<String> flushMarkers;
+
+    private long written = 0;
+    private int pending = 0;
+    private int flushes = 0;
+    private long lastFlush = System.nanoTime();
+
+    /**
+     * @param maxFlushDelay Max delay between flushes in nanoseconds
+     */
+    public ResponseFlushCoalescer(PrintWriter writer, HttpServletResponse response, int flushThreshold, long maxFlushDelay, Set<String> flushMarkers) {
+        this.writer = writer;
+        this.response = response;
+        this.flushThreshold = flushThreshold;
+        this.maxFlushDelay = maxFlushDelay;
+        this.flushMarkers = flushMarkers;
+    }
+
+    /**
+     * Write the data to the response, flushing the response if needed
+     */
+    public void write(String data) throws IOException {
+        this.writer.print(data);
+        this.pending += data.length();
+        this.written += data.length();
+
+        if (this.pending >= this.flushThreshold || System.nanoTime() - this.lastFlush >= this.maxFlushDelay || this.containsFlushMarker(data)) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Flush the response if any output is pending
+     */
+    @Override
+    public void flush() throws IOException {
+        if (this.pending == 0) {
+            return;
+        }
+
+        this.writer.flush();
+        this.response.flushBuffer();
+        this.pending = 0;
+        this.flushes++;
+        this.lastFlush = System.nanoTime();
+    }
+
+    /**
+     * @return Number of characters written
+     */
+    public long getWritten() {
+        return this.written;
+    }
+
+    /**
+     * @return Number of times the response was flushed
+     */
+    public int getFlushes() {
+        return this.flushes;
+    }
+
+    /**
+     * @return true if the data contains any of the configured flush markers
+     */
+    protected boolean containsFlushMarker(String data) {
+        for (final String flushMarker : this.flushMarkers) {
+            if (data.contains(flushMarker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
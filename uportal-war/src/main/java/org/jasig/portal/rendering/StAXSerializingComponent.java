@@ -20,6 +20,7 @@
 package org.jasig.portal.rendering;
 
 import java.io.StringWriter;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,6 +41,7 @@ import org.jasig.portal.character.stream.events.CharacterEvent;
 import org.jasig.portal.utils.cache.CacheKey;
 import org.jasig.portal.xml.XmlUtilities;
 import org.jasig.portal.xml.stream.ChunkingEventReader;
+import org.jasig.portal.xml.stream.CompiledChunkingPatterns;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -59,7 +61,7 @@ public class StAXSerializingComponent implements CharacterPipelineComponent {
     
     private StAXPipelineComponent wrappedComponent;
     private Map<String, CharacterEventSource> chunkingElements;
-    private Map<Pattern, CharacterEventSource> chunkingPatterns;
+    private CompiledChunkingPatterns chunkingPatterns = new CompiledChunkingPatterns(Collections.<Pattern, CharacterEventSource>emptyMap());
 
     @Autowired
     public void setXmlUtilities(XmlUtilities xmlUtilities) {
@@ -84,7 +86,7 @@ public class StAXSerializingComponent implements CharacterPipelineComponent {
             compiledChunkingPatterns.put(pattern, value);
         }
         
-        this.chunkingPatterns = compiledChunkingPatterns;
+        this.chunkingPatterns = new CompiledChunkingPatterns(compiledChunkingPatterns);
     }
 
     @Override
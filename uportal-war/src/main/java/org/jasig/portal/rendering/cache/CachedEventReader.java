@@ -20,29 +20,52 @@
 package org.jasig.portal.rendering.cache;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Holder class for an event cache and output properties
+ * Holder class for an event cache and output properties. The events are frozen into an array
+ * when the holder is created to avoid the per-event node overhead of a linked list.
  */
 class CachedEventReader<E> implements Serializable {
     private static final long serialVersionUID = 1L;
     
-    private final List<E> eventCache;
+    private final Object[] eventCache;
     private final Map<String, String> outputProperties;
+    private final long estimatedSize;
 
     public CachedEventReader(List<E> eventCache, Map<String, String> outputProperties) {
-        this.eventCache = Collections.unmodifiableList(eventCache);
+        this(eventCache, outputProperties, -1);
+    }
+
+    public CachedEventReader(List<E> eventCache, Map<String, String> outputProperties, long estimatedSize) {
+        this.eventCache = eventCache.toArray();
         this.outputProperties = Collections.unmodifiableMap(outputProperties);
+        this.estimatedSize = estimatedSize;
     }
 
+    /**
+     * @return An unmodifiable, array backed, view of the cached events
+     */
+    @SuppressWarnings("unchecked")
     public List<E> getEventCache() {
-        return this.eventCache;
+        return (List<E>)Collections.unmodifiableList(Arrays.asList(this.eventCache));
+    }
+    
+    public int getEventCount() {
+        return this.eventCache.length;
     }
 
     public Map<String, String> getOutputProperties() {
         return this.outputProperties;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return Estimated heap size of the cached events in bytes, -1 if no estimate was made
+     */
+    public long getEstimatedSize() {
+        return this.estimatedSize;
+    }
+}
@@ -19,11 +19,16 @@
 
 package org.jasig.portal.rendering.cache;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ListIterator;
 
 import org.jasig.portal.character.stream.CharacterEventBufferReader;
 import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
 import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.CharacterEventTypes;
 import org.jasig.portal.rendering.CharacterPipelineComponent;
 
 /**
@@ -34,6 +39,45 @@ import org.jasig.portal.rendering.CharacterPipelineComponent;
  */
 public class CachingCharacterPipelineComponent extends CachingPipelineComponent<CharacterEventReader, CharacterEvent> implements CharacterPipelineComponent {
     
+    /**
+     * Merges runs of adjacent {@link CharacterDataEvent}s into a single event, only the placeholder
+     * events need to remain distinct.
+     */
+    @Override
+    protected List<CharacterEvent> compactEvents(List<CharacterEvent> eventBuffer) {
+        final List<CharacterEvent> compactedEvents = new ArrayList<CharacterEvent>();
+        
+        final StringBuilder data = new StringBuilder();
+        for (final CharacterEvent event : eventBuffer) {
+            if (event.getEventType() == CharacterEventTypes.CHARACTER) {
+                data.append(((CharacterDataEvent)event).getData());
+            }
+            else {
+                if (data.length() > 0) {
+                    compactedEvents.add(new CharacterDataEventImpl(data.toString()));
+                    data.setLength(0);
+                }
+                compactedEvents.add(event);
+            }
+        }
+        if (data.length() > 0) {
+            compactedEvents.add(new CharacterDataEventImpl(data.toString()));
+        }
+        
+        return compactedEvents;
+    }
+
+    @Override
+    protected long estimateEventSize(CharacterEvent event) {
+        if (event.getEventType() == CharacterEventTypes.CHARACTER) {
+            //event + String + char[] headers plus the character data
+            return 64 + ((CharacterDataEvent)event).getData().length() * 2;
+        }
+        
+        //Placeholder events only hold a reference to a shared portlet window id
+        return 32;
+    }
+
     @Override
     protected CharacterEventReader createEventReader(ListIterator<CharacterEvent> eventCache) {
         return new CharacterEventBufferReader(eventCache);
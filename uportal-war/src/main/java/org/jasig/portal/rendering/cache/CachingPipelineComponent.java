@@ -20,7 +20,6 @@
 package org.jasig.portal.rendering.cache;
 
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -93,30 +92,28 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
             cachedEventReader = (CachedEventReader<E>)element.getObjectValue();
         }
 
-        //If there was a cached reader return it immediately
+        //If there was no cached reader read through to the wrapped component
         if (cachedEventReader == null) {
             //No cached data for key, call target component to get events and an updated cache key
             logger.debug("{} - No cached events found for key {}, calling parent", this.beanName, cacheKey);
             final PipelineEventReader<R, E> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
-
-            //Copy the events from the reader into a buffer to be cached
-            final List<E> eventCache = new LinkedList<E>();
-            for (final E event : pipelineEventReader) {
-                eventCache.add(event);
-            }
-
             final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
-            cachedEventReader = new CachedEventReader<E>(eventCache, new LinkedHashMap<String, String>(outputProperties));
 
-            //Cache the buffer
-            element = new Element(cacheKey, cachedEventReader);
-            this.cache.put(element);
-            logger.debug("{} - Cached {} events for key {}", new Object[] {this.beanName, eventCache.size(), cacheKey});
-        }
-        else {
-            logger.debug("{} - Founed  cached events for key {}", new Object[] {this.beanName, cacheKey});
+            //Pass the events on as they are read, recording them to be cached once the reader is exhausted. A
+            //pipelined component behind this one keeps streaming instead of being read completely up front.
+            final RecordingEventIterator<E> recordingIterator = new RecordingEventIterator<E>(pipelineEventReader.iterator()) {
+                @Override
+                protected void complete(List<E> eventBuffer) {
+                    cacheEvents(cacheKey, eventBuffer, outputProperties);
+                }
+            };
+            
+            final R eventReader = this.createEventReader(recordingIterator);
+            return new PipelineEventReaderImpl<R, E>(eventReader, outputProperties);
         }
 
+        logger.debug("{} - Founed  cached events for key {}", new Object[] {this.beanName, cacheKey});
+
         final List<E> eventCache = cachedEventReader.getEventCache();
         final Map<String, String> outputProperties = cachedEventReader.getOutputProperties();
         
@@ -124,6 +121,39 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
         return new PipelineEventReaderImpl<R, E>(eventReader, outputProperties);
     }
     
+    /**
+     * Caches the events read from the wrapped component, called once all of the events have been read
+     */
+    protected void cacheEvents(CacheKey cacheKey, List<E> eventBuffer, Map<String, String> outputProperties) {
+        //Let the subclass compact the buffer and estimate its size before it is frozen
+        final List<E> eventCache = this.compactEvents(eventBuffer);
+        long estimatedSize = 0;
+        for (final E event : eventCache) {
+            estimatedSize += this.estimateEventSize(event);
+        }
+
+        final CachedEventReader<E> cachedEventReader = new CachedEventReader<E>(eventCache, new LinkedHashMap<String, String>(outputProperties), estimatedSize);
+
+        //Cache the buffer
+        final Element element = new Element(cacheKey, cachedEventReader);
+        this.cache.put(element);
+        logger.debug("{} - Cached {} events (~{} bytes) for key {}", new Object[] {this.beanName, cachedEventReader.getEventCount(), estimatedSize, cacheKey});
+    }
+    
+    /**
+     * Called before the buffered events are frozen into the cache, allows subclasses to merge or
+     * replace events to reduce the size of the cache entry. The default implementation returns the
+     * buffer unchanged.
+     */
+    protected List<E> compactEvents(List<E> eventBuffer) {
+        return eventBuffer;
+    }
+    
+    /**
+     * @return The approximate number of bytes the event will occupy on the heap
+     */
+    protected abstract long estimateEventSize(E event);
+    
     //Ugly!!! Needed because XMLEventReader implements Iterator but does not parameterize it
     protected abstract R createEventReader(ListIterator<E> eventCache);
 }
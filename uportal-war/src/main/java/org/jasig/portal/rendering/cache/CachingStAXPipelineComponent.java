@@ -19,9 +19,11 @@
 
 package org.jasig.portal.rendering.cache;
 
+import java.util.Iterator;
 import java.util.ListIterator;
 
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.XMLEvent;
 
 import org.jasig.portal.rendering.StAXPipelineComponent;
@@ -35,6 +37,30 @@ import org.jasig.portal.xml.stream.XMLEventBufferReader;
  */
 public class CachingStAXPipelineComponent extends CachingPipelineComponent<XMLEventReader, XMLEvent> implements StAXPipelineComponent {
 
+    @Override
+    protected long estimateEventSize(XMLEvent event) {
+        switch (event.getEventType()) {
+            case XMLEvent.CHARACTERS:
+            case XMLEvent.CDATA:
+            case XMLEvent.SPACE:
+            case XMLEvent.COMMENT: {
+                final String data = event.isCharacters() ? event.asCharacters().getData() : event.toString();
+                return 96 + data.length() * 2;
+            }
+            case XMLEvent.START_ELEMENT: {
+                long size = 128;
+                for (final Iterator<?> attributes = event.asStartElement().getAttributes(); attributes.hasNext();) {
+                    final Attribute attribute = (Attribute)attributes.next();
+                    size += 96 + attribute.getValue().length() * 2;
+                }
+                return size;
+            }
+            default: {
+                return 96;
+            }
+        }
+    }
+
     @Override
     protected XMLEventReader createEventReader(ListIterator<XMLEvent> eventCache) {
         return new XMLEventBufferReader(eventCache);
@@ -0,0 +1,119 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Passes through the events of a source iterator as they are read, recording each one. Once the source has
+ * been read to the end {@link #complete(List)} is called with all of the recorded events. Stepping back with
+ * {@link #previous()} replays recorded events, the iterator can not be modified.
+ * 
+ * @version $Revision$
+ */
+abstract class RecordingEventIterator<E> implements ListIterator<E> {
+    private final Iterator<E> source;
+    private final List<E> eventBuffer = new ArrayList<E>();
+    private int index = 0;
+    private boolean complete = false;
+    
+    public RecordingEventIterator(Iterator<E> source) {
+        this.source = source;
+    }
+    
+    /**
+     * Called once, after the last event has been read from the source
+     */
+    protected abstract void complete(List<E> eventBuffer);
+
+    @Override
+    public boolean hasNext() {
+        if (this.index < this.eventBuffer.size()) {
+            return true;
+        }
+        if (this.complete) {
+            return false;
+        }
+        if (this.source.hasNext()) {
+            return true;
+        }
+        
+        this.complete = true;
+        this.complete(this.eventBuffer);
+        return false;
+    }
+
+    @Override
+    public E next() {
+        if (this.index < this.eventBuffer.size()) {
+            return this.eventBuffer.get(this.index++);
+        }
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        
+        final E event = this.source.next();
+        this.eventBuffer.add(event);
+        this.index++;
+        return event;
+    }
+
+    @Override
+    public boolean hasPrevious() {
+        return this.index > 0;
+    }
+
+    @Override
+    public E previous() {
+        if (this.index == 0) {
+            throw new NoSuchElementException();
+        }
+        return this.eventBuffer.get(--this.index);
+    }
+
+    @Override
+    public int nextIndex() {
+        return this.index;
+    }
+
+    @Override
+    public int previousIndex() {
+        return this.index - 1;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void set(E e) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void add(E e) {
+        throw new UnsupportedOperationException();
+    }
+}
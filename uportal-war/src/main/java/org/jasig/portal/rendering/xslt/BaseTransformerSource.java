@@ -24,6 +24,7 @@ import java.io.Serializable;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 
@@ -111,6 +112,23 @@ public abstract class BaseTransformerSource implements TransformerSource, Resour
         }
     }
     
+    /* (non-Javadoc)
+     * @see org.jasig.portal.rendering.xslt.TransformerSource#getTemplates(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public final Templates getTemplates(HttpServletRequest request, HttpServletResponse response) {
+        final Resource stylesheetResource = this.getStylesheetResource(request);
+        try {
+            return this.xmlUtilities.getTemplates(stylesheetResource);
+        }
+        catch (TransformerConfigurationException e) {
+            throw new RuntimeException("Failed to get Templates for stylesheet: " + stylesheetResource, e);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to load stylesheet: " + stylesheetResource, e);
+        }
+    }
+    
     /**
      * Get the stylesheet description from the user preferences
      */
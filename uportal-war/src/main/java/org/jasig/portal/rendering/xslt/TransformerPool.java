@@ -0,0 +1,327 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering.xslt;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+
+import org.apache.commons.pool.BaseKeyedPoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.jasig.portal.utils.ConcurrentMapUtils;
+import org.jasig.portal.utils.cache.CacheKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Service;
+
+/**
+ * Pools configured {@link Transformer}s keyed by the stylesheet and the output properties they were configured
+ * with. A request that transforms with the same stylesheet and output properties as an earlier request reuses
+ * that request's transformer instead of creating a new one from the {@link Templates}.
+ * <p>
+ * Parameters are not part of the key, many of them are specific to the request or user. They are set on the
+ * transformer each time it is borrowed and cleared when it is returned so pooled transformers never hold on to
+ * request or user data.
+ * <p>
+ * Tracks per-stylesheet pool hit, miss and transform time statistics. Exposed via JMX as
+ * uPortal:section=Framework,name=TransformerPool
+ *
+ * @version $Revision$
+ */
+@Service("transformerPool")
+public class TransformerPool implements DisposableBean {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<String, StylesheetStatistics> stylesheetStatistics = new ConcurrentHashMap<String, StylesheetStatistics>();
+    private final GenericKeyedObjectPool pool;
+
+    public TransformerPool() {
+        this.pool = new GenericKeyedObjectPool(new PooledTransformerFactory());
+        this.pool.setMaxActive(-1);
+        this.pool.setMaxIdle(8);
+        this.pool.setMaxTotal(500);
+        this.pool.setTimeBetweenEvictionRunsMillis(TimeUnit.SECONDS.toMillis(60));
+        this.pool.setMinEvictableIdleTimeMillis(TimeUnit.MINUTES.toMillis(5));
+        this.pool.setNumTestsPerEvictionRun(this.pool.getMaxTotal() / 9);
+        this.pool.setWhenExhaustedAction(GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.pool.close();
+    }
+
+    /**
+     * Borrow a transformer configured with the parameters and output properties, the transformer must be passed
+     * to {@link #returnTransformer(PooledTransformer)} if the transform succeeds or to
+     * {@link #invalidateTransformer(PooledTransformer)} if it fails.
+     *
+     * @param stylesheetKey Key of the stylesheet, see {@link TransformerSource#getCacheKey(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)}
+     * @param templates Used to create a new transformer if there is no idle transformer with the same key
+     * @param parameters Parameters to configure the transformer with, null values are ignored, may be null
+     * @param outputProperties Output properties to configure the transformer with, may be null
+     */
+    public PooledTransformer borrowTransformer(CacheKey stylesheetKey, Templates templates, Map<String, Object> parameters, Properties outputProperties) {
+        final TransformerKey key = new TransformerKey(stylesheetKey, templates, outputProperties);
+        this.getStylesheetStatistics(key.stylesheetName).borrows.incrementAndGet();
+
+        final Transformer transformer;
+        try {
+            transformer = (Transformer)this.pool.borrowObject(key);
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to create Transformer for stylesheet: " + key.stylesheetName, e);
+        }
+
+        if (parameters != null) {
+            for (final Map.Entry<String, Object> parameterEntry : parameters.entrySet()) {
+                final Object value = parameterEntry.getValue();
+                if (value != null) {
+                    transformer.setParameter(parameterEntry.getKey(), value);
+                }
+            }
+        }
+
+        return new PooledTransformer(key, transformer);
+    }
+
+    /**
+     * Return a transformer after a successful transform so it can be reused, the parameters set on it are cleared
+     */
+    public void returnTransformer(PooledTransformer pooledTransformer) {
+        pooledTransformer.transformer.clearParameters();
+        try {
+            this.pool.returnObject(pooledTransformer.key, pooledTransformer.transformer);
+        }
+        catch (Exception e) {
+            this.logger.warn("Failed to return Transformer for stylesheet " + pooledTransformer.key.stylesheetName + " to the pool", e);
+        }
+    }
+
+    /**
+     * Discard a transformer after a failed transform
+     */
+    public void invalidateTransformer(PooledTransformer pooledTransformer) {
+        try {
+            this.pool.invalidateObject(pooledTransformer.key, pooledTransformer.transformer);
+        }
+        catch (Exception e) {
+            this.logger.warn("Failed to invalidate Transformer for stylesheet " + pooledTransformer.key.stylesheetName, e);
+        }
+    }
+
+    /**
+     * @param nanos Time spent transforming with the transformer
+     */
+    public void recordTransformTime(PooledTransformer pooledTransformer, long nanos) {
+        final StylesheetStatistics statistics = this.getStylesheetStatistics(pooledTransformer.key.stylesheetName);
+        statistics.transforms.incrementAndGet();
+        statistics.transformNanos.addAndGet(nanos);
+    }
+
+    public int getNumActive() {
+        return this.pool.getNumActive();
+    }
+
+    public int getNumIdle() {
+        return this.pool.getNumIdle();
+    }
+
+    public Map<String, Long> getHitCounts() {
+        final SortedMap<String, Long> hitCounts = new TreeMap<String, Long>();
+        for (final Map.Entry<String, StylesheetStatistics> statisticsEntry : this.stylesheetStatistics.entrySet()) {
+            final StylesheetStatistics statistics = statisticsEntry.getValue();
+            hitCounts.put(statisticsEntry.getKey(), Math.max(0, statistics.borrows.get() - statistics.misses.get()));
+        }
+        return hitCounts;
+    }
+
+    public Map<String, Long> getMissCounts() {
+        final SortedMap<String, Long> missCounts = new TreeMap<String, Long>();
+        for (final Map.Entry<String, StylesheetStatistics> statisticsEntry : this.stylesheetStatistics.entrySet()) {
+            missCounts.put(statisticsEntry.getKey(), statisticsEntry.getValue().misses.get());
+        }
+        return missCounts;
+    }
+
+    public Map<String, Double> getHitRatios() {
+        final SortedMap<String, Double> hitRatios = new TreeMap<String, Double>();
+        for (final Map.Entry<String, StylesheetStatistics> statisticsEntry : this.stylesheetStatistics.entrySet()) {
+            final StylesheetStatistics statistics = statisticsEntry.getValue();
+            final long borrows = statistics.borrows.get();
+            final long hits = Math.max(0, borrows - statistics.misses.get());
+            hitRatios.put(statisticsEntry.getKey(), borrows == 0 ? 0 : (double)hits / borrows);
+        }
+        return hitRatios;
+    }
+
+    public Map<String, Long> getTransformCounts() {
+        final SortedMap<String, Long> transformCounts = new TreeMap<String, Long>();
+        for (final Map.Entry<String, StylesheetStatistics> statisticsEntry : this.stylesheetStatistics.entrySet()) {
+            transformCounts.put(statisticsEntry.getKey(), statisticsEntry.getValue().transforms.get());
+        }
+        return transformCounts;
+    }
+
+    /**
+     * @return Mean transform time in milliseconds per stylesheet
+     */
+    public Map<String, Double> getMeanTransformTimes() {
+        final SortedMap<String, Double> transformTimes = new TreeMap<String, Double>();
+        for (final Map.Entry<String, StylesheetStatistics> statisticsEntry : this.stylesheetStatistics.entrySet()) {
+            final StylesheetStatistics statistics = statisticsEntry.getValue();
+            final long transforms = statistics.transforms.get();
+            final double transformMillis = statistics.transformNanos.get() / (double)TimeUnit.MILLISECONDS.toNanos(1);
+            transformTimes.put(statisticsEntry.getKey(), transforms == 0 ? 0 : transformMillis / transforms);
+        }
+        return transformTimes;
+    }
+
+    /**
+     * Reset the hit, miss and transform time statistics
+     */
+    public void resetStatistics() {
+        for (final StylesheetStatistics statistics : this.stylesheetStatistics.values()) {
+            statistics.borrows.set(0);
+            statistics.misses.set(0);
+            statistics.transforms.set(0);
+            statistics.transformNanos.set(0);
+        }
+    }
+
+    /**
+     * Discard all idle transformers
+     */
+    public void clear() {
+        this.pool.clear();
+    }
+
+    private StylesheetStatistics getStylesheetStatistics(String stylesheetName) {
+        StylesheetStatistics statistics = this.stylesheetStatistics.get(stylesheetName);
+        if (statistics == null) {
+            statistics = ConcurrentMapUtils.putIfAbsent(this.stylesheetStatistics, stylesheetName, new StylesheetStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * A transformer borrowed from the pool
+     */
+    public static final class PooledTransformer {
+        private final TransformerKey key;
+        private final Transformer transformer;
+
+        private PooledTransformer(TransformerKey key, Transformer transformer) {
+            this.key = key;
+            this.transformer = transformer;
+        }
+
+        public Transformer getTransformer() {
+            return this.transformer;
+        }
+    }
+
+    private class PooledTransformerFactory extends BaseKeyedPoolableObjectFactory {
+        @Override
+        public Object makeObject(Object key) throws Exception {
+            final TransformerKey transformerKey = (TransformerKey)key;
+            getStylesheetStatistics(transformerKey.stylesheetName).misses.incrementAndGet();
+
+            final Transformer transformer = transformerKey.templates.newTransformer();
+            if (!transformerKey.outputProperties.isEmpty()) {
+                transformer.setOutputProperties(transformerKey.outputProperties);
+            }
+
+            return transformer;
+        }
+    }
+
+    /**
+     * Identifies transformers for the same stylesheet configured with the same output properties. The
+     * {@link Templates} are only carried along to create new transformers.
+     */
+    private static final class TransformerKey {
+        private final CacheKey stylesheetKey;
+        private final String stylesheetName;
+        private final Templates templates;
+        private final Properties outputProperties;
+        private final int hash;
+
+        public TransformerKey(CacheKey stylesheetKey, Templates templates, Properties outputProperties) {
+            this.stylesheetKey = stylesheetKey;
+            this.stylesheetName = stylesheetKey.getSource();
+            this.templates = templates;
+
+            this.outputProperties = new Properties();
+            if (outputProperties != null) {
+                this.outputProperties.putAll(outputProperties);
+            }
+
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + this.stylesheetKey.hashCode();
+            result = prime * result + this.outputProperties.hashCode();
+            this.hash = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof TransformerKey)) {
+                return false;
+            }
+            final TransformerKey other = (TransformerKey) obj;
+            return this.hash == other.hash
+                    && this.stylesheetKey.equals(other.stylesheetKey)
+                    && this.outputProperties.equals(other.outputProperties);
+        }
+
+        @Override
+        public String toString() {
+            return "TransformerKey [stylesheetKey=" + this.stylesheetKey + ", outputProperties=" + this.outputProperties + "]";
+        }
+    }
+
+    private static final class StylesheetStatistics {
+        private final AtomicLong borrows = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong transforms = new AtomicLong();
+        private final AtomicLong transformNanos = new AtomicLong();
+    }
+}
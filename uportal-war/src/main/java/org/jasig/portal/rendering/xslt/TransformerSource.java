@@ -21,6 +21,7 @@ package org.jasig.portal.rendering.xslt;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 
 import org.jasig.portal.utils.cache.CacheKey;
@@ -35,6 +36,11 @@ public interface TransformerSource {
      */
     public Transformer getTransformer(HttpServletRequest request, HttpServletResponse response);
     
+    /**
+     * Gets the compiled XSLT Templates the Transformer is created from
+     */
+    public Templates getTemplates(HttpServletRequest request, HttpServletResponse response);
+    
     /**
      * Gets the CacheKey for the Transformer
      */
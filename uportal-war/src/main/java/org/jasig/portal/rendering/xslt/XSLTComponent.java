@@ -22,16 +22,21 @@ package org.jasig.portal.rendering.xslt;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.sax.SAXResult;
@@ -41,18 +46,25 @@ import org.apache.commons.logging.LogFactory;
 import org.jasig.portal.rendering.PipelineEventReader;
 import org.jasig.portal.rendering.PipelineEventReaderImpl;
 import org.jasig.portal.rendering.StAXPipelineComponentWrapper;
+import org.jasig.portal.rendering.xslt.TransformerPool.PooledTransformer;
 import org.jasig.portal.utils.cache.CacheKey;
 import org.jasig.portal.xml.ResourceLoaderURIResolver;
 import org.jasig.portal.xml.StaxUtils;
+import org.jasig.portal.xml.stream.PipedXMLEventReader;
 import org.jasig.portal.xml.stream.XMLEventBufferReader;
 import org.jasig.portal.xml.stream.XMLEventBufferWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ResourceLoaderAware;
+import org.springframework.context.i18n.LocaleContext;
+import org.springframework.context.i18n.LocaleContextHolder;
 import org.springframework.core.io.ResourceLoader;
 import org.springframework.util.xml.FixedXMLEventStreamReader;
 import org.springframework.util.xml.SimpleTransformErrorListener;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.helpers.LocatorImpl;
 
@@ -68,6 +80,13 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
     private TransformerSource transformerSource;
     private TransformerConfigurationSource xsltParameterSource;
     
+    private TransformerPool transformerPool;
+    private Executor pipelineExecutor;
+    private boolean pipelined = false;
+    private int pipelineBatchSize = 256;
+    private int pipelineCapacity = 16;
+    private long pipelineTimeout = TimeUnit.SECONDS.toMillis(30);
+    
     private String beanName;
     
     public XSLTComponent() {
@@ -81,6 +100,50 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
         this.transformerSource = transformerSource;
     }
     
+    /**
+     * If set Transformers are borrowed from the pool instead of being created by the {@link TransformerSource}
+     * for every request
+     */
+    @Autowired(required=false)
+    public void setTransformerPool(TransformerPool transformerPool) {
+        this.transformerPool = transformerPool;
+    }
+    /**
+     * Executor used to run the transform when {@link #setPipelined(boolean)} is true. If the executor
+     * rejects the transform it is run on the calling thread.
+     */
+    public void setPipelineExecutor(Executor pipelineExecutor) {
+        this.pipelineExecutor = pipelineExecutor;
+    }
+    /**
+     * If true the transform runs on the {@link #setPipelineExecutor(Executor)} while the following
+     * components consume the output events as they are produced. If false (the default) the complete output
+     * of the transform is buffered before it is returned.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+    /**
+     * Number of output events handed to the consuming thread at a time in pipelined mode, defaults to 256
+     */
+    public void setPipelineBatchSize(int pipelineBatchSize) {
+        this.pipelineBatchSize = pipelineBatchSize;
+    }
+    /**
+     * Number of batches that can wait for the consuming thread before the transform blocks in pipelined mode,
+     * defaults to 16
+     */
+    public void setPipelineCapacity(int pipelineCapacity) {
+        this.pipelineCapacity = pipelineCapacity;
+    }
+    /**
+     * Milliseconds the transform and the consuming thread wait for each other before failing in pipelined
+     * mode, defaults to 30 seconds
+     */
+    public void setPipelineTimeout(long pipelineTimeout) {
+        this.pipelineTimeout = pipelineTimeout;
+    }
+    
     @Override
     public void setBeanName(String name) {
         this.beanName = name;
@@ -98,30 +161,16 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
     public PipelineEventReader<XMLEventReader, XMLEvent> getEventReader(HttpServletRequest request, HttpServletResponse response) {
         final PipelineEventReader<XMLEventReader, XMLEvent> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
         
-        final Transformer transformer = this.transformerSource.getTransformer(request, response);
-        
-        //Setup a URIResolver based on the current resource loader
-        transformer.setURIResolver(this.uriResolver);
-        
-        //Configure the Transformer via injected class
+        //Get the Transformer configuration via injected class
+        final Map<String, Object> transformerParameters;
+        final Properties transformerOutputProperties;
         if (this.xsltParameterSource != null) {
-            final Map<String, Object> transformerParameters = this.xsltParameterSource.getParameters(request, response);
-            if (transformerParameters != null) {
-                this.logger.debug("{} - Setting Transformer Parameters: ", this.beanName, transformerParameters);
-                for (final Map.Entry<String, Object> transformerParametersEntry : transformerParameters.entrySet()) {
-                    final String name = transformerParametersEntry.getKey();
-                    final Object value = transformerParametersEntry.getValue();
-                    if (value != null) {
-                        transformer.setParameter(name, value);
-                    }
-                }
-            }
-            
-            final Properties outputProperties = this.xsltParameterSource.getOutputProperties(request, response);
-            if (outputProperties != null) {
-                this.logger.debug("{} - Setting Transformer Output Properties: ", this.beanName, outputProperties);
-                transformer.setOutputProperties(outputProperties);
-            }
+            transformerParameters = this.xsltParameterSource.getParameters(request, response);
+            transformerOutputProperties = this.xsltParameterSource.getOutputProperties(request, response);
+        }
+        else {
+            transformerParameters = null;
+            transformerOutputProperties = null;
         }
 
         //The event reader from the previous component in the pipeline
@@ -137,33 +186,156 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
         }
         final Source xmlReaderSource = new StAXSource(streamReader);
         
+        final PooledTransformer pooledTransformer;
+        final Transformer transformer;
+        if (this.transformerPool != null) {
+            //Reuse a Transformer created for the same stylesheet and output properties, the pool sets the parameters
+            final CacheKey stylesheetKey = this.transformerSource.getCacheKey(request, response);
+            final Templates templates = this.transformerSource.getTemplates(request, response);
+            pooledTransformer = this.transformerPool.borrowTransformer(stylesheetKey, templates, transformerParameters, transformerOutputProperties);
+            transformer = pooledTransformer.getTransformer();
+        }
+        else {
+            pooledTransformer = null;
+            transformer = this.transformerSource.getTransformer(request, response);
+            this.configureTransformer(transformer, transformerParameters, transformerOutputProperties);
+        }
+        
+        //Setup a URIResolver based on the current resource loader
+        transformer.setURIResolver(this.uriResolver);
+        
         //Setup logging for the transform
         transformer.setErrorListener(this.errorListener);
+        
+        //Output properties declared by the stylesheet are available before the transform runs
+        final String mediaType = transformer.getOutputProperty(OutputKeys.MEDIA_TYPE);
 
-        //Transform to a SAX ContentHandler to avoid JDK bug: http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6775588
+        XMLEventReader outputEventReader = null;
+        if (this.pipelined && this.pipelineExecutor != null) {
+            outputEventReader = this.startPipelinedTransform(pooledTransformer, transformer, xmlReaderSource);
+        }
+        if (outputEventReader == null) {
+            outputEventReader = this.bufferedTransform(pooledTransformer, transformer, xmlReaderSource);
+        }
+        
+        final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
+        final PipelineEventReaderImpl<XMLEventReader, XMLEvent> pipelineEventReaderImpl = new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(outputEventReader, outputProperties);
+        pipelineEventReaderImpl.setOutputProperty(OutputKeys.MEDIA_TYPE, mediaType);
+        return pipelineEventReaderImpl;
+    }
+    
+    /**
+     * Sets the parameters and output properties on a Transformer that was not provided by the {@link TransformerPool}
+     */
+    protected void configureTransformer(Transformer transformer, Map<String, Object> transformerParameters, Properties transformerOutputProperties) {
+        if (transformerParameters != null) {
+            this.logger.debug("{} - Setting Transformer Parameters: ", this.beanName, transformerParameters);
+            for (final Map.Entry<String, Object> transformerParametersEntry : transformerParameters.entrySet()) {
+                final String name = transformerParametersEntry.getKey();
+                final Object value = transformerParametersEntry.getValue();
+                if (value != null) {
+                    transformer.setParameter(name, value);
+                }
+            }
+        }
+        
+        if (transformerOutputProperties != null) {
+            this.logger.debug("{} - Setting Transformer Output Properties: ", this.beanName, transformerOutputProperties);
+            transformer.setOutputProperties(transformerOutputProperties);
+        }
+    }
+    
+    /**
+     * Runs the complete transform on the calling thread, buffering all of the output events
+     */
+    protected XMLEventReader bufferedTransform(PooledTransformer pooledTransformer, Transformer transformer, Source xmlReaderSource) {
         final XMLEventBufferWriter eventWriterBuffer = new XMLEventBufferWriter();
-        final ContentHandler contentHandler = StaxUtils.createLexicalContentHandler(eventWriterBuffer);
-        contentHandler.setDocumentLocator(new LocatorImpl());
         
-        final SAXResult outputTarget = new SAXResult(contentHandler);
         try {
-            this.logger.debug("{} - Begining XML Transformation", this.beanName);
-            transformer.transform(xmlReaderSource, outputTarget);
-            this.logger.debug("{} - XML Transformation complete", this.beanName);
+            this.transform(pooledTransformer, transformer, xmlReaderSource, eventWriterBuffer);
         }
         catch (TransformerException e) {
             throw new RuntimeException("Failed to transform document", e);
         }
         
-        final String mediaType = transformer.getOutputProperty(OutputKeys.MEDIA_TYPE);
-        
         final List<XMLEvent> eventBuffer = eventWriterBuffer.getEventBuffer();
-        final XMLEventReader outputEventReader = new XMLEventBufferReader(eventBuffer.listIterator()); 
+        return new XMLEventBufferReader(eventBuffer.listIterator()); 
+    }
+    
+    /**
+     * Starts the transform on the pipeline executor, the returned reader provides the output events as they
+     * are produced.
+     * 
+     * @return The reader for the output of the transform, null if the executor rejected the transform
+     */
+    protected XMLEventReader startPipelinedTransform(final PooledTransformer pooledTransformer, final Transformer transformer, final Source xmlReaderSource) {
+        final PipedXMLEventReader pipedEventReader = new PipedXMLEventReader(this.pipelineBatchSize, this.pipelineCapacity, this.pipelineTimeout);
         
-        final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
-        final PipelineEventReaderImpl<XMLEventReader, XMLEvent> pipelineEventReaderImpl = new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(outputEventReader, outputProperties);
-        pipelineEventReaderImpl.setOutputProperty(OutputKeys.MEDIA_TYPE, mediaType);
-        return pipelineEventReaderImpl;
+        //Extension functions called by the stylesheet may rely on the request bound to the thread
+        final RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+        final LocaleContext localeContext = LocaleContextHolder.getLocaleContext();
+        
+        final Runnable transformTask = new Runnable() {
+            @Override
+            public void run() {
+                RequestContextHolder.setRequestAttributes(requestAttributes);
+                LocaleContextHolder.setLocaleContext(localeContext);
+                try {
+                    final XMLEventWriter eventWriter = pipedEventReader.getEventWriter();
+                    transform(pooledTransformer, transformer, xmlReaderSource, eventWriter);
+                    eventWriter.close();
+                }
+                catch (Throwable t) {
+                    logger.debug(beanName + " - Pipelined XML Transformation failed", t);
+                    pipedEventReader.fail(t);
+                }
+                finally {
+                    LocaleContextHolder.resetLocaleContext();
+                    RequestContextHolder.resetRequestAttributes();
+                }
+            }
+        };
+        
+        try {
+            this.pipelineExecutor.execute(transformTask);
+        }
+        catch (RejectedExecutionException e) {
+            this.logger.debug("{} - Pipeline executor is saturated, falling back to buffered XML Transformation", this.beanName);
+            return null;
+        }
+        
+        return pipedEventReader;
+    }
+    
+    /**
+     * Transform to a SAX ContentHandler to avoid JDK bug: http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6775588
+     * If the Transformer came from the {@link TransformerPool} it is returned to the pool after a successful
+     * transform and discarded after a failed one.
+     */
+    protected void transform(PooledTransformer pooledTransformer, Transformer transformer, Source xmlReaderSource, XMLEventWriter eventWriter) throws TransformerException {
+        final ContentHandler contentHandler = StaxUtils.createLexicalContentHandler(eventWriter);
+        contentHandler.setDocumentLocator(new LocatorImpl());
+        
+        final SAXResult outputTarget = new SAXResult(contentHandler);
+        this.logger.debug("{} - Begining XML Transformation", this.beanName);
+        final long start = System.nanoTime();
+        boolean transformed = false;
+        try {
+            transformer.transform(xmlReaderSource, outputTarget);
+            transformed = true;
+        }
+        finally {
+            if (pooledTransformer != null) {
+                if (transformed) {
+                    this.transformerPool.recordTransformTime(pooledTransformer, System.nanoTime() - start);
+                    this.transformerPool.returnTransformer(pooledTransformer);
+                }
+                else {
+                    this.transformerPool.invalidateTransformer(pooledTransformer);
+                }
+            }
+        }
+        this.logger.debug("{} - XML Transformation complete", this.beanName);
     }
 
     @Override
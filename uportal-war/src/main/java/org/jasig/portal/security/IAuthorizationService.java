@@ -19,6 +19,8 @@
 
 package org.jasig.portal.security;
 
+import java.util.Collection;
+import java.util.Set;
 import java.util.Vector;
 
 import org.jasig.portal.AuthorizationException;
@@ -77,6 +79,16 @@ public interface IAuthorizationService
  */
     public boolean canPrincipalRender(IAuthorizationPrincipal principal, String channelPublishId)
     throws AuthorizationException;
+/**
+ * Answers which of the Channels the principal has permission to render.  The
+ * principal's permissions are resolved once for the whole collection.
+ * @return the renderable channel publish ids, in iteration order of the argument
+ * @param principal IAuthorizationPrincipal
+ * @param channelPublishIds the Channel publish ids to check
+ * @exception AuthorizationException indicates authorization information could not be retrieved.
+ */
+    public Set<String> getRenderablePortlets(IAuthorizationPrincipal principal, Collection<String> channelPublishIds)
+    throws AuthorizationException;
 /**
  * Answers if the principal has permission to subscribe to this Channel.
  * @return boolean
@@ -21,16 +21,22 @@ package org.jasig.portal.security.provider;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.sf.ehcache.CacheException;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.constructs.blocking.CacheEntryFactory;
 import net.sf.ehcache.constructs.blocking.SelfPopulatingCache;
+import net.sf.ehcache.event.CacheEventListener;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,6 +44,10 @@ import org.jasig.portal.AuthorizationException;
 import org.jasig.portal.EntityTypes;
 import org.jasig.portal.concurrency.CachingException;
 import org.jasig.portal.concurrency.caching.RequestCache;
+import org.jasig.portal.concurrency.invalidation.IInvalidationBus;
+import org.jasig.portal.concurrency.invalidation.IInvalidationListener;
+import org.jasig.portal.concurrency.invalidation.InvalidationMessage;
+import org.jasig.portal.concurrency.invalidation.InvalidationType;
 import org.jasig.portal.groups.GroupsException;
 import org.jasig.portal.groups.IEntityGroup;
 import org.jasig.portal.groups.IGroupMember;
@@ -59,7 +69,6 @@ import org.jasig.portal.services.GroupService;
 import org.jasig.portal.spring.locator.PortletCategoryRegistryLocator;
 import org.jasig.portal.utils.Tuple;
 import org.jasig.portal.utils.cache.CacheFactory;
-import org.jasig.portal.utils.cache.CacheKey;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -95,14 +104,26 @@ public class AuthorizationImpl implements IAuthorizationService {
     /** The cache to hold the list of principals. */
     private Ehcache entityParentsCache;
 
-    /** The cache to hold permission resolution. */
-    private Ehcache doesPrincipalHavePermissionCache;
+    /** The cache to hold the effective permission index of each principal. */
+    private Ehcache effectivePermissionIndexCache;
+
+    /** Incremented each time indexes are invalidated, used to detect indexes built from stale data. */
+    private final AtomicLong effectivePermissionIndexGeneration = new AtomicLong();
+
+    /** Reverse index of the principal strings and group keys the cached effective permission indexes depend on. */
+    private final EffectivePermissionIndexDependents effectivePermissionIndexDependents = new EffectivePermissionIndexDependents();
+
+    /** Invalidates effective permission indexes when the permissions or groups they were built from change. */
+    private final CacheEventListener effectivePermissionIndexInvalidator = new EffectivePermissionIndexInvalidator();
 
     /** The class representing the permission set type. */
     private static final Class<IPermissionSet> PERMISSION_SET_TYPE = IPermissionSet.class;
 
     /** variable to determine if we should cache permissions or not. */
     private boolean cachePermissions = true;
+
+    /** Replicates permission changes to the other servers in the cluster. */
+    private IInvalidationBus invalidationBus;
     
     
     @Autowired
@@ -132,8 +153,38 @@ public class AuthorizationImpl implements IAuthorizationService {
         this.entityParentsCache = entityParentsCache;
     }
     @Autowired
-    public void setDoesPrincipalHavePermissionCache(@Qualifier("org.jasig.portal.security.provider.AuthorizationImpl.PRINCIPAL_HAS_PERMISSION") Ehcache doesPrincipalHavePermissionCache) {
-        this.doesPrincipalHavePermissionCache = doesPrincipalHavePermissionCache;
+    public void setEffectivePermissionIndexCache(@Qualifier("org.jasig.portal.security.provider.AuthorizationImpl.EFFECTIVE_PERMISSION_INDEX") Ehcache effectivePermissionIndexCache) {
+        this.effectivePermissionIndexCache = effectivePermissionIndexCache;
+        effectivePermissionIndexCache.getCacheEventNotificationService().registerListener(this.effectivePermissionIndexDependents);
+    }
+    /**
+     * Permission set changes, including invalidations replicated from other servers, discard the affected indexes
+     */
+    @Autowired
+    public void setPermissionSetCache(@Qualifier("org.jasig.portal.security.IPermissionSet") Ehcache permissionSetCache) {
+        permissionSetCache.getCacheEventNotificationService().registerListener(this.effectivePermissionIndexInvalidator);
+    }
+    /**
+     * Group and group membership changes, including invalidations replicated from other servers, discard the affected indexes
+     */
+    @Autowired
+    public void setEntityGroupCache(@Qualifier("org.jasig.portal.groups.IEntityGroup") Ehcache entityGroupCache) {
+        entityGroupCache.getCacheEventNotificationService().registerListener(this.effectivePermissionIndexInvalidator);
+    }
+    /**
+     * Group membership changes for entities, including invalidations replicated from other servers, discard the affected indexes
+     */
+    @Autowired
+    public void setEntityCache(@Qualifier("org.jasig.portal.groups.IEntity") Ehcache entityCache) {
+        entityCache.getCacheEventNotificationService().registerListener(this.effectivePermissionIndexInvalidator);
+    }
+    /**
+     * Permission changes made on other servers discard the cached permission set and affected indexes
+     */
+    @Autowired
+    public void setInvalidationBus(IInvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+        invalidationBus.registerListener(InvalidationType.PERMISSION, new PermissionInvalidationListener());
     }
     @Autowired
     public void setPortletDefinitionRegistry(IPortletDefinitionRegistry portletDefinitionRegistry) {
@@ -153,6 +204,7 @@ throws AuthorizationException
         getPermissionStore().add(permissions);
         if ( this.cachePermissions )
             { removeFromPermissionsCache(permissions); }
+        invalidateEffectivePermissionIndexes(permissions);
     }
 }
 
@@ -370,36 +422,99 @@ public boolean canPrincipalSubscribe(IAuthorizationPrincipal principal, String p
     String owner = IPermission.PORTAL_SUBSCRIBE;
     String target = IPermission.PORTLET_PREFIX + portletDefinitionId;
     
+    String permission = getSubscribeActivity(portletDefinitionId);
+    if (permission == null){
+    	return false;
+    }
+
+    // test the appropriate permission
+    return doesPrincipalHavePermission(principal, owner, permission, target);
+
+}
+
+/**
+ * Returns the ids of the portlets the principal has permission to RENDER.  Equivalent
+ * to calling {@link #canPrincipalRender(IAuthorizationPrincipal, String)} for each id
+ * but resolves the principal's permissions once for the whole set.  A portlet that can't
+ * be checked, for example an invalid id or an unrecognized lifecycle state, is logged and
+ * is not renderable so it doesn't prevent checking the other portlets.
+ * @return Set of the renderable portlet definition ids, in iteration order of the argument
+ * @param principal IAuthorizationPrincipal
+ * @param portletDefinitionIds Collection of portlet definition ids
+ * @exception AuthorizationException indicates authorization information could not be retrieved.
+ */
+@Override
+public Set<String> getRenderablePortlets(IAuthorizationPrincipal principal, Collection<String> portletDefinitionIds)
+throws AuthorizationException
+{
+    final Set<String> renderable = new LinkedHashSet<String>();
+    if (portletDefinitionIds.isEmpty()) {
+        return renderable;
+    }
+
+    final IPermissionPolicy policy = getDefaultPermissionPolicy();
+    final EffectivePermissionIndex index = this.cachePermissions ? getEffectivePermissionIndex(principal) : null;
+    
+    for (final String portletDefinitionId : portletDefinitionIds) {
+        final boolean canRender;
+        try {
+            final String permission = getSubscribeActivity(portletDefinitionId);
+            if (permission == null) {
+                continue;
+            }
+    
+            final String target = IPermission.PORTLET_PREFIX + portletDefinitionId;
+            if (index == null) {
+                canRender = policy.doesPrincipalHavePermission(this, principal, IPermission.PORTAL_SUBSCRIBE, permission, target);
+            }
+            else {
+                canRender = doesPrincipalHavePermission(index, principal, IPermission.PORTAL_SUBSCRIBE, permission, target, policy);
+            }
+        }
+        catch (RuntimeException e) {
+            log.warn("Unable to check if " + principal + " can render portlet " + portletDefinitionId + ", it will not be rendered", e);
+            continue;
+        }
+        
+        if (canRender) {
+            renderable.add(portletDefinitionId);
+        }
+    }
+    
+    return renderable;
+}
+
+/**
+ * Returns the SUBSCRIBE activity for the current lifecycle state of the portlet.  Each
+ * lifecycle state has its own subscribe permission.
+ * @return The activity to check or null if the portlet does not exist
+ * @param portletDefinitionId String
+ * @exception AuthorizationException if the lifecycle state of the portlet is not recognized
+ */
+private String getSubscribeActivity(String portletDefinitionId)
+throws AuthorizationException
+{
     // retrieve the indicated channel from the channel registry store and 
     // determine its current lifecycle state
     IPortletDefinition portlet = this.portletDefinitionRegistry.getPortletDefinition(portletDefinitionId);
     if (portlet == null){
-    	return false;
+    	return null;
     }    
     PortletLifecycleState state = portlet.getLifecycleState();
     
-    /*
-     * Each channel lifecycle state now has its own subscribe permission.  The
-     * following logic checks the appropriate permission for the lifecycle.
-     */
-    String permission;
     if (state.equals(PortletLifecycleState.PUBLISHED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_ACTIVITY;
+    	return IPermission.PORTLET_SUBSCRIBER_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.APPROVED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY;
+    	return IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.CREATED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_CREATED_ACTIVITY;
+    	return IPermission.PORTLET_SUBSCRIBER_CREATED_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.EXPIRED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_EXPIRED_ACTIVITY;
+    	return IPermission.PORTLET_SUBSCRIBER_EXPIRED_ACTIVITY;
     } else {
 			throw new AuthorizationException(
 					"Unrecognized lifecycle state for channel "
 							+ portletDefinitionId);
     }
-
-    // test the appropriate permission
-    return doesPrincipalHavePermission(principal, owner, permission, target);
-
 }
 
 /**
@@ -444,21 +559,40 @@ throws AuthorizationException
     @RequestCache
     public boolean doesPrincipalHavePermission(IAuthorizationPrincipal principal, String owner, String activity,
             String target, IPermissionPolicy policy) throws AuthorizationException {
-        final CacheKey key = new CacheKey("AuthorizationImpl", policy.getClass(), principal.getKey(),
-                principal.getType(), owner, activity, target);
+        if (!this.cachePermissions) {
+            return policy.doesPrincipalHavePermission(this, principal, owner, activity, target);
+        }
 
-        final Element element = this.doesPrincipalHavePermissionCache.get(key);
-        if (element != null) {
-            return (Boolean) element.getValue();
+        final EffectivePermissionIndex index = this.getEffectivePermissionIndex(principal);
+        return this.doesPrincipalHavePermission(index, principal, owner, activity, target, policy);
+    }
+
+    /**
+     * Answers the permission question from the decisions memoized in the principal's
+     * effective permission index, evaluating and memoizing the policy decision on a miss.
+     */
+    private boolean doesPrincipalHavePermission(EffectivePermissionIndex index, IAuthorizationPrincipal principal,
+            String owner, String activity, String target, IPermissionPolicy policy) throws AuthorizationException {
+        final Boolean decision = index.getDecision(policy, owner, activity, target);
+        if (decision != null) {
+            return decision;
         }
 
+        final long generation = this.effectivePermissionIndexGeneration.get();
         final boolean doesPrincipalHavePermission = policy.doesPrincipalHavePermission(this,
                 principal,
                 owner,
                 activity,
                 target);
         
-        this.doesPrincipalHavePermissionCache.put(new Element(key, doesPrincipalHavePermission));
+        final Set<String> targetGroupKeys = target != null ? this.getContainingGroupKeys(target) : Collections.<String>emptySet();
+        index.putDecision(policy, owner, activity, target, targetGroupKeys, doesPrincipalHavePermission);
+        this.effectivePermissionIndexDependents.registerDecisionDependencies(index, targetGroupKeys);
+        
+        // Something the decision may depend on changed while deciding, don't keep the decision around
+        if (generation != this.effectivePermissionIndexGeneration.get()) {
+            this.effectivePermissionIndexCache.remove(index.getPrincipalString());
+        }
 
         return doesPrincipalHavePermission;
     }
@@ -487,6 +621,13 @@ public IPermission[] getAllPermissionsForPrincipal
     String target)
 throws AuthorizationException
 {
+    if ( this.cachePermissions && owner != null && activity != null && target != null )
+    {
+        // All inherited permissions have already been flattened into the principal's index
+        final EffectivePermissionIndex index = getEffectivePermissionIndex(principal);
+        return index.getEffectivePermissions(owner, activity, getTargetAndContainingGroupKeys(target));
+    }
+
     IPermission[] perms = getPermissionsForPrincipal(principal, owner, activity, target);
     ArrayList<IPermission> al = new ArrayList<IPermission>(Arrays.asList(perms));
     Iterator i = getInheritedPrincipals(principal);
@@ -887,42 +1028,30 @@ throws AuthorizationException
      * criteria.
      */
 
+    if ( this.cachePermissions && owner != null && activity != null && target != null )
+    {
+        // Exact owner, activity and target lookups are served from the principal's index
+        final EffectivePermissionIndex index = getEffectivePermissionIndex(principal);
+        final IPermission[] indexed = index.getPrincipalPermissions(owner, activity, getTargetAndContainingGroupKeys(target));
+        if (log.isTraceEnabled()) {
+            log.trace(
+                    "AuthorizationImpl.primGetPermissionsForPrincipal(): " +
+                    "Principal: " + principal + " owner: " + owner +
+                    " activity: " + activity + " target: " + target + " : indexed permissions retrieved: " + Arrays.toString(indexed));
+        }
+        return indexed;
+    }
+
     IPermission[] perms = primGetPermissionsForPrincipal(principal);
     if ( owner == null && activity == null && target == null )
         { return perms; }
 
-	Set<String> containingGroups;
+	final Set<String> containingGroups;
 	
 	if (target != null) {
-		
-        final Element element = this.entityParentsCache.get(target);
-        if (element != null) {
-            containingGroups = (Set<String>) element.getObjectValue();
-        }
-        else {
-        	containingGroups = new HashSet<String>();
-        	IGroupMember targetEntity = GroupService.findGroup(target);
-    		if (targetEntity == null) {
-    			if (target.startsWith(IPermission.PORTLET_PREFIX)) {
-    				targetEntity = GroupService.getGroupMember(target.replace(IPermission.PORTLET_PREFIX, ""), IPortletDefinition.class);
-    			} else {
-    				targetEntity = GroupService.getGroupMember(target, IPerson.class);
-    			}
-    		}
-    		
-    		if (targetEntity != null) {
-    			for (Iterator containing = targetEntity.getAllContainingGroups(); containing.hasNext();) {
-    				containingGroups.add(((IEntityGroup)containing.next()).getKey());
-    			}
-    		}
-    		
-    		this.entityParentsCache.put(new Element(target, containingGroups));
-        	
-        }
-
-		
+		containingGroups = getContainingGroupKeys(target);
 	} else {
-		containingGroups = new HashSet<String>();
+		containingGroups = Collections.emptySet();
 	}
 
     List<IPermission> al = new ArrayList<IPermission>(perms.length);
@@ -964,6 +1093,134 @@ throws AuthorizationException
 
 }
 
+/**
+ * Returns the keys of all groups containing the permission target, the target may
+ * be a group key, a portlet target or a person key.
+ * @return Set of group keys
+ * @param target String
+ */
+private Set<String> getContainingGroupKeys(String target)
+throws GroupsException
+{
+    final Element element = this.entityParentsCache.get(target);
+    if (element != null) {
+        return (Set<String>) element.getObjectValue();
+    }
+
+    final Set<String> containingGroups = new HashSet<String>();
+    IGroupMember targetEntity = GroupService.findGroup(target);
+    if (targetEntity == null) {
+        if (target.startsWith(IPermission.PORTLET_PREFIX)) {
+            targetEntity = GroupService.getGroupMember(target.replace(IPermission.PORTLET_PREFIX, ""), IPortletDefinition.class);
+        } else {
+            targetEntity = GroupService.getGroupMember(target, IPerson.class);
+        }
+    }
+
+    if (targetEntity != null) {
+        for (Iterator containing = targetEntity.getAllContainingGroups(); containing.hasNext();) {
+            containingGroups.add(((IEntityGroup)containing.next()).getKey());
+        }
+    }
+
+    this.entityParentsCache.put(new Element(target, containingGroups));
+    return containingGroups;
+}
+
+/**
+ * @return The target and the keys of all groups containing it, permissions on
+ * any of them apply to the target.
+ * @param target String
+ */
+private Set<String> getTargetAndContainingGroupKeys(String target)
+throws GroupsException
+{
+    final Set<String> containingGroups = getContainingGroupKeys(target);
+    final Set<String> targets = new HashSet<String>(containingGroups.size() + 1);
+    targets.add(target);
+    targets.addAll(containingGroups);
+    return targets;
+}
+
+/**
+ * Returns the effective permission index for the principal.  The index flattens
+ * the permissions of the principal and of all the groups it inherits from and
+ * memoizes permission decisions for the principal.  Built on first use and kept
+ * until one of the permissions or groups it was built from changes.
+ * @return EffectivePermissionIndex
+ * @param principal IAuthorizationPrincipal
+ */
+private EffectivePermissionIndex getEffectivePermissionIndex(IAuthorizationPrincipal principal)
+throws AuthorizationException
+{
+    final String principalString = getPrincipalString(principal);
+    final Element element = this.effectivePermissionIndexCache.get(principalString);
+    if (element != null) {
+        final EffectivePermissionIndex index = (EffectivePermissionIndex) element.getObjectValue();
+        if (index.isCurrent()) {
+            return index;
+        }
+    }
+
+    final long generation = this.effectivePermissionIndexGeneration.get();
+
+    final EffectivePermissionIndex index = new EffectivePermissionIndex(principalString, principal.getKey(), primGetPermissionsForPrincipal(principal));
+    try
+    {
+        for (final Iterator i = getGroupsForPrincipal(principal); i.hasNext(); )
+        {
+            final IEntityGroup group = (IEntityGroup) i.next();
+            final IAuthorizationPrincipal groupPrincipal = getPrincipalForGroup(group);
+            index.addInheritedPermissions(getPrincipalString(groupPrincipal), group.getKey(), primGetPermissionsForPrincipal(groupPrincipal));
+        }
+    }
+    catch ( GroupsException ge )
+        { throw new AuthorizationException("Could not retrieve Groups for " + principal, ge); }
+
+    // Only share the index if nothing it may have been built from changed while building it
+    if (generation == this.effectivePermissionIndexGeneration.get()) {
+        this.effectivePermissionIndexCache.put(new Element(principalString, index));
+    }
+
+    if (log.isDebugEnabled()) {
+        log.debug("AuthorizationImpl.getEffectivePermissionIndex(): built " + index + " for principal [" + principal + "]");
+    }
+
+    return index;
+}
+
+/**
+ * Removes the effective permission indexes built from the permissions of the
+ * principals the permissions belong to.
+ * @param permissions IPermission[]
+ */
+private void invalidateEffectivePermissionIndexes(IPermission[] permissions)
+{
+    final Set<String> principalStrings = new HashSet<String>(permissions.length);
+    for ( int i=0; i<permissions.length; i++ )
+        { principalStrings.add(permissions[i].getPrincipal()); }
+
+    for (final String principalString : principalStrings)
+    {
+        invalidateEffectivePermissionIndexes(principalString);
+        if (this.invalidationBus != null)
+            { this.invalidationBus.publish(InvalidationType.PERMISSION, principalString); }
+    }
+}
+
+/**
+ * Removes the effective permission indexes that depend on the principal string
+ * or group key.
+ * @param key String
+ */
+private void invalidateEffectivePermissionIndexes(String key)
+{
+    this.effectivePermissionIndexGeneration.incrementAndGet();
+
+    for (final EffectivePermissionIndex index : this.effectivePermissionIndexDependents.removeDependents(key))
+        { this.effectivePermissionIndexCache.remove(index.getPrincipalString()); }
+}
+
 /**
  * @return IPermission[]
  * @param owner String
@@ -1013,6 +1270,7 @@ throws AuthorizationException
         getPermissionStore().delete(permissions);
         if ( this.cachePermissions )
             { removeFromPermissionsCache(permissions); }
+        invalidateEffectivePermissionIndexes(permissions);
     }
 }
 
@@ -1029,6 +1287,78 @@ throws AuthorizationException
         getPermissionStore().update(permissions);
         if ( this.cachePermissions )
             { removeFromPermissionsCache(permissions); }
+        invalidateEffectivePermissionIndexes(permissions);
+    }
+}
+
+/**
+ * Discards the cached permission set and effective permission indexes of a
+ * principal whose permissions were changed on another server.
+ */
+private class PermissionInvalidationListener implements IInvalidationListener
+{
+    public void invalidate(InvalidationMessage message)
+    {
+        final String principalString = message.getKey();
+        if ( cachePermissions )
+        {
+            try
+                { EntityCachingService.getEntityCachingService().remove(PERMISSION_SET_TYPE, principalString); }
+            catch (CachingException ce)
+                { log.warn("Problem removing permissions for " + principalString + " from cache", ce); }
+        }
+        invalidateEffectivePermissionIndexes(principalString);
+    }
+}
+
+/**
+ * Invalidates effective permission indexes when a permission set, group or
+ * group member is updated or removed in its entity cache.  Elements being
+ * added or expiring do not represent a change.
+ */
+private class EffectivePermissionIndexInvalidator implements CacheEventListener
+{
+    @Override
+    public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    }
+
+    @Override
+    public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+        invalidate(element);
+    }
+
+    @Override
+    public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+        invalidate(element);
+    }
+
+    @Override
+    public void notifyElementExpired(Ehcache cache, Element element) {
+    }
+
+    @Override
+    public void notifyElementEvicted(Ehcache cache, Element element) {
+    }
+
+    @Override
+    public void notifyRemoveAll(Ehcache cache) {
+        effectivePermissionIndexGeneration.incrementAndGet();
+        effectivePermissionIndexCache.removeAll();
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    private void invalidate(Element element) {
+        if (element != null && element.getObjectKey() != null) {
+            invalidateEffectivePermissionIndexes(String.valueOf(element.getObjectKey()));
+        }
     }
 }
 }
@@ -19,6 +19,9 @@
 
 package org.jasig.portal.security.provider;
 
+import java.util.Collection;
+import java.util.Set;
+
 import org.jasig.portal.AuthorizationException;
 import org.jasig.portal.portlet.om.PortletLifecycleState;
 import org.jasig.portal.security.IAuthorizationPrincipal;
@@ -83,6 +86,15 @@ public boolean canConfigure(String channelPublishId) throws AuthorizationExcepti
 public boolean canRender(String channelPublishId) throws org.jasig.portal.AuthorizationException {
     return getAuthorizationService().canPrincipalRender(this, channelPublishId);
 }
+/**
+ * Answers which of the channels this <code>IAuthorizationPrincipal</code> has permission to render.
+ * @return the renderable channel publish ids
+ * @param channelPublishIds the Channel publish IDs
+ * @exception AuthorizationException thrown when authorization information could not be retrieved.
+ */
+public Set<String> getRenderableChannels(Collection<String> channelPublishIds) throws AuthorizationException {
+    return getAuthorizationService().getRenderablePortlets(this, channelPublishIds);
+}
 /**
  * Answers if this <code>IAuthorizationPrincipal</code> has permission to subscribe to this channel.
  * @return boolean
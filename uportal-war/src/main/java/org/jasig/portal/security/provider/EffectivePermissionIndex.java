@@ -0,0 +1,230 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.security.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionPolicy;
+import org.jasig.portal.utils.cache.CacheKey;
+
+/**
+ * Effective permissions of a single principal. The permissions of the principal and of every group the
+ * principal inherits from are flattened into maps keyed by owner, activity and target so permission lookups
+ * are hash lookups instead of scans of the principal's permission set. Decisions made by an
+ * {@link IPermissionPolicy} for the principal are memoized in the index.
+ * <p>
+ * The index tracks the principal strings and group keys it was built from, and the group keys of the targets
+ * it has made decisions for, so that {@link AuthorizationImpl} can discard only the indexes affected by a
+ * permission or group membership change.
+ *
+ * @version $Revision$
+ */
+class EffectivePermissionIndex {
+    private static final IPermission[] EMPTY_PERMISSIONS = new IPermission[0];
+
+    private final String principalString;
+    private final Map<CacheKey, IPermission[]> principalPermissions;
+    private final Map<CacheKey, List<IPermission>> effectivePermissions = new HashMap<CacheKey, List<IPermission>>();
+    private final Set<String> dependencies = new HashSet<String>();
+    private final Set<String> decisionDependencies = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentMap<CacheKey, Boolean> decisions = new ConcurrentHashMap<CacheKey, Boolean>();
+    private long validUntil = Long.MAX_VALUE;
+
+    /**
+     * @param principalString The principal string of the principal, see {@link AuthorizationImpl#getPrincipalString(org.jasig.portal.security.IAuthorizationPrincipal)}
+     * @param principalKey The key of the principal
+     * @param permissions All permissions of the principal
+     */
+    EffectivePermissionIndex(String principalString, String principalKey, IPermission[] permissions) {
+        this.principalString = principalString;
+        this.principalPermissions = index(permissions);
+        this.addInheritedPermissions(principalString, principalKey, permissions);
+    }
+
+    /**
+     * Adds the permissions of a principal this index's principal inherits from. Must only be called
+     * before the index is shared.
+     *
+     * @param inheritedPrincipalString The principal string of the inherited principal
+     * @param groupKey The key of the group the inherited principal represents
+     * @param permissions All permissions of the inherited principal
+     */
+    void addInheritedPermissions(String inheritedPrincipalString, String groupKey, IPermission[] permissions) {
+        this.dependencies.add(inheritedPrincipalString);
+        this.dependencies.add(groupKey);
+
+        final long now = System.currentTimeMillis();
+        for (final IPermission permission : permissions) {
+            final CacheKey key = createKey(permission.getOwner(), permission.getActivity(), permission.getTarget());
+            List<IPermission> keyPermissions = this.effectivePermissions.get(key);
+            if (keyPermissions == null) {
+                keyPermissions = new ArrayList<IPermission>(1);
+                this.effectivePermissions.put(key, keyPermissions);
+            }
+            keyPermissions.add(permission);
+
+            //Memoized decisions are only good until the next permission becomes effective or expires
+            this.updateValidUntil(permission.getEffective(), now);
+            this.updateValidUntil(permission.getExpires(), now);
+        }
+    }
+
+    /**
+     * @return The principal string this index was built for
+     */
+    public String getPrincipalString() {
+        return this.principalString;
+    }
+
+    /**
+     * @return true if no permission used to build the index has become effective or expired since it was built
+     */
+    public boolean isCurrent() {
+        return System.currentTimeMillis() < this.validUntil;
+    }
+
+    /**
+     * @param key A principal string or group key
+     * @return true if the index was built from, or has made decisions using, the principal or group
+     */
+    public boolean dependsOn(String key) {
+        return this.dependencies.contains(key) || this.decisionDependencies.contains(key);
+    }
+
+    /**
+     * @return The principal strings and group keys the index was built from or has made decisions using
+     */
+    public Set<String> getDependencies() {
+        final Set<String> dependencies = new HashSet<String>(this.dependencies);
+        dependencies.addAll(this.decisionDependencies);
+        return dependencies;
+    }
+
+    /**
+     * @return The permissions granted directly to the principal for the owner and activity on any of the targets
+     */
+    public IPermission[] getPrincipalPermissions(String owner, String activity, Collection<String> targets) {
+        List<IPermission> result = null;
+        for (final String target : targets) {
+            final IPermission[] permissions = this.principalPermissions.get(createKey(owner, activity, target));
+            if (permissions != null) {
+                if (result == null) {
+                    result = new ArrayList<IPermission>(permissions.length);
+                }
+                Collections.addAll(result, permissions);
+            }
+        }
+
+        return toArray(result);
+    }
+
+    /**
+     * @return The permissions granted to the principal or any principal it inherits from for the owner and activity on any of the targets
+     */
+    public IPermission[] getEffectivePermissions(String owner, String activity, Collection<String> targets) {
+        List<IPermission> result = null;
+        for (final String target : targets) {
+            final List<IPermission> permissions = this.effectivePermissions.get(createKey(owner, activity, target));
+            if (permissions != null) {
+                if (result == null) {
+                    result = new ArrayList<IPermission>(permissions.size());
+                }
+                result.addAll(permissions);
+            }
+        }
+
+        return toArray(result);
+    }
+
+    /**
+     * @return The memoized decision of the policy, null if no decision has been made
+     */
+    public Boolean getDecision(IPermissionPolicy policy, String owner, String activity, String target) {
+        return this.decisions.get(createDecisionKey(policy, owner, activity, target));
+    }
+
+    /**
+     * Memoize a decision of the policy
+     *
+     * @param targetGroupKeys Keys of the groups containing the target, the decision is discarded when any of them change
+     */
+    public void putDecision(IPermissionPolicy policy, String owner, String activity, String target, Set<String> targetGroupKeys, boolean decision) {
+        this.decisionDependencies.addAll(targetGroupKeys);
+        this.decisions.put(createDecisionKey(policy, owner, activity, target), decision);
+    }
+
+    private void updateValidUntil(Date date, long now) {
+        if (date != null && date.getTime() > now && date.getTime() < this.validUntil) {
+            this.validUntil = date.getTime();
+        }
+    }
+
+    private static Map<CacheKey, IPermission[]> index(IPermission[] permissions) {
+        final Map<CacheKey, List<IPermission>> indexed = new HashMap<CacheKey, List<IPermission>>();
+        for (final IPermission permission : permissions) {
+            final CacheKey key = createKey(permission.getOwner(), permission.getActivity(), permission.getTarget());
+            List<IPermission> keyPermissions = indexed.get(key);
+            if (keyPermissions == null) {
+                keyPermissions = new ArrayList<IPermission>(1);
+                indexed.put(key, keyPermissions);
+            }
+            keyPermissions.add(permission);
+        }
+
+        final Map<CacheKey, IPermission[]> result = new HashMap<CacheKey, IPermission[]>((int) (indexed.size() / 0.75f) + 1);
+        for (final Map.Entry<CacheKey, List<IPermission>> entry : indexed.entrySet()) {
+            final List<IPermission> keyPermissions = entry.getValue();
+            result.put(entry.getKey(), keyPermissions.toArray(new IPermission[keyPermissions.size()]));
+        }
+        return result;
+    }
+
+    private static IPermission[] toArray(List<IPermission> permissions) {
+        if (permissions == null) {
+            return EMPTY_PERMISSIONS;
+        }
+        return permissions.toArray(new IPermission[permissions.size()]);
+    }
+
+    private static CacheKey createKey(String owner, String activity, String target) {
+        return new CacheKey("EffectivePermissionIndex", owner, activity, target);
+    }
+
+    private static CacheKey createDecisionKey(IPermissionPolicy policy, String owner, String activity, String target) {
+        return new CacheKey("EffectivePermissionIndex", policy.getClass(), owner, activity, target);
+    }
+
+    @Override
+    public String toString() {
+        return "EffectivePermissionIndex [principalString=" + this.principalString + ", dependencies="
+                + this.dependencies + ", decisions=" + this.decisions.size() + "]";
+    }
+}
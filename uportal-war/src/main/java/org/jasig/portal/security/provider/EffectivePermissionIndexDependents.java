@@ -0,0 +1,196 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.security.provider;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+/**
+ * Reverse index from the principal strings and group keys {@link EffectivePermissionIndex}es depend on
+ * to the indexes in the effective permission index cache, so a change only has to look at the indexes
+ * it affects instead of every index in the cache.
+ * <p>
+ * Registered as a listener on the effective permission index cache, indexes are added when they are put
+ * in the cache and dropped when they are removed, evicted, expired or replaced.
+ *
+ * @version $Revision$
+ */
+class EffectivePermissionIndexDependents implements CacheEventListener {
+    private final Map<String, Set<EffectivePermissionIndex>> dependents = new HashMap<String, Set<EffectivePermissionIndex>>();
+    
+    /**
+     * Adds the dependencies of an index, replacing any other index registered for the same principal
+     */
+    public synchronized void register(EffectivePermissionIndex index) {
+        final String principalString = index.getPrincipalString();
+        final Set<EffectivePermissionIndex> principalDependents = this.dependents.get(principalString);
+        if (principalDependents != null) {
+            for (final EffectivePermissionIndex other : new HashSet<EffectivePermissionIndex>(principalDependents)) {
+                if (other != index && principalString.equals(other.getPrincipalString())) {
+                    this.unregister(other);
+                }
+            }
+        }
+        
+        this.addDependents(index, index.getDependencies());
+    }
+    
+    /**
+     * Adds dependencies an index picked up after it was registered, ignored if the index is not registered
+     */
+    public synchronized void registerDecisionDependencies(EffectivePermissionIndex index, Collection<String> keys) {
+        if (keys.isEmpty() || !this.isRegistered(index)) {
+            return;
+        }
+        
+        this.addDependents(index, keys);
+    }
+    
+    /**
+     * Drops all dependencies of the index
+     */
+    public synchronized void unregister(EffectivePermissionIndex index) {
+        for (final String key : index.getDependencies()) {
+            final Set<EffectivePermissionIndex> keyDependents = this.dependents.get(key);
+            if (keyDependents != null) {
+                keyDependents.remove(index);
+                if (keyDependents.isEmpty()) {
+                    this.dependents.remove(key);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Unregisters and returns the indexes that depend on the principal string or group key
+     */
+    public synchronized Set<EffectivePermissionIndex> removeDependents(String key) {
+        final Set<EffectivePermissionIndex> keyDependents = this.dependents.get(key);
+        if (keyDependents == null) {
+            return Collections.emptySet();
+        }
+        
+        final Set<EffectivePermissionIndex> removed = new HashSet<EffectivePermissionIndex>(keyDependents);
+        for (final EffectivePermissionIndex index : removed) {
+            this.unregister(index);
+        }
+        return removed;
+    }
+    
+    /**
+     * @return The indexes that depend on the principal string or group key
+     */
+    public synchronized Set<EffectivePermissionIndex> getDependents(String key) {
+        final Set<EffectivePermissionIndex> keyDependents = this.dependents.get(key);
+        if (keyDependents == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<EffectivePermissionIndex>(keyDependents);
+    }
+    
+    /**
+     * @return The number of principal strings and group keys indexes depend on
+     */
+    public synchronized int size() {
+        return this.dependents.size();
+    }
+    
+    public synchronized void clear() {
+        this.dependents.clear();
+    }
+
+    @Override
+    public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+        final EffectivePermissionIndex index = getIndex(element);
+        if (index != null) {
+            this.register(index);
+        }
+    }
+
+    @Override
+    public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+        this.notifyElementPut(cache, element);
+    }
+
+    @Override
+    public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+        final EffectivePermissionIndex index = getIndex(element);
+        if (index != null) {
+            this.unregister(index);
+        }
+    }
+
+    @Override
+    public void notifyElementExpired(Ehcache cache, Element element) {
+        this.notifyElementRemoved(cache, element);
+    }
+
+    @Override
+    public void notifyElementEvicted(Ehcache cache, Element element) {
+        this.notifyElementRemoved(cache, element);
+    }
+
+    @Override
+    public void notifyRemoveAll(Ehcache cache) {
+        this.clear();
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+    
+    private boolean isRegistered(EffectivePermissionIndex index) {
+        final Set<EffectivePermissionIndex> principalDependents = this.dependents.get(index.getPrincipalString());
+        return principalDependents != null && principalDependents.contains(index);
+    }
+    
+    private void addDependents(EffectivePermissionIndex index, Collection<String> keys) {
+        for (final String key : keys) {
+            Set<EffectivePermissionIndex> keyDependents = this.dependents.get(key);
+            if (keyDependents == null) {
+                keyDependents = new HashSet<EffectivePermissionIndex>();
+                this.dependents.put(key, keyDependents);
+            }
+            keyDependents.add(index);
+        }
+    }
+    
+    private static EffectivePermissionIndex getIndex(Element element) {
+        if (element == null || !(element.getObjectValue() instanceof EffectivePermissionIndex)) {
+            return null;
+        }
+        return (EffectivePermissionIndex) element.getObjectValue();
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.xml.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.jasig.portal.character.stream.CharacterEventSource;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+
+/**
+ * Combines a set of chunking {@link Pattern}s into a single alternation so a chunk of character
+ * data can be split on all of the patterns in one scan. Each pattern is wrapped in its own capturing
+ * group, the {@link MatchResult} handed to the {@link CharacterEventSource} is re-based so group
+ * numbers are relative to the original pattern. Patterns that use numbered back-references can not
+ * be combined and are not supported.
+ * <p>
+ * Instances are immutable and should be created once when the chunking patterns are configured.
+ * 
+ * @version $Revision$
+ */
+public final class CompiledChunkingPatterns {
+    private final Pattern combinedPattern;
+    private final CharacterEventSource[] eventSources;
+    private final int[] groupOffsets;
+    private final int[] groupCounts;
+
+    public CompiledChunkingPatterns(Map<Pattern, CharacterEventSource> chunkingPatterns) {
+        final int patternCount = chunkingPatterns.size();
+        this.eventSources = new CharacterEventSource[patternCount];
+        this.groupOffsets = new int[patternCount];
+        this.groupCounts = new int[patternCount];
+        
+        final StringBuilder combinedRegex = new StringBuilder();
+        int index = 0;
+        int groupOffset = 1;
+        for (final Map.Entry<Pattern, CharacterEventSource> chunkingPatternEntry : chunkingPatterns.entrySet()) {
+            final Pattern pattern = chunkingPatternEntry.getKey();
+            final int groupCount = pattern.matcher("").groupCount();
+            
+            if (index > 0) {
+                combinedRegex.append('|');
+            }
+            combinedRegex.append('(').append(pattern.pattern()).append(')');
+            
+            this.eventSources[index] = chunkingPatternEntry.getValue();
+            this.groupOffsets[index] = groupOffset;
+            this.groupCounts[index] = groupCount;
+            
+            groupOffset += groupCount + 1;
+            index++;
+        }
+        
+        this.combinedPattern = patternCount > 0 ? Pattern.compile(combinedRegex.toString()) : null;
+    }
+    
+    /**
+     * Breaks up the String into a List of CharacterEvents, the text between matches is returned as
+     * {@link CharacterDataEventImpl}s and each match is replaced by the events generated by the
+     * {@link CharacterEventSource} of the pattern that matched.
+     */
+    public List<CharacterEvent> chunkString(HttpServletRequest request, String chunk) {
+        final List<CharacterEvent> characterEvents = new ArrayList<CharacterEvent>();
+        if (this.combinedPattern == null) {
+            characterEvents.add(new CharacterDataEventImpl(chunk));
+            return characterEvents;
+        }
+        
+        final Matcher matcher = this.combinedPattern.matcher(chunk);
+        int dataStart = 0;
+        while (matcher.find()) {
+            //Add all of the text up to the match as a new chunk
+            characterEvents.add(new CharacterDataEventImpl(chunk.substring(dataStart, matcher.start())));
+            
+            //Find the pattern that matched and get the generated CharacterEvents for the match
+            final int patternIndex = this.getMatchedPatternIndex(matcher);
+            final MatchResult matchResult = new OffsetMatchResult(matcher.toMatchResult(), this.groupOffsets[patternIndex], this.groupCounts[patternIndex]);
+            final List<CharacterEvent> generatedCharacterEvents = this.eventSources[patternIndex].getCharacterEvents(request, matchResult);
+            characterEvents.addAll(generatedCharacterEvents);
+            
+            dataStart = matcher.end();
+        }
+        
+        //Add any remaining text from the original chunk
+        characterEvents.add(new CharacterDataEventImpl(dataStart == 0 ? chunk : chunk.substring(dataStart)));
+        
+        return characterEvents;
+    }
+    
+    private int getMatchedPatternIndex(Matcher matcher) {
+        for (int index = 0; index < this.groupOffsets.length; index++) {
+            if (matcher.start(this.groupOffsets[index]) != -1) {
+                return index;
+            }
+        }
+        
+        throw new IllegalStateException("No chunking pattern matched group for: " + matcher.group());
+    }
+    
+    /**
+     * Exposes the groups of one alternative of the combined pattern as if it had been matched on its own
+     */
+    private static final class OffsetMatchResult implements MatchResult {
+        private final MatchResult matchResult;
+        private final int groupOffset;
+        private final int groupCount;
+        
+        public OffsetMatchResult(MatchResult matchResult, int groupOffset, int groupCount) {
+            this.matchResult = matchResult;
+            this.groupOffset = groupOffset;
+            this.groupCount = groupCount;
+        }
+        
+        private int toCombinedGroup(int group) {
+            if (group < 0 || group > this.groupCount) {
+                throw new IndexOutOfBoundsException("No group " + group);
+            }
+            return this.groupOffset + group;
+        }
+
+        @Override
+        public int start() {
+            return this.matchResult.start();
+        }
+
+        @Override
+        public int start(int group) {
+            return this.matchResult.start(this.toCombinedGroup(group));
+        }
+
+        @Override
+        public int end() {
+            return this.matchResult.end();
+        }
+
+        @Override
+        public int end(int group) {
+            return this.matchResult.end(this.toCombinedGroup(group));
+        }
+
+        @Override
+        public String group() {
+            return this.matchResult.group();
+        }
+
+        @Override
+        public String group(int group) {
+            return this.matchResult.group(this.toCombinedGroup(group));
+        }
+
+        @Override
+        public int groupCount() {
+            return this.groupCount;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.xml.stream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * {@link XMLEventReader} that reads the events written to its {@link #getEventWriter()} by another thread.
+ * Events are handed from the writing thread to the reading thread in batches through a bounded queue so the
+ * reader can start consuming events while the writer is still producing them and at most
+ * <code>batchSize * capacity</code> events are held in memory.
+ * <p>
+ * The writer must call {@link XMLEventWriter#close()} when done or {@link #fail(Throwable)} if it could not
+ * produce the complete document. If the reader is closed before the end of the document the writer will
+ * fail with an {@link XMLStreamException} on its next write. If either side waits more than the timeout for the
+ * other the waiting side fails.
+ *
+ * @version $Revision$
+ */
+public class PipedXMLEventReader extends BaseXMLEventReader {
+    private static final List<XMLEvent> END_OF_DOCUMENT = Collections.emptyList();
+
+    private final BlockingQueue<List<XMLEvent>> queue;
+    private final int batchSize;
+    private final long timeout;
+    private final PipedXMLEventWriter eventWriter = new PipedXMLEventWriter();
+
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+
+    private Iterator<XMLEvent> currentBatch = Collections.<XMLEvent>emptyList().iterator();
+    private XMLEvent peekedEvent;
+    private boolean ended = false;
+
+    /**
+     * @param batchSize Number of events the writer collects before handing them to the reader
+     * @param capacity Number of batches that can be waiting for the reader before the writer blocks
+     * @param timeout Milliseconds either side will wait for the other before failing
+     */
+    public PipedXMLEventReader(int batchSize, int capacity, long timeout) {
+        super(null);
+        this.queue = new ArrayBlockingQueue<List<XMLEvent>>(capacity);
+        this.batchSize = batchSize;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return The writer to produce the events for this reader with, must only be used by a single thread
+     */
+    public XMLEventWriter getEventWriter() {
+        return this.eventWriter;
+    }
+
+    /**
+     * Called by the writing thread if it failed to produce the complete document, the failure is re-thrown to
+     * the reading thread once it has read all of the events written before the failure.
+     */
+    public void fail(Throwable t) {
+        this.failure = t;
+        this.eventWriter.flushBatch(true);
+    }
+
+    @Override
+    protected XMLEvent internalNextEvent() throws XMLStreamException {
+        final XMLEvent event = this.peek();
+        if (event == null) {
+            throw new NoSuchElementException();
+        }
+
+        this.peekedEvent = null;
+        return event;
+    }
+
+    @Override
+    public XMLEvent peek() throws XMLStreamException {
+        if (this.peekedEvent != null) {
+            return this.peekedEvent;
+        }
+
+        while (!this.currentBatch.hasNext()) {
+            if (this.ended) {
+                return null;
+            }
+
+            final List<XMLEvent> batch;
+            try {
+                batch = this.queue.poll(this.timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XMLStreamException("Interrupted while waiting for events", e);
+            }
+
+            if (batch == null) {
+                throw new XMLStreamException("No events were written in " + this.timeout + "ms");
+            }
+            if (batch == END_OF_DOCUMENT) {
+                this.ended = true;
+
+                final Throwable t = this.failure;
+                if (t != null) {
+                    throw new XMLStreamException("Failed to write events", t);
+                }
+                return null;
+            }
+
+            this.currentBatch = batch.iterator();
+        }
+
+        this.peekedEvent = this.currentBatch.next();
+        return this.peekedEvent;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return this.peek() != null;
+        }
+        catch (XMLStreamException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Object getProperty(String name) throws IllegalArgumentException {
+        return null;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws XMLStreamException {
+        this.closed = true;
+        this.ended = true;
+        this.peekedEvent = null;
+        this.currentBatch = Collections.<XMLEvent>emptyList().iterator();
+
+        //Free up space in the queue so a blocked writer notices the reader is closed
+        this.queue.clear();
+    }
+
+    /**
+     * Write side of the pipe, collects events into batches and hands each full batch to the reader
+     */
+    private class PipedXMLEventWriter implements XMLEventWriter {
+        private final Map<String, String> prefixes = new LinkedHashMap<String, String>();
+        private NamespaceContext namespaceContext;
+        private List<XMLEvent> batch = new ArrayList<XMLEvent>(batchSize);
+        private boolean done = false;
+
+        @Override
+        public void add(XMLEvent event) throws XMLStreamException {
+            if (this.done) {
+                throw new XMLStreamException("Writer has been closed");
+            }
+
+            this.batch.add(event);
+            if (this.batch.size() >= batchSize && !this.handOff(this.batch)) {
+                throw new XMLStreamException("Reader has been closed or has not read any events in " + timeout + "ms");
+            }
+        }
+
+        @Override
+        public void add(XMLEventReader reader) throws XMLStreamException {
+            while (reader.hasNext()) {
+                this.add(reader.nextEvent());
+            }
+        }
+
+        @Override
+        public void flush() throws XMLStreamException {
+            //Batches are handed off as they fill, the last partial batch is handed off on close
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            if (!this.flushBatch(false)) {
+                throw new XMLStreamException("Reader has been closed or has not read any events in " + timeout + "ms");
+            }
+        }
+
+        /**
+         * Hands off the current partial batch followed by the end of document marker
+         */
+        boolean flushBatch(boolean failed) {
+            if (this.done) {
+                return true;
+            }
+            this.done = true;
+
+            if (!this.batch.isEmpty() && !this.handOff(this.batch) && !failed) {
+                return false;
+            }
+            return this.handOff(END_OF_DOCUMENT);
+        }
+
+        private boolean handOff(List<XMLEvent> events) {
+            if (closed) {
+                return false;
+            }
+
+            try {
+                if (!queue.offer(events, timeout, TimeUnit.MILLISECONDS) || closed) {
+                    return false;
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            if (events != END_OF_DOCUMENT) {
+                this.batch = new ArrayList<XMLEvent>(batchSize);
+            }
+            return true;
+        }
+
+        @Override
+        public String getPrefix(String uri) throws XMLStreamException {
+            return this.prefixes.get(uri);
+        }
+
+        @Override
+        public void setPrefix(String prefix, String uri) throws XMLStreamException {
+            this.prefixes.put(uri, prefix);
+        }
+
+        @Override
+        public void setDefaultNamespace(String uri) throws XMLStreamException {
+            this.prefixes.put(uri, "");
+        }
+
+        @Override
+        public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+            this.namespaceContext = context;
+        }
+
+        @Override
+        public NamespaceContext getNamespaceContext() {
+            return this.namespaceContext;
+        }
+    }
+}
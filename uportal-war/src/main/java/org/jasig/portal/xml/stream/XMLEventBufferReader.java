@@ -50,6 +50,10 @@ public class XMLEventBufferReader implements XMLEventReader {
 
     @Override
     public XMLEvent peek() {
+        if (!this.eventBuffer.hasNext()) {
+            return null;
+        }
+        
         final XMLEvent event = this.eventBuffer.next();
         //Step back by one in the list
         this.eventBuffer.previous();
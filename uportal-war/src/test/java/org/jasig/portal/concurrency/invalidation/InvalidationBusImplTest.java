@@ -0,0 +1,109 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.concurrency.invalidation;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jasig.portal.IPortalInfoProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class InvalidationBusImplTest {
+    private InvalidationBusImpl invalidationBus;
+    private RecordingListener layoutListener;
+    private RecordingListener permissionListener;
+
+    @Before
+    public void setUp() {
+        final IPortalInfoProvider portalInfoProvider = mock(IPortalInfoProvider.class);
+        when(portalInfoProvider.getServerName()).thenReturn("server1");
+
+        this.invalidationBus = new InvalidationBusImpl();
+        this.invalidationBus.setPortalInfoProvider(portalInfoProvider);
+        this.invalidationBus.setInvalidationTransport(new LoopbackInvalidationTransport());
+        this.invalidationBus.setEnabled(true);
+
+        this.layoutListener = new RecordingListener();
+        this.permissionListener = new RecordingListener();
+        this.invalidationBus.registerListener(InvalidationType.LAYOUT, this.layoutListener);
+        this.invalidationBus.registerListener(InvalidationType.PERMISSION, this.permissionListener);
+    }
+
+    @Test
+    public void testDispatchByType() {
+        this.invalidationBus.publish(InvalidationType.LAYOUT, "1:student");
+        this.invalidationBus.publish(InvalidationType.PERMISSION, "local.0");
+        assertEquals(2, this.invalidationBus.getPendingCount());
+
+        this.invalidationBus.flush();
+
+        assertEquals(0, this.invalidationBus.getPendingCount());
+        assertEquals(2, this.invalidationBus.getPublishedCount());
+        assertEquals(2, this.invalidationBus.getReceivedCount());
+
+        assertEquals(1, this.layoutListener.messages.size());
+        assertEquals("1:student", this.layoutListener.messages.get(0).getKey());
+        assertEquals("server1", this.layoutListener.messages.get(0).getServerName());
+
+        assertEquals(1, this.permissionListener.messages.size());
+        assertEquals("local.0", this.permissionListener.messages.get(0).getKey());
+    }
+
+    @Test
+    public void testDuplicatesCollapsed() {
+        this.invalidationBus.publish(InvalidationType.LAYOUT, "1:student");
+        this.invalidationBus.publish(InvalidationType.LAYOUT, "1:student");
+        this.invalidationBus.publish(InvalidationType.PERMISSION, "1:student");
+
+        this.invalidationBus.flush();
+
+        assertEquals(2, this.invalidationBus.getPublishedCount());
+        assertEquals(1, this.layoutListener.messages.size());
+        assertEquals(1, this.permissionListener.messages.size());
+    }
+
+    @Test
+    public void testDisabled() {
+        this.invalidationBus.setEnabled(false);
+        this.invalidationBus.publish(InvalidationType.LAYOUT, "1:student");
+        this.invalidationBus.flush();
+
+        assertEquals(0, this.invalidationBus.getPublishedCount());
+        assertEquals(0, this.layoutListener.messages.size());
+    }
+
+    private static class RecordingListener implements IInvalidationListener {
+        private final List<InvalidationMessage> messages = new ArrayList<InvalidationMessage>();
+
+        @Override
+        public void invalidate(InvalidationMessage message) {
+            this.messages.add(message);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.concurrency.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.jasig.portal.IPortalInfoProvider;
+import org.jasig.portal.concurrency.invalidation.IInvalidationTransport;
+import org.jasig.portal.concurrency.invalidation.InvalidationMessage;
+import org.jasig.portal.concurrency.invalidation.InvalidationType;
+import org.jasig.portal.test.BaseJpaDaoTest;
+import org.jasig.portal.test.ThreadGroupRunner;
+import org.jasig.portal.utils.threading.ThrowingRunnable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * The transport under test acts as ServerB, other servers publish through it by changing the name returned
+ * by the {@link IPortalInfoProvider} before sending.
+ * 
+ * @version $Revision$
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:jpaClusterInvalidationTransportTestContext.xml")
+public class JpaClusterInvalidationTransportTest extends BaseJpaDaoTest {
+    //Longer than the maxClockSkew configured in the test context
+    private static final long SKEW_WAIT = 300;
+    //Longer than the messageRetention configured in the test context
+    private static final long RETENTION_WAIT = 1200;
+    
+    @Autowired
+    private IInvalidationTransport clusterInvalidationTransport;
+    @Autowired
+    private IPortalInfoProvider portalInfoProvider;
+
+    @PersistenceContext(unitName = "uPortalPersistence")
+    private EntityManager entityManager;
+    
+    @Override
+    protected EntityManager getEntityManager() {
+        return this.entityManager;
+    }
+    
+    @Test
+    public void testReceiveFromTwoServers() {
+        receive("ServerB");
+        
+        send("ServerA", InvalidationType.LAYOUT, "user1");
+        send("ServerC", InvalidationType.PERMISSION, "user2");
+        
+        final List<InvalidationMessage> messages = receive("ServerB");
+        assertEquals(2, messages.size());
+        
+        final InvalidationMessage layoutMessage = getMessage(messages, InvalidationType.LAYOUT, "user1");
+        assertNotNull(layoutMessage);
+        assertEquals("ServerA", layoutMessage.getServerName());
+        
+        final InvalidationMessage permissionMessage = getMessage(messages, InvalidationType.PERMISSION, "user2");
+        assertNotNull(permissionMessage);
+        assertEquals("ServerC", permissionMessage.getServerName());
+        
+        //The next poll overlaps this one but must not return the same messages again
+        assertTrue(receive("ServerB").isEmpty());
+    }
+    
+    @Test
+    public void testOwnMessagesSkipped() {
+        receive("ServerB");
+        
+        send("ServerB", InvalidationType.LAYOUT, "user1");
+        
+        assertTrue(receive("ServerB").isEmpty());
+    }
+    
+    @Test
+    public void testRepublishSameKey() throws InterruptedException {
+        receive("ServerB");
+        
+        send("ServerA", InvalidationType.LAYOUT, "user1");
+        assertNotNull(getMessage(receive("ServerB"), InvalidationType.LAYOUT, "user1"));
+        
+        //Make sure the republish gets a new timestamp
+        Thread.sleep(50);
+        
+        send("ServerC", InvalidationType.LAYOUT, "user1");
+        final List<InvalidationMessage> messages = receive("ServerB");
+        assertEquals(1, messages.size());
+        
+        final InvalidationMessage message = getMessage(messages, InvalidationType.LAYOUT, "user1");
+        assertNotNull(message);
+        assertEquals("ServerC", message.getServerName());
+        
+        //Republishing reuses the existing row
+        final List<ClusterMutex> mutexes = getInvalidationMutexes(InvalidationType.LAYOUT, "user1");
+        assertEquals(1, mutexes.size());
+        assertEquals("ServerC", mutexes.get(0).getServerId());
+        
+        assertTrue(receive("ServerB").isEmpty());
+    }
+    
+    @Test
+    public void testConcurrentPublishSameKey() throws InterruptedException {
+        receive("ServerB");
+        when(portalInfoProvider.getServerName()).thenReturn("ServerA");
+        
+        final ThreadGroupRunner threadGroupRunner = new ThreadGroupRunner("JpaClusterInvalidationTransportTest-", true);
+        threadGroupRunner.addTask(3, new ThrowingRunnable() {
+            @Override
+            public void runWithException() throws Throwable {
+                threadGroupRunner.tick(1);
+                clusterInvalidationTransport.send(Arrays.asList(new InvalidationMessage(InvalidationType.LAYOUT, "user1", null)));
+            }
+        });
+        
+        threadGroupRunner.start();
+        threadGroupRunner.join();
+        
+        assertEquals(1, getInvalidationMutexes(InvalidationType.LAYOUT, "user1").size());
+        
+        final List<InvalidationMessage> messages = receive("ServerB");
+        assertEquals(1, messages.size());
+        assertNotNull(getMessage(messages, InvalidationType.LAYOUT, "user1"));
+    }
+    
+    @Test
+    public void testOlderThanSinceNotReceived() throws InterruptedException {
+        receive("ServerB");
+        
+        send("ServerA", InvalidationType.LAYOUT, "user1");
+        Thread.sleep(SKEW_WAIT);
+        
+        //user1 is returned by this poll and is older than the clock skew when the next poll runs
+        receive("ServerB");
+        Thread.sleep(SKEW_WAIT);
+        send("ServerA", InvalidationType.PERMISSION, "user2");
+        
+        final List<InvalidationMessage> messages = receive("ServerB");
+        assertEquals(1, messages.size());
+        assertNotNull(getMessage(messages, InvalidationType.PERMISSION, "user2"));
+    }
+    
+    @Test
+    public void testPurge() throws InterruptedException {
+        receive("ServerB");
+        
+        send("ServerA", InvalidationType.LAYOUT, "user1");
+        assertEquals(1, getInvalidationMutexes(InvalidationType.LAYOUT, "user1").size());
+        
+        Thread.sleep(RETENTION_WAIT);
+        send("ServerA", InvalidationType.PERMISSION, "user2");
+        
+        final List<InvalidationMessage> messages = receive("ServerB");
+        assertNotNull(getMessage(messages, InvalidationType.PERMISSION, "user2"));
+        
+        //Only the message older than the retention is deleted
+        assertTrue(getInvalidationMutexes(InvalidationType.LAYOUT, "user1").isEmpty());
+        assertEquals(1, getInvalidationMutexes(InvalidationType.PERMISSION, "user2").size());
+    }
+    
+    private void send(String serverName, InvalidationType type, String key) {
+        when(portalInfoProvider.getServerName()).thenReturn(serverName);
+        this.clusterInvalidationTransport.send(Arrays.asList(new InvalidationMessage(type, key, serverName)));
+    }
+    
+    private List<InvalidationMessage> receive(String serverName) {
+        when(portalInfoProvider.getServerName()).thenReturn(serverName);
+        return this.clusterInvalidationTransport.receive();
+    }
+    
+    private InvalidationMessage getMessage(List<InvalidationMessage> messages, InvalidationType type, String key) {
+        for (final InvalidationMessage message : messages) {
+            if (message.getType() == type && message.getKey().equals(key)) {
+                return message;
+            }
+        }
+        return null;
+    }
+    
+    private List<ClusterMutex> getInvalidationMutexes(final InvalidationType type, final String key) {
+        return this.execute(new Callable<List<ClusterMutex>>() {
+            @Override
+            public List<ClusterMutex> call() throws Exception {
+                return entityManager
+                        .createQuery("SELECT m FROM ClusterMutex m WHERE m.name = :name", ClusterMutex.class)
+                        .setParameter("name", JpaClusterInvalidationTransport.getMutexName(new InvalidationMessage(type, key, null)))
+                        .getResultList();
+            }
+        });
+    }
+}
@@ -22,7 +22,9 @@ package org.jasig.portal.events;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -49,6 +51,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -149,6 +152,93 @@ public class JpaPortalEventStoreTest extends BaseJpaDaoTest {
         verifyAggregateEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
     }
 
+    @Test
+    public void testAggregateFilteredEvents() throws Exception {
+        final DateTime startDate = DateTime.now().minusDays(1);
+        final DateTime endDate = DateTime.now().plusDays(1);
+        
+        final List<PortalEvent> originalEvents = generateEvents();
+        
+        execute(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                portalEventDao.storePortalEvents(originalEvents);
+            }
+        });
+        
+        final List<PortalEvent> expectedEvents = new ArrayList<PortalEvent>();
+        final List<DateTime> expectedFilteredDates = new ArrayList<DateTime>();
+        for (final PortalEvent event : originalEvents) {
+            if (event instanceof PortletExecutionEvent) {
+                expectedEvents.add(event);
+            }
+            else {
+                expectedFilteredDates.add(event.getTimestampAsDate());
+            }
+        }
+        
+        final List<PortalEvent> portalEvents = new ArrayList<PortalEvent>();
+        final List<DateTime> filteredDates = new ArrayList<DateTime>();
+        
+        //The batch size includes the filtered events
+        final int loadSize = 5;
+        execute(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                aggregateFilteredEvents(startDate, endDate, loadSize, portalEvents, filteredDates);
+            }
+        });
+        assertEquals(loadSize, portalEvents.size() + filteredDates.size());
+        
+        //The rest of the events, every event is passed to one of the handlers exactly once
+        execute(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                aggregateFilteredEvents(startDate, endDate, -1, portalEvents, filteredDates);
+            }
+        });
+        
+        assertEquals(expectedEvents.size(), portalEvents.size());
+        for (int i = 0; i < expectedEvents.size(); i++) {
+            assertEquals(expectedEvents.get(i).getClass(), portalEvents.get(i).getClass());
+        }
+        
+        assertEquals(expectedFilteredDates.size(), filteredDates.size());
+        for (int i = 0; i < expectedFilteredDates.size(); i++) {
+            assertEquals(expectedFilteredDates.get(i).getMillis(), filteredDates.get(i).getMillis());
+        }
+        
+        //Filtered events are marked as aggregated too
+        verifyAggregateEvents(Collections.<PortalEvent>emptyList(), startDate, endDate);
+        
+        //Filtered events can still be read
+        verifyGetEvents(originalEvents, startDate, endDate);
+        deleteEvents(originalEvents, startDate, endDate);
+    }
+    
+    protected void aggregateFilteredEvents(DateTime startDate, DateTime endDate, int maxEvents, final List<PortalEvent> portalEvents, final List<DateTime> filteredDates) {
+        portalEventDao.aggregatePortalEvents(startDate, endDate, maxEvents, 
+                new Predicate<Class<? extends PortalEvent>>() {
+                    @Override
+                    public boolean apply(Class<? extends PortalEvent> type) {
+                        return PortletExecutionEvent.class.isAssignableFrom(type);
+                    }
+                },
+                new FunctionWithoutResult<PortalEvent>() {
+                    @Override
+                    protected void applyWithoutResult(PortalEvent input) {
+                        assertTrue(input instanceof PortletExecutionEvent);
+                        portalEvents.add(input);
+                    }
+                }, 
+                new FunctionWithoutResult<DateTime>() {
+                    @Override
+                    protected void applyWithoutResult(DateTime input) {
+                        filteredDates.add(input);
+                    }
+                });
+    }
+
     protected void verifyGetEvents(final List<PortalEvent> originalEvents, final DateTime startDate, final DateTime endDate) {
         execute(new CallableWithoutResult() {
             @Override
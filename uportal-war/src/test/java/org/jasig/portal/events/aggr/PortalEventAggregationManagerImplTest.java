@@ -20,12 +20,16 @@
 package org.jasig.portal.events.aggr;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -35,10 +39,12 @@ import org.jasig.portal.concurrency.CallableWithoutResult;
 import org.jasig.portal.concurrency.FunctionWithoutResult;
 import org.jasig.portal.concurrency.locking.IClusterLockService;
 import org.jasig.portal.concurrency.locking.IClusterLockService.TryLockFunctionResult;
+import org.jasig.portal.events.PortalEvent;
 import org.jasig.portal.events.aggr.IEventAggregatorStatus.ProcessingType;
 import org.jasig.portal.events.aggr.dao.DateDimensionDao;
 import org.jasig.portal.events.aggr.dao.IEventAggregationManagementDao;
 import org.jasig.portal.events.aggr.dao.TimeDimensionDao;
+import org.jasig.portal.events.aggr.session.EventSession;
 import org.jasig.portal.events.handlers.db.IPortalEventDao;
 import org.jasig.portal.test.BaseJpaDaoTest;
 import org.joda.time.DateMidnight;
@@ -48,11 +54,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 
 /**
  */
@@ -263,6 +273,146 @@ public class PortalEventAggregationManagerImplTest extends BaseJpaDaoTest {
             }
         });
         
-        verify(portalEventDao).aggregatePortalEvents(Mockito.any(DateTime.class), Mockito.any(DateTime.class), Mockito.eq(5000), Mockito.any(FunctionWithoutResult.class));
+        verify(portalEventDao).aggregatePortalEvents(Mockito.any(DateTime.class), Mockito.any(DateTime.class), Mockito.eq(5000), Mockito.any(Predicate.class), Mockito.any(FunctionWithoutResult.class), Mockito.any(FunctionWithoutResult.class));
+    }
+
+    @Test
+    public void aggregateRawEventsFilteredBatch() throws Exception {
+        final IPortalEventAggregator<PortalEvent> portalEventAggregator = mock(IPortalEventAggregator.class);
+        portalEventAggregationManager.setPortalEventAggregators(Collections.singleton(portalEventAggregator));
+        portalEventAggregationManager.setEventAggregationBatchSize(3);
+        
+        final IEventAggregatorStatus eventAggregatorStatus = mock(IEventAggregatorStatus.class);
+        when(this.eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, true)).thenReturn(eventAggregatorStatus);
+        
+        final AggregatedIntervalConfig aggregatedIntervalConfig = mock(AggregatedIntervalConfig.class);
+        when(aggregatedIntervalConfig.isIncluded(Mockito.any(AggregationInterval.class))).thenReturn(true);
+        when(this.eventAggregationManagementDao.getDefaultAggregatedIntervalConfig()).thenReturn(aggregatedIntervalConfig);
+        
+        when(this.portalInfoProvider.getServerName()).thenReturn("TEST_SERVER_NAME");
+        
+        //A full batch of events that no aggregator supports
+        final DateTime lastFilteredEventDate = new DateTime(2012, 1, 7, 10, 0, 0, 0);
+        final List<DateTime> filteredEventDates = ImmutableList.of(
+                new DateTime(2012, 1, 6, 20, 0, 0, 0), 
+                new DateTime(2012, 1, 6, 20, 1, 0, 0), 
+                lastFilteredEventDate);
+        Mockito.doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                final Object[] args = invocation.getArguments();
+                final Predicate<Class<? extends PortalEvent>> eventTypeFilter = (Predicate<Class<? extends PortalEvent>>)args[3];
+                final FunctionWithoutResult<DateTime> filteredEventHandler = (FunctionWithoutResult<DateTime>)args[5];
+                for (final DateTime filteredEventDate : filteredEventDates) {
+                    assertFalse(eventTypeFilter.apply(PortalEvent.class));
+                    filteredEventHandler.apply(filteredEventDate);
+                }
+                return null;
+            }
+        }).when(portalEventDao).aggregatePortalEvents(Mockito.any(DateTime.class), Mockito.any(DateTime.class), Mockito.eq(3), Mockito.any(Predicate.class), Mockito.any(FunctionWithoutResult.class), Mockito.any(FunctionWithoutResult.class));
+        
+        this.executeInTransaction(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                //The batch was full so there may be more events to aggregate
+                assertFalse(portalEventAggregationManager.doAggregateRawEvents());
+            }
+        });
+        
+        //Time still moved forward for the filtered events
+        verify(portalEventAggregator, never()).aggregateEvent(Mockito.any(PortalEvent.class), Mockito.any(EventSession.class), Mockito.any(Map.class));
+        verify(portalEventAggregator).handleIntervalBoundary(Mockito.eq(AggregationInterval.DAY), Mockito.any(Map.class));
+        verify(eventAggregatorStatus).setLastEventDate(lastFilteredEventDate);
+        verify(eventAggregationManagementDao).updateEventAggregatorStatus(eventAggregatorStatus);
+    }
+
+    @Test
+    public void aggregateEventSessions() throws Exception {
+        final TryLockFunctionResult<?> tryLockFunctionResult = mock(TryLockFunctionResult.class);
+        when(this.clusterLockService.doInTryLock(Mockito.anyString(), Mockito.any(Function.class))).thenReturn(tryLockFunctionResult);
+        
+        final IPortalEventAggregator<PortalEvent> portalEventAggregator = mock(IPortalEventAggregator.class);
+        portalEventAggregationManager.setPortalEventAggregators(Collections.singleton(portalEventAggregator));
+        final String partitionName = PortalEventAggregationManagerImpl.getPartitionName(portalEventAggregator);
+        
+        final DateTime lastEventDate = new DateTime(1325881000000l);
+        final IEventAggregatorStatus eventAggregatorStatus = mock(IEventAggregatorStatus.class);
+        when(eventAggregatorStatus.getLastEventDate()).thenReturn(lastEventDate);
+        when(this.eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, true)).thenReturn(eventAggregatorStatus);
+        
+        final IEventAggregatorStatus partitionStatus = mock(IEventAggregatorStatus.class);
+        when(this.eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, partitionName, true)).thenReturn(partitionStatus);
+        
+        when(this.portalInfoProvider.getServerName()).thenReturn("TEST_SERVER_NAME");
+        
+        this.executeInTransaction(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                portalEventAggregationManager.doAggregateEventSessions();
+            }
+        });
+        
+        //Shared rows are created along with the event sessions
+        verify(eventAggregationManagementDao).getDefaultAggregatedGroupConfig();
+        verify(eventAggregationManagementDao).getDefaultAggregatedIntervalConfig();
+        
+        //New partitions start where the event sessions were last created
+        verify(partitionStatus).setLastEventDate(lastEventDate);
+        verify(eventAggregationManagementDao).updateEventAggregatorStatus(partitionStatus);
+        
+        verify(portalEventDao).aggregatePortalEvents(Mockito.eq(lastEventDate), Mockito.any(DateTime.class), Mockito.eq(5000), Mockito.any(Predicate.class), Mockito.any(FunctionWithoutResult.class), Mockito.any(FunctionWithoutResult.class));
+    }
+
+    @Test
+    public void aggregatePartition() throws Exception {
+        final IPortalEventAggregator<PortalEvent> portalEventAggregator = mock(IPortalEventAggregator.class);
+        portalEventAggregationManager.setPortalEventAggregators(Collections.singleton(portalEventAggregator));
+        final String partitionName = PortalEventAggregationManagerImpl.getPartitionName(portalEventAggregator);
+        
+        when(this.portalInfoProvider.getServerName()).thenReturn("TEST_SERVER_NAME");
+        
+        //No event sessions yet, nothing to aggregate
+        this.executeInTransaction(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                assertTrue(portalEventAggregationManager.doAggregatePartition(portalEventAggregationManager.new PartitionAggregationFunction(portalEventAggregator)));
+            }
+        });
+        
+        final DateTime sessionsCreated = new DateTime(1325881200000l);
+        final IEventAggregatorStatus eventSessionStatus = mock(IEventAggregatorStatus.class);
+        when(eventSessionStatus.getLastEventDate()).thenReturn(sessionsCreated);
+        when(this.eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, false)).thenReturn(eventSessionStatus);
+        
+        final DateTime partitionAggregated = new DateTime(1325881000000l);
+        final IEventAggregatorStatus partitionStatus = mock(IEventAggregatorStatus.class);
+        when(partitionStatus.getLastEventDate()).thenReturn(partitionAggregated);
+        when(this.eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, partitionName, false)).thenReturn(partitionStatus);
+        
+        //Default configs don't exist yet, the partition must not create them
+        this.executeInTransaction(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                assertTrue(portalEventAggregationManager.doAggregatePartition(portalEventAggregationManager.new PartitionAggregationFunction(portalEventAggregator)));
+            }
+        });
+        
+        verify(portalEventDao, never()).getPortalEvents(Mockito.any(DateTime.class), Mockito.any(DateTime.class), Mockito.any(FunctionWithoutResult.class));
+        
+        when(this.eventAggregationManagementDao.getAggregatedGroupConfig(IPortalEventAggregator.class)).thenReturn(mock(AggregatedGroupConfig.class));
+        when(this.eventAggregationManagementDao.getAggregatedIntervalConfig(IPortalEventAggregator.class)).thenReturn(mock(AggregatedIntervalConfig.class));
+        
+        this.executeInTransaction(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                assertTrue(portalEventAggregationManager.doAggregatePartition(portalEventAggregationManager.new PartitionAggregationFunction(portalEventAggregator)));
+            }
+        });
+        
+        verify(portalEventDao).getPortalEvents(Mockito.eq(partitionAggregated.plusMillis(1)), Mockito.eq(sessionsCreated), Mockito.any(FunctionWithoutResult.class));
+        verify(partitionStatus).setServerName("TEST_SERVER_NAME");
+        verify(eventAggregationManagementDao).updateEventAggregatorStatus(partitionStatus);
+        verify(eventAggregationManagementDao, never()).getDefaultAggregatedGroupConfig();
+        verify(eventAggregationManagementDao, never()).getDefaultAggregatedIntervalConfig();
     }
 }
@@ -39,6 +39,8 @@ import org.jasig.portal.events.aggr.AcademicTermDetail;
 import org.jasig.portal.events.aggr.AggregatedGroupConfig;
 import org.jasig.portal.events.aggr.AggregatedIntervalConfig;
 import org.jasig.portal.events.aggr.EventDateTimeUtils;
+import org.jasig.portal.events.aggr.IEventAggregatorStatus;
+import org.jasig.portal.events.aggr.IEventAggregatorStatus.ProcessingType;
 import org.jasig.portal.events.aggr.AggregationInterval;
 import org.jasig.portal.events.aggr.QuarterDetail;
 import org.jasig.portal.events.aggr.dao.IEventAggregationManagementDao;
@@ -49,6 +51,7 @@ import org.jasig.portal.groups.ICompositeGroupService;
 import org.jasig.portal.groups.IEntityGroup;
 import org.jasig.portal.test.BaseJpaDaoTest;
 import org.joda.time.DateMidnight;
+import org.joda.time.DateTime;
 import org.joda.time.MonthDay;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -199,6 +202,53 @@ public class JpaEventAggregationManagementDaoTest extends BaseJpaDaoTest {
         });
     }
     
+    @Test
+    public void testEventAggregatorStatus() throws Exception {
+        final String loginPartition = LoginPortalEventAggregator.class.getName();
+        final String otherPartition = "org.jasig.portal.events.aggr.OtherPortalEventAggregator";
+        
+        this.execute(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                assertNull(eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, false));
+                assertNull(eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, loginPartition, false));
+                
+                final IEventAggregatorStatus status = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, true);
+                assertNotNull(status);
+                assertNull(status.getPartitionName());
+                status.setLastEventDate(new DateTime(1000));
+                eventAggregationManagementDao.updateEventAggregatorStatus(status);
+                
+                final IEventAggregatorStatus loginStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, loginPartition, true);
+                assertNotNull(loginStatus);
+                assertEquals(loginPartition, loginStatus.getPartitionName());
+                loginStatus.setLastEventDate(new DateTime(2000));
+                eventAggregationManagementDao.updateEventAggregatorStatus(loginStatus);
+                
+                final IEventAggregatorStatus otherStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, otherPartition, true);
+                assertNotNull(otherStatus);
+                assertEquals(otherPartition, otherStatus.getPartitionName());
+                assertNull(otherStatus.getLastEventDate());
+            }
+        });
+        
+        this.execute(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                //Repeated lookups find the existing rows instead of creating new ones
+                final IEventAggregatorStatus status = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, true);
+                assertEquals(1000, status.getLastEventDate().getMillis());
+                assertEquals(status, eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, null, true));
+                
+                final IEventAggregatorStatus loginStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.AGGREGATION, loginPartition, true);
+                assertEquals(loginPartition, loginStatus.getPartitionName());
+                assertEquals(2000, loginStatus.getLastEventDate().getMillis());
+                
+                assertNull(eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.PURGING, loginPartition, false));
+            }
+        });
+    }
+    
     @Test
     public void testQuarterDetails() throws Exception {
         this.execute(new CallableWithoutResult() {
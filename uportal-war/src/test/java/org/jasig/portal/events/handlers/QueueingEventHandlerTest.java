@@ -0,0 +1,160 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events.handlers;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jasig.portal.events.handlers.QueueingEventHandler.OverflowPolicy;
+import org.junit.Test;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * @version $Revision$
+ */
+public class QueueingEventHandlerTest {
+    @Test
+    public void testDefaultBlocks() throws Exception {
+        final CollectingEventHandler handler = new CollectingEventHandler();
+        handler.setCapacity(3);
+        assertEquals(OverflowPolicy.BLOCK, handler.getOverflowPolicy());
+        
+        final Thread publisher = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 5; i++) {
+                    handler.onApplicationEvent(new TestEvent(i));
+                }
+            }
+        };
+        publisher.start();
+        
+        //The publisher waits for room in the full queue instead of dropping events
+        publisher.join(200);
+        assertTrue(publisher.isAlive());
+        assertEquals(3, handler.getQueueDepth());
+        
+        while (publisher.isAlive()) {
+            handler.flush();
+            publisher.join(10);
+        }
+        handler.flush();
+        
+        assertFalse(publisher.isAlive());
+        assertEquals(0, handler.getDroppedCount());
+        assertEquals(5, handler.getQueuedCount());
+        assertEquals(5, handler.events.size());
+        assertEquals(0, handler.events.get(0).getSource());
+        assertEquals(4, handler.events.get(4).getSource());
+    }
+    
+    @Test
+    public void testBlockTimeout() {
+        final CollectingEventHandler handler = new CollectingEventHandler();
+        handler.setCapacity(3);
+        handler.setBlockTimeout(10);
+        
+        for (int i = 0; i < 5; i++) {
+            handler.onApplicationEvent(new TestEvent(i));
+        }
+        
+        assertEquals(3, handler.getQueueDepth());
+        assertEquals(2, handler.getDroppedCount());
+    }
+    
+    @Test
+    public void testDropOldest() {
+        final CollectingEventHandler handler = new CollectingEventHandler();
+        handler.setCapacity(3);
+        handler.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        
+        for (int i = 0; i < 5; i++) {
+            handler.onApplicationEvent(new TestEvent(i));
+        }
+        
+        assertEquals(3, handler.getQueueDepth());
+        assertEquals(2, handler.getDroppedCount());
+        
+        handler.flush();
+        
+        assertEquals(0, handler.getQueueDepth());
+        assertEquals(3, handler.getFlushedCount());
+        assertEquals(3, handler.events.size());
+        assertEquals(2, handler.events.get(0).getSource());
+        assertEquals(4, handler.events.get(2).getSource());
+    }
+    
+    @Test
+    public void testSample() {
+        final CollectingEventHandler handler = new CollectingEventHandler();
+        handler.setCapacity(8);
+        handler.setSampleRate(2);
+        handler.setOverflowPolicy(OverflowPolicy.SAMPLE);
+        
+        for (int i = 0; i < 10; i++) {
+            handler.onApplicationEvent(new TestEvent(i));
+        }
+        
+        //first 6 queued, then every other event once the queue is three quarters full
+        assertEquals(8, handler.getQueueDepth());
+        assertEquals(8, handler.getQueuedCount());
+        assertEquals(2, handler.getDroppedCount());
+    }
+    
+    @Test
+    public void testBatchSize() {
+        final CollectingEventHandler handler = new CollectingEventHandler();
+        handler.setCapacity(100);
+        handler.setBatchSize(10);
+        handler.setMaxBatchSize(10);
+        
+        for (int i = 0; i < 25; i++) {
+            handler.onApplicationEvent(new TestEvent(i));
+        }
+        
+        handler.flush();
+        
+        assertEquals(25, handler.events.size());
+        assertEquals(3, handler.getBatchCount());
+    }
+    
+    private static final class CollectingEventHandler extends QueueingEventHandler<TestEvent> {
+        private final List<TestEvent> events = new ArrayList<TestEvent>();
+
+        @Override
+        protected void onApplicationEvents(Iterable<TestEvent> events) {
+            for (final TestEvent event : events) {
+                this.events.add(event);
+            }
+        }
+    }
+    
+    private static final class TestEvent extends ApplicationEvent {
+        private static final long serialVersionUID = 1L;
+
+        public TestEvent(int id) {
+            super(id);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class GroupClosureIndexTest {
+    private GroupClosureIndex index;
+
+    @Before
+    public void setUp() {
+        //everyone contains campus and pags.all, campus contains college, college contains dept
+        final Map<String, Collection<String>> memberGroupKeys = new LinkedHashMap<String, Collection<String>>();
+        memberGroupKeys.put("local.everyone", Arrays.asList("local.campus", "pags.all"));
+        memberGroupKeys.put("local.campus", Arrays.asList("local.college"));
+        memberGroupKeys.put("local.college", Arrays.asList("local.dept"));
+
+        this.index = new GroupClosureIndex();
+        this.index.setAllMemberGroupKeys(memberGroupKeys);
+    }
+
+    @Test
+    public void testAncestors() {
+        assertEquals(5, this.index.getGroupCount());
+        assertEquals(Collections.singleton("local.college"), this.index.getContainingGroupKeys("local.dept"));
+        assertEquals(new HashSet<String>(Arrays.asList("local.college", "local.campus", "local.everyone")),
+                this.index.getAllContainingGroupKeys("local.dept"));
+        assertEquals(Collections.singleton("local.everyone"), this.index.getAllContainingGroupKeys("pags.all"));
+        assertTrue(this.index.getAllContainingGroupKeys("unknown").isEmpty());
+
+        assertTrue(this.index.isDeepMember("local.dept", "local.everyone"));
+        assertTrue(this.index.isDeepMember("local.dept", "local.college"));
+        assertFalse(this.index.isDeepMember("local.everyone", "local.dept"));
+        assertFalse(this.index.isDeepMember("pags.all", "local.campus"));
+        assertFalse(this.index.isDeepMember("unknown", "local.campus"));
+    }
+
+    @Test
+    public void testIncrementalUpdates() {
+        assertTrue(this.index.isDeepMember("local.dept", "local.everyone"));
+
+        //Move dept directly under everyone
+        this.index.setMemberGroupKeys("local.college", Collections.<String>emptyList());
+        this.index.setMemberGroupKeys("local.everyone", Arrays.asList("local.campus", "pags.all", "local.dept"));
+        assertFalse(this.index.isDeepMember("local.dept", "local.campus"));
+        assertTrue(this.index.isDeepMember("local.dept", "local.everyone"));
+
+        this.index.removeGroup("local.everyone");
+        assertFalse(this.index.isDeepMember("local.dept", "local.everyone"));
+        assertTrue(this.index.getAllContainingGroupKeys("local.campus").isEmpty());
+    }
+
+    @Test
+    public void testCircularMembership() {
+        this.index.setMemberGroupKeys("local.dept", Arrays.asList("local.campus"));
+
+        assertTrue(this.index.isDeepMember("local.campus", "local.campus"));
+        assertEquals(new HashSet<String>(Arrays.asList("local.dept", "local.college", "local.campus", "local.everyone")),
+                this.index.getAllContainingGroupKeys("local.campus"));
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.groups;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.jasig.portal.EntityTypes;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.spring.locator.PortalDbLocator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the batched {@link RDBMEntityGroupStore#findContainingGroups(Collection)} with
+ * the per member {@link RDBMEntityGroupStore#findContainingGroups(IGroupMember)} against
+ * an in-memory database.
+ * 
+ * @version $Revision$
+ */
+public class RDBMEntityGroupStoreTest {
+    private static final int PERSON_COUNT = 250;
+    
+    private final List<String> preparedSql = new ArrayList<String>();
+    private JDBCDataSource database;
+    private PortalDbLocator portalDbLocator;
+    private RDBMEntityGroupStore groupStore;
+
+    @Before
+    public void setUp() throws Exception {
+        this.database = new JDBCDataSource();
+        this.database.setDatabase("jdbc:hsqldb:mem:RDBMEntityGroupStoreTest");
+        this.database.setUser("sa");
+        this.database.setPassword("");
+        
+        this.portalDbLocator = new PortalDbLocator(this.createRecordingDataSource(this.database));
+        this.portalDbLocator.afterPropertiesSet();
+        
+        final Connection connection = this.database.getConnection();
+        try {
+            final Statement statement = connection.createStatement();
+            statement.execute("CREATE TABLE UP_ENTITY_TYPE (ENTITY_TYPE_ID INTEGER, ENTITY_TYPE_NAME VARCHAR(255), DESCRIPTIVE_NAME VARCHAR(255))");
+            statement.execute("CREATE TABLE UP_GROUP (GROUP_ID VARCHAR(200), CREATOR_ID VARCHAR(200), ENTITY_TYPE_ID INTEGER, GROUP_NAME VARCHAR(200), DESCRIPTION VARCHAR(200))");
+            statement.execute("CREATE TABLE UP_GROUP_MEMBERSHIP (GROUP_ID VARCHAR(200), MEMBER_SERVICE VARCHAR(200), MEMBER_KEY VARCHAR(200), MEMBER_IS_GROUP VARCHAR(1))");
+            
+            statement.execute("INSERT INTO UP_ENTITY_TYPE VALUES (2, '" + IPerson.class.getName() + "', 'Person')");
+            statement.execute("INSERT INTO UP_ENTITY_TYPE VALUES (3, '" + IEntityGroup.class.getName() + "', 'Group')");
+            
+            //Everyone (1) contains students (2) and staff (3), students contain every person, staff contains the even ones
+            statement.execute("INSERT INTO UP_GROUP VALUES ('1', 'system', 2, 'Everyone', 'All people')");
+            statement.execute("INSERT INTO UP_GROUP VALUES ('2', 'system', 2, 'Students', 'All students')");
+            statement.execute("INSERT INTO UP_GROUP VALUES ('3', 'system', 2, 'Staff', 'All staff')");
+            statement.execute("INSERT INTO UP_GROUP_MEMBERSHIP VALUES ('1', 'local', '2', 'T')");
+            statement.execute("INSERT INTO UP_GROUP_MEMBERSHIP VALUES ('1', 'local', '3', 'T')");
+            statement.close();
+            
+            final PreparedStatement insertMembership = connection.prepareStatement("INSERT INTO UP_GROUP_MEMBERSHIP VALUES (?, 'local', ?, 'F')");
+            for (int i = 0; i < PERSON_COUNT; i++) {
+                insertMembership.setString(1, "2");
+                insertMembership.setString(2, "person" + i);
+                insertMembership.executeUpdate();
+                if (i % 2 == 0) {
+                    insertMembership.setString(1, "3");
+                    insertMembership.executeUpdate();
+                }
+            }
+            insertMembership.close();
+        }
+        finally {
+            connection.close();
+        }
+        
+        EntityTypes.refresh();
+        this.groupStore = new RDBMEntityGroupStore();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final Connection connection = this.database.getConnection();
+        try {
+            final Statement statement = connection.createStatement();
+            statement.execute("SHUTDOWN");
+            statement.close();
+        }
+        finally {
+            connection.close();
+        }
+        
+        this.portalDbLocator.destroy();
+    }
+
+    @Test
+    public void testFindContainingGroupsMatchesPerMemberLookup() throws Exception {
+        final List<IGroupMember> members = new ArrayList<IGroupMember>();
+        for (int i = 0; i < PERSON_COUNT; i++) {
+            members.add(new EntityImpl("person" + i, IPerson.class));
+        }
+        members.add(new EntityImpl("unknown", IPerson.class));
+        members.add(new EntityGroupImpl("local.2", IPerson.class));
+        members.add(new EntityGroupImpl("local.3", IPerson.class));
+        members.add(new EntityGroupImpl("local.1", IPerson.class));
+        
+        this.preparedSql.clear();
+        final Map<IGroupMember, Collection<IEntityGroup>> containingGroups = this.groupStore.findContainingGroups(members);
+        final List<String> batchSql = new ArrayList<String>(this.preparedSql);
+        
+        assertEquals(members.size(), containingGroups.size());
+        for (final IGroupMember member : members) {
+            final Set<String> expected = new HashSet<String>();
+            for (final Iterator<?> groups = this.groupStore.findContainingGroups(member); groups.hasNext(); ) {
+                expected.add(((IEntityGroup) groups.next()).getKey());
+            }
+            
+            assertEquals("Containing groups of " + member, expected, getKeys(containingGroups.get(member)));
+        }
+        
+        assertEquals(setOf("2", "3"), getKeys(containingGroups.get(members.get(0))));
+        assertEquals(setOf("2"), getKeys(containingGroups.get(members.get(1))));
+        assertEquals(setOf(), getKeys(containingGroups.get(members.get(PERSON_COUNT))));
+        assertEquals(setOf("1"), getKeys(containingGroups.get(members.get(PERSON_COUNT + 1))));
+        assertEquals(setOf(), getKeys(containingGroups.get(members.get(PERSON_COUNT + 3))));
+        
+        //251 person keys take three IN queries of at most 100 keys, the 3 group keys one more
+        assertEquals(4, batchSql.size());
+        for (final String sql : batchSql) {
+            final int keyCount = sql.length() - sql.replace("?", "").length();
+            assertTrue(sql, keyCount <= 100 + 2);
+        }
+    }
+
+    private static Set<String> getKeys(Collection<IEntityGroup> groups) {
+        final Set<String> keys = new HashSet<String>();
+        for (final IEntityGroup group : groups) {
+            keys.add(group.getKey());
+        }
+        return keys;
+    }
+    
+    private static Set<String> setOf(String... keys) {
+        final Set<String> set = new HashSet<String>();
+        for (final String key : keys) {
+            set.add(key);
+        }
+        return set;
+    }
+
+    /**
+     * Wraps the data source so the SQL of every prepared statement is recorded
+     */
+    private DataSource createRecordingDataSource(final DataSource dataSource) {
+        return (DataSource) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class<?>[] { DataSource.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                final Object result = invokeTarget(dataSource, method, args);
+                if (!(result instanceof Connection)) {
+                    return result;
+                }
+                
+                final Connection connection = (Connection) result;
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("prepareStatement".equals(method.getName())) {
+                            preparedSql.add((String) args[0]);
+                        }
+                        return invokeTarget(connection, method, args);
+                    }
+                });
+            }
+        });
+    }
+    
+    private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
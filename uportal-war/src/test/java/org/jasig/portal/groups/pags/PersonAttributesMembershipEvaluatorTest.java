@@ -0,0 +1,168 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups.pags;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.portal.groups.IEntityGroup;
+import org.jasig.portal.groups.pags.PersonAttributesGroupStore.GroupDefinition;
+import org.jasig.portal.groups.pags.PersonAttributesGroupStore.TestGroup;
+import org.jasig.portal.groups.pags.testers.StringEqualsTester;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.security.provider.PersonImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class PersonAttributesMembershipEvaluatorTest {
+    private Map<String, GroupDefinition> groupDefinitions;
+    private Map<String, List<IEntityGroup>> containingGroups;
+    private CountingTester staffTester;
+
+    @Before
+    public void setUp() {
+        this.groupDefinitions = new LinkedHashMap<String, GroupDefinition>();
+        this.containingGroups = new HashMap<String, List<IEntityGroup>>();
+
+        //root has no tests, staff and math are children of root and math repeats the staff tester
+        final GroupDefinition root = createGroup("root");
+        root.addMember("staff");
+        root.addMember("math");
+
+        this.staffTester = new CountingTester("affiliation", "staff");
+        final GroupDefinition staff = createGroup("staff", this.staffTester);
+        staff.addMember("math");
+
+        createGroup("math", new CountingTester("affiliation", "staff"), new StringEqualsTester("department", "math"));
+
+        createGroup("students", new StringEqualsTester("affiliation", "student"));
+
+        this.addParent("staff", "root");
+        this.addParent("math", "root");
+        this.addParent("math", "staff");
+    }
+
+    private GroupDefinition createGroup(String key, IPersonTester... testers) {
+        final GroupDefinition groupDefinition = new GroupDefinition();
+        groupDefinition.setKey(key);
+        groupDefinition.setName(key);
+        if (testers.length > 0) {
+            final TestGroup testGroup = new TestGroup();
+            for (final IPersonTester tester : testers) {
+                testGroup.addTest(tester);
+            }
+            groupDefinition.addTestGroup(testGroup);
+        }
+        this.groupDefinitions.put(key, groupDefinition);
+        return groupDefinition;
+    }
+
+    private void addParent(String child, String parent) {
+        final IEntityGroup parentGroup = mock(IEntityGroup.class);
+        when(parentGroup.getLocalKey()).thenReturn(parent);
+
+        List<IEntityGroup> parents = this.containingGroups.get(child);
+        if (parents == null) {
+            parents = new ArrayList<IEntityGroup>();
+            this.containingGroups.put(child, parents);
+        }
+        parents.add(parentGroup);
+    }
+
+    private IPerson createPerson(String affiliation, String department) {
+        final IPerson person = new PersonImpl();
+        person.setUserName("testuser");
+        person.setAttribute("affiliation", affiliation);
+        person.setAttribute("department", department);
+        return person;
+    }
+
+    @Test
+    public void testSharedTesters() {
+        final PersonAttributesMembershipEvaluator evaluator = new PersonAttributesMembershipEvaluator(this.groupDefinitions, this.containingGroups);
+
+        assertEquals(4, evaluator.getGroupCount());
+        assertEquals(3, evaluator.getTesters().size());
+    }
+
+    @Test
+    public void testMembership() {
+        final PersonAttributesMembershipEvaluator evaluator = new PersonAttributesMembershipEvaluator(this.groupDefinitions, this.containingGroups);
+
+        final BitSet membership = evaluator.evaluate(createPerson("staff", "math"));
+        assertFalse(membership.get(evaluator.getGroupIndex("root")));
+        assertTrue(membership.get(evaluator.getGroupIndex("staff")));
+        assertTrue(membership.get(evaluator.getGroupIndex("math")));
+        assertFalse(membership.get(evaluator.getGroupIndex("students")));
+
+        //The shared tester is run once for both groups
+        assertEquals(1, this.staffTester.count);
+
+        final BitSet studentMembership = evaluator.evaluate(createPerson("student", "math"));
+        assertEquals(1, studentMembership.cardinality());
+        assertTrue(studentMembership.get(evaluator.getGroupIndex("students")));
+    }
+
+    @Test
+    public void testFailedAncestor() {
+        //math no longer requires staff affiliation but staff is still its parent
+        this.groupDefinitions.remove("math");
+        createGroup("math", new StringEqualsTester("department", "math"));
+
+        final PersonAttributesMembershipEvaluator evaluator = new PersonAttributesMembershipEvaluator(this.groupDefinitions, this.containingGroups);
+
+        final BitSet membership = evaluator.evaluate(createPerson("student", "math"));
+        assertFalse(membership.get(evaluator.getGroupIndex("math")));
+        assertTrue(membership.get(evaluator.getGroupIndex("students")));
+    }
+
+    @Test
+    public void testUnknownGroup() {
+        final PersonAttributesMembershipEvaluator evaluator = new PersonAttributesMembershipEvaluator(this.groupDefinitions, this.containingGroups);
+        assertEquals(-1, evaluator.getGroupIndex("unknown"));
+    }
+
+    private static class CountingTester extends StringEqualsTester {
+        private int count = 0;
+
+        public CountingTester(String attribute, String test) {
+            super(attribute, test);
+        }
+
+        @Override
+        public boolean test(IPerson person) {
+            count++;
+            return super.test(person);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups.smartldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.portal.groups.IEntityGroup;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class GroupsTreeTest {
+    private IEntityGroup root;
+    private Map<String, LdapRecord> records;
+    private Map<String, String> discoveredBy;
+
+    @Before
+    public void setUp() {
+        this.root = this.createGroup("ROOT");
+
+        this.records = new LinkedHashMap<String, LdapRecord>();
+        this.addRecord("cn=a", "cn=b", "cn=c", "uid=user1");
+        this.addRecord("cn=b", "cn=c");
+        this.addRecord("cn=c");
+        this.addRecord("cn=d");
+
+        this.discoveredBy = new HashMap<String, String>();
+        this.discoveredBy.put("cn=c", "cn=b");
+    }
+
+    @Test
+    public void testRelationships() {
+        final GroupsTree tree = new GroupsTree(this.records, this.discoveredBy, this.root, "42", 1000);
+
+        assertEquals(5, tree.size());
+        assertSame(this.root, tree.getGroup("ROOT"));
+        assertNull(tree.getGroup("uid=user1"));
+
+        //Groups without a parent become children of the root
+        assertEquals(Arrays.asList("cn=a", "cn=d"), this.getKeys(tree.getChildren("ROOT")));
+        assertEquals(Arrays.asList("ROOT"), this.getKeys(tree.getParents("cn=a")));
+
+        //Members that aren't SmartLdap groups are dropped
+        assertEquals(Arrays.asList("cn=b", "cn=c"), this.getKeys(tree.getChildren("cn=a")));
+        assertEquals(Arrays.asList("cn=a", "cn=b"), this.getKeys(tree.getParents("cn=c")));
+        assertTrue(tree.getParents("uid=user1").isEmpty());
+
+        assertEquals(Arrays.asList("cn=a", "cn=b"), tree.findKeysByUpperCaseName("NAME OF CN=[AB]"));
+    }
+
+    @Test
+    public void testRecreateRecords() {
+        final GroupsTree tree = new GroupsTree(this.records, this.discoveredBy, this.root, "42", 1000);
+
+        final Map<String, LdapRecord> recreated = tree.getRecords(this.root);
+        assertEquals(this.records.keySet(), recreated.keySet());
+        assertEquals(Arrays.asList("cn=b", "cn=c"), recreated.get("cn=a").getKeysOfChildren());
+        assertEquals(this.discoveredBy, tree.getDiscoveredBy());
+        assertEquals("42", tree.getChangeMarker());
+        assertEquals(1000, tree.getFullRefreshTime());
+
+        //Rebuilding from the recreated records gives the same tree
+        final GroupsTree rebuilt = new GroupsTree(recreated, tree.getDiscoveredBy(), this.root, "42", 1000);
+        assertEquals(this.getKeys(tree.getChildren("ROOT")), this.getKeys(rebuilt.getChildren("ROOT")));
+        assertEquals(this.getKeys(tree.getParents("cn=c")), this.getKeys(rebuilt.getParents("cn=c")));
+    }
+
+    @Test
+    public void testCompareChangeMarkers() {
+        assertTrue(GroupsTreeBuilder.compareChangeMarkers("9999", "10000") < 0);
+        assertTrue(GroupsTreeBuilder.compareChangeMarkers("20121018120000.0Z", "20121017120000.0Z") > 0);
+        assertTrue(GroupsTreeBuilder.compareChangeMarkers(null, "1") < 0);
+        assertEquals(0, GroupsTreeBuilder.compareChangeMarkers("12", "12"));
+    }
+
+    private void addRecord(String key, String... children) {
+        final List<String> keysOfChildren = new ArrayList<String>(Arrays.asList(children));
+        this.records.put(key, new LdapRecord(this.createGroup(key), keysOfChildren));
+    }
+
+    private IEntityGroup createGroup(String key) {
+        final IEntityGroup group = mock(IEntityGroup.class);
+        when(group.getLocalKey()).thenReturn(key);
+        when(group.getKey()).thenReturn("smartldap." + key);
+        when(group.getName()).thenReturn("Name of " + key);
+        return group;
+    }
+
+    private List<String> getKeys(List<IEntityGroup> groups) {
+        final List<String> keys = new ArrayList<String>(groups.size());
+        for (final IEntityGroup group : groups) {
+            keys.add(group.getLocalKey());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.layout.dlm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jasig.portal.IUserProfile;
+import org.jasig.portal.layout.IUserLayoutStore;
+import org.jasig.portal.security.IAuthorizationPrincipal;
+import org.jasig.portal.security.IAuthorizationService;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.utils.DocumentFactory;
+import org.joda.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * @version $Revision$
+ */
+public class DistributedLayoutManagerTest {
+    private IPerson owner;
+    private IUserProfile profile;
+    private ILayoutCachingService layoutCachingService;
+    private IUserLayoutStore distributedLayoutStore;
+    private IAuthorizationService authorizationService;
+    private LayoutWriteBehindService layoutWriteBehindService;
+    private Document layout;
+    private DistributedLayoutManager layoutManager;
+
+    @Before
+    public void setUp() throws Exception {
+        this.owner = mock(IPerson.class);
+        when(this.owner.getUserName()).thenReturn("student");
+        this.profile = mock(IUserProfile.class);
+        when(this.profile.getProfileId()).thenReturn(1);
+
+        this.layout = DocumentFactory.getThreadDocument();
+        final Element root = this.layout.createElement("layout");
+        this.layout.appendChild(root);
+        this.addFolder("s1");
+
+        this.layoutCachingService = mock(ILayoutCachingService.class);
+        when(this.layoutCachingService.getCachedLayout(this.owner, this.profile)).thenReturn(new DistributedUserLayout(this.layout));
+        this.distributedLayoutStore = mock(IUserLayoutStore.class);
+        this.authorizationService = mock(IAuthorizationService.class);
+
+        this.layoutWriteBehindService = new LayoutWriteBehindService();
+        this.layoutWriteBehindService.setEnabled(true);
+        this.layoutWriteBehindService.setWriteDelay(Duration.ZERO);
+
+        this.layoutManager = new DistributedLayoutManager(this.owner, this.profile);
+        this.layoutManager.setLayoutCachingService(this.layoutCachingService);
+        this.layoutManager.setDistributedLayoutStore(this.distributedLayoutStore);
+        this.layoutManager.setLayoutWriteBehindService(this.layoutWriteBehindService);
+        this.layoutManager.setAuthorizationService(this.authorizationService);
+    }
+
+    private Element addFolder(String id) {
+        final Element folder = this.layout.createElement("folder");
+        folder.setAttribute("ID", id);
+        this.layout.getDocumentElement().appendChild(folder);
+        return folder;
+    }
+
+    @Test
+    public void testDeferredSaveWritesLayoutAsSaved() throws Exception {
+        this.layoutManager.saveUserLayout();
+
+        //Edit made after the save was scheduled
+        this.addFolder("s2");
+
+        this.layoutWriteBehindService.flush();
+
+        final ArgumentCaptor<Document> written = ArgumentCaptor.forClass(Document.class);
+        verify(this.distributedLayoutStore).setUserLayout(eq(this.owner), eq(this.profile), written.capture(), anyBoolean());
+        assertNotSame(this.layout, written.getValue());
+        assertEquals(1, written.getValue().getElementsByTagName("folder").getLength());
+        assertEquals(2, this.layout.getElementsByTagName("folder").getLength());
+    }
+
+    @Test
+    public void testConcurrentEditAndFlush() throws Exception {
+        final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                final Document written = (Document) invocation.getArguments()[2];
+                if (written == layout) {
+                    failures.add(new AssertionError("Live layout document was written"));
+                }
+                countNodes(written);
+                return null;
+            }
+        }).when(this.distributedLayoutStore).setUserLayout(any(IPerson.class), any(IUserProfile.class), any(Document.class), anyBoolean());
+
+        final AtomicBoolean editing = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(2);
+
+        final Thread editor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        addFolder("n" + i);
+                        layoutManager.saveUserLayout();
+                        layout.getDocumentElement().removeChild(layout.getDocumentElement().getLastChild());
+                    }
+                }
+                catch (Throwable t) {
+                    failures.add(t);
+                }
+                finally {
+                    editing.set(false);
+                    done.countDown();
+                }
+            }
+        });
+        final Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (editing.get()) {
+                        layoutWriteBehindService.flush();
+                    }
+                }
+                catch (Throwable t) {
+                    failures.add(t);
+                }
+                finally {
+                    done.countDown();
+                }
+            }
+        });
+
+        editor.start();
+        flusher.start();
+        done.await();
+        this.layoutWriteBehindService.destroy();
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(0, this.layoutWriteBehindService.getPendingCount());
+        assertEquals(1, this.layout.getElementsByTagName("folder").getLength());
+    }
+
+    @Test
+    public void testUnauthorizedHeaderAndFooterChannelsRemoved() throws Exception {
+        final Element header = this.addFolder("s2");
+        header.setAttribute("type", "header");
+        this.addChannel(header, "n3", "1");
+        this.addChannel(header, "n4", "x");
+        final Element footer = this.addFolder("s5");
+        footer.setAttribute("type", "footer");
+        this.addChannel(footer, "n6", "2");
+        this.addChannel(footer, "n7", "1");
+        final Element tab = this.addFolder("s8");
+        tab.setAttribute("type", "regular");
+        this.addChannel(tab, "n9", "2");
+
+        //Loaded from the store instead of the layout cache
+        when(this.layoutCachingService.getCachedLayout(this.owner, this.profile)).thenReturn(null);
+        when(this.distributedLayoutStore.getUserLayout(this.owner, this.profile)).thenReturn(new DistributedUserLayout(this.layout));
+
+        //Channel 2 isn't authorized, channel x failed its check and isn't returned either
+        final IAuthorizationPrincipal principal = mock(IAuthorizationPrincipal.class);
+        when(this.authorizationService.newPrincipal("student", IPerson.class)).thenReturn(principal);
+        when(principal.getRenderableChannels(any(Collection.class))).thenReturn(new LinkedHashSet<String>(Arrays.asList("1")));
+
+        final Document layout = this.layoutManager.getDistributedUserLayout().getLayout();
+
+        assertEquals(Arrays.asList("1"), this.getChannelIds(header));
+        assertEquals(Arrays.asList("1"), this.getChannelIds(footer));
+        assertEquals(Arrays.asList("2"), this.getChannelIds(tab));
+        assertEquals(3, layout.getElementsByTagName("channel").getLength());
+    }
+
+    private void addChannel(Element folder, String id, String channelId) {
+        final Element channel = this.layout.createElement("channel");
+        channel.setAttribute("ID", id);
+        channel.setAttribute("chanID", channelId);
+        folder.appendChild(channel);
+    }
+
+    private List<String> getChannelIds(Element folder) {
+        final List<String> channelIds = new ArrayList<String>();
+        final NodeList channels = folder.getElementsByTagName("channel");
+        for (int i = 0; i < channels.getLength(); i++) {
+            channelIds.add(((Element) channels.item(i)).getAttribute("chanID"));
+        }
+        return channelIds;
+    }
+
+    private static int countNodes(Node node) {
+        int count = 1;
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.layout.dlm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.jasig.portal.utils.Tuple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class FragmentActivatorTest {
+    private static final Locale LOCALE = Locale.US;
+
+    private CacheManager cacheManager;
+    private Ehcache userViews;
+    private ConfigurationLoader configurationLoader;
+    private FragmentDefinition fragment;
+    private final Queue<Runnable> backgroundActivations = new LinkedList<Runnable>();
+    private final AtomicInteger activationCount = new AtomicInteger();
+    private volatile CountDownLatch activationStarted = new CountDownLatch(0);
+    private volatile CountDownLatch activationReleased = new CountDownLatch(0);
+    private FragmentActivator fragmentActivator;
+
+    @Before
+    public void setUp() {
+        final Configuration configuration = new Configuration()
+            .name("FragmentActivatorTest")
+            .defaultCache(new CacheConfiguration("default", 100));
+        this.cacheManager = new CacheManager(configuration);
+        this.cacheManager.addCache("userViews");
+        this.userViews = this.cacheManager.getEhcache("userViews");
+
+        this.fragment = this.createFragment("fragment-owner");
+        this.configurationLoader = mock(ConfigurationLoader.class);
+        when(this.configurationLoader.getFragments()).thenReturn(Arrays.asList(this.fragment));
+
+        this.fragmentActivator = new FragmentActivator() {
+            @Override
+            UserView activateFragment(FragmentDefinition fd, Locale locale) {
+                activationStarted.countDown();
+                try {
+                    activationReleased.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new UserView(activationCount.incrementAndGet());
+            }
+        };
+        this.fragmentActivator.setUserViews(this.userViews);
+        this.fragmentActivator.setConfigurationLoader(this.configurationLoader);
+        this.fragmentActivator.setActivationExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                backgroundActivations.add(command);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        this.cacheManager.shutdown();
+    }
+
+    private FragmentDefinition createFragment(String ownerId) {
+        final FragmentDefinition fragment = mock(FragmentDefinition.class);
+        when(fragment.getOwnerId()).thenReturn(ownerId);
+        when(fragment.getName()).thenReturn(ownerId + "-fragment");
+        return fragment;
+    }
+
+    private void expireUserView(FragmentDefinition fragment) {
+        this.userViews.remove(new Tuple<String, String>(fragment.getOwnerId(), LOCALE.toString()));
+    }
+
+    private void runBackgroundActivations() {
+        for (Runnable activation = this.backgroundActivations.poll(); activation != null; activation = this.backgroundActivations.poll()) {
+            activation.run();
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestersShareActivation() throws Exception {
+        this.activationStarted = new CountDownLatch(1);
+        this.activationReleased = new CountDownLatch(1);
+
+        final ExecutorService requesters = Executors.newFixedThreadPool(5);
+        try {
+            final List<Future<UserView>> views = new LinkedList<Future<UserView>>();
+            for (int i = 0; i < 5; i++) {
+                views.add(requesters.submit(new Callable<UserView>() {
+                    @Override
+                    public UserView call() throws Exception {
+                        return fragmentActivator.getUserView(fragment, LOCALE);
+                    }
+                }));
+            }
+
+            assertTrue(this.activationStarted.await(10, TimeUnit.SECONDS));
+            this.activationReleased.countDown();
+
+            final UserView view = views.get(0).get(10, TimeUnit.SECONDS);
+            for (final Future<UserView> otherView : views) {
+                assertSame(view, otherView.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, this.activationCount.get());
+        }
+        finally {
+            requesters.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStaleViewServedDuringRefresh() throws Exception {
+        final UserView view = this.fragmentActivator.getUserView(this.fragment, LOCALE);
+
+        this.expireUserView(this.fragment);
+
+        //The retained view is returned and a single refresh is queued
+        assertSame(view, this.fragmentActivator.getUserView(this.fragment, LOCALE));
+        assertSame(view, this.fragmentActivator.getUserView(this.fragment, LOCALE));
+        assertEquals(1, this.backgroundActivations.size());
+        assertEquals(1, this.activationCount.get());
+
+        this.runBackgroundActivations();
+
+        final UserView refreshedView = this.fragmentActivator.getUserView(this.fragment, LOCALE);
+        assertNotSame(view, refreshedView);
+        assertEquals(2, this.activationCount.get());
+    }
+
+    @Test
+    public void testClearDuringActivation() throws Exception {
+        this.activationStarted = new CountDownLatch(1);
+        this.activationReleased = new CountDownLatch(1);
+
+        final ExecutorService requester = Executors.newSingleThreadExecutor();
+        try {
+            final Future<UserView> view = requester.submit(new Callable<UserView>() {
+                @Override
+                public UserView call() throws Exception {
+                    return fragmentActivator.getUserView(fragment, LOCALE);
+                }
+            });
+
+            assertTrue(this.activationStarted.await(10, TimeUnit.SECONDS));
+            this.fragmentActivator.clearChacheForOwner(this.fragment.getOwnerId());
+            this.activationReleased.countDown();
+
+            //The requester gets the view but it is not kept since it was activated before the clear
+            final UserView clearedView = view.get(10, TimeUnit.SECONDS);
+            assertFalse(this.fragmentActivator.hasUserView(this.fragment, LOCALE));
+
+            final UserView newView = this.fragmentActivator.getUserView(this.fragment, LOCALE);
+            assertNotSame(clearedView, newView);
+            assertEquals(2, this.activationCount.get());
+            assertTrue(this.fragmentActivator.hasUserView(this.fragment, LOCALE));
+        }
+        finally {
+            requester.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testClearDropsRetainedView() throws Exception {
+        final UserView view = this.fragmentActivator.getUserView(this.fragment, LOCALE);
+
+        this.fragmentActivator.clearChacheForOwner(this.fragment.getOwnerId());
+        assertFalse(this.fragmentActivator.hasUserView(this.fragment, LOCALE));
+
+        assertNotSame(view, this.fragmentActivator.getUserView(this.fragment, LOCALE));
+        assertTrue(this.backgroundActivations.isEmpty());
+    }
+
+    @Test
+    public void testRemovedFragmentViewPruned() throws Exception {
+        final FragmentDefinition removedFragment = this.createFragment("removed-owner");
+        when(this.configurationLoader.getFragments()).thenReturn(Arrays.asList(this.fragment, removedFragment));
+
+        this.fragmentActivator.getUserView(this.fragment, LOCALE);
+        this.fragmentActivator.getUserView(removedFragment, LOCALE);
+        assertTrue(this.fragmentActivator.hasUserView(removedFragment, LOCALE));
+
+        //The fragment is removed from the configuration, the next refresh drops its view
+        when(this.configurationLoader.getFragments()).thenReturn(Arrays.asList(this.fragment));
+        this.expireUserView(this.fragment);
+        this.fragmentActivator.getUserView(this.fragment, LOCALE);
+        this.runBackgroundActivations();
+
+        assertFalse(this.fragmentActivator.hasUserView(removedFragment, LOCALE));
+        assertTrue(this.fragmentActivator.hasUserView(this.fragment, LOCALE));
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.layout.dlm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.jasig.portal.security.IAuthorizationPrincipal;
+import org.jasig.portal.utils.DocumentFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * @version $Revision$
+ */
+public class ILFBuilderTest {
+    private CacheManager cacheManager;
+    private Ehcache mergedFragmentsCache;
+    private Document plf;
+    private List<Document> sequence;
+
+    @Before
+    public void setUp() {
+        final Configuration configuration = new Configuration()
+            .name("ILFBuilderTest")
+            .defaultCache(new CacheConfiguration("default", 100));
+        this.cacheManager = new CacheManager(configuration);
+        this.cacheManager.addCache("mergedFragments");
+        this.mergedFragmentsCache = this.cacheManager.getEhcache("mergedFragments");
+
+        this.plf = this.createLayout("u10l1s1");
+        this.sequence = Arrays.asList(
+                this.createFragment("u1l1", "1", "2"),
+                this.createFragment("u2l1", "2", "3"));
+    }
+
+    @After
+    public void tearDown() {
+        this.cacheManager.shutdown();
+    }
+
+    private Document createLayout(String rootId) {
+        final Document layout = DocumentFactory.getThreadDocument();
+        final Element layoutElement = layout.createElement("layout");
+        layout.appendChild(layoutElement);
+        final Element root = layout.createElement("folder");
+        root.setAttribute(Constants.ATT_ID, rootId);
+        layoutElement.appendChild(root);
+        return layout;
+    }
+
+    private Document createFragment(String idPrefix, String... channelIds) {
+        final Document fragment = this.createLayout(idPrefix + "s1");
+        final Element tab = fragment.createElement("folder");
+        tab.setAttribute(Constants.ATT_ID, idPrefix + "s2");
+        ((Element) fragment.getDocumentElement().getFirstChild()).appendChild(tab);
+        for (final String channelId : channelIds) {
+            final Element channel = fragment.createElement("channel");
+            channel.setAttribute(Constants.ATT_ID, idPrefix + "n" + channelId);
+            channel.setAttribute("chanID", channelId);
+            tab.appendChild(channel);
+        }
+        return fragment;
+    }
+
+    private IAuthorizationPrincipal createPrincipal(String... deniedChannelIds) {
+        final IAuthorizationPrincipal ap = mock(IAuthorizationPrincipal.class);
+        for (final String channelId : Arrays.asList("1", "2", "3")) {
+            when(ap.canRender(channelId)).thenReturn(!Arrays.asList(deniedChannelIds).contains(channelId));
+        }
+        return ap;
+    }
+
+    private String toString(Node node) throws Exception {
+        final Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        final StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(node), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    @Test
+    public void testCachedMatchesMergeAllowed() throws Exception {
+        final IAuthorizationPrincipal ap = this.createPrincipal();
+        final String expected = this.toString(ILFBuilder.constructILF(this.plf, this.sequence, ap));
+
+        //First call builds the merged fragments, second uses the cached copy
+        assertEquals(expected, this.toString(ILFBuilder.constructILF(this.plf, this.sequence, ap, this.mergedFragmentsCache)));
+        assertEquals(expected, this.toString(ILFBuilder.constructILF(this.plf, this.sequence, ap, this.mergedFragmentsCache)));
+    }
+
+    @Test
+    public void testCachedMatchesMergeDenied() throws Exception {
+        final IAuthorizationPrincipal allowed = this.createPrincipal();
+        final IAuthorizationPrincipal denied = this.createPrincipal("2");
+        final String expected = this.toString(ILFBuilder.constructILF(this.plf, this.sequence, denied));
+
+        //A user allowed every channel shares the cached fragments but not the merged copy
+        ILFBuilder.constructILF(this.plf, this.sequence, allowed, this.mergedFragmentsCache);
+
+        final Document ilf = ILFBuilder.constructILF(this.plf, this.sequence, denied, this.mergedFragmentsCache);
+        assertEquals(expected, this.toString(ilf));
+        assertEquals(2, ilf.getElementsByTagName("channel").getLength());
+        assertNotNull(ilf.getElementById("u1l1n1"));
+        assertNotNull(ilf.getElementById("u2l1n3"));
+    }
+
+    @Test
+    public void testMergedFragmentsBuiltOnce() throws Exception {
+        final IAuthorizationPrincipal ap = this.createPrincipal();
+        ILFBuilder.constructILF(this.plf, this.sequence, ap, this.mergedFragmentsCache);
+
+        final MergedFragments.Key key = new MergedFragments.Key(this.sequence);
+        final Object mergedFragments = this.mergedFragmentsCache.get(key).getObjectValue();
+
+        ILFBuilder.constructILF(this.plf, this.sequence, ap, this.mergedFragmentsCache);
+        assertEquals(1, this.mergedFragmentsCache.getSize());
+        assertSame(mergedFragments, this.mergedFragmentsCache.get(key).getObjectValue());
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.layout.dlm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jasig.portal.IUserProfile;
+import org.jasig.portal.PortalException;
+import org.jasig.portal.security.IPerson;
+import org.joda.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.w3c.dom.Document;
+
+/**
+ * @version $Revision$
+ */
+public class LayoutWriteBehindServiceTest {
+    private LayoutWriteBehindService layoutWriteBehindService;
+    private IPerson owner;
+    private IUserProfile profile;
+    private DistributedLayoutManager layoutManager;
+    private Document layout;
+
+    @Before
+    public void setUp() {
+        this.layoutWriteBehindService = new LayoutWriteBehindService();
+        this.layoutWriteBehindService.setEnabled(true);
+        this.layoutWriteBehindService.setWriteDelay(Duration.ZERO);
+
+        this.owner = mock(IPerson.class);
+        when(this.owner.getUserName()).thenReturn("student");
+        this.profile = mock(IUserProfile.class);
+        when(this.profile.getProfileId()).thenReturn(1);
+
+        this.layoutManager = mock(DistributedLayoutManager.class);
+        when(this.layoutManager.getOwner()).thenReturn(this.owner);
+        when(this.layoutManager.getProfile()).thenReturn(this.profile);
+
+        this.layout = mock(Document.class);
+    }
+
+    @Test
+    public void testSavesCoalesced() throws Exception {
+        this.layoutWriteBehindService.scheduleSave(this.layoutManager, this.layout);
+        this.layoutWriteBehindService.scheduleSave(this.layoutManager, this.layout);
+        this.layoutWriteBehindService.scheduleSave(this.layoutManager, this.layout);
+        assertEquals(1, this.layoutWriteBehindService.getPendingCount());
+
+        this.layoutWriteBehindService.flush();
+
+        verify(this.layoutManager, times(1)).writeUserLayout(this.layout);
+        assertEquals(0, this.layoutWriteBehindService.getPendingCount());
+    }
+
+    @Test
+    public void testSaveHeldForDelay() throws Exception {
+        this.layoutWriteBehindService.setWriteDelay(Duration.standardHours(1));
+        this.layoutWriteBehindService.scheduleSave(this.layoutManager, this.layout);
+
+        this.layoutWriteBehindService.flush();
+        verify(this.layoutManager, never()).writeUserLayout(this.layout);
+
+        //Loading the layout from the store writes the pending save first
+        this.layoutWriteBehindService.flush(this.owner, this.profile);
+        verify(this.layoutManager, times(1)).writeUserLayout(this.layout);
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        this.layoutWriteBehindService.scheduleSave(this.layoutManager, this.layout);
+        this.layoutWriteBehindService.discard(this.owner);
+
+        this.layoutWriteBehindService.destroy();
+        verify(this.layoutManager, never()).writeUserLayout(this.layout);
+    }
+
+    @Test
+    public void testFailedSaveRetried() throws Exception {
+        doThrow(new PortalException("Database unavailable")).doNothing().when(this.layoutManager).writeUserLayout(this.layout);
+
+        this.layoutWriteBehindService.scheduleSave(this.layoutManager, this.layout);
+        this.layoutWriteBehindService.flush();
+        assertEquals(1, this.layoutWriteBehindService.getPendingCount());
+
+        this.layoutWriteBehindService.flush();
+        assertEquals(0, this.layoutWriteBehindService.getPendingCount());
+        verify(this.layoutManager, times(2)).writeUserLayout(this.layout);
+    }
+
+    @Test
+    public void testOlderSaveNotWrittenOverNewer() throws Exception {
+        final CountDownLatch olderRemoved = new CountDownLatch(1);
+        final CountDownLatch newerWritten = new CountDownLatch(1);
+        this.layoutWriteBehindService = new DelayingLayoutWriteBehindService(olderRemoved, newerWritten);
+        
+        final Document newerLayout = mock(Document.class);
+        
+        //The scheduler removes the older save but is slow to write it
+        this.layoutWriteBehindService.scheduleSave(this.layoutManager, this.layout);
+        final Thread scheduler = this.startFlush();
+        assertTrue(olderRemoved.await(5, TimeUnit.SECONDS));
+        
+        //A newer save is written synchronously in the meantime
+        this.layoutWriteBehindService.scheduleSave(this.layoutManager, newerLayout);
+        this.layoutWriteBehindService.flush(this.owner, this.profile);
+        verify(this.layoutManager, times(1)).writeUserLayout(newerLayout);
+        newerWritten.countDown();
+        
+        scheduler.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(scheduler.isAlive());
+        
+        verify(this.layoutManager, never()).writeUserLayout(this.layout);
+        assertEquals(0, this.layoutWriteBehindService.getPendingCount());
+    }
+    
+    @Test
+    public void testFlushFinishesSaveBeingWritten() throws Exception {
+        final CountDownLatch saveRemoved = new CountDownLatch(1);
+        final CountDownLatch flushed = new CountDownLatch(1);
+        this.layoutWriteBehindService = new DelayingLayoutWriteBehindService(saveRemoved, flushed);
+        
+        //The scheduler removes the save but is slow to write it
+        this.layoutWriteBehindService.scheduleSave(this.layoutManager, this.layout);
+        final Thread scheduler = this.startFlush();
+        assertTrue(saveRemoved.await(5, TimeUnit.SECONDS));
+        
+        //Loading the layout from the store must not return before the save is written
+        this.layoutWriteBehindService.flush(this.owner, this.profile);
+        verify(this.layoutManager, times(1)).writeUserLayout(this.layout);
+        flushed.countDown();
+        
+        scheduler.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(scheduler.isAlive());
+        
+        //The scheduler doesn't write the same save again
+        verify(this.layoutManager, times(1)).writeUserLayout(this.layout);
+    }
+    
+    @Test
+    public void testFailedOlderSaveNotRetried() throws Exception {
+        //Another session of the same user has its own layout manager
+        final DistributedLayoutManager otherLayoutManager = mock(DistributedLayoutManager.class);
+        when(otherLayoutManager.getOwner()).thenReturn(this.owner);
+        when(otherLayoutManager.getProfile()).thenReturn(this.profile);
+        final Document newerLayout = mock(Document.class);
+        
+        final Thread[] logout = new Thread[1];
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                //While the older save is being written a newer save is flushed by another thread
+                layoutWriteBehindService.scheduleSave(otherLayoutManager, newerLayout);
+                logout[0] = new Thread() {
+                    @Override
+                    public void run() {
+                        layoutWriteBehindService.flush(owner, profile);
+                    }
+                };
+                logout[0].start();
+                
+                final long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+                while (layoutWriteBehindService.getPendingCount() > 0 && System.currentTimeMillis() < timeout) {
+                    Thread.sleep(10);
+                }
+                
+                throw new PortalException("Database unavailable");
+            }
+        }).when(this.layoutManager).writeUserLayout(this.layout);
+        
+        this.layoutWriteBehindService.scheduleSave(this.layoutManager, this.layout);
+        this.layoutWriteBehindService.flush();
+        
+        logout[0].join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(logout[0].isAlive());
+        
+        //The newer save was written after the older one failed and the older one is not retried
+        verify(otherLayoutManager, times(1)).writeUserLayout(newerLayout);
+        assertEquals(0, this.layoutWriteBehindService.getPendingCount());
+        
+        this.layoutWriteBehindService.flush();
+        verify(this.layoutManager, times(1)).writeUserLayout(this.layout);
+    }
+    
+    private Thread startFlush() {
+        final Thread scheduler = new Thread() {
+            @Override
+            public void run() {
+                layoutWriteBehindService.flush();
+            }
+        };
+        scheduler.start();
+        return scheduler;
+    }
+    
+    /**
+     * Holds the first write after the save has been removed from the pending saves until released
+     */
+    private static final class DelayingLayoutWriteBehindService extends LayoutWriteBehindService {
+        private final AtomicBoolean first = new AtomicBoolean(true);
+        private final CountDownLatch removed;
+        private final CountDownLatch release;
+        
+        public DelayingLayoutWriteBehindService(CountDownLatch removed, CountDownLatch release) {
+            this.removed = removed;
+            this.release = release;
+            this.setEnabled(true);
+            this.setWriteDelay(Duration.ZERO);
+        }
+
+        @Override
+        protected void write(PendingSave pendingSave) {
+            if (this.first.compareAndSet(true, false)) {
+                this.removed.countDown();
+                try {
+                    this.release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.write(pendingSave);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.layout.dlm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.jasig.portal.utils.DocumentFactory;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * @version $Revision$
+ */
+public class MergedFragmentsTest {
+    private Document createFragment(String... channelIds) {
+        final Document fragment = DocumentFactory.getThreadDocument();
+        final Element layout = fragment.createElement("layout");
+        fragment.appendChild(layout);
+        final Element root = fragment.createElement("folder");
+        layout.appendChild(root);
+        for (final String channelId : channelIds) {
+            final Element channel = fragment.createElement("channel");
+            channel.setAttribute("chanID", channelId);
+            root.appendChild(channel);
+        }
+        return fragment;
+    }
+
+    @Test
+    public void testChannelIds() {
+        final Document fragment1 = this.createFragment("1", "2");
+        final Document fragment2 = this.createFragment("2", "3");
+
+        final MergedFragments mergedFragments = new MergedFragments(Arrays.asList(fragment1, fragment2));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("1", "2", "3")), mergedFragments.getChannelIds());
+    }
+
+    @Test
+    public void testKeyComparesDocumentIdentity() {
+        final Document fragment1 = this.createFragment("1");
+        final Document fragment2 = this.createFragment("1");
+
+        final MergedFragments.Key key = new MergedFragments(Arrays.asList(fragment1, fragment2)).getKey();
+        assertEquals(key, new MergedFragments(Arrays.asList(fragment1, fragment2)).getKey());
+        assertEquals(key.hashCode(), new MergedFragments(Arrays.asList(fragment1, fragment2)).getKey().hashCode());
+
+        //Same content in a different document or a different order is a different key
+        assertFalse(key.equals(new MergedFragments(Arrays.asList(fragment1, this.createFragment("1"))).getKey()));
+        assertFalse(key.equals(new MergedFragments(Arrays.asList(fragment2, fragment1)).getKey()));
+    }
+
+    @Test
+    public void testMergedCopiesBounded() {
+        final MergedFragments mergedFragments = new MergedFragments(Arrays.asList(this.createFragment("1")));
+
+        final Document mergedCopy = DocumentFactory.getThreadDocument();
+        final Set<String> noneDenied = Collections.emptySet();
+        mergedFragments.setMergedCopy(noneDenied, mergedCopy);
+        assertSame(mergedCopy, mergedFragments.getMergedCopy(Collections.<String>emptySet()));
+
+        for (int i = 0; i < MergedFragments.MAX_MERGED_COPIES * 2; i++) {
+            mergedFragments.setMergedCopy(Collections.singleton(String.valueOf(i)), DocumentFactory.getThreadDocument());
+        }
+        assertNull(mergedFragments.getMergedCopy(Collections.singleton(String.valueOf(MergedFragments.MAX_MERGED_COPIES * 2 - 1))));
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class CachedPortletDataTest {
+    @Test
+    public void testCompressStringData() {
+        final String content = StringUtils.repeat("<div class=\"portlet\">Hello World</div>", 500);
+        
+        final CachedPortletData data = new CachedPortletData();
+        data.setStringData(content);
+        data.compress(1024);
+        
+        assertTrue(data.isCompressed());
+        assertTrue(data.getStoredSize() < content.length());
+        assertEquals(content, data.getStringData());
+    }
+    
+    @Test
+    public void testCompressByteData() {
+        final byte[] content = new byte[8192];
+        Arrays.fill(content, (byte)'a');
+        
+        final CachedPortletData data = new CachedPortletData();
+        data.setByteData(content);
+        data.compress(1024);
+        
+        assertTrue(data.isCompressed());
+        assertTrue(Arrays.equals(content, data.getByteData()));
+    }
+    
+    @Test
+    public void testWriteCompressedByteData() throws IOException {
+        final byte[] content = new byte[8192];
+        Arrays.fill(content, (byte)'a');
+        
+        final CachedPortletData data = new CachedPortletData();
+        data.setByteData(content);
+        data.compress(1024);
+        assertEquals(content.length, data.getByteDataLength());
+        
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertTrue(data.writeByteData(outputStream));
+        assertTrue(Arrays.equals(content, outputStream.toByteArray()));
+        
+        data.setStringData("Hello World");
+        data.setByteData(null);
+        assertEquals(-1, data.getByteDataLength());
+        assertFalse(data.writeByteData(outputStream));
+    }
+    
+    @Test
+    public void testSmallDataNotCompressed() {
+        final CachedPortletData data = new CachedPortletData();
+        data.setStringData("Hello World");
+        data.compress(1024);
+        
+        assertFalse(data.isCompressed());
+        assertEquals("Hello World", data.getStringData());
+    }
+    
+    @Test
+    public void testShareBody() {
+        final ConcurrentMap<String, Object> sharedBodies = new ConcurrentHashMap<String, Object>();
+        
+        final CachedPortletData first = new CachedPortletData();
+        first.setStringData(new String("Hello World"));
+        assertFalse(first.shareBody(sharedBodies));
+        
+        final CachedPortletData second = new CachedPortletData();
+        second.setStringData(new String("Hello World"));
+        assertTrue(second.shareBody(sharedBodies));
+        
+        assertEquals(first.getBodyETag(), second.getBodyETag());
+        assertSame(first.getStringData(), second.getStringData());
+    }
+    
+    @Test
+    public void testStartRevalidation() {
+        final CachedPortletData data = new CachedPortletData();
+        data.setCacheConfigurationMaxTTL(300);
+        
+        assertTrue(data.startRevalidation(30000));
+        assertFalse(data.startRevalidation(30000));
+        
+        data.updateExpirationTime(60);
+        assertTrue(data.startRevalidation(30000));
+    }
+}
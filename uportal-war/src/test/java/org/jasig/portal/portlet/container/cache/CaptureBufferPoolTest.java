@@ -0,0 +1,112 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.container.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class CaptureBufferPoolTest {
+    private CaptureBufferPool captureBufferPool;
+
+    @Before
+    public void setUp() {
+        this.captureBufferPool = new CaptureBufferPool();
+    }
+
+    @Test
+    public void testCaptureAcrossSegments() throws IOException {
+        final String content = StringUtils.repeat("<p>Simple content</p>", 500);
+        
+        final CaptureWriter writer = this.captureBufferPool.createWriter(content.length());
+        writer.write(content.substring(0, 5));
+        writer.write(content.substring(5));
+        
+        assertFalse(writer.isLimitExceeded());
+        assertEquals(content, writer.getCapturedContent());
+        writer.release();
+        
+        assertEquals(6, this.captureBufferPool.getSegmentsAllocated());
+        assertEquals(content.length(), this.captureBufferPool.getCapturedBytes());
+    }
+    
+    @Test
+    public void testContentExceedsThreshold() {
+        final byte[] content = new byte[CaptureBufferPool.BYTE_SEGMENT_SIZE * 2];
+        
+        final CaptureOutputStream outputStream = this.captureBufferPool.createOutputStream(content.length - 1);
+        outputStream.write(content, 0, 10);
+        assertFalse(outputStream.isLimitExceeded());
+        
+        outputStream.write(content, 10, content.length - 10);
+        assertTrue(outputStream.isLimitExceeded());
+        assertNull(outputStream.getCapturedContent());
+        
+        // try to write more and see no results
+        outputStream.write(1);
+        assertNull(outputStream.getCapturedContent());
+        outputStream.release();
+        
+        assertEquals(1, this.captureBufferPool.getThresholdExceededCount());
+    }
+    
+    @Test
+    public void testSegmentsReused() {
+        final byte[] content = new byte[CaptureBufferPool.BYTE_SEGMENT_SIZE + 10];
+        content[content.length - 1] = 42;
+        
+        final CaptureOutputStream first = this.captureBufferPool.createOutputStream(102400);
+        first.write(content, 0, content.length);
+        assertArrayEquals(content, first.getCapturedContent());
+        first.release();
+        
+        final CaptureOutputStream second = this.captureBufferPool.createOutputStream(102400);
+        second.write(content, 0, content.length);
+        assertArrayEquals(content, second.getCapturedContent());
+        second.release();
+        
+        assertEquals(2, this.captureBufferPool.getSegmentsAllocated());
+        assertEquals(2, this.captureBufferPool.getSegmentsReused());
+        assertEquals(2, this.captureBufferPool.getCaptureCount());
+    }
+    
+    @Test
+    public void testPoolSizeLimited() throws IOException {
+        this.captureBufferPool.setMaxPooledSegments(1);
+        
+        final CaptureWriter writer = this.captureBufferPool.createWriter(102400);
+        writer.write(new char[CaptureBufferPool.CHAR_SEGMENT_SIZE * 3], 0, CaptureBufferPool.CHAR_SEGMENT_SIZE * 3);
+        writer.release();
+        
+        assertEquals(3, this.captureBufferPool.getSegmentsAllocated());
+        assertEquals(2, this.captureBufferPool.getSegmentsDiscarded());
+    }
+}
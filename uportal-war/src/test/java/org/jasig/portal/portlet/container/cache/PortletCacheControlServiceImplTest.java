@@ -292,4 +292,53 @@ public class PortletCacheControlServiceImplTest {
 		cacheElement = cacheControlService.constructCacheElement(key, data, cacheConfig, cacheControl);
 		Assert.assertEquals(0, cacheElement.getTimeToLive());
 	}
+	
+	@Test
+	public void testRemoveAllOnlyResetsClearedCacheBytes() {
+		PortletCacheStatistics portletCacheStatistics = new PortletCacheStatistics();
+		PortletCacheControlServiceImpl cacheControlService = createQuotaCacheControlService(portletCacheStatistics, 0);
+		
+		cacheControlService.putCachedPortletData(privateScopeRenderCache, new Element("render", createCachedPortletData("portlet", "aaaa")));
+		cacheControlService.putCachedPortletData(publicScopeResourceCache, new Element("resource", createCachedPortletData("portlet", "bbbbbb")));
+		Assert.assertEquals(20, portletCacheStatistics.getBytesUsed("portlet"));
+		
+		// only the bytes of the cleared cache are removed
+		privateScopeRenderCache.removeAll();
+		Assert.assertEquals(12, portletCacheStatistics.getBytesUsed("portlet"));
+	}
+	
+	@Test
+	public void testQuotaIgnoresReplacedEntry() {
+		PortletCacheStatistics portletCacheStatistics = new PortletCacheStatistics();
+		PortletCacheControlServiceImpl cacheControlService = createQuotaCacheControlService(portletCacheStatistics, 20);
+		
+		cacheControlService.putCachedPortletData(privateScopeRenderCache, new Element("key1", createCachedPortletData("portlet", "aaaaaaaa")));
+		Assert.assertEquals(16, portletCacheStatistics.getBytesUsed("portlet"));
+		
+		// refreshing the cached entry replaces its bytes so stays under quota, a second entry does not
+		CachedPortletData refreshedData = createCachedPortletData("portlet", "bbbbbbbb");
+		assertFalse(cacheControlService.isOverPortletQuota(privateScopeRenderCache, "key1", refreshedData));
+		assertTrue(cacheControlService.isOverPortletQuota(privateScopeRenderCache, "key2", refreshedData));
+		
+		cacheControlService.putCachedPortletData(privateScopeRenderCache, new Element("key1", refreshedData));
+		Assert.assertEquals(16, portletCacheStatistics.getBytesUsed("portlet"));
+	}
+	
+	private PortletCacheControlServiceImpl createQuotaCacheControlService(PortletCacheStatistics portletCacheStatistics, long maxBytesPerPortlet) {
+		PortletCacheControlServiceImpl cacheControlService = new PortletCacheControlServiceImpl();
+		cacheControlService.setPortletCacheStatistics(portletCacheStatistics);
+		cacheControlService.setMaxBytesPerPortlet(maxBytesPerPortlet);
+		cacheControlService.setPrivateScopePortletRenderOutputCache(privateScopeRenderCache);
+		cacheControlService.setPublicScopePortletRenderOutputCache(publicScopeRenderCache);
+		cacheControlService.setPrivateScopePortletResourceOutputCache(privateScopeResourceCache);
+		cacheControlService.setPublicScopePortletResourceOutputCache(publicScopeResourceCache);
+		return cacheControlService;
+	}
+	
+	private CachedPortletData createCachedPortletData(String fname, String content) {
+		CachedPortletData data = new CachedPortletData();
+		data.setPortletFname(fname);
+		data.setStringData(content);
+		return data;
+	}
 }
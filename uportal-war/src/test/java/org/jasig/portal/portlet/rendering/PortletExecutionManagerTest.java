@@ -0,0 +1,101 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.portlet.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.jasig.portal.portlet.rendering.worker.IPortletRenderExecutionWorker;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * @version $Revision$
+ */
+public class PortletExecutionManagerTest {
+    private PortletExecutionManager portletExecutionManager;
+    private MockHttpServletRequest request;
+    private long pageStart;
+
+    @Before
+    public void setUp() {
+        this.portletExecutionManager = new PortletExecutionManager();
+        this.request = new MockHttpServletRequest();
+        this.pageStart = System.currentTimeMillis();
+        this.request.setAttribute(PortletExecutionManager.PORTLET_RENDERING_DEADLINE, this.pageStart + 10000);
+    }
+
+    private IPortletRenderExecutionWorker createWorker(long startedTime) {
+        final IPortletRenderExecutionWorker worker = mock(IPortletRenderExecutionWorker.class);
+        when(worker.getStartedTime()).thenReturn(startedTime);
+        return worker;
+    }
+
+    @Test
+    public void testWorkersStartedTogetherWaitedOnInTurn() throws Exception {
+        final List<IPortletRenderExecutionWorker> workers = Arrays.asList(
+                this.createWorker(this.pageStart),
+                this.createWorker(this.pageStart),
+                this.createWorker(this.pageStart));
+
+        //Each worker is waited on after the previous one, the worker measures the timeout from its
+        //own start so every worker still gets the full 10 seconds and times out at the page deadline
+        for (final IPortletRenderExecutionWorker worker : workers) {
+            final long waitTimeout = this.portletExecutionManager.getPortletRenderWaitTimeout(10000, worker, this.request);
+            assertEquals(10000, waitTimeout);
+            assertEquals(this.pageStart + 10000, worker.getStartedTime() + waitTimeout);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void testLateStartLimitedToDeadline() {
+        //Started 3 seconds after the page, may only run until the page deadline
+        final IPortletRenderExecutionWorker lateWorker = this.createWorker(this.pageStart + 3000);
+        assertEquals(7000, this.portletExecutionManager.getPortletRenderWaitTimeout(10000, lateWorker, this.request));
+
+        //The portlet's own timeout is used when it is shorter
+        assertEquals(2000, this.portletExecutionManager.getPortletRenderWaitTimeout(2000, lateWorker, this.request));
+
+        //Past the deadline there is no time left
+        final IPortletRenderExecutionWorker pastWorker = this.createWorker(this.pageStart + 11000);
+        assertEquals(0, this.portletExecutionManager.getPortletRenderWaitTimeout(10000, pastWorker, this.request));
+    }
+
+    @Test
+    public void testNotStartedWorker() {
+        final long waitTimeout = this.portletExecutionManager.getPortletRenderWaitTimeout(10000, this.createWorker(0), this.request);
+        assertTrue(waitTimeout <= 10000);
+        assertTrue(waitTimeout > 9000);
+    }
+
+    @Test
+    public void testNoDeadline() {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        assertEquals(10000, this.portletExecutionManager.getPortletRenderWaitTimeout(10000, this.createWorker(this.pageStart), request));
+    }
+}
@@ -713,4 +713,56 @@ public class PortletRendererImplTest {
 		// verify we never enter the other branch of the "should render cached output" if statement
 		verify(portletCacheControlService, never()).shouldOutputBeCached(isA(CacheControl.class));
 	}
+	
+	/**
+	 * Conditional request for unexpired cached resource content is answered with a 304 without executing the portlet.
+	 */
+	@Test
+	public void doServeResourceNotModifiedTest() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader("If-None-Match", "123456");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		CachedPortletData cachedPortletData = new CachedPortletData();
+		cachedPortletData.setByteData("{ \"hello\": \"world\" }".getBytes());
+		cachedPortletData.setExpirationTimeSeconds(300);
+		cachedPortletData.setEtag("123456");
+		cachedPortletData.setTimeStored(new Date());
+		
+		setupPortletExecutionMocks(request);
+		
+		when(portletCacheControlService.getCachedPortletResourceOutput(portletWindowId, request)).thenReturn(cachedPortletData);
+		
+		Assert.assertTrue(portletRenderer.doServeResourceNotModified(portletWindowId, request, response));
+		Assert.assertEquals(304, response.getStatus());
+		Assert.assertEquals(0, response.getContentAsByteArray().length);
+	}
+	
+	/**
+	 * A request without a matching etag is not answered early and the cache lookup is reused by doServeResource.
+	 */
+	@Test
+	public void doServeResourceNotModifiedMismatchTest() throws PortletException, IOException, PortletContainerException {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader("If-None-Match", "123457");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		CachedPortletData cachedPortletData = new CachedPortletData();
+		cachedPortletData.setContentType("application/json");
+		byte [] content = "{ \"hello\": \"world\" }".getBytes();
+		cachedPortletData.setByteData(content);
+		cachedPortletData.setExpirationTimeSeconds(300);
+		cachedPortletData.setTimeStored(new Date());
+		
+		setupPortletExecutionMocks(request);
+		
+		when(portletCacheControlService.getCachedPortletResourceOutput(portletWindowId, request)).thenReturn(cachedPortletData);
+		
+		Assert.assertFalse(portletRenderer.doServeResourceNotModified(portletWindowId, request, response));
+		portletRenderer.doServeResource(portletWindowId, request, response);
+		
+		Assert.assertTrue(Arrays.equals(content, response.getContentAsByteArray()));
+		Assert.assertEquals(content.length, response.getContentLength());
+		Assert.assertEquals("\"" + cachedPortletData.getBodyETag() + "\"", response.getHeader("ETag"));
+		verify(portletCacheControlService, times(1)).getCachedPortletResourceOutput(portletWindowId, request);
+		verify(portletContainer, never()).doServeResource(isA(PortletWindow.class), isA(PortletHttpServletRequestWrapper.class), isA(PortletHttpServletResponseWrapper.class));
+	}
 }
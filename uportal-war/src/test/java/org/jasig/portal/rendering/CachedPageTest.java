@@ -0,0 +1,67 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class CachedPageTest {
+    @Test
+    public void testContentAndETag() throws Exception {
+        final IPortletWindowId portletWindowId = mock(IPortletWindowId.class);
+        final Map<IPortletWindowId, String> portletBodyETags = Collections.singletonMap(portletWindowId, "s-1234");
+
+        final CachedPage cachedPage = new CachedPage("<html>\u00e9</html>", "text/html; charset=UTF-8", portletBodyETags);
+        assertArrayEquals("<html>\u00e9</html>".getBytes("UTF-8"), cachedPage.getContent());
+        assertEquals("s-1234", cachedPage.getPortletBodyETags().get(portletWindowId));
+
+        final CachedPage samePage = new CachedPage("<html>\u00e9</html>", "text/html; charset=UTF-8", portletBodyETags);
+        assertNotSame(cachedPage, samePage);
+        assertEquals(cachedPage.getETag(), samePage.getETag());
+
+        final CachedPage otherPage = new CachedPage("<html></html>", "text/html; charset=UTF-8", portletBodyETags);
+        assertFalse(cachedPage.getETag().equals(otherPage.getETag()));
+    }
+
+    @Test
+    public void testMatches() {
+        final Map<IPortletWindowId, String> portletBodyETags = Collections.emptyMap();
+        final CachedPage cachedPage = new CachedPage("<html></html>", "text/html; charset=UTF-8", portletBodyETags);
+
+        assertFalse(cachedPage.matches(null));
+        assertFalse(cachedPage.matches("\"abc\""));
+        assertTrue(cachedPage.matches(cachedPage.getETag()));
+        assertTrue(cachedPage.matches("\"abc\", " + cachedPage.getETag()));
+        assertTrue(cachedPage.matches("*"));
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Flushable;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jasig.portal.character.stream.CharacterEventBufferReader;
+import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.PortletContentPlaceholderEventImpl;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @version $Revision$
+ */
+public class PortletRenderingIncorporationComponentTest {
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFlushBeforeWaitingOnPortlet() throws Exception {
+        final IPortletWindowId renderingWindowId = mock(IPortletWindowId.class);
+        final IPortletWindowId completeWindowId = mock(IPortletWindowId.class);
+        final List<CharacterEvent> events = Arrays.<CharacterEvent>asList(
+                new CharacterDataEventImpl("<html>"),
+                new PortletContentPlaceholderEventImpl(renderingWindowId),
+                new PortletContentPlaceholderEventImpl(completeWindowId),
+                new CharacterDataEventImpl("</html>"));
+
+        final CharacterPipelineComponent wrappedComponent = mock(CharacterPipelineComponent.class);
+        when(wrappedComponent.getEventReader(any(HttpServletRequest.class), any(HttpServletResponse.class)))
+            .thenReturn(new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(new CharacterEventBufferReader(events.listIterator())));
+
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final Flushable responseFlusher = mock(Flushable.class);
+        request.setAttribute(DynamicRenderingPipeline.RESPONSE_FLUSHER_ATTRIBUTE, responseFlusher);
+
+        final IPortletExecutionManager portletExecutionManager = mock(IPortletExecutionManager.class);
+        when(portletExecutionManager.isPortletRenderComplete(renderingWindowId, request, response)).thenReturn(false);
+        when(portletExecutionManager.isPortletRenderComplete(completeWindowId, request, response)).thenReturn(true);
+        when(portletExecutionManager.getPortletOutput(renderingWindowId, request, response)).thenReturn("<p>rendering</p>");
+        when(portletExecutionManager.getPortletOutput(completeWindowId, request, response)).thenReturn("<p>complete</p>");
+
+        final PortletRenderingIncorporationComponent component = new PortletRenderingIncorporationComponent();
+        component.setWrappedComponent(wrappedComponent);
+        component.setPortletExecutionManager(portletExecutionManager);
+
+        final StringBuilder output = new StringBuilder();
+        for (final CharacterEvent event : component.getEventReader(request, response)) {
+            output.append(((CharacterDataEvent)event).getData());
+        }
+        assertEquals("<html><p>rendering</p><p>complete</p></html>", output.toString());
+
+        //Only the portlet that is still rendering causes a flush and the flush happens before waiting on it
+        final InOrder inOrder = inOrder(responseFlusher, portletExecutionManager);
+        inOrder.verify(responseFlusher).flush();
+        inOrder.verify(portletExecutionManager).getPortletOutput(renderingWindowId, request, response);
+        verify(responseFlusher, times(1)).flush();
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.jasig.portal.portlet.om.IPortletWindow;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
+import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
+import org.jasig.portal.utils.Tuple;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @version $Revision$
+ */
+public class PortletRenderingInitiationStAXComponentTest {
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testContentRendersStartedAsOneBatch() throws Exception {
+        final String layout = "<layout><folder><channel ID=\"n3\"/><channel ID=\"n1\"/></folder><folder><channel ID=\"n2\"/><channel ID=\"n3\"/></folder></layout>";
+        final XMLEventReader eventReader = XMLInputFactory.newFactory().createXMLEventReader(new StringReader(layout));
+        
+        final StAXPipelineComponent wrappedComponent = mock(StAXPipelineComponent.class);
+        when(wrappedComponent.getEventReader(any(HttpServletRequest.class), any(HttpServletResponse.class)))
+            .thenReturn(new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(eventReader));
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        
+        final Map<String, IPortletWindowId> portletWindowIds = new HashMap<String, IPortletWindowId>();
+        for (final String nodeId : Arrays.asList("n1", "n2", "n3")) {
+            portletWindowIds.put(nodeId, mock(IPortletWindowId.class));
+        }
+        
+        final IPortletWindowRegistry portletWindowRegistry = mock(IPortletWindowRegistry.class);
+        when(portletWindowRegistry.getPortletWindow(any(HttpServletRequest.class), any(StartElement.class))).thenAnswer(new Answer<Tuple<IPortletWindow, StartElement>>() {
+            @Override
+            public Tuple<IPortletWindow, StartElement> answer(InvocationOnMock invocation) throws Throwable {
+                final StartElement element = (StartElement)invocation.getArguments()[1];
+                final String nodeId = element.getAttributeByName(new QName("ID")).getValue();
+                
+                final IPortletWindow portletWindow = mock(IPortletWindow.class);
+                when(portletWindow.getPortletWindowId()).thenReturn(portletWindowIds.get(nodeId));
+                return new Tuple<IPortletWindow, StartElement>(portletWindow, element);
+            }
+        });
+        
+        final IPortletExecutionManager portletExecutionManager = mock(IPortletExecutionManager.class);
+        final List<List<IPortletWindowId>> batches = new ArrayList<List<IPortletWindowId>>();
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                batches.add(new ArrayList<IPortletWindowId>((Collection<IPortletWindowId>)invocation.getArguments()[0]));
+                return null;
+            }
+        }).when(portletExecutionManager).startPortletRenders(anyCollectionOf(IPortletWindowId.class), any(HttpServletRequest.class), any(HttpServletResponse.class));
+        
+        final PortletRenderingInitiationStAXComponent component = new PortletRenderingInitiationStAXComponent();
+        component.setWrappedComponent(wrappedComponent);
+        component.setPortletWindowRegistry(portletWindowRegistry);
+        component.setPortletExecutionManager(portletExecutionManager);
+        
+        final XMLEventReader filteredReader = component.getEventReader(request, response).getEventReader();
+        while (filteredReader.hasNext()) {
+            final XMLEvent event = filteredReader.nextEvent();
+            //Nothing is started until the end of the document
+            if (!event.isEndDocument()) {
+                assertEquals(0, batches.size());
+            }
+        }
+        
+        //One batch with each portlet once, in document order
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(portletWindowIds.get("n3"), portletWindowIds.get("n1"), portletWindowIds.get("n2")), batches.get(0));
+        verify(portletExecutionManager, times(1)).startPortletRenders(anyCollectionOf(IPortletWindowId.class), any(HttpServletRequest.class), any(HttpServletResponse.class));
+        verify(portletExecutionManager, never()).startPortletRender(any(IPortletWindowId.class), any(HttpServletRequest.class), any(HttpServletResponse.class));
+    }
+}
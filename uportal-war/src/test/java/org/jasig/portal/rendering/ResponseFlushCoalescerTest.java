@@ -0,0 +1,87 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class ResponseFlushCoalescerTest {
+    private StringWriter content;
+    private HttpServletResponse response;
+    private ResponseFlushCoalescer output;
+
+    @Before
+    public void setUp() {
+        this.content = new StringWriter();
+        this.response = mock(HttpServletResponse.class);
+        this.output = new ResponseFlushCoalescer(new PrintWriter(this.content), this.response, 10, TimeUnit.HOURS.toNanos(1), Collections.singleton("</head>"));
+    }
+
+    @Test
+    public void testFlushAtThreshold() throws Exception {
+        this.output.write("<html>");
+        verify(this.response, never()).flushBuffer();
+
+        this.output.write("<body>");
+        verify(this.response, times(1)).flushBuffer();
+        assertEquals("<html><body>", this.content.toString());
+        assertEquals(12, this.output.getWritten());
+        assertEquals(1, this.output.getFlushes());
+    }
+
+    @Test
+    public void testFlushAtMarker() throws Exception {
+        this.output.write("</head>");
+        verify(this.response, times(1)).flushBuffer();
+    }
+
+    @Test
+    public void testFlushPendingOutput() throws Exception {
+        //Nothing pending, nothing to flush
+        this.output.flush();
+        verify(this.response, never()).flushBuffer();
+
+        this.output.write("<p>");
+        this.output.flush();
+        verify(this.response, times(1)).flushBuffer();
+        assertEquals("<p>", this.content.toString());
+
+        this.output.flush();
+        verify(this.response, times(1)).flushBuffer();
+        assertEquals(1, this.output.getFlushes());
+    }
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 
@@ -66,6 +67,22 @@ public class StaticTransformerSource implements TransformerSource {
         }
     }
 
+    /* (non-Javadoc)
+     * @see org.jasig.portal.rendering.xslt.TransformerSource#getTemplates(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public Templates getTemplates(HttpServletRequest request, HttpServletResponse response) {
+        try {
+            return this.xmlUtilities.getTemplates(this.stylesheet);
+        }
+        catch (TransformerConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.portal.rendering.xslt.TransformerSource#getCacheKey(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
      */
@@ -26,6 +26,7 @@ import static org.easymock.EasyMock.notNull;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -34,7 +35,11 @@ import net.sf.ehcache.Element;
 
 import org.jasig.portal.character.stream.CharacterEventBufferReader;
 import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
 import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.PortletContentPlaceholderEventImpl;
+import org.jasig.portal.portlet.om.IPortletWindowId;
 import org.jasig.portal.rendering.CharacterPipelineComponent;
 import org.jasig.portal.rendering.PipelineEventReader;
 import org.jasig.portal.rendering.PipelineEventReaderImpl;
@@ -117,4 +122,29 @@ public class CachingCharacterPipelineComponentTest {
         
         verify(cache, targetComponent, elementsProvider);
     }
+    
+    @Test
+    public void testCompactEvents() {
+        final IPortletWindowId portletWindowId = createMock(IPortletWindowId.class);
+        final PortletContentPlaceholderEventImpl placeholderEvent = new PortletContentPlaceholderEventImpl(portletWindowId);
+        
+        final List<CharacterEvent> eventBuffer = Arrays.<CharacterEvent>asList(
+                new CharacterDataEventImpl("<html>"),
+                new CharacterDataEventImpl("<body>"),
+                placeholderEvent,
+                new CharacterDataEventImpl("</body>"),
+                new CharacterDataEventImpl("</html>"));
+        
+        final CachingCharacterPipelineComponent cachingComponent = new CachingCharacterPipelineComponent();
+        final List<CharacterEvent> compactedEvents = cachingComponent.compactEvents(eventBuffer);
+        
+        Assert.assertEquals(3, compactedEvents.size());
+        Assert.assertEquals("<html><body>", ((CharacterDataEvent)compactedEvents.get(0)).getData());
+        Assert.assertSame(placeholderEvent, compactedEvents.get(1));
+        Assert.assertEquals("</body></html>", ((CharacterDataEvent)compactedEvents.get(2)).getData());
+        
+        final CachedEventReader<CharacterEvent> cachedEventReader = new CachedEventReader<CharacterEvent>(compactedEvents, Collections.<String, String>emptyMap(), 0);
+        Assert.assertEquals(3, cachedEventReader.getEventCount());
+        Assert.assertEquals(compactedEvents, cachedEventReader.getEventCache());
+    }
 }
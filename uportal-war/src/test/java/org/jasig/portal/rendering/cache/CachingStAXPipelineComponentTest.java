@@ -19,6 +19,7 @@
 
 package org.jasig.portal.rendering.cache;
 
+import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
@@ -26,15 +27,19 @@ import static org.easymock.EasyMock.notNull;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.ListIterator;
 
+import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.events.XMLEvent;
 
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 
+import org.easymock.Capture;
 import org.jasig.portal.rendering.PipelineEventReader;
 import org.jasig.portal.rendering.PipelineEventReaderImpl;
 import org.jasig.portal.rendering.StAXPipelineComponent;
@@ -87,6 +92,61 @@ public class CachingStAXPipelineComponentTest {
         verify(cache, targetComponent, elementsProvider);
     }
     
+    @Test
+    public void testCacheMissStreamsEvents() {
+        final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+        final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+        final CacheKey cacheKey = new CacheKey("testCacheKey");
+        final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+        final List<XMLEvent> eventBuffer = Arrays.<XMLEvent>asList(
+                eventFactory.createStartDocument(),
+                eventFactory.createStartElement("", "", "html"),
+                eventFactory.createEndElement("", "", "html"),
+                eventFactory.createEndDocument());
+        final ListIterator<XMLEvent> sourceEvents = eventBuffer.listIterator();
+        final PipelineEventReader<XMLEventReader, XMLEvent> eventReader = new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(new XMLEventBufferReader(sourceEvents));
+        
+        final Ehcache cache = createMock(Ehcache.class);
+        final StAXPipelineComponent targetComponent = createMock(StAXPipelineComponent.class);
+        final ResourcesElementsProvider elementsProvider = createMock(ResourcesElementsProvider.class);
+        
+        expect(elementsProvider.getDefaultIncludedType()).andReturn(Included.AGGREGATED);
+        expect(targetComponent.getCacheKey(mockReq, mockRes)).andReturn(cacheKey);
+        expect(cache.get(cacheKey)).andReturn(null);
+        expect(targetComponent.getEventReader(mockReq, mockRes)).andReturn(eventReader);
+        final Capture<Element> cachedElement = new Capture<Element>();
+        cache.put(capture(cachedElement));
+        expectLastCall();
+        
+        replay(cache, targetComponent, elementsProvider);
+        
+        final CachingStAXPipelineComponent cachingComponent = new CachingStAXPipelineComponent();
+        cachingComponent.setCache(cache);
+        cachingComponent.setWrappedComponent(targetComponent);
+        cachingComponent.setResourcesElementsProvider(elementsProvider);
+        
+        final XMLEventReader actualEventReader = cachingComponent.getEventReader(mockReq, mockRes).getEventReader();
+        
+        //Nothing is read from the wrapped component until the caller reads
+        Assert.assertEquals(0, sourceEvents.nextIndex());
+        
+        Assert.assertSame(eventBuffer.get(0), actualEventReader.peek());
+        Assert.assertSame(eventBuffer.get(0), actualEventReader.next());
+        Assert.assertSame(eventBuffer.get(1), actualEventReader.next());
+        Assert.assertEquals(2, sourceEvents.nextIndex());
+        Assert.assertFalse(cachedElement.hasCaptured());
+        
+        //The events are cached once the last one has been read
+        Assert.assertSame(eventBuffer.get(2), actualEventReader.next());
+        Assert.assertSame(eventBuffer.get(3), actualEventReader.next());
+        Assert.assertFalse(actualEventReader.hasNext());
+        
+        verify(cache, targetComponent, elementsProvider);
+        
+        final CachedEventReader<XMLEvent> cachedEventReader = (CachedEventReader<XMLEvent>)cachedElement.getValue().getObjectValue();
+        Assert.assertEquals(eventBuffer, cachedEventReader.getEventCache());
+    }
+    
     @Test
     public void testCacheHit() {
         final MockHttpServletRequest mockReq = new MockHttpServletRequest();
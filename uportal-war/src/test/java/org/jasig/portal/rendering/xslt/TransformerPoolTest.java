@@ -0,0 +1,172 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering.xslt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.jasig.portal.rendering.xslt.TransformerPool.PooledTransformer;
+import org.jasig.portal.url.xml.XsltPortalUrlProvider;
+import org.jasig.portal.utils.cache.CacheKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class TransformerPoolTest {
+    private TransformerPool transformerPool;
+    private Templates templates;
+    private CacheKey stylesheetKey;
+
+    @Before
+    public void setUp() throws Exception {
+        this.transformerPool = new TransformerPool();
+
+        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+        this.templates = transformerFactory.newTemplates(new StreamSource(this.getClass().getResourceAsStream("columns.xsl")));
+        this.stylesheetKey = new CacheKey("columns.xsl", "1");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.transformerPool.destroy();
+    }
+
+    @Test
+    public void testReuseConfiguredTransformer() {
+        final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+        parameters.put("skin", "universality");
+        parameters.put("locale", "en-US");
+        parameters.put("unset", null);
+
+        final PooledTransformer first = this.transformerPool.borrowTransformer(this.stylesheetKey, this.templates, parameters, null);
+        assertEquals("universality", first.getTransformer().getParameter("skin"));
+        this.transformerPool.recordTransformTime(first, 1000);
+        this.transformerPool.returnTransformer(first);
+
+        //Same parameters in a different order and without the null value get the same transformer
+        final Map<String, Object> sameParameters = new HashMap<String, Object>();
+        sameParameters.put("locale", "en-US");
+        sameParameters.put("skin", "universality");
+
+        final PooledTransformer second = this.transformerPool.borrowTransformer(this.stylesheetKey, this.templates, sameParameters, null);
+        assertSame(first.getTransformer(), second.getTransformer());
+        this.transformerPool.returnTransformer(second);
+
+        assertEquals(Long.valueOf(1), this.transformerPool.getHitCounts().get("columns.xsl"));
+        assertEquals(Long.valueOf(1), this.transformerPool.getMissCounts().get("columns.xsl"));
+        assertEquals(Long.valueOf(1), this.transformerPool.getTransformCounts().get("columns.xsl"));
+    }
+
+    @Test
+    public void testDifferentParameters() {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("skin", "universality");
+
+        final PooledTransformer first = this.transformerPool.borrowTransformer(this.stylesheetKey, this.templates, parameters, null);
+        this.transformerPool.returnTransformer(first);
+
+        //Parameters are set on each borrow, not part of the key
+        parameters.put("skin", "uportal3");
+        final PooledTransformer second = this.transformerPool.borrowTransformer(this.stylesheetKey, this.templates, parameters, null);
+        assertSame(first.getTransformer(), second.getTransformer());
+        assertEquals("uportal3", second.getTransformer().getParameter("skin"));
+        this.transformerPool.returnTransformer(second);
+
+        assertEquals(Long.valueOf(1), this.transformerPool.getMissCounts().get("columns.xsl"));
+    }
+
+    @Test
+    public void testRequestParametersNotRetained() {
+        final HttpServletRequest firstRequest = mock(HttpServletRequest.class);
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("skin", "universality");
+        parameters.put(XsltPortalUrlProvider.CURRENT_REQUEST, firstRequest);
+        parameters.put("USER_ID", "student");
+
+        final PooledTransformer first = this.transformerPool.borrowTransformer(this.stylesheetKey, this.templates, parameters, null);
+        assertSame(firstRequest, first.getTransformer().getParameter(XsltPortalUrlProvider.CURRENT_REQUEST));
+        this.transformerPool.returnTransformer(first);
+        
+        //Returned transformers don't hold on to the request or user
+        assertNull(first.getTransformer().getParameter(XsltPortalUrlProvider.CURRENT_REQUEST));
+        assertNull(first.getTransformer().getParameter("USER_ID"));
+
+        //A different request and user reuse the same transformer
+        final HttpServletRequest secondRequest = mock(HttpServletRequest.class);
+        parameters.put(XsltPortalUrlProvider.CURRENT_REQUEST, secondRequest);
+        parameters.put("USER_ID", "staff");
+        
+        final PooledTransformer second = this.transformerPool.borrowTransformer(this.stylesheetKey, this.templates, parameters, null);
+        assertSame(first.getTransformer(), second.getTransformer());
+        assertSame(secondRequest, second.getTransformer().getParameter(XsltPortalUrlProvider.CURRENT_REQUEST));
+        assertEquals("staff", second.getTransformer().getParameter("USER_ID"));
+        this.transformerPool.returnTransformer(second);
+
+        assertEquals(Long.valueOf(1), this.transformerPool.getHitCounts().get("columns.xsl"));
+        assertEquals(Long.valueOf(1), this.transformerPool.getMissCounts().get("columns.xsl"));
+    }
+
+    @Test
+    public void testDifferentOutputProperties() {
+        final Properties outputProperties = new Properties();
+        outputProperties.setProperty(OutputKeys.INDENT, "no");
+
+        final PooledTransformer first = this.transformerPool.borrowTransformer(this.stylesheetKey, this.templates, null, outputProperties);
+        this.transformerPool.returnTransformer(first);
+
+        outputProperties.setProperty(OutputKeys.INDENT, "yes");
+        final PooledTransformer second = this.transformerPool.borrowTransformer(this.stylesheetKey, this.templates, null, outputProperties);
+        assertNotSame(first.getTransformer(), second.getTransformer());
+        assertEquals("yes", second.getTransformer().getOutputProperty(OutputKeys.INDENT));
+        this.transformerPool.returnTransformer(second);
+
+        assertEquals(Long.valueOf(2), this.transformerPool.getMissCounts().get("columns.xsl"));
+    }
+
+    @Test
+    public void testInvalidatedTransformerNotReused() {
+        final PooledTransformer first = this.transformerPool.borrowTransformer(this.stylesheetKey, this.templates, null, null);
+        this.transformerPool.invalidateTransformer(first);
+
+        final PooledTransformer second = this.transformerPool.borrowTransformer(this.stylesheetKey, this.templates, null, null);
+        assertNotSame(first.getTransformer(), second.getTransformer());
+        this.transformerPool.returnTransformer(second);
+
+        assertEquals(0, this.transformerPool.getNumActive());
+        assertEquals(1, this.transformerPool.getNumIdle());
+    }
+}
@@ -25,6 +25,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -70,6 +73,21 @@ public class XSLTComponentTest {
 
     @Test
     public void testXSLTComponent() throws Exception {
+        this.testXSLTComponent(null);
+    }
+    
+    @Test
+    public void testPipelinedXSLTComponent() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            this.testXSLTComponent(executor);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected void testXSLTComponent(Executor pipelineExecutor) throws Exception {
         final MockHttpServletRequest mockReq = new MockHttpServletRequest();
         final MockHttpServletResponse mockRes = new MockHttpServletResponse();
 
@@ -89,6 +107,12 @@ public class XSLTComponentTest {
         final XSLTComponent xsltComponent = new XSLTComponent();
         xsltComponent.setWrappedComponent(targetComponent);
         xsltComponent.setTransformerSource(transformerSource);
+        if (pipelineExecutor != null) {
+            xsltComponent.setPipelined(true);
+            xsltComponent.setPipelineExecutor(pipelineExecutor);
+            xsltComponent.setPipelineBatchSize(8);
+            xsltComponent.setPipelineCapacity(2);
+        }
         
         final PipelineEventReader<XMLEventReader, XMLEvent> eventReader = xsltComponent.getEventReader(mockReq, mockRes);
         
@@ -0,0 +1,99 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.security.provider;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.jasig.portal.AuthorizationException;
+import org.jasig.portal.portlet.om.IPortletDefinition;
+import org.jasig.portal.portlet.om.PortletLifecycleState;
+import org.jasig.portal.portlet.registry.IPortletDefinitionRegistry;
+import org.jasig.portal.security.IAuthorizationPrincipal;
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionPolicy;
+
+/**
+ * @version $Revision$
+ */
+public class AuthorizationImplTest extends TestCase {
+    private AuthorizationImpl authorizationService;
+    private IPermissionPolicy permissionPolicy;
+    private IPortletDefinitionRegistry portletDefinitionRegistry;
+    private IAuthorizationPrincipal principal;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.permissionPolicy = mock(IPermissionPolicy.class);
+        this.portletDefinitionRegistry = mock(IPortletDefinitionRegistry.class);
+        this.principal = mock(IAuthorizationPrincipal.class);
+
+        this.authorizationService = new AuthorizationImpl();
+        this.authorizationService.setCachePermissions(false);
+        this.authorizationService.setDefaultPermissionPolicy(this.permissionPolicy);
+        this.authorizationService.setPortletDefinitionRegistry(this.portletDefinitionRegistry);
+    }
+
+    private void addPortlet(String portletDefinitionId, PortletLifecycleState state, boolean allowed) {
+        final IPortletDefinition portlet = mock(IPortletDefinition.class);
+        when(portlet.getLifecycleState()).thenReturn(state);
+        when(this.portletDefinitionRegistry.getPortletDefinition(portletDefinitionId)).thenReturn(portlet);
+        when(this.permissionPolicy.doesPrincipalHavePermission(eq(this.authorizationService), eq(this.principal),
+                eq(IPermission.PORTAL_SUBSCRIBE), anyString(), eq(IPermission.PORTLET_PREFIX + portletDefinitionId)))
+            .thenReturn(allowed);
+    }
+
+    public void testRenderablePortlets() {
+        this.addPortlet("1", PortletLifecycleState.PUBLISHED, true);
+        this.addPortlet("2", PortletLifecycleState.PUBLISHED, false);
+        this.addPortlet("3", PortletLifecycleState.EXPIRED, true);
+
+        assertEquals(Arrays.asList("1", "3"), 
+                Arrays.asList(this.authorizationService.getRenderablePortlets(this.principal, Arrays.asList("1", "2", "3")).toArray()));
+        assertTrue(this.authorizationService.getRenderablePortlets(this.principal, Collections.<String>emptyList()).isEmpty());
+    }
+
+    public void testFailedPortletsNotRenderable() {
+        this.addPortlet("1", PortletLifecycleState.PUBLISHED, true);
+        this.addPortlet("3", PortletLifecycleState.PUBLISHED, true);
+
+        //Non-numeric id
+        when(this.portletDefinitionRegistry.getPortletDefinition("x")).thenThrow(new NumberFormatException("For input string: \"x\""));
+
+        //Missing definition, the registry mock returns null for "2"
+
+        //Permission check failure
+        this.addPortlet("4", PortletLifecycleState.PUBLISHED, true);
+        when(this.permissionPolicy.doesPrincipalHavePermission(eq(this.authorizationService), eq(this.principal),
+                eq(IPermission.PORTAL_SUBSCRIBE), anyString(), eq(IPermission.PORTLET_PREFIX + "4")))
+            .thenThrow(new AuthorizationException("Unrecognized lifecycle state for channel 4"));
+
+        assertEquals(Arrays.asList("1", "3"), 
+                Arrays.asList(this.authorizationService.getRenderablePortlets(this.principal, Arrays.asList("1", "x", "2", "4", "3")).toArray()));
+    }
+}
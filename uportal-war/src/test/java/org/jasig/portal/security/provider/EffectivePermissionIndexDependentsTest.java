@@ -0,0 +1,99 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.portal.security.provider;
+
+import java.util.Collections;
+
+import junit.framework.TestCase;
+import net.sf.ehcache.Element;
+
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionPolicy;
+
+/**
+ * @version $Revision$
+ */
+public class EffectivePermissionIndexDependentsTest extends TestCase {
+    private EffectivePermissionIndex createIndex(String principalString, String principalKey, String groupPrincipalString, String groupKey) {
+        final EffectivePermissionIndex index = new EffectivePermissionIndex(principalString, principalKey, new IPermission[0]);
+        index.addInheritedPermissions(groupPrincipalString, groupKey, new IPermission[0]);
+        return index;
+    }
+
+    public void testRemoveDependents() {
+        final EffectivePermissionIndexDependents dependents = new EffectivePermissionIndexDependents();
+        final EffectivePermissionIndex admin = createIndex("3.admin", "admin", "2.local.1", "local.1");
+        final EffectivePermissionIndex student = createIndex("3.student", "student", "2.local.2", "local.2");
+        dependents.notifyElementPut(null, new Element("3.admin", admin));
+        dependents.notifyElementPut(null, new Element("3.student", student));
+
+        assertEquals(Collections.singleton(admin), dependents.getDependents("local.1"));
+        assertEquals(Collections.singleton(student), dependents.getDependents("2.local.2"));
+        assertEquals(0, dependents.getDependents("local.5").size());
+
+        //Only the affected index is returned, and it no longer depends on anything
+        assertEquals(Collections.singleton(admin), dependents.removeDependents("local.1"));
+        assertEquals(0, dependents.getDependents("3.admin").size());
+        assertEquals(0, dependents.removeDependents("local.1").size());
+        assertEquals(Collections.singleton(student), dependents.getDependents("local.2"));
+    }
+
+    public void testDecisionDependencies() {
+        final IPermissionPolicy policy = new AnyUnblockedGrantPermissionPolicy();
+        final EffectivePermissionIndexDependents dependents = new EffectivePermissionIndexDependents();
+        final EffectivePermissionIndex admin = createIndex("3.admin", "admin", "2.local.1", "local.1");
+
+        //Indexes that are not in the cache are not tracked
+        admin.putDecision(policy, "UP_PORTLET_SUBSCRIBE", "SUBSCRIBE", "PORTLET_ID.1", Collections.singleton("local.5"), true);
+        dependents.registerDecisionDependencies(admin, Collections.singleton("local.5"));
+        assertEquals(0, dependents.size());
+
+        dependents.notifyElementPut(null, new Element("3.admin", admin));
+        admin.putDecision(policy, "UP_PORTLET_SUBSCRIBE", "SUBSCRIBE", "PORTLET_ID.2", Collections.singleton("local.6"), true);
+        dependents.registerDecisionDependencies(admin, Collections.singleton("local.6"));
+        assertEquals(Collections.singleton(admin), dependents.getDependents("local.5"));
+        assertEquals(Collections.singleton(admin), dependents.getDependents("local.6"));
+    }
+
+    public void testReplacedAndRemovedIndexes() {
+        final EffectivePermissionIndexDependents dependents = new EffectivePermissionIndexDependents();
+        final EffectivePermissionIndex admin = createIndex("3.admin", "admin", "2.local.1", "local.1");
+        final EffectivePermissionIndex rebuilt = createIndex("3.admin", "admin", "2.local.2", "local.2");
+        dependents.notifyElementPut(null, new Element("3.admin", admin));
+
+        //Replacing the index in the cache drops the old index
+        dependents.notifyElementUpdated(null, new Element("3.admin", rebuilt));
+        assertEquals(0, dependents.getDependents("local.1").size());
+        assertEquals(Collections.singleton(rebuilt), dependents.getDependents("3.admin"));
+        assertEquals(Collections.singleton(rebuilt), dependents.getDependents("local.2"));
+
+        dependents.notifyElementEvicted(null, new Element("3.admin", rebuilt));
+        assertEquals(0, dependents.size());
+
+        dependents.notifyElementPut(null, new Element("3.admin", admin));
+        dependents.notifyElementExpired(null, new Element("3.admin", admin));
+        assertEquals(0, dependents.size());
+
+        dependents.notifyElementPut(null, new Element("3.admin", admin));
+        dependents.notifyRemoveAll(null);
+        assertEquals(0, dependents.size());
+    }
+}
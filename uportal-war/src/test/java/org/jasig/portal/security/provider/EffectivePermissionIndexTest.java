@@ -0,0 +1,92 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.security.provider;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionPolicy;
+
+/**
+ * @version $Revision$
+ */
+public class EffectivePermissionIndexTest extends TestCase {
+    private IPermission createPermission(String principal, String activity, String target, String type) {
+        final IPermission permission = new PermissionImpl("UP_PORTLET_SUBSCRIBE");
+        permission.setPrincipal(principal);
+        permission.setActivity(activity);
+        permission.setTarget(target);
+        permission.setType(type);
+        return permission;
+    }
+
+    public void testPermissionLookup() {
+        final IPermission userGrant = createPermission("3.admin", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT);
+        final IPermission groupDeny = createPermission("2.local.1", "SUBSCRIBE", "local.5", IPermission.PERMISSION_TYPE_DENY);
+
+        final EffectivePermissionIndex index = new EffectivePermissionIndex("3.admin", "admin", new IPermission[] { userGrant });
+        index.addInheritedPermissions("2.local.1", "local.1", new IPermission[] { groupDeny });
+
+        assertEquals(Arrays.asList(userGrant), Arrays.asList(index.getPrincipalPermissions("UP_PORTLET_SUBSCRIBE", "SUBSCRIBE", Arrays.asList("PORTLET_ID.1", "local.5"))));
+        assertEquals(0, index.getPrincipalPermissions("UP_PORTLET_SUBSCRIBE", "MANAGE", Arrays.asList("PORTLET_ID.1")).length);
+        assertEquals(2, index.getEffectivePermissions("UP_PORTLET_SUBSCRIBE", "SUBSCRIBE", Arrays.asList("PORTLET_ID.1", "local.5")).length);
+
+        assertTrue(index.dependsOn("3.admin"));
+        assertTrue(index.dependsOn("admin"));
+        assertTrue(index.dependsOn("2.local.1"));
+        assertTrue(index.dependsOn("local.1"));
+        assertFalse(index.dependsOn("local.5"));
+    }
+
+    public void testDecisions() {
+        final IPermissionPolicy policy = new AnyUnblockedGrantPermissionPolicy();
+        final EffectivePermissionIndex index = new EffectivePermissionIndex("3.admin", "admin", new IPermission[0]);
+
+        assertNull(index.getDecision(policy, "UP_PORTLET_SUBSCRIBE", "SUBSCRIBE", "PORTLET_ID.1"));
+
+        index.putDecision(policy, "UP_PORTLET_SUBSCRIBE", "SUBSCRIBE", "PORTLET_ID.1", Collections.singleton("local.5"), true);
+        assertEquals(Boolean.TRUE, index.getDecision(policy, "UP_PORTLET_SUBSCRIBE", "SUBSCRIBE", "PORTLET_ID.1"));
+        assertTrue(index.dependsOn("local.5"));
+    }
+
+    public void testTimeBoundPermissions() {
+        final IPermission expiring = createPermission("3.admin", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT);
+        expiring.setExpires(new Date(System.currentTimeMillis() + 60000));
+
+        final EffectivePermissionIndex current = new EffectivePermissionIndex("3.admin", "admin", new IPermission[] { expiring });
+        assertTrue(current.isCurrent());
+
+        final IPermission effective = createPermission("3.admin", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT);
+        effective.setEffective(new Date(System.currentTimeMillis() + 1));
+
+        final EffectivePermissionIndex stale = new EffectivePermissionIndex("3.admin", "admin", new IPermission[] { effective });
+        try {
+            Thread.sleep(5);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assertFalse(stale.isCurrent());
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.xml.stream;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.events.StartElement;
+
+import org.jasig.portal.character.stream.CharacterEventSource;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * @version $Revision$
+ */
+public class CompiledChunkingPatternsTest {
+    
+    @Test
+    public void testChunkString() throws Exception {
+        final Map<Pattern, CharacterEventSource> chunkingPatterns = new LinkedHashMap<Pattern, CharacterEventSource>();
+        chunkingPatterns.put(Pattern.compile("\\{title\\(([^\\)]+)\\)\\}"), new GroupEchoEventSource("T"));
+        chunkingPatterns.put(Pattern.compile("\\{link\\(([^,]+),([^\\)]+)\\)\\}"), new GroupEchoEventSource("L"));
+        
+        final CompiledChunkingPatterns compiledChunkingPatterns = new CompiledChunkingPatterns(chunkingPatterns);
+        
+        final List<CharacterEvent> events = compiledChunkingPatterns.chunkString(new MockHttpServletRequest(), "{title(a)}<b>{link(c,d)}</b>");
+        
+        assertEquals(5, events.size());
+        assertEquals("", ((CharacterDataEvent)events.get(0)).getData());
+        assertEquals("T:a", ((CharacterDataEvent)events.get(1)).getData());
+        assertEquals("<b>", ((CharacterDataEvent)events.get(2)).getData());
+        assertEquals("L:c:d", ((CharacterDataEvent)events.get(3)).getData());
+        assertEquals("</b>", ((CharacterDataEvent)events.get(4)).getData());
+    }
+    
+    @Test
+    public void testNoPatterns() throws Exception {
+        final CompiledChunkingPatterns compiledChunkingPatterns = new CompiledChunkingPatterns(Collections.<Pattern, CharacterEventSource>emptyMap());
+        
+        final List<CharacterEvent> events = compiledChunkingPatterns.chunkString(new MockHttpServletRequest(), "{title(a)}");
+        
+        assertEquals(1, events.size());
+        assertEquals("{title(a)}", ((CharacterDataEvent)events.get(0)).getData());
+    }
+    
+    private static final class GroupEchoEventSource implements CharacterEventSource {
+        private final String prefix;
+        
+        public GroupEchoEventSource(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public List<CharacterEvent> getCharacterEvents(HttpServletRequest servletRequest, XMLEventReader eventReader, StartElement event) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<CharacterEvent> getCharacterEvents(HttpServletRequest servletRequest, MatchResult matchResult) {
+            final StringBuilder data = new StringBuilder(this.prefix);
+            for (int group = 1; group <= matchResult.groupCount(); group++) {
+                data.append(':').append(matchResult.group(group));
+            }
+            return Collections.<CharacterEvent>singletonList(new CharacterDataEventImpl(data.toString()));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.xml.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class PipedXMLEventReaderTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        this.executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    private Future<Object> writeDocument(final PipedXMLEventReader reader, final boolean failAtEnd) {
+        return this.executor.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                final XMLInputFactory xmlInputFactory = XMLInputFactory.newFactory();
+                final InputStream xmlStream = PipedXMLEventReaderTest.class.getResourceAsStream("document.xml");
+                final XMLEventReader xmlEventReader = xmlInputFactory.createXMLEventReader(xmlStream);
+
+                final XMLEventWriter eventWriter = reader.getEventWriter();
+                try {
+                    eventWriter.add(xmlEventReader);
+                    if (failAtEnd) {
+                        throw new IllegalStateException("Failed at end");
+                    }
+                    eventWriter.close();
+                }
+                catch (Exception e) {
+                    reader.fail(e);
+                    throw e;
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testReadAllEvents() throws Exception {
+        final PipedXMLEventReader reader = new PipedXMLEventReader(10, 2, 5000);
+        final Future<Object> writer = this.writeDocument(reader, false);
+
+        assertNotNull(reader.peek());
+
+        int eventCount = 0;
+        while (reader.hasNext()) {
+            reader.nextEvent();
+            eventCount++;
+        }
+        assertEquals(122, eventCount);
+
+        writer.get();
+    }
+
+    @Test
+    public void testWriterFailure() throws Exception {
+        final PipedXMLEventReader reader = new PipedXMLEventReader(10, 2, 5000);
+        this.writeDocument(reader, true);
+
+        int eventCount = 0;
+        try {
+            while (reader.peek() != null) {
+                reader.nextEvent();
+                eventCount++;
+            }
+            fail("Writer failure should be re-thrown to the reader");
+        }
+        catch (XMLStreamException e) {
+            //expected, all events written before the failure are read first
+            assertEquals(122, eventCount);
+        }
+    }
+
+    @Test
+    public void testReaderClosed() throws Exception {
+        final PipedXMLEventReader reader = new PipedXMLEventReader(10, 2, 5000);
+        final Future<Object> writer = this.writeDocument(reader, false);
+
+        reader.nextEvent();
+        reader.close();
+        assertFalse(reader.hasNext());
+
+        try {
+            writer.get();
+            fail("Writer should fail once the reader is closed");
+        }
+        catch (ExecutionException e) {
+            //expected
+        }
+    }
+}
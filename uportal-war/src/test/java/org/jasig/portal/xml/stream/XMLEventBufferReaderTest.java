@@ -0,0 +1,70 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.xml.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.XMLEvent;
+
+import org.junit.Test;
+
+/**
+ * @version $Revision$
+ */
+public class XMLEventBufferReaderTest {
+    @Test
+    public void testReplayEvents() throws Exception {
+        final XMLInputFactory xmlInputFactory = XMLInputFactory.newFactory();
+        final InputStream xmlStream = this.getClass().getResourceAsStream("document.xml");
+        final XMLEventReader xmlEventReader = xmlInputFactory.createXMLEventReader(xmlStream);
+        
+        final List<XMLEvent> events = new ArrayList<XMLEvent>();
+        while (xmlEventReader.hasNext()) {
+            events.add(xmlEventReader.nextEvent());
+        }
+        final List<XMLEvent> immutableEvents = Collections.unmodifiableList(events);
+        
+        //The same list can be replayed any number of times
+        for (int replay = 0; replay < 2; replay++) {
+            final XMLEventBufferReader reader = new XMLEventBufferReader(immutableEvents.listIterator());
+            
+            int eventCount = 0;
+            while (reader.hasNext()) {
+                final XMLEvent peeked = reader.peek();
+                assertSame(peeked, reader.nextEvent());
+                eventCount++;
+            }
+            assertEquals(122, eventCount);
+            
+            assertFalse(reader.hasNext());
+            assertNull(reader.peek());
+        }
+    }
+}